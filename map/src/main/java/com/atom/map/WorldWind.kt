@@ -2,8 +2,10 @@ package com.atom.map
 
 import androidx.annotation.IntDef
 import com.atom.map.globe.Ellipsoid
+import com.atom.map.util.HttpTileTransport
 import com.atom.map.util.MessageService
 import com.atom.map.util.TaskService
+import com.atom.map.util.TileTransport
 
 class WorldWind {
     /**
@@ -312,6 +314,12 @@ class WorldWind {
 
         val taskService = TaskService()
 
+        /**
+         * Transport shared by the image and elevation retrievers for network tiles, so that they share keep-alive
+         * connections and per-host concurrency limits.
+         */
+        var tileTransport: TileTransport = HttpTileTransport()
+
         /**
          * Requests that all World Window instances render a frame. Internally, this dispaches a REQUEST_RENDER message to
          * the World Wind message center.
@@ -8,6 +8,7 @@ import android.opengl.GLSurfaceView
 import android.os.Handler
 import android.os.Looper
 import android.os.Message
+import android.os.SystemClock
 import android.util.AttributeSet
 import android.view.Choreographer
 import android.view.Choreographer.FrameCallback
@@ -19,6 +20,7 @@ import com.atom.map.frame.BasicFrameController
 import com.atom.map.frame.Frame
 import com.atom.map.frame.FrameController
 import com.atom.map.frame.FrameMetrics
+import com.atom.map.frame.FramePipeline
 import com.atom.map.geom.*
 import com.atom.map.globe.BasicTessellator
 import com.atom.map.globe.Globe
@@ -28,16 +30,16 @@ import com.atom.map.layer.LayerList
 import com.atom.map.drawable.DrawContext
 import com.atom.map.renderable.RenderContext
 import com.atom.map.renderable.pick.PickedObjectList
+import com.atom.map.navigator.MotionPredictor
 import com.atom.map.navigator.Navigator
 import com.atom.map.navigator.NavigatorEventSupport
 import com.atom.map.navigator.NavigatorListener
+import com.atom.map.util.DiskTileCache
 import com.atom.map.util.Logger
 import com.atom.map.util.MessageListener
 import com.atom.map.util.RenderResourceCache
-import com.atom.map.util.pool.Pool
-import com.atom.map.util.pool.SynchronizedPool
+import java.io.File
 import java.util.*
-import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeUnit
 import javax.microedition.khronos.egl.EGLConfig
 import javax.microedition.khronos.opengles.GL10
@@ -56,10 +58,44 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         const val MSG_ID_SET_VIEWPORT = 3
 
         const val MSG_ID_SET_DEPTH_BITS = 4
+
+        const val MSG_ID_FRAME_RENDERED = 5
+    }
+
+    /**
+     * 主线程请求帧时写入的相机与视口快照以及当前的图层列表, 渲染线程只读取快照而不访问主线程的导航器.
+     * 图层列表与 RenderableLayer 的内容在渲染时再取快照, 见 [LayerList] 与 [RenderableLayer]
+     */
+    protected class FrameState {
+
+        val camera = Camera()
+
+        val viewport = Viewport()
+
+        var fieldOfView = 45.0
+
+        var verticalExaggeration = 1.0
+
+        var depthBits = 0
+
+        var layers: LayerList? = null
+
+        fun set(state: FrameState): FrameState {
+            camera.set(state.camera)
+            viewport.set(state.viewport)
+            fieldOfView = state.fieldOfView
+            verticalExaggeration = state.verticalExaggeration
+            depthBits = state.depthBits
+            layers = state.layers
+            return this
+        }
     }
 
     var globe: Globe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
 
+    /**
+     * 可以在任意线程中增删图层与可渲染对象, 修改在下一帧生效. 可渲染对象属性的修改见 [RenderableLayer]
+     */
     var layers: LayerList = LayerList()
 
     var tessellator: Tessellator = BasicTessellator()
@@ -87,6 +123,20 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
 
     var frameMetrics = FrameMetrics()
 
+    /**
+     * 每帧最多预取的瓦片数, 为 0 时不预取
+     */
+    var prefetchBudget = 32
+
+    /**
+     * 预取时按当前速度外推的时间
+     */
+    var prefetchLeadMillis: Long = 500
+
+    protected val motionPredictor = MotionPredictor()
+
+    private val prefetchModelview = Matrix4()
+
     var worldWindowController: WorldWindowController = BasicWorldWindowController()
         set(value) {
             field.world = (null)
@@ -103,11 +153,34 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
 
     var depthBits = 0
 
-    protected var framePool: Pool<Frame> = SynchronizedPool()
+    /**
+     * 渲染线程生成帧, GL 线程绘制帧. rc 只在渲染线程中访问, dc 只在 GL 线程中访问
+     */
+    protected val framePipeline = FramePipeline(object : FramePipeline.Renderer {
+        override fun renderFrame(frame: Frame) {
+            this@WorldWindow.renderFrame(frame)
+        }
+
+        override fun frameAvailable(frame: Frame) {
+            requestRender()
+        }
+
+        override fun frameDiscarded(frame: Frame) {
+            renderResourceCache?.requeueEvictedResources(frame.evictedResources)
+        }
+    }, MAX_FRAME_QUEUE_SIZE)
+
+    protected val pendingState = FrameState()
+
+    protected val renderState = FrameState()
+
+    // 渲染线程使用的导航器, 由 renderState 的相机设置
+    protected val renderNavigator = Navigator()
 
-    protected var frameQueue: Queue<Frame> = ConcurrentLinkedQueue()
+    // 渲染线程写入, 主线程通知导航事件时读取
+    protected val renderedModelview = Matrix4()
 
-    protected var pickQueue: Queue<Frame> = ConcurrentLinkedQueue()
+    private val scratchRenderedModelview = Matrix4()
 
     protected var currentFrame: Frame? = null
 
@@ -118,7 +191,10 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
     protected var mainLoopHandler =
         Handler(Looper.getMainLooper(), Handler.Callback {
             if (it.what == MSG_ID_CLEAR_CACHE) {
-                renderResourceCache?.clear()
+                clearRenderResourceCache()
+            } else if (it.what == MSG_ID_FRAME_RENDERED) {
+                synchronized(renderedModelview) { scratchRenderedModelview.set(renderedModelview) }
+                navigatorEvents.onFrameRendered(scratchRenderedModelview)
             } else if (it.what == MSG_ID_REQUEST_REDRAW) {
                 requestRedraw()
             } else if (it.what == MSG_ID_SET_VIEWPORT) {
@@ -163,6 +239,7 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         // Initialize the World Window's render resource cache.
         val cacheCapacity = RenderResourceCache.recommendedCapacity(context.applicationContext)
         renderResourceCache = RenderResourceCache(cacheCapacity)
+        renderResourceCache?.diskCache = DiskTileCache(File(context.cacheDir, "tiles"), DiskTileCache.DEFAULT_QUOTA)
 
         // Set up to render on demand to an OpenGL ES 2.x context
         // TODO Investigate and use the EGL chooser submitted by jgiovino
@@ -177,15 +254,29 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
     }
 
     protected fun reset() {
+        // 先停止渲染线程, 之后在主线程中修改渲染状态是安全的
+        clearFrameQueue()
         navigatorEvents.reset()
+        motionPredictor.reset()
         renderResourceCache?.clear()
         viewport.setEmpty()
-        clearFrameQueue()
         Choreographer.getInstance().removeFrameCallback(this)
         this.mainLoopHandler.removeMessages(MSG_ID_REQUEST_REDRAW)
+        this.mainLoopHandler.removeMessages(MSG_ID_FRAME_RENDERED)
         isWaitingForRedraw = false
     }
 
+    /**
+     * 资源缓存只在渲染线程中访问, 渲染线程运行时交给它清除
+     */
+    protected fun clearRenderResourceCache() {
+        if (framePipeline.isRunning()) {
+            framePipeline.post(Runnable { renderResourceCache?.clear() })
+        } else {
+            renderResourceCache?.clear()
+        }
+    }
+
 
     @SuppressLint("ClickableViewAccessibility")
     override fun onTouchEvent(event: MotionEvent): Boolean {
@@ -207,9 +298,10 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
     }
 
     override fun onDrawFrame(gl: GL10?) {
-        val pickFrame = pickQueue.poll()
+        val pickFrame = framePipeline.pollPickFrame()
         if (pickFrame != null) {
             try {
+                prepareResources(pickFrame)
                 drawFrame(pickFrame)
             } catch (e: java.lang.Exception) {
                 Logger.logMessage(
@@ -223,10 +315,12 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
             }
         }
 
-        var nextFrame = frameQueue.poll()
+        val nextFrame = framePipeline.pollFrame()
+        var prepared = 0
         if (nextFrame != null) {
-            currentFrame?.recycle()
+            currentFrame?.let { retireFrame(it) }
             currentFrame = nextFrame
+            prepared = prepareResources(nextFrame)
             super.requestRender()
         }
         try {
@@ -239,6 +333,39 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
                 "Exception while drawing frame in OpenGL thread", e
             )
         }
+        if (nextFrame != null) {
+            frameMetrics.framePresented(nextFrame, prepared)
+        }
+    }
+
+    /**
+     * 在 GL 线程中创建帧渲染时新建的资源, 避免绘制过程中穿插纹理与缓冲区上传
+     */
+    protected fun prepareResources(frame: Frame): Int {
+        for (resource in frame.createdResources) {
+            try {
+                resource.prepare(dc)
+            } catch (e: java.lang.Exception) {
+                Logger.logMessage(
+                    Logger.ERROR, "WorldWindow", "prepareResources",
+                    "Exception while preparing resource \'$resource\'", e
+                )
+            }
+        }
+        return frame.createdResources.size
+    }
+
+    /**
+     * 帧被下一帧替换之后不再绘制, 释放它渲染时被回收的资源
+     */
+    protected fun retireFrame(frame: Frame) {
+        for (resource in frame.evictedResources) {
+            try {
+                resource.release(dc)
+            } catch (ignored: java.lang.Exception) {
+            }
+        }
+        frame.recycle()
     }
 
     override fun surfaceCreated(holder: SurfaceHolder) {
@@ -263,9 +390,22 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         super.onPause()
         isPaused = true
         reset()
+        // 在后台线程写出磁盘缓存索引
+        renderResourceCache?.diskCache?.let { WorldWind.taskService.execute(Runnable { it.flush() }) }
+    }
+
+    protected fun computeViewingTransform(
+        projection: Matrix4,
+        modelview: Matrix4
+    ) {
+        computeViewingTransform(navigator, viewport, fieldOfView, depthBits, projection, modelview)
     }
 
     protected fun computeViewingTransform(
+        navigator: Navigator,
+        viewport: Viewport,
+        fieldOfView: Double,
+        depthBits: Int,
         projection: Matrix4,
         modelview: Matrix4
     ) {
@@ -285,8 +425,8 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
             }
         }
         projection.setToPerspectiveProjection(
-            this.viewport.width.toDouble(),
-            this.viewport.height.toDouble(),
+            viewport.width.toDouble(),
+            viewport.height.toDouble(),
             fieldOfView,
             near,
             far
@@ -299,14 +439,18 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         if (!pickMode) {
             frameMetrics.beginRendering(this.rc)
         }
+        synchronized(pendingState) { renderState.set(pendingState) }
+        val viewport = renderState.viewport
+        val fieldOfView = renderState.fieldOfView
+        renderNavigator.setAsCamera(globe, renderState.camera)
         rc.globe = globe
-        rc.layers = layers
+        rc.layers = renderState.layers
         rc.terrainTessellator = tessellator
-        rc.verticalExaggeration = verticalExaggeration
+        rc.verticalExaggeration = renderState.verticalExaggeration
         rc.fieldOfView = fieldOfView
-        rc.horizonDistance = globe.horizonDistance(this.navigator.altitude)
+        rc.horizonDistance = globe.horizonDistance(renderNavigator.altitude)
         rc.viewport.set(viewport)
-        rc.camera = this.navigator.getAsCamera(this.globe, this.rc.camera);
+        rc.camera = renderNavigator.getAsCamera(this.globe, this.rc.camera)
         rc.cameraPoint = globe.geographicToCartesian(
             rc.camera.latitude,
             rc.camera.longitude,
@@ -314,13 +458,19 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
             rc.cameraPoint
         )
         rc.renderResourceCache = this.renderResourceCache
+        if (!pickMode) {
+            renderResourceCache?.beginFrame()
+        }
 
         resources.also {
             rc.resources = it
+            rc.densityDpi = it.displayMetrics.densityDpi
             rc.renderResourceCache?.resources = it
         }
-        computeViewingTransform(frame.projection, frame.modelview)
-        frame.viewport.set(this.viewport)
+        computeViewingTransform(
+            renderNavigator, viewport, fieldOfView, renderState.depthBits, frame.projection, frame.modelview
+        )
+        frame.viewport.set(viewport)
         frame.infiniteProjection.setToInfiniteProjection(
             viewport.width.toDouble(),
             viewport.height.toDouble(),
@@ -343,6 +493,7 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
             }
         } else {
             rc.frustum.setToModelviewProjection(frame.projection, frame.modelview, frame.viewport)
+            this.computePrefetchFrustum(frame)
         }
 
         rc.drawableQueue = frame.drawableQueue
@@ -355,19 +506,19 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
 
         frameController.renderFrame(rc)
 
-        if (pickMode) {
-            pickQueue.offer(frame)
-            super.requestRender()
-        } else {
-            frameQueue.offer(frame)
-            super.requestRender()
+        // 交给 GL 线程的资源请求. 拾取帧绘制后立即回收, 被回收的资源留给下一个普通帧释放
+        renderResourceCache?.drainCreatedResources(frame.createdResources)
+        if (!pickMode) {
+            renderResourceCache?.drainEvictedResources(frame.evictedResources)
         }
         if (!pickMode && rc.redrawRequested) {
             requestRedraw()
         }
 
         if (!pickMode) {
-            navigatorEvents.onFrameRendered(rc)
+            synchronized(renderedModelview) { renderedModelview.set(rc.modelview) }
+            mainLoopHandler.removeMessages(MSG_ID_FRAME_RENDERED)
+            mainLoopHandler.sendEmptyMessage(MSG_ID_FRAME_RENDERED)
         }
         // Mark the end of a frame render.
         if (!pickMode) {
@@ -377,11 +528,27 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
     }
 
 
+    /**
+     * 相机正在移动时外推 prefetchLeadMillis 之后的相机位置, 计算预测的视锥供图层预取瓦片
+     */
+    protected fun computePrefetchFrustum(frame: Frame) {
+        motionPredictor.addSample(rc.camera, SystemClock.uptimeMillis())
+        if (prefetchBudget <= 0 || !motionPredictor.isMoving()) {
+            return
+        }
+        val camera = motionPredictor.predict(rc.camera, prefetchLeadMillis, rc.prefetchCamera)
+        globe.geographicToCartesian(camera.latitude, camera.longitude, camera.altitude, rc.prefetchCameraPoint)
+        renderNavigator.getCameraAsViewingMatrix(globe, camera, prefetchModelview)
+        rc.prefetchFrustum.setToModelviewProjection(frame.projection, prefetchModelview, frame.viewport)
+        rc.prefetchBudget = prefetchBudget
+    }
+
     protected fun drawFrame(frame: Frame) {
         val pickMode = frame.pickMode
         if (!pickMode) {
             frameMetrics.beginDrawing(this.dc)
         }
+        dc.drawStats.reset()
         dc.eyePoint = frame.modelview.extractEyePoint(dc.eyePoint)
         dc.viewport.set(frame.viewport)
         dc.projection.set(frame.projection)
@@ -401,7 +568,6 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
 
         frameController.drawFrame(dc)
 
-        renderResourceCache?.releaseEvictedResources(dc)
         if (!pickMode) {
             frameMetrics.endDrawing(this.dc)
         }
@@ -521,41 +687,50 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         }
     }
 
-    override fun doFrame(frameTimeNanos: Long) {
-        if (frameQueue.size >= MAX_FRAME_QUEUE_SIZE) {
-            Choreographer.getInstance().postFrameCallback(this)
-            return
+    /**
+     * 在渲染线程中两帧之间执行 task 并请求重绘, 用于需要在同一帧中生效的一组可渲染对象属性修改.
+     * 渲染线程没有运行时直接在调用线程中执行
+     */
+    fun postToRenderThread(task: Runnable) {
+        if (framePipeline.isRunning()) {
+            framePipeline.post(task)
+        } else {
+            task.run()
         }
+        requestRedraw()
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
         isWaitingForRedraw = false
 
-        // Obtain a frame from the pool and render the frame, accumulating Drawables to process in the OpenGL thread.
-        // The frame is recycled by the OpenGL thread.
-        try {
-            val frame = Frame.obtain(framePool)
-            renderFrame(frame)
-        } catch (e: java.lang.Exception) {
-            Logger.logMessage(
-                Logger.ERROR, "WorldWindow", "doFrame",
-                "Exception while rendering frame in Choreographer callback \'$frameTimeNanos\'", e
-            )
-        }
+        // The render thread renders the frame, accumulating Drawables to process in the OpenGL thread. Requests made
+        // while the frame queue is full are coalesced, and the frame is recycled by the OpenGL thread.
+        captureFrameState()
+        framePipeline.start()
+        framePipeline.requestFrame()
     }
 
+    /**
+     * 在主线程中记录导航器与视口的快照, 供渲染线程渲染下一帧
+     */
+    protected fun captureFrameState() {
+        synchronized(pendingState) {
+            navigator.getAsCamera(globe, pendingState.camera)
+            pendingState.viewport.set(viewport)
+            pendingState.fieldOfView = fieldOfView
+            pendingState.verticalExaggeration = verticalExaggeration
+            pendingState.depthBits = depthBits
+            pendingState.layers = layers
+        }
+    }
 
     protected fun clearFrameQueue() {
-
-        var pickFrame: Frame?
-        while (pickQueue.poll().also { pickFrame = it } != null) {
-            pickFrame?.signalDone()
-            pickFrame?.recycle()
-        }
-        var frame: Frame?
-        while (frameQueue.poll().also { frame = it } != null) {
-            frame?.recycle()
+        // 停止渲染线程, 丢弃还没有绘制的帧并唤醒等待中的拾取
+        framePipeline.stop()
+        currentFrame?.let {
+            renderResourceCache?.requeueEvictedResources(it.evictedResources)
+            it.recycle()
         }
-
-        frameQueue.clear()
-        currentFrame?.recycle()
         currentFrame = null
     }
 
@@ -581,14 +756,17 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         if (!rayThroughScreenPoint(x, y, pickRay)) {
             return pickedObjects
         }
-        // Obtain a frame from the pool and render the frame, accumulating Drawables to process in the OpenGL thread.
-        val frame = Frame.obtain(framePool)
+        // Obtain a frame from the pool and render it in the render thread, accumulating Drawables to process in the
+        // OpenGL thread.
+        val frame = framePipeline.obtainFrame()
         frame.pickedObjects = pickedObjects
         frame.pickViewport = Viewport(px - 1, py - 1, 3, 3).apply { this.intersect(viewport) }
         frame.pickPoint = Vec2(px.toDouble(), py.toDouble())
         frame.pickRay = pickRay
         frame.pickMode = true
-        renderFrame(frame)
+        captureFrameState()
+        framePipeline.start()
+        framePipeline.submitPick(frame)
         // Wait until the OpenGL thread is done processing the frame and resolving the picked objects.
         frame.awaitDone()
         return pickedObjects
@@ -710,13 +888,16 @@ class WorldWindow : GLSurfaceView, GLSurfaceView.Renderer, MessageListener, Fram
         if (!viewport.intersects(px, py, pw, ph)) {
             return pickedObjects
         }
-        // Obtain a frame from the pool and render the frame, accumulating Drawables to process in the OpenGL thread.
-        val frame = Frame.obtain(framePool)
+        // Obtain a frame from the pool and render it in the render thread, accumulating Drawables to process in the
+        // OpenGL thread.
+        val frame = framePipeline.obtainFrame()
         frame.pickedObjects = pickedObjects
         frame.pickViewport = Viewport(px, py, pw, ph) // caller-specified pick rectangle
         frame.pickViewport!!.intersect(viewport) // limit the pick viewport to the screen viewport
         frame.pickMode = true
-        renderFrame(frame)
+        captureFrameState()
+        framePipeline.start()
+        framePipeline.submitPick(frame)
         // Wait until the OpenGL thread is done processing the frame and resolving the picked objects.
         frame.awaitDone()
         return pickedObjects
@@ -40,6 +40,8 @@ open class AtmosphereProgram() : GpuProgram() {
 
     protected var vertexOriginId = 0
 
+    protected var vertexScaleId = 0
+
     protected var eyeMagnitudeId = 0
 
     protected var eyeMagnitude2Id = 0
@@ -116,6 +118,9 @@ open class AtmosphereProgram() : GpuProgram() {
         Arrays.fill(array, 0f)
         GLES20.glUniform3fv(vertexOriginId, 1, array, 0)
 
+        vertexScaleId = GLES20.glGetUniformLocation(programId, "vertexScale")
+        GLES20.glUniform3f(vertexScaleId, 1f, 1f, 1f)
+
         eyePointId = GLES20.glGetUniformLocation(programId, "eyePoint")
         Arrays.fill(array, 0f)
         GLES20.glUniform3fv(eyePointId, 1, array, 0)
@@ -198,6 +203,13 @@ open class AtmosphereProgram() : GpuProgram() {
         GLES20.glUniform3fv(vertexOriginId, 1, array, 0)
     }
 
+    /**
+     * 顶点的缩放, 量化的地形顶点乘以缩放再加上 vertexOrigin. 着色器中没有该变量时忽略
+     */
+    open fun loadVertexScale(scale: Vec3) {
+        GLES20.glUniform3f(vertexScaleId, scale.x.toFloat(), scale.y.toFloat(), scale.z.toFloat())
+    }
+
     open fun loadLightDirection(direction: Vec3) {
         direction.toArray(array, 0)
         GLES20.glUniform3fv(lightDirectionId, 1, array, 0)
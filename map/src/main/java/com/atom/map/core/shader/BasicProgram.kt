@@ -10,7 +10,7 @@ import com.atom.map.drawable.DrawContext
 import com.atom.map.util.Logger
 import com.atom.map.util.WWUtil
 
-class BasicProgram(resources: Resources) : GpuProgram() {
+class BasicProgram() : GpuProgram() {
     companion object {
         val KEY: Any = BasicProgram::class
     }
@@ -39,7 +39,10 @@ class BasicProgram(resources: Resources) : GpuProgram() {
 
     var array = FloatArray(16)
 
-    init {
+    /**
+     * 从 resources 读取着色器源码. 没有源码的程序 (无参构造) 可以保存状态, 但不能编译使用
+     */
+    constructor(resources: Resources) : this() {
         try {
             val vert = WWUtil.readResourceAsText(resources, R.raw.basic_program_vert)
             val frag = WWUtil.readResourceAsText(resources, R.raw.basic_program_frag)
@@ -19,7 +19,8 @@ class BufferObject : RenderResource {
 
     var buffer: Buffer? = null
 
-    var ranges: SparseArray<Range> = SparseArray<Range>()
+    // 只有分段绘制的形状使用, 第一次访问时创建
+    val ranges: SparseArray<Range> by lazy { SparseArray<Range>() }
 
     constructor(target: Int, size: Int, buffer: Buffer?) {
         this.bufferTarget = target
@@ -39,6 +40,12 @@ class BufferObject : RenderResource {
         return bufferId[0] != 0
     }
 
+    override fun prepare(dc: DrawContext) {
+        if (this.buffer != null) {
+            this.loadBuffer(dc)
+            this.buffer = null
+        }
+    }
 
     override fun release(dc: DrawContext) {
         this.deleteBufferObject(dc)
@@ -69,6 +76,7 @@ class BufferObject : RenderResource {
     protected fun deleteBufferObject(dc: DrawContext) {
         if (bufferId[0] != 0) {
             GLES20.glDeleteBuffers(1, bufferId, 0)
+            dc.bufferDeleted(bufferId[0])
             bufferId[0] = 0
         }
     }
@@ -8,6 +8,7 @@ import com.atom.map.geom.Matrix3
 import com.atom.map.drawable.DrawContext
 import com.atom.map.util.Logger
 import com.atom.map.util.WWMath
+import com.atom.map.util.pool.BitmapPool
 
 class GpuTexture : RenderResource {
     companion object {
@@ -37,6 +38,9 @@ class GpuTexture : RenderResource {
 
     var texParameters: SparseIntArray? = null
 
+    // 不为空时位图归纹理所有, 上传到 GPU 或纹理释放之后归还到该池
+    var bitmapPool: BitmapPool? = null
+
     constructor(bitmap: Bitmap?) {
         if (bitmap == null || bitmap.isRecycled) {
             throw IllegalArgumentException(
@@ -85,10 +89,17 @@ class GpuTexture : RenderResource {
         }
 
         if (imageBitmap != null) {
+            bitmapPool?.release(imageBitmap)
             imageBitmap = null // imageBitmap can be non-null if the texture has never been used
         }
     }
 
+    override fun prepare(dc: DrawContext) {
+        if (textureName === UNINITIALIZED_NAME) {
+            createTexture(dc)
+        }
+    }
+
     fun getTextureName(dc: DrawContext): Int {
         if (textureName === UNINITIALIZED_NAME) {
             createTexture(dc)
@@ -126,6 +137,10 @@ class GpuTexture : RenderResource {
             // Configure the texture object's filtering modes and wrap modes.
             imageBitmap?.let {
                 loadTexImage(dc, it)
+                bitmapPool?.let { pool ->
+                    pool.release(it) // 纹理数据已在 GPU 中, 位图可以用于解码下一个瓦片
+                    imageBitmap = null
+                }
             } ?: let {
                 this.allocTexImage(dc)
             }
@@ -160,6 +175,7 @@ class GpuTexture : RenderResource {
 
     protected fun deleteTexture(dc: DrawContext) {
         GLES20.glDeleteTextures(1, textureName, 0)
+        dc.textureDeleted(textureName[0])
         textureName[0] = 0
     }
 
@@ -0,0 +1,136 @@
+package com.atom.map.core.shader
+
+import android.content.res.Resources
+import android.opengl.GLES20
+import com.atom.map.R
+import com.atom.map.drawable.DrawContext
+import com.atom.map.geom.Matrix4
+import com.atom.map.util.Logger
+import com.atom.map.util.WWUtil
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * 批量绘制地标图标的程序. 顶点包含屏幕坐标, 已变换的纹理坐标与预乘透明度的颜色, 拾取模式下颜色即拾取颜色.
+ * 程序持有每帧重写的顶点缓冲与所有批次共用的四边形索引缓冲
+ */
+class PlacemarkBatchProgram() : GpuProgram() {
+    companion object {
+        val KEY: Any = PlacemarkBatchProgram::class
+
+        /**
+         * 一次绘制的四边形数上限, 顶点编号不超过无符号短整型的范围
+         */
+        const val MAX_QUADS = 16384
+
+        /**
+         * 每个四边形 4 个顶点 6 个索引, 组成两个逆时针的三角形
+         */
+        fun quadIndices(quadCount: Int): ShortArray {
+            val indices = ShortArray(quadCount * 6)
+            for (quad in 0 until quadCount) {
+                val vertex = quad * 4
+                val idx = quad * 6
+                indices[idx] = vertex.toShort()
+                indices[idx + 1] = (vertex + 1).toShort()
+                indices[idx + 2] = (vertex + 2).toShort()
+                indices[idx + 3] = (vertex + 2).toShort()
+                indices[idx + 4] = (vertex + 1).toShort()
+                indices[idx + 5] = (vertex + 3).toShort()
+            }
+            return indices
+        }
+    }
+
+    var enablePickMode = false
+
+    var enablePickModeId = 0
+
+    var mvpMatrixId = 0
+
+    var texSamplerId = 0
+
+    var vertexBufferId = 0
+
+    var elementBufferId = 0
+
+    var array = FloatArray(16)
+
+    /**
+     * 从 resources 读取着色器源码. 没有源码的程序 (无参构造) 可以交给批次引用, 但不能编译使用
+     */
+    constructor(resources: Resources) : this() {
+        try {
+            val vert = WWUtil.readResourceAsText(resources, R.raw.placemark_batch_program_vert)
+            val frag = WWUtil.readResourceAsText(resources, R.raw.placemark_batch_program_frag)
+            this.programSources = arrayOf(vert, frag)
+            this.attribBindings = arrayOf("vertexPoint", "vertexTexCoord", "vertexColor")
+        } catch (e: Exception) {
+            Logger.logMessage(Logger.ERROR, "PlacemarkBatchProgram", "constructor", "errorReadingProgramSource", e)
+        }
+    }
+
+    override fun initProgram(dc: DrawContext) {
+        enablePickModeId = GLES20.glGetUniformLocation(programId, "enablePickMode")
+        GLES20.glUniform1i(enablePickModeId, if (enablePickMode) 1 else 0)
+
+        mvpMatrixId = GLES20.glGetUniformLocation(programId, "mvpMatrix")
+        Matrix4().transposeToArray(array, 0) // 4 x 4 identity matrix
+        GLES20.glUniformMatrix4fv(mvpMatrixId, 1, false, array, 0)
+
+        texSamplerId = GLES20.glGetUniformLocation(programId, "texSampler")
+        GLES20.glUniform1i(texSamplerId, 0)
+    }
+
+    fun enablePickMode(enable: Boolean) {
+        if (enablePickMode != enable) {
+            enablePickMode = enable
+            GLES20.glUniform1i(enablePickModeId, if (enable) 1 else 0)
+        }
+    }
+
+    fun loadModelviewProjection(matrix: Matrix4) {
+        matrix.transposeToArray(array, 0)
+        GLES20.glUniformMatrix4fv(mvpMatrixId, 1, false, array, 0)
+    }
+
+    /**
+     * 绑定顶点缓冲与索引缓冲, 第一次调用时创建缓冲并写入 MAX_QUADS 个四边形的索引
+     */
+    fun bindBuffers(dc: DrawContext): Boolean {
+        if (vertexBufferId == 0) {
+            val ids = IntArray(2)
+            GLES20.glGenBuffers(2, ids, 0)
+            vertexBufferId = ids[0]
+            elementBufferId = ids[1]
+            if (vertexBufferId == 0 || elementBufferId == 0) {
+                deleteBuffers(dc)
+                return false
+            }
+            val indices = quadIndices(MAX_QUADS)
+            val buffer = ByteBuffer.allocateDirect(indices.size * 2).order(ByteOrder.nativeOrder()).asShortBuffer()
+            buffer.put(indices).rewind()
+            dc.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, elementBufferId)
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.size * 2, buffer, GLES20.GL_STATIC_DRAW)
+        }
+        dc.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId)
+        dc.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, elementBufferId)
+        return true
+    }
+
+    private fun deleteBuffers(dc: DrawContext) {
+        for (id in intArrayOf(vertexBufferId, elementBufferId)) {
+            if (id != 0) {
+                GLES20.glDeleteBuffers(1, intArrayOf(id), 0)
+                dc.bufferDeleted(id)
+            }
+        }
+        vertexBufferId = 0
+        elementBufferId = 0
+    }
+
+    override fun release(dc: DrawContext) {
+        deleteBuffers(dc)
+        super.release(dc)
+    }
+}
@@ -6,4 +6,9 @@ interface RenderResource {
 
     fun release(dc : DrawContext)
 
+    /**
+     * 在 GL 线程绘制之前创建 GL 对象并上传数据, 已创建时不做任何事. 默认在第一次使用时创建
+     */
+    fun prepare(dc: DrawContext) {}
+
 }
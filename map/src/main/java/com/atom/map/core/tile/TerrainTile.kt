@@ -13,6 +13,67 @@ class TerrainTile(sector: Sector, level: Level, row: Int, column: Int) : Tile(se
 
     companion object{
         var pointBufferSequence: Long = 0
+
+        /**
+         * 量化顶点分量的最大值, 量化值在 [-QUANTIZED_MAX, QUANTIZED_MAX] 内
+         */
+        const val QUANTIZED_MAX = 32767
+
+        /**
+         * 每个顶点包围盒覆盖的三角带行数
+         */
+        const val BOUNDS_ROWS = 4
+
+        /**
+         * 把相对瓦片原点的浮点顶点量化为 16 位整数. 每个分量以顶点包围盒的中心为零点, 以半边长 / QUANTIZED_MAX 为步长,
+         * 误差不超过半个步长. offset 返回包围盒中心, scale 返回步长, 解码为 offset + q * scale
+         */
+        fun quantizePoints(points: FloatArray, result: ShortArray, offset: Vec3, scale: Vec3): ShortArray {
+            var minX = Float.MAX_VALUE
+            var minY = Float.MAX_VALUE
+            var minZ = Float.MAX_VALUE
+            var maxX = -Float.MAX_VALUE
+            var maxY = -Float.MAX_VALUE
+            var maxZ = -Float.MAX_VALUE
+            var idx = 0
+            while (idx < points.size) {
+                val x = points[idx]
+                val y = points[idx + 1]
+                val z = points[idx + 2]
+                if (minX > x) minX = x
+                if (maxX < x) maxX = x
+                if (minY > y) minY = y
+                if (maxY < y) maxY = y
+                if (minZ > z) minZ = z
+                if (maxZ < z) maxZ = z
+                idx += 3
+            }
+            offset.set((minX + maxX) * 0.5, (minY + maxY) * 0.5, (minZ + maxZ) * 0.5)
+            // a zero extent still needs a non-zero step
+            scale.set(
+                Math.max((maxX - minX) * 0.5, 1.0e-3) / QUANTIZED_MAX,
+                Math.max((maxY - minY) * 0.5, 1.0e-3) / QUANTIZED_MAX,
+                Math.max((maxZ - minZ) * 0.5, 1.0e-3) / QUANTIZED_MAX
+            )
+            val cx = offset.x
+            val cy = offset.y
+            val cz = offset.z
+            val sx = 1 / scale.x
+            val sy = 1 / scale.y
+            val sz = 1 / scale.z
+            idx = 0
+            while (idx < points.size) {
+                result[idx] = roundToShort((points[idx] - cx) * sx)
+                result[idx + 1] = roundToShort((points[idx + 1] - cy) * sy)
+                result[idx + 2] = roundToShort((points[idx + 2] - cz) * sz)
+                idx += 3
+            }
+            return result
+        }
+
+        private fun roundToShort(value: Double): Short {
+            return (if (value >= 0) value + 0.5 else value - 0.5).toInt().toShort()
+        }
     }
 
     var minTerrainElevation = -Short.MAX_VALUE.toFloat()
@@ -23,17 +84,226 @@ class TerrainTile(sector: Sector, level: Level, row: Int, column: Int) : Tile(se
         set(value) {
             field = value
             pointBufferKey = "TerrainTile.points." + tileKey.toString() + "." + pointBufferSequence++
+            bufferBytes = 0
+            boundsCache = null
         }
 
     val origin = Vec3()
 
     var heightTimestamp: Long = 0
 
+    /**
+     * 当前高度的数据质量 ElevationCoverage.QUALITY_*, 以及提交计算时高程模型的变化序号.
+     * 该序号之后本瓦片范围内有数据变化则重新计算, 质量是最终的时忽略数据细化
+     */
+    var heightQuality = 0
+
+    var heightDirtySequence: Long = 0
+
     var verticalExaggeration = 0.0
 
     var pointBufferKey: String? = null
 
+    /**
+     * 当前顶点对应的 GPU 缓冲区字节数, 尚未创建缓冲区时为 0
+     */
+    var bufferBytes = 0
+
+    /**
+     * 量化顶点相对瓦片原点的零点与量化步长, 由 getQuantizedPointBuffer 创建缓冲区时设置
+     */
+    val quantizedOffset = Vec3()
+
+    val quantizedScale = Vec3(1.0, 1.0, 1.0)
+
+    /**
+     * 顶点在瓦片本地坐标系中的轴对齐包围盒, 每 6 个值 (minX, minY, minZ, maxX, maxY, maxZ) 一个.
+     * 前面每 BOUNDS_ROWS 行三角带一个, 最后一个包含整个瓦片. 顶点变化时置空, 由 getPointBounds 重新计算
+     */
+    protected var boundsCache: FloatArray? = null
+
+    /**
+     * 以本瓦片的网格表示地形的高程误差 (米, 未乘垂直夸张). terrainErrorExact 为 false 时是由高程范围得到的上界,
+     * 为 true 时是由高度网格估计的插值误差. terrainErrorTimestamp 与高程模型的时间戳不同,
+     * 或 terrainErrorVersion 与高程范围的版本不同时无效
+     */
+    var terrainError = 0f
+
+    var terrainErrorExact = false
+
+    var terrainErrorTimestamp: Long = -1
+
+    var terrainErrorVersion = -1
+
+    /**
+     * 最近一次提交计算的高程时间戳, 变化序号与垂直夸张, 与当前值相同时不再重复提交
+     */
+    var requestedTimestamp: Long = 0
+
+    var requestedDirtySequence: Long = 0
+
+    var requestedExaggeration = 0.0
+
+    /**
+     * 提交计算的序号, 结果只在比当前数据更新时采用, 先提交后完成的旧结果被丢弃
+     */
+    var prepareSequence: Long = 0
+
+    var preparedSequence: Long = 0
+
+    /**
+     * 后台计算完成, 等待渲染线程采用的结果
+     */
+    protected var preparation: Preparation? = null
+
+    /**
+     * 帧间复用的子树: 上次遍历该瓦片得到的可见瓦片, 以及在 subtreeCameraPoint 附近多远的范围内细分结果不变.
+     * subtreeEpoch 与镶嵌器的视图版本不同时无效
+     */
+    var subtreeTiles: ArrayList<TerrainTile>? = null
+
+    /**
+     * 子树中细分过的瓦片, 它们的子瓦片在镶嵌器的瓦片缓存中, 复用子树时逐个访问以刷新缓存条目
+     */
+    var subtreeParents: ArrayList<TerrainTile>? = null
+
+    var subtreeEpoch: Long = -1
+
+    var subtreeSlack = 0.0
+
+    var subtreeNodeCount = 0
+
+    val subtreeCameraPoint = Vec3()
+
+    /**
+     * 在工作线程中计算的高度与顶点, 由渲染线程通过 adoptPreparation 替换瓦片的数据
+     */
+    class Preparation(
+        val sequence: Long,
+        val heightTimestamp: Long,
+        val heightDirtySequence: Long,
+        val verticalExaggeration: Double
+    ) {
+        var heightQuality = 0
+        var heights: FloatArray? = null
+        var points: FloatArray? = null
+        val origin = Vec3()
+    }
+
+    fun newPreparation(heightTimestamp: Long, heightDirtySequence: Long, verticalExaggeration: Double): Preparation {
+        requestedTimestamp = heightTimestamp
+        requestedDirtySequence = heightDirtySequence
+        requestedExaggeration = verticalExaggeration
+        return Preparation(++prepareSequence, heightTimestamp, heightDirtySequence, verticalExaggeration)
+    }
+
+    /**
+     * 在工作线程中发布计算结果, 先提交的结果较晚完成时不覆盖较新的结果
+     */
+    fun publishPreparation(result: Preparation) {
+        synchronized(this) {
+            if ((preparation?.sequence ?: 0) < result.sequence) {
+                preparation = result
+            }
+        }
+    }
 
+    /**
+     * 采用已完成的计算结果. 在渲染线程中调用, 有新的结果时返回 true
+     */
+    fun adoptPreparation(): Boolean {
+        val result = synchronized(this) {
+            val pending = preparation
+            preparation = null
+            pending
+        } ?: return false
+        if (result.sequence <= preparedSequence) {
+            return false
+        }
+        preparedSequence = result.sequence
+        heights = result.heights
+        origin.set(result.origin)
+        points = result.points // assigns a new point buffer key
+        heightTimestamp = result.heightTimestamp
+        heightQuality = result.heightQuality
+        heightDirtySequence = result.heightDirtySequence
+        verticalExaggeration = result.verticalExaggeration
+        return true
+    }
+
+    /**
+     * 瓦片网格的几何误差, 单位米: 高程误差乘以垂直夸张, 加上相邻网格点之间椭球面的弦高
+     */
+    fun getGeometricError(rc: RenderContext): Double {
+        val spacing = Math.toRadians(level.tileDelta / Math.max(level.tileWidth - 1, 1))
+        val sagitta = rc.globe.getEquatorialRadius() * (1 - Math.cos(spacing * 0.5))
+        return terrainError * rc.verticalExaggeration + sagitta
+    }
+
+    /**
+     * 几何误差投影到屏幕上超过 maxScreenError 像素时需要细分
+     */
+    fun mustSubdivideByError(rc: RenderContext, maxScreenError: Double): Boolean {
+        this.distanceToCamera = this.distanceToCamera(rc)
+        return this.getGeometricError(rc) > rc.pixelSizeAtDistance(this.distanceToCamera) * maxScreenError
+    }
+
+    /**
+     * 按几何误差细分的临界距离, 由 mustSubdivideByError 的不等式解出
+     */
+    fun errorSubdivisionDistance(rc: RenderContext, maxScreenError: Double): Double {
+        return this.getGeometricError(rc) / (rc.pixelSizeAtDistance(1.0) * maxScreenError)
+    }
+
+    /**
+     * 返回顶点的包围盒, 见 [boundsCache]. 还没有顶点时返回 null
+     */
+    fun getPointBounds(): FloatArray? {
+        boundsCache?.let { return it }
+        val points = this.points ?: return null
+        val numLon = level.tileWidth + 2
+        val stripRows = level.tileHeight + 1
+        val bandCount = (stripRows + BOUNDS_ROWS - 1) / BOUNDS_ROWS
+        val bounds = FloatArray((bandCount + 1) * 6)
+        val total = bandCount * 6
+        for (idx in 0 until 3) {
+            bounds[total + idx] = Float.MAX_VALUE
+            bounds[total + idx + 3] = -Float.MAX_VALUE
+        }
+        for (band in 0 until bandCount) {
+            val offset = band * 6
+            for (idx in 0 until 3) {
+                bounds[offset + idx] = Float.MAX_VALUE
+                bounds[offset + idx + 3] = -Float.MAX_VALUE
+            }
+            // 相邻的包围盒共用边界上的一行顶点
+            val firstRow = band * BOUNDS_ROWS
+            val lastRow = Math.min(firstRow + BOUNDS_ROWS, stripRows)
+            var vertex = firstRow * numLon * 3
+            val end = (lastRow + 1) * numLon * 3
+            while (vertex < end) {
+                for (idx in 0 until 3) {
+                    val value = points[vertex + idx]
+                    if (bounds[offset + idx] > value) bounds[offset + idx] = value
+                    if (bounds[offset + idx + 3] < value) bounds[offset + idx + 3] = value
+                }
+                vertex += 3
+            }
+            for (idx in 0 until 3) {
+                bounds[total + idx] = Math.min(bounds[total + idx], bounds[offset + idx])
+                bounds[total + idx + 3] = Math.max(bounds[total + idx + 3], bounds[offset + idx + 3])
+            }
+        }
+        boundsCache = bounds
+        return bounds
+    }
+
+    /**
+     * 瓦片占用的内存: 高度与顶点数组以及顶点缓冲区的字节数
+     */
+    fun getMemoryBytes(): Int {
+        return (heights?.size ?: 0) * 4 + (points?.size ?: 0) * 4 + (boundsCache?.size ?: 0) * 4 + bufferBytes
+    }
 
     fun getPointBuffer(rc: RenderContext): BufferObject? {
         if (points == null) {
@@ -49,6 +319,7 @@ class TerrainTile(sector: Sector, level: Level, row: Int, column: Int) : Tile(se
         val size = points!!.size * 4
         val buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()).asFloatBuffer()
         buffer.put(points).rewind()
+        bufferBytes = size
         return pointBufferKey?.let {
             rc.putBufferObject(
                 it,
@@ -60,4 +331,24 @@ class TerrainTile(sector: Sector, level: Level, row: Int, column: Int) : Tile(se
             )
         }
     }
+
+    /**
+     * 以 16 位量化顶点 (每个顶点 6 字节) 创建的顶点缓冲区, 顶点按 quantizedOffset 与 quantizedScale 解码.
+     * 与 getPointBuffer 使用同一个键, 同一个瓦片只能使用其中一种格式
+     */
+    fun getQuantizedPointBuffer(rc: RenderContext): BufferObject? {
+        val points = this.points ?: return null
+        val bufferObject = pointBufferKey?.let { rc.getBufferObject(it) }
+        if (bufferObject != null) {
+            return bufferObject
+        }
+
+        val size = points.size * 2
+        val buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()).asShortBuffer()
+        buffer.put(quantizePoints(points, ShortArray(points.size), quantizedOffset, quantizedScale)).rewind()
+        bufferBytes = size
+        return pointBufferKey?.let {
+            rc.putBufferObject(it, BufferObject(GLES20.GL_ARRAY_BUFFER, size, buffer))
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+package com.atom.map.core.tile
+
+import com.atom.map.util.Logger
+
+/**
+ * 地形瓦片的子瓦片缓存, 以父瓦片的 [Tile.packedKey] 为键, 值为 4 个子瓦片.
+ * 条目的大小为子瓦片实际占用的字节数 (高度, 顶点与顶点缓冲区, 见 [TerrainTile.getMemoryBytes]),
+ * 瓦片的数据在放入缓存后才计算, 因此每次命中时重新计算条目大小. 超出 capacity 时按最久未使用回收到 lowWater.
+ *
+ * 使用 long 键的开放散列表与访问顺序双向链表, 查找不分配对象. 只在渲染线程中使用, 不是线程安全的.
+ */
+open class TerrainTileCache(capacity: Int) {
+
+    companion object {
+        /**
+         * 没有数据的瓦片对象本身的估计字节数
+         */
+        const val TILE_OVERHEAD = 256
+
+        private const val MIN_TABLE_SIZE = 64
+    }
+
+    protected class Entry(val key: Long, val value: Array<Tile?>) {
+        var size = 0
+
+        var prev: Entry? = null
+
+        var next: Entry? = null
+
+        // 同一个散列槽中的下一个条目
+        var chain: Entry? = null
+    }
+
+    protected var table = arrayOfNulls<Entry>(MIN_TABLE_SIZE)
+
+    protected var count = 0
+
+    // 最久未使用的条目, 回收从这里开始
+    protected var head: Entry? = null
+
+    // 最近使用的条目
+    protected var tail: Entry? = null
+
+    /**
+     * 内存预算, 单位字节
+     */
+    var capacity = 0
+        set(value) {
+            if (value < 1) {
+                throw IllegalArgumentException(
+                    Logger.logMessage(Logger.ERROR, "TerrainTileCache", "setCapacity", "invalidCapacity")
+                )
+            }
+            field = value
+            lowWater = (value * 0.75).toInt()
+            if (usedCapacity > value) {
+                this.makeSpace(0)
+            }
+        }
+
+    var lowWater = 0
+        protected set
+
+    var usedCapacity = 0
+        protected set
+
+    protected var hits: Long = 0
+
+    protected var misses: Long = 0
+
+    protected var evictions: Long = 0
+
+    init {
+        this.capacity = capacity
+    }
+
+    fun getEntryCount() = count
+
+    fun getHitCount() = hits
+
+    fun getMissCount() = misses
+
+    fun getEvictionCount() = evictions
+
+    /**
+     * 累计的命中率, 没有查找时为 0
+     */
+    fun getHitRate(): Double {
+        val total = hits + misses
+        return if (total > 0) hits / total.toDouble() else 0.0
+    }
+
+    fun get(key: Long): Array<Tile?>? {
+        val entry = this.findEntry(key)
+        if (entry == null) {
+            misses++
+            return null
+        }
+        hits++
+        this.unlinkEntry(entry)
+        this.linkLast(entry)
+        val size = this.computeSize(entry.value)
+        if (size != entry.size) {
+            usedCapacity += size - entry.size
+            entry.size = size
+            if (usedCapacity > capacity) {
+                this.makeSpace(0)
+            }
+        }
+        return entry.value
+    }
+
+    fun put(key: Long, value: Array<Tile?>) {
+        this.remove(key)
+        val entry = Entry(key, value)
+        entry.size = this.computeSize(value)
+        if (usedCapacity + entry.size > capacity) {
+            this.makeSpace(entry.size)
+        }
+        if (count >= table.size * 3 / 4) {
+            this.resizeTable(table.size * 2)
+        }
+        val index = this.indexOf(key, table.size)
+        entry.chain = table[index]
+        table[index] = entry
+        count++
+        usedCapacity += entry.size
+        this.linkLast(entry)
+    }
+
+    /**
+     * 返回 tile 的子瓦片, 缓存中没有时细分 tile 并放入缓存
+     */
+    fun subdivide(tile: Tile, tileFactory: TileFactory): Array<Tile?>? {
+        return this.get(tile.packedKey) ?: tile.subdivide(tileFactory)?.also { this.put(tile.packedKey, it) }
+    }
+
+    fun remove(key: Long): Array<Tile?>? {
+        val index = this.indexOf(key, table.size)
+        var prev: Entry? = null
+        var entry = table[index]
+        while (entry != null) {
+            if (entry.key == key) {
+                if (prev == null) {
+                    table[index] = entry.chain
+                } else {
+                    prev.chain = entry.chain
+                }
+                entry.chain = null
+                count--
+                usedCapacity -= entry.size
+                this.unlinkEntry(entry)
+                return entry.value
+            }
+            prev = entry
+            entry = entry.chain
+        }
+        return null
+    }
+
+    fun containsKey(key: Long) = this.findEntry(key) != null
+
+    fun clear() {
+        table = arrayOfNulls(MIN_TABLE_SIZE)
+        count = 0
+        usedCapacity = 0
+        head = null
+        tail = null
+    }
+
+    protected fun makeSpace(spaceRequired: Int) {
+        while (usedCapacity > lowWater || (capacity - usedCapacity) < spaceRequired) {
+            val entry = head ?: break
+            this.remove(entry.key)
+            evictions++
+        }
+    }
+
+    protected fun computeSize(value: Array<Tile?>): Int {
+        var size = 0
+        for (tile in value) {
+            size += TILE_OVERHEAD + ((tile as? TerrainTile)?.getMemoryBytes() ?: 0)
+        }
+        return size
+    }
+
+    protected fun findEntry(key: Long): Entry? {
+        var entry = table[this.indexOf(key, table.size)]
+        while (entry != null) {
+            if (entry.key == key) {
+                return entry
+            }
+            entry = entry.chain
+        }
+        return null
+    }
+
+    protected fun indexOf(key: Long, tableSize: Int): Int {
+        // 混合高低位, 相邻瓦片的键只有低位不同
+        var hash = key * -0x61c8864680b583ebL
+        hash = hash xor (hash ushr 32)
+        return hash.toInt() and (tableSize - 1)
+    }
+
+    protected fun resizeTable(newSize: Int) {
+        val newTable = arrayOfNulls<Entry>(newSize)
+        for (first in table) {
+            var entry = first
+            while (entry != null) {
+                val next = entry.chain
+                val index = this.indexOf(entry.key, newSize)
+                entry.chain = newTable[index]
+                newTable[index] = entry
+                entry = next
+            }
+        }
+        table = newTable
+    }
+
+    protected fun linkLast(entry: Entry) {
+        val last = tail
+        entry.prev = last
+        entry.next = null
+        if (last == null) {
+            head = entry
+        } else {
+            last.next = entry
+        }
+        tail = entry
+    }
+
+    protected fun unlinkEntry(entry: Entry) {
+        val prev = entry.prev
+        val next = entry.next
+        if (prev == null) {
+            head = next
+        } else {
+            prev.next = next
+        }
+        if (next == null) {
+            tail = prev
+        } else {
+            next.prev = prev
+        }
+        entry.prev = null
+        entry.next = null
+    }
+}
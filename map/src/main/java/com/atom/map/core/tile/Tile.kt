@@ -116,6 +116,16 @@ open class Tile {
             }
             return result
         }
+
+        /**
+         * 把级别, 行号与列号合并为一个 long: 级别 8 位, 行号与列号各 28 位
+         */
+        fun packKey(levelNumber: Int, row: Int, column: Int): Long {
+            val llevel = (levelNumber.toLong() and 0xFFL)
+            val lrow = (row.toLong() and 0xFFFFFFFL)
+            val lcol = (column.toLong() and 0xFFFFFFFL)
+            return llevel shl 56 or (lrow shl 28) or lcol
+        }
     }
 
     var sector: Sector
@@ -128,12 +138,30 @@ open class Tile {
 
     var tileKey: String
 
+    /**
+     * 级别, 行号与列号合并的 long 键, 见 [packKey]
+     */
+    var packedKey: Long
+
     var extent: BoundingBox = BoundingBox()
 
     var heightLimits: FloatArray = FloatArray(2)
 
     var heightLimitsTimestamp: Long = 0
 
+    /**
+     * 高程范围的数据质量 ElevationCoverage.QUALITY_*, 以及读取前高程模型的变化序号.
+     * 该序号之后本瓦片范围内有数据变化则重新读取, 质量是最终的时忽略数据细化
+     */
+    var heightLimitsQuality = 0
+
+    var heightLimitsDirtySequence: Long = 0
+
+    /**
+     * 高程范围每次重新读取时递增, 依赖高程范围的数据以此判断是否过期
+     */
+    var heightLimitsVersion = 0
+
     var extentExaggeration: Double = 0.0
 
     var distanceToCamera = 0.0
@@ -148,6 +176,7 @@ open class Tile {
         this.row = row
         this.column = column
         this.tileKey = level.levelNumber.toString() + "." + row + "." + column
+        this.packedKey = packKey(level.levelNumber, row, column)
         this.texelSizeFactor =
             Math.toRadians(level.tileDelta / level.tileWidth) * Math.cos(Math.toRadians(sector.centroidLatitude()))
     }
@@ -170,15 +199,29 @@ open class Tile {
         this.distanceToCamera = this.distanceToCamera(rc); //获取此图块和眼睛的距离 笛卡尔
         val texelSize: Double = texelSizeFactor * rc.globe.getEquatorialRadius()
         val pixelSize = rc.pixelSizeAtDistance(this.distanceToCamera)
+        return texelSize > pixelSize * detailFactor * this.densityFactor(rc)
+    }
+
+    /**
+     * 重新计算到相机的距离, 用于没有经过 mustSubdivide 的瓦片
+     */
+    fun updateDistanceToCamera(rc: RenderContext): Double {
+        this.distanceToCamera = this.distanceToCamera(rc)
+        return this.distanceToCamera
+    }
+
+    /**
+     * 需要细分的临界距离: 图块到相机的距离小于该值时 mustSubdivide 返回 true. 像素大小与距离成正比, 由 mustSubdivide 的不等式解出
+     */
+    open fun subdivisionDistance(rc: RenderContext, detailFactor: Double): Double {
+        val texelSize: Double = texelSizeFactor * rc.globe.getEquatorialRadius()
+        return texelSize / (rc.pixelSizeAtDistance(1.0) * detailFactor * this.densityFactor(rc))
+    }
 
-        var densityFactor = 1.0
+    protected fun densityFactor(rc: RenderContext): Double {
         // Adjust the subdivision factory when the display density is low. Values of detailFactor have been calibrated
         // against high density devices. Low density devices need roughly half the detailFactor.
-        if (rc.resources.displayMetrics.densityDpi <= DisplayMetrics.DENSITY_MEDIUM) {
-            densityFactor = 0.5
-        }
-
-        return texelSize > pixelSize * detailFactor * densityFactor
+        return if (rc.densityDpi <= DisplayMetrics.DENSITY_MEDIUM) 0.5 else 1.0
     }
 
     /**
@@ -280,20 +323,24 @@ open class Tile {
      * 获取范围  获取该图块的 边界框
      */
     open fun getExtent(rc: RenderContext): BoundingBox {
-        val elevationTimestamp: Long = rc.globe.elevationModel.getTimestamp()
-        if (elevationTimestamp != heightLimitsTimestamp) {
+        val elevationModel = rc.globe.elevationModel
+        val elevationTimestamp: Long = elevationModel.getTimestamp()
+        val refreshLimits = elevationTimestamp != heightLimitsTimestamp || this.isHeightLimitsDirty(rc)
+        if (refreshLimits) {
+            heightLimitsDirtySequence = elevationModel.getDirtySequence()
             // initialize the heights for elevation model scan
             heightLimits[0] = Float.MAX_VALUE
             heightLimits[1] = -Float.MAX_VALUE
-            rc.globe.elevationModel.getHeightLimits(sector, heightLimits)
+            heightLimitsQuality = elevationModel.getHeightLimits(sector, heightLimits)
             // check for valid height limits
             if (heightLimits[0] > heightLimits[1]) {
                 Arrays.fill(heightLimits, 0f)
             }
+            heightLimitsVersion++
         }
 
         val verticalExaggeration = rc.verticalExaggeration
-        if (verticalExaggeration != extentExaggeration || elevationTimestamp != heightLimitsTimestamp) {
+        if (verticalExaggeration != extentExaggeration || refreshLimits) {
             val minHeight = (heightLimits[0] * verticalExaggeration).toFloat()
             val maxHeight = (heightLimits[1] * verticalExaggeration).toFloat()
             extent.setToSector(sector, rc.globe, minHeight, maxHeight)
@@ -303,6 +350,21 @@ open class Tile {
         return extent
     }
 
+    /**
+     * 高程范围读取后本瓦片范围内是否有数据变化. 没有时推进已检查的序号, 下次只检查新的变化
+     */
+    protected fun isHeightLimitsDirty(rc: RenderContext): Boolean {
+        val dirtySequence = rc.globe.elevationModel.getDirtySequence()
+        if (dirtySequence == heightLimitsDirtySequence) {
+            return false
+        }
+        if (rc.globe.elevationModel.isDirty(sector, heightLimitsDirtySequence, heightLimitsQuality)) {
+            return true
+        }
+        heightLimitsDirtySequence = dirtySequence
+        return false
+    }
+
     override fun toString(): String {
         return "Tile(sector=$sector, level=$level, row=$row, column=$column, tileKey=$tileKey, extent=$extent)"
     }
@@ -19,6 +19,13 @@ class BasicDrawableTerrain : DrawableTerrain {
 
     override var vertexOrigin = Vec3()
 
+    override var vertexScale = Vec3(1.0, 1.0, 1.0)
+
+    /**
+     * 顶点分量的类型, GL_FLOAT 或量化顶点的 GL_SHORT
+     */
+    var vertexType = GLES20.GL_FLOAT
+
     var lineElementRange: Range = Range()
 
     var triStripElementRange: Range = Range()
@@ -39,7 +46,7 @@ class BasicDrawableTerrain : DrawableTerrain {
         var bufferBound :Boolean
         bufferBound = vertexPoints?.bindBuffer(dc)?.also { bufferBound = it } ?: false
         if(bufferBound){
-            GLES20.glVertexAttribPointer(attribLocation, 3, GLES20.GL_FLOAT, false, 0, 0)
+            GLES20.glVertexAttribPointer(attribLocation, 3, vertexType, false, 0, 0)
         }
         return bufferBound
     }
@@ -57,7 +64,7 @@ class BasicDrawableTerrain : DrawableTerrain {
         var bufferBound :Boolean
         bufferBound = elements?.bindBuffer(dc)?.also { bufferBound = it } ?: false
         if(bufferBound){
-            GLES20.glDrawElements(GLES20.GL_LINES, this.lineElementRange.length() , GLES20.GL_UNSIGNED_SHORT, 0)
+            dc.drawElements(GLES20.GL_LINES, this.lineElementRange.length() , GLES20.GL_UNSIGNED_SHORT, 0)
         }
         return bufferBound
     }
@@ -67,7 +74,7 @@ class BasicDrawableTerrain : DrawableTerrain {
         bufferBound = elements?.bindBuffer(dc)?.also { bufferBound = it } ?: false
 
         if(bufferBound){
-            GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, this.triStripElementRange.length() , GLES20.GL_UNSIGNED_SHORT, this.triStripElementRange.lower * 2)
+            dc.drawElements(GLES20.GL_TRIANGLE_STRIP, this.triStripElementRange.length() , GLES20.GL_UNSIGNED_SHORT, this.triStripElementRange.lower * 2)
         }
         return bufferBound
     }
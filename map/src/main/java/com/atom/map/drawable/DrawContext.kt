@@ -61,6 +61,16 @@ class DrawContext {
 
     var pixelArray = ByteArray(4)
 
+    /**
+     * 状态切换与绘制命令经由此接口发出
+     */
+    var gl: GLStateFunctions = GLES20StateFunctions
+
+    /**
+     * 当前帧的状态切换与绘制命令计数, 每帧绘制前重置
+     */
+    val drawStats = DrawStats()
+
     fun reset() {
         eyePoint.set(0.0, 0.0, 0.0)
         viewport.setEmpty()
@@ -163,7 +173,8 @@ class DrawContext {
     fun useProgram(programId: Int) {
         if (this.programId != programId) {
             this.programId = programId
-            GLES20.glUseProgram(programId)
+            gl.useProgram(programId)
+            drawStats.programSwitches++
         }
     }
 
@@ -174,7 +185,7 @@ class DrawContext {
     fun activeTextureUnit(textureUnit: Int) {
         if (this.textureUnit != textureUnit) {
             this.textureUnit = textureUnit
-            GLES20.glActiveTexture(textureUnit)
+            gl.activeTexture(textureUnit)
         }
     }
 
@@ -192,7 +203,8 @@ class DrawContext {
         val textureUnitIndex = textureUnit - GLES20.GL_TEXTURE0
         if (this.textureId[textureUnitIndex] != textureId) {
             this.textureId[textureUnitIndex] = textureId
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId)
+            gl.bindTexture(GLES20.GL_TEXTURE_2D, textureId)
+            drawStats.textureBinds++
         }
     }
 
@@ -207,17 +219,50 @@ class DrawContext {
     }
 
     fun bindBuffer(target: Int, bufferId: Int) {
-        if (target == GLES20.GL_ARRAY_BUFFER && arrayBufferId != bufferId) {
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            if (arrayBufferId == bufferId) {
+                return
+            }
             arrayBufferId = bufferId
-            GLES20.glBindBuffer(target, bufferId)
-        } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER && elementArrayBufferId != bufferId) {
+        } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+            if (elementArrayBufferId == bufferId) {
+                return
+            }
             elementArrayBufferId = bufferId
-            GLES20.glBindBuffer(target, bufferId)
-        } else {
-            GLES20.glBindBuffer(target, bufferId)
         }
+        gl.bindBuffer(target, bufferId)
+        drawStats.bufferBinds++
     }
 
+    /**
+     * 删除缓冲或纹理之后 GL 解除了它们的绑定, 同步清除缓存的绑定, 以免复用的名称被误认为已经绑定
+     */
+    fun bufferDeleted(bufferId: Int) {
+        if (arrayBufferId == bufferId) {
+            arrayBufferId = 0
+        }
+        if (elementArrayBufferId == bufferId) {
+            elementArrayBufferId = 0
+        }
+    }
+
+    fun textureDeleted(textureId: Int) {
+        for (idx in this.textureId.indices) {
+            if (this.textureId[idx] == textureId) {
+                this.textureId[idx] = 0
+            }
+        }
+    }
+
+    fun drawArrays(mode: Int, first: Int, count: Int) {
+        gl.drawArrays(mode, first, count)
+        drawStats.drawCalls++
+    }
+
+    fun drawElements(mode: Int, count: Int, type: Int, offset: Int) {
+        gl.drawElements(mode, count, type, offset)
+        drawStats.drawCalls++
+    }
 
     fun unitSquareBuffer(): BufferObject {
         unitSquareBuffer?.let {
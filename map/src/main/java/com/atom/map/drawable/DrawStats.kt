@@ -0,0 +1,34 @@
+package com.atom.map.drawable
+
+/**
+ * 一帧中实际发出的 GL 状态切换与绘制命令的次数, DrawContext 省略的重复调用不计入
+ */
+class DrawStats {
+
+    var programSwitches = 0
+
+    var textureBinds = 0
+
+    var bufferBinds = 0
+
+    var drawCalls = 0
+
+    fun set(stats: DrawStats): DrawStats {
+        programSwitches = stats.programSwitches
+        textureBinds = stats.textureBinds
+        bufferBinds = stats.bufferBinds
+        drawCalls = stats.drawCalls
+        return this
+    }
+
+    fun reset() {
+        programSwitches = 0
+        textureBinds = 0
+        bufferBinds = 0
+        drawCalls = 0
+    }
+
+    override fun toString(): String {
+        return "programSwitches=$programSwitches, textureBinds=$textureBinds, bufferBinds=$bufferBinds, drawCalls=$drawCalls"
+    }
+}
@@ -2,7 +2,20 @@ package com.atom.map.drawable
 
 interface Drawable {
 
+    /**
+     * 排序时深度相同的对象按此值相邻排列, 见 DrawableQueue.sortState. 默认 0, 保持入队顺序
+     */
+    val sortState: Int
+        get() = 0
+
+    /**
+     * 不透明且开启深度测试的对象与绘制顺序无关, 返回由程序, 纹理与缓冲计算的合批状态 (见 DrawableQueue.batchState),
+     * 同一分组中排在半透明对象之前并按此值相邻排列. 默认 -1 表示必须按深度顺序绘制
+     */
+    val batchState: Long
+        get() = -1
+
     fun draw(dc: DrawContext)
 
     fun recycle()
-}
\ No newline at end of file
+}
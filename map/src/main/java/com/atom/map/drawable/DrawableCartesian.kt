@@ -60,10 +60,10 @@ class DrawableCartesian : Drawable {
         //GLES20.glDepthMask(false)
         GLES20.glDisable(GLES20.GL_DEPTH_TEST)
         if(isLine){
-            GLES20.glDrawElements(GLES20.GL_LINE_STRIP, triStripElements!!.bufferLength, GLES20.GL_UNSIGNED_SHORT, 0)
+            dc.drawElements(GLES20.GL_LINE_STRIP, triStripElements!!.bufferLength, GLES20.GL_UNSIGNED_SHORT, 0)
         }else{
             GLES20.glDisable(GLES20.GL_CULL_FACE)
-            GLES20.glDrawElements(GLES20.GL_TRIANGLES, triStripElements!!.bufferLength, GLES20.GL_UNSIGNED_SHORT, 0)
+            dc.drawElements(GLES20.GL_TRIANGLES, triStripElements!!.bufferLength, GLES20.GL_UNSIGNED_SHORT, 0)
             GLES20.glEnable(GLES20.GL_CULL_FACE)
         }
         GLES20.glEnable(GLES20.GL_DEPTH_TEST)
@@ -60,7 +60,7 @@ class DrawableFrustum : Drawable {
 
         GLES20.glDepthMask(false)
 
-        GLES20.glDrawElements(
+        dc.drawElements(
             GLES20.GL_TRIANGLE_STRIP,
             triStripElements!!.bufferLength,
             GLES20.GL_UNSIGNED_SHORT,
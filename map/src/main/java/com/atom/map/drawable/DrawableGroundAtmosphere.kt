@@ -68,9 +68,10 @@ class DrawableGroundAtmosphere : Drawable {
             val terrainOrigin = terrain.vertexOrigin
 
             program.loadVertexOrigin(terrainOrigin)
+            program.loadVertexScale(terrain.vertexScale)
 
             mvpMatrix.set(dc.modelviewProjection)
-            mvpMatrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+            terrain.multiplyByVertexTransform(mvpMatrix)
             program.loadModelviewProjection(mvpMatrix)
 
             // Use a tex coord matrix that registers the night texture correctly on each terrain tile.
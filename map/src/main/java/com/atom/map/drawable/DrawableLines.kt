@@ -55,7 +55,7 @@ class DrawableLines : Drawable {
         buffer.clear()
         buffer.put(vertexPoints).flip()
         GLES20.glVertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 0, buffer)
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0 /*first*/, buffer.remaining() / 3 /*count*/)
+        dc.drawArrays(GLES20.GL_LINES, 0 /*first*/, buffer.remaining() / 3 /*count*/)
         // Restore the default World Wind OpenGL state.
         if (!enableDepthTest) {
             GLES20.glEnable(GLES20.GL_DEPTH_TEST)
@@ -52,6 +52,9 @@ class DrawablePlacemark : Drawable {
 
     private var pool: Pool<DrawablePlacemark>? = null
 
+    override val sortState: Int
+        get() = DrawableQueue.sortState(DrawableQueue.STATE_PLACEMARK, program, iconTexture)
+
     override fun draw(dc: DrawContext) {
 
         if (this.program == null) {
@@ -102,7 +105,7 @@ class DrawablePlacemark : Drawable {
         GLES20.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 0, 0)
         GLES20.glVertexAttribPointer(1, 2, GLES20.GL_FLOAT, false, 0, 0)
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
+        dc.drawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
         dc.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0)
 
         GLES20.glDepthMask(true)
@@ -129,7 +132,7 @@ class DrawablePlacemark : Drawable {
                     it
                 )
             )
-            GLES20.glDrawArrays(GLES20.GL_LINES, 0, 2)
+            dc.drawArrays(GLES20.GL_LINES, 0, 2)
         }
 
     }
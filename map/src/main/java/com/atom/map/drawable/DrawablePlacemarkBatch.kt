@@ -0,0 +1,144 @@
+package com.atom.map.drawable
+
+import android.opengl.GLES20
+import com.atom.map.core.shader.GpuTexture
+import com.atom.map.core.shader.PlacemarkBatchProgram
+import com.atom.map.util.pool.Pool
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.IntBuffer
+import java.util.*
+
+/**
+ * 使用同一纹理与深度测试设置的地标图标, 顶点在渲染线程中按由远及近的顺序写入 vertices,
+ * 绘制时整体上传到程序的顶点缓冲, 每 MAX_QUADS 个四边形一次 glDrawElements
+ */
+class DrawablePlacemarkBatch : Drawable {
+
+    companion object {
+        fun obtain(pool: Pool<DrawablePlacemarkBatch>): DrawablePlacemarkBatch =
+            pool.acquire()?.setPool(pool) ?: DrawablePlacemarkBatch()
+                .setPool(pool)
+
+        // 排序键的高位保存距离, 低位保存图标序号, 距离相同时保持入队顺序
+        private const val INDEX_BITS = 24
+
+        private const val INDEX_MASK = (1L shl INDEX_BITS) - 1
+    }
+
+    var program: PlacemarkBatchProgram? = null
+
+    var texture: GpuTexture? = null
+
+    var enableDepthTest = true
+
+    var vertices: IntBuffer = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder()).asIntBuffer()
+
+    var quadCount = 0
+
+    var farthestDistance = 0.0
+
+    var pool: Pool<DrawablePlacemarkBatch>? = null
+
+    // 组批时图标在 PlacemarkIconQueue 中的序号与排序键
+    private var icons = IntArray(32)
+
+    private var keys = LongArray(0)
+
+    private fun setPool(pool: Pool<DrawablePlacemarkBatch>): DrawablePlacemarkBatch {
+        this.pool = pool
+        return this
+    }
+
+    fun addIcon(index: Int) {
+        if (quadCount == icons.size) {
+            icons = icons.copyOf(quadCount + (quadCount shr 1))
+        }
+        icons[quadCount++] = index
+    }
+
+    /**
+     * 按距离由远及近排列已加入的图标, 把它们的顶点依次写入 vertices
+     */
+    fun assembleVertices(source: PlacemarkIconQueue) {
+        val count = quadCount
+        if (keys.size < count) {
+            keys = LongArray(icons.size)
+        }
+        // -distance 的可排序位表示, 舍去低位放入序号, 按有符号数升序即由远及近
+        for (idx in 0 until count) {
+            var bits = java.lang.Double.doubleToLongBits(-source.getDistance(icons[idx]))
+            bits = if (bits < 0) bits.inv() xor Long.MIN_VALUE else bits
+            keys[idx] = (bits and INDEX_MASK.inv()) or idx.toLong()
+        }
+        Arrays.sort(keys, 0, count)
+
+        val capacity = count * PlacemarkIconQueue.QUAD_INTS
+        if (vertices.capacity() < capacity) {
+            vertices = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer()
+        }
+        vertices.clear()
+        val sourceVertices = source.vertices
+        for (idx in 0 until count) {
+            val icon = icons[(keys[idx] and INDEX_MASK).toInt()]
+            vertices.put(sourceVertices, icon * PlacemarkIconQueue.QUAD_INTS, PlacemarkIconQueue.QUAD_INTS)
+        }
+        vertices.flip()
+        farthestDistance = if (count > 0) source.getDistance(icons[(keys[0] and INDEX_MASK).toInt()]) else 0.0
+    }
+
+    override fun draw(dc: DrawContext) {
+        val program = this.program ?: return
+        val texture = this.texture ?: return
+        if (quadCount == 0 || !program.useProgram(dc)) return
+
+        if (!program.bindBuffers(dc)) return
+
+        dc.activeTextureUnit(GLES20.GL_TEXTURE0)
+        if (!texture.bindTexture(dc)) return
+
+        program.enablePickMode(dc.pickMode)
+        program.loadModelviewProjection(dc.screenProjection)
+
+        // 整批顶点一次上传, 缓冲每帧重新分配, 不必等待上一次绘制完成
+        vertices.rewind()
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.remaining() * 4, vertices, GLES20.GL_STREAM_DRAW)
+
+        GLES20.glDepthMask(false)
+        if (!enableDepthTest) {
+            GLES20.glDisable(GLES20.GL_DEPTH_TEST)
+        }
+        GLES20.glEnableVertexAttribArray(1 /*vertexTexCoord*/)
+        GLES20.glEnableVertexAttribArray(2 /*vertexColor*/)
+
+        val stride = PlacemarkIconQueue.VERTEX_STRIDE
+        var first = 0
+        while (first < quadCount) {
+            val count = Math.min(PlacemarkBatchProgram.MAX_QUADS, quadCount - first)
+            val offset = first * 4 * stride
+            GLES20.glVertexAttribPointer(0 /*vertexPoint*/, 3, GLES20.GL_FLOAT, false, stride, offset)
+            GLES20.glVertexAttribPointer(1 /*vertexTexCoord*/, 2, GLES20.GL_FLOAT, false, stride, offset + 12)
+            GLES20.glVertexAttribPointer(2 /*vertexColor*/, 4, GLES20.GL_UNSIGNED_BYTE, true, stride, offset + 20)
+            dc.drawElements(GLES20.GL_TRIANGLES, count * 6, GLES20.GL_UNSIGNED_SHORT, 0)
+            first += count
+        }
+
+        // Restore the default World Wind OpenGL state.
+        if (!enableDepthTest) {
+            GLES20.glEnable(GLES20.GL_DEPTH_TEST)
+        }
+        GLES20.glDepthMask(true)
+        GLES20.glDisableVertexAttribArray(1)
+        GLES20.glDisableVertexAttribArray(2)
+    }
+
+    override fun recycle() {
+        program = null
+        texture = null
+        quadCount = 0
+        farthestDistance = 0.0
+        vertices.clear()
+        pool?.release(this)
+        pool = null
+    }
+}
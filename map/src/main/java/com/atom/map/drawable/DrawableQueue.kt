@@ -2,74 +2,166 @@ package com.atom.map.drawable
 
 import java.util.*
 
+/**
+ * 可绘制对象队列. 每个对象入队时把分组, 深度与绘制状态打包成一个 64 位排序键, 与对象平行存放在
+ * LongArray 中, 排序时对键做稳定的 LSD 基数排序:
+ *
+ * 分组 (8 位, 升序) | 半透明 (1 位) | 深度或合批状态 (39 位) | 绘制状态 (16 位) | 插入顺序 (由排序的稳定性保证)
+ *
+ * 半透明对象取 order 可排序位表示的高 39 位作为深度, 相对精度约 1e-8, 差别更小的深度视为相等, 按绘制状态相邻排列.
+ * 不透明对象 (Drawable.batchState 非负) 与绘制顺序无关, 在同一分组中排在半透明对象之前, 按程序, 纹理, 缓冲合批
+ */
 open class DrawableQueue {
-    private var entries = arrayOfNulls<Entry>(32)
 
-    protected var size = 0
+    companion object {
+        const val GROUP_SHIFT = 56
 
-    protected var position = 0
+        const val DEPTH_SHIFT = 16
 
-    private var sortComparator = object : Comparator<Entry?> {
-        override fun compare(lhs: Entry?, rhs: Entry?): Int {
-            if (lhs != null && rhs != null) {
-                when {
-                    lhs.groupId < rhs.groupId -> { // lhs group is first; sort lhs before rhs
-                        -1
-                    }
-                    lhs.groupId > rhs.groupId -> { // rhs group is first; sort rhs before lhs
-                        1
-                    }
-                    lhs.order > rhs.order -> { // lhs is farther than rhs; sort lhs before rhs
-                        -1
-                    }
-                    lhs.order < rhs.order -> { // lhs is closer than rhs; sort rhs before lhs
-                        1
-                    }
-                    else -> { // lhs and rhs have the same depth; sort by insertion order
-                        lhs.ordinal - rhs.ordinal
-                    }
-                }
-            }
-            return 0;
+        const val TRANSLUCENT_BIT = 1L shl 55
+
+        const val STATE_MASK = 0xFFFF
+
+        /**
+         * 绘制状态中的对象类别, 不同类别的对象不能合批绘制
+         */
+        const val STATE_SCREEN_TEXTURE = 1
+
+        const val STATE_PLACEMARK = 2
+
+        const val STATE_SHAPE = 3
+
+        // 深度与合批状态保留的位数
+        protected const val DEPTH_BITS = 39
+
+        protected const val DEPTH_MASK = (1L shl DEPTH_BITS) - 1
+
+        // 每一趟排序的位数与桶数
+        protected const val RADIX_BITS = 8
+
+        protected const val RADIX = 1 shl RADIX_BITS
+
+        protected const val PASSES = 64 / RADIX_BITS
+
+        /**
+         * 把分组, 深度与绘制状态打包为半透明对象的排序键, 按无符号数比较的顺序即绘制顺序
+         */
+        fun packSortKey(groupId: Int, order: Double, state: Int): Long {
+            var bits = java.lang.Double.doubleToLongBits(order)
+            // 负数翻转全部位, 正数翻转符号位, 使位表示的无符号顺序与数值顺序一致
+            bits = if (bits < 0) bits.inv() else bits xor Long.MIN_VALUE
+            val depth = bits ushr (64 - DEPTH_BITS)
+            return ((groupId and 0xFF).toLong() shl GROUP_SHIFT) or TRANSLUCENT_BIT or
+                    (depth shl DEPTH_SHIFT) or
+                    (state and STATE_MASK).toLong()
+        }
+
+        /**
+         * 不透明对象的排序键, 忽略深度, 按合批状态排列
+         */
+        fun packBatchKey(groupId: Int, batchState: Long, state: Int): Long {
+            return ((groupId and 0xFF).toLong() shl GROUP_SHIFT) or
+                    ((batchState and DEPTH_MASK) shl DEPTH_SHIFT) or
+                    (state and STATE_MASK).toLong()
+        }
+
+        /**
+         * 由程序, 纹理与缓冲计算不透明对象的合批状态, 依次占 12, 12, 15 位
+         */
+        fun batchState(program: Any?, texture: Any?, buffer: Any?): Long {
+            return ((System.identityHashCode(program) and 0xFFF).toLong() shl 27) or
+                    ((System.identityHashCode(texture) and 0xFFF).toLong() shl 15) or
+                    (System.identityHashCode(buffer) and 0x7FFF).toLong()
+        }
+
+        /**
+         * 由对象类别, 程序与纹理计算绘制状态, 相同程序与纹理的对象得到相同的值
+         */
+        fun sortState(kind: Int, program: Any?, texture: Any?): Int {
+            return ((kind and 0xF) shl 12) or
+                    ((System.identityHashCode(program) and 0xF) shl 8) or
+                    (System.identityHashCode(texture) and 0xFF)
         }
     }
 
+    private var drawables = arrayOfNulls<Drawable>(32)
+
+    private var keys = LongArray(32)
+
+    // 基数排序的临时数组与每一趟的计数
+    private var scratchDrawables = arrayOfNulls<Drawable>(0)
+
+    private var scratchKeys = LongArray(0)
+
+    private val sortCounts = IntArray(PASSES * RADIX)
+
+    protected var size = 0
+
+    protected var position = 0
+
+    // 上次排序之后没有新的对象入队, DrawContext 再次排序时直接返回
+    protected var isSorted = true
+
     fun recycle() {
-        var i = 0
-        val len = size
-        while (i < len) {
-            entries[i]!!.recycle()
-            i++
-        }
-        size = 0
-        position = 0
+        clearDrawables()
     }
 
     fun offerDrawable(drawable: Drawable, groupId: Int, order: Double) {
-        val capacity = entries.size
-        if (capacity == size) {
-            val newArray = arrayOfNulls<Entry>(capacity + (capacity shr 1))
-            System.arraycopy(entries, 0, newArray, 0, capacity)
-            entries = newArray
+        val batchState = drawable.batchState
+        val key = if (batchState < 0) {
+            packSortKey(groupId, order, drawable.sortState)
+        } else {
+            packBatchKey(groupId, batchState, drawable.sortState)
         }
-        if (entries[size] == null) {
-            entries[size] =
-                Entry()
+        offerDrawable(drawable, key)
+    }
+
+    protected fun offerDrawable(drawable: Drawable, key: Long) {
+        val capacity = drawables.size
+        if (capacity == size) {
+            val newCapacity = capacity + (capacity shr 1)
+            drawables = drawables.copyOf(newCapacity)
+            keys = keys.copyOf(newCapacity)
         }
-        entries[size]!!.set(drawable, groupId, order, size)
+        drawables[size] = drawable
+        keys[size] = key
         size++
+        isSorted = false
+    }
+
+    /**
+     * 把 source 中 [from, to) 的条目按顺序追加到队列末尾, 插入序号按本队列重新编号, 可绘制对象改归本队列回收
+     */
+    fun offerDrawables(source: DrawableQueue, from: Int, to: Int) {
+        for (idx in from until to) {
+            this.offerDrawable(source.drawables[idx]!!, source.keys[idx])
+        }
+    }
+
+    /**
+     * 清空队列但不回收可绘制对象, 用于内容已经转移到其他队列的分片
+     */
+    fun discardDrawables() {
+        Arrays.fill(drawables, 0, size, null)
+        size = 0
+        position = 0
+        isSorted = true
     }
 
     fun getDrawable(index: Int): Drawable? {
-        return if (index < size) entries[index]!!.drawable else null
+        return if (index < size) drawables[index] else null
+    }
+
+    fun getSortKey(index: Int): Long {
+        return if (index < size) keys[index] else 0
     }
 
     fun peekDrawable(): Drawable? {
-        return if (position < size) entries[position]!!.drawable else null
+        return if (position < size) drawables[position] else null
     }
 
     fun pollDrawable(): Drawable? {
-        return if (position < size) entries[position++]!!.drawable else null
+        return if (position < size) drawables[position++] else null
     }
 
     fun rewindDrawables() {
@@ -80,15 +172,20 @@ open class DrawableQueue {
         var i = 0
         val len = size
         while (i < len) {
-            entries[i]!!.recycle()
+            drawables[i]!!.recycle()
+            drawables[i] = null
             i++
         }
         size = 0
         position = 0
+        isSorted = true
     }
 
     fun sortDrawables() {
-        Arrays.sort(entries, 0, size, sortComparator)
+        if (!isSorted) {
+            radixSort()
+            isSorted = true
+        }
         position = 0
     }
 
@@ -96,21 +193,64 @@ open class DrawableQueue {
         return size
     }
 
-    protected class Entry {
-        var drawable: Drawable? = null
-        var order = 0.0
-        var groupId = 0
-        var ordinal = 0
-        operator fun set(drawable: Drawable?, groupId: Int, order: Double, ordinal: Int) {
-            this.drawable = drawable
-            this.groupId = groupId
-            this.order = order
-            this.ordinal = ordinal
+    protected fun radixSort() {
+        val n = size
+        if (n < 2) {
+            return
+        }
+        if (scratchKeys.size < drawables.size) {
+            scratchKeys = LongArray(drawables.size)
+            scratchDrawables = arrayOfNulls(drawables.size)
+        }
+        // 一次遍历统计全部 8 趟的计数
+        val counts = sortCounts
+        Arrays.fill(counts, 0)
+        for (i in 0 until n) {
+            var key = keys[i]
+            var base = 0
+            while (base < counts.size) {
+                counts[base + (key and 0xFF).toInt()]++
+                key = key ushr RADIX_BITS
+                base += RADIX
+            }
         }
 
-        fun recycle() {
-            drawable!!.recycle()
-            drawable = null
+        var srcKeys = keys
+        var srcDrawables = drawables
+        var dstKeys = scratchKeys
+        var dstDrawables = scratchDrawables
+        for (pass in 0 until PASSES) {
+            val base = pass * RADIX
+            val shift = pass * RADIX_BITS
+            // 所有键在这一趟的位相同, 例如只有一个分组或没有绘制状态, 跳过
+            if (counts[base + ((srcKeys[0] ushr shift) and 0xFF).toInt()] == n) {
+                continue
+            }
+            var sum = 0
+            for (bucket in base until base + RADIX) {
+                val count = counts[bucket]
+                counts[bucket] = sum
+                sum += count
+            }
+            for (i in 0 until n) {
+                val key = srcKeys[i]
+                val dst = counts[base + ((key ushr shift) and 0xFF).toInt()]++
+                dstKeys[dst] = key
+                dstDrawables[dst] = srcDrawables[i]
+            }
+            val tmpKeys = srcKeys
+            srcKeys = dstKeys
+            dstKeys = tmpKeys
+            val tmpDrawables = srcDrawables
+            srcDrawables = dstDrawables
+            dstDrawables = tmpDrawables
         }
+
+        // 结果在临时数组中时交换数组, 不再复制
+        keys = srcKeys
+        drawables = srcDrawables
+        scratchKeys = dstKeys
+        scratchDrawables = dstDrawables
+        Arrays.fill(scratchDrawables, 0, n, null)
     }
-}
\ No newline at end of file
+}
@@ -35,6 +35,9 @@ class DrawableScreenTexture : Drawable {
         return this
     }
 
+    override val sortState: Int
+        get() = DrawableQueue.sortState(DrawableQueue.STATE_SCREEN_TEXTURE, program, texture)
+
     override fun draw(dc: DrawContext) {
         val program = this.program ?: return
         if (!program.useProgram(dc)) return
@@ -87,7 +90,7 @@ class DrawableScreenTexture : Drawable {
             GLES20.glDisable(GLES20.GL_DEPTH_TEST)
         }
         // Draw the unit square as triangles.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
+        dc.drawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
 
         // Restore the default World Wind OpenGL state.
         if (!drawable.enableDepthTest) {
@@ -22,6 +22,26 @@ class DrawableShape() : Drawable {
         return this
     }
 
+    override val sortState: Int
+        get() = DrawableQueue.sortState(DrawableQueue.STATE_SHAPE, drawState.program, drawState.vertexBuffer)
+
+    /**
+     * 开启深度测试, 所有图元都不透明且没有纹理时与绘制顺序无关
+     */
+    override val batchState: Long
+        get() {
+            if (!drawState.enableDepthTest) {
+                return -1
+            }
+            for (idx in 0 until drawState.primCount) {
+                val prim = drawState.prims[idx]
+                if (prim.texture != null || prim.color.alpha < 1f) {
+                    return -1
+                }
+            }
+            return DrawableQueue.batchState(drawState.program, null, drawState.vertexBuffer)
+        }
+
     override fun draw(dc: DrawContext) {
         val program = drawState.program ?: return
         if (!program.useProgram(dc)) return
@@ -82,7 +102,7 @@ class DrawableShape() : Drawable {
                 prim.texCoordAttrib.offset
             )
             GLES20.glLineWidth(prim.lineWidth)
-            GLES20.glDrawElements(prim.mode, prim.count, prim.type, prim.offset)
+            dc.drawElements(prim.mode, prim.count, prim.type, prim.offset)
         }
 
         // Restore the default World Wind OpenGL state.
@@ -105,14 +105,14 @@ class DrawableSightline : Drawable {
             for (idx in 0 until len) {
                 // Get the drawable terrain associated with the draw context.
                 val terrain = dc.getDrawableTerrain(idx)
-                val terrainOrigin = terrain?.vertexOrigin ?: continue
+                terrain ?: continue
                 // Use the terrain's vertex point attribute.
                 if (!terrain.useVertexPointAttrib(dc, 0 /*vertexPoint*/)) {
                     continue  // vertex buffer failed to bind
                 }
                 // Draw the terrain onto one face of the cube map, from the sensor's point of view.
                 matrix.setToMultiply(cubeMapProjection, sensorView)
-                matrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+                terrain.multiplyByVertexTransform(matrix)
                 program!!.loadModelviewProjection(matrix)
                 // Draw the terrain as triangles.
                 terrain.drawTriangles(dc)
@@ -139,7 +139,7 @@ class DrawableSightline : Drawable {
         for (idx in 0 until len) {
             // Get the drawable terrain associated with the draw context.
             val terrain = dc.getDrawableTerrain(idx)
-            val terrainOrigin = terrain?.vertexOrigin ?: continue
+            terrain ?: continue
             // Use the terrain's vertex point attribute.
             if (!terrain.useVertexPointAttrib(dc, 0 /*vertexPoint*/)) {
                 continue  // vertex buffer failed to bind
@@ -147,12 +147,12 @@ class DrawableSightline : Drawable {
 
             // Use the draw context's modelview projection matrix, transformed to terrain local coordinates.
             matrix.set(dc.modelviewProjection)
-            matrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+            terrain.multiplyByVertexTransform(matrix)
             program!!.loadModelviewProjection(matrix)
 
             // Map the terrain into one face of the cube map, from the sensor's point of view.
             matrix.set(sensorView)
-            matrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+            terrain.multiplyByVertexTransform(matrix)
             program!!.loadSensorviewProjection(cubeMapProjection, matrix)
             // Draw the terrain as triangles.
             terrain.drawTriangles(dc)
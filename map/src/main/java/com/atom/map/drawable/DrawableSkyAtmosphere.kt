@@ -54,7 +54,7 @@ class DrawableSkyAtmosphere : Drawable {
 
         GLES20.glDepthMask(false)
         GLES20.glFrontFace(GLES20.GL_CW)
-        GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, triStripElements!!.bufferLength, GLES20.GL_UNSIGNED_SHORT, 0)
+        dc.drawElements(GLES20.GL_TRIANGLE_STRIP, triStripElements!!.bufferLength, GLES20.GL_UNSIGNED_SHORT, 0)
 
         GLES20.glDepthMask(true)
         GLES20.glFrontFace(GLES20.GL_CCW)
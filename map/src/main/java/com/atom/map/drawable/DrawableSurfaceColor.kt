@@ -1,7 +1,6 @@
 package com.atom.map.drawable
 
 import com.atom.map.geom.Matrix4
-import com.atom.map.geom.Vec3
 import com.atom.map.geom.SimpleColor
 import com.atom.map.core.shader.BasicProgram
 import com.atom.map.util.pool.Pool
@@ -47,9 +46,8 @@ class DrawableSurfaceColor : Drawable {
             if (!terrain.useVertexPointAttrib(dc, 0 /*vertexPoint*/)) {
                 continue  // vertex buffer failed to bind
             }
-            val terrainOrigin: Vec3 = terrain.vertexOrigin
             mvpMatrix.set(dc.modelviewProjection)
-            mvpMatrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+            terrain.multiplyByVertexTransform(mvpMatrix)
             program.loadModelviewProjection(mvpMatrix)
 
             terrain.drawTriangles(dc)
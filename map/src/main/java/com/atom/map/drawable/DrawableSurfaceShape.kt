@@ -131,7 +131,7 @@ class DrawableSurfaceShape : Drawable {
                         false, shape.drawState.vertexStride, prim.texCoordAttrib.offset
                     )
                     GLES20.glLineWidth(prim.lineWidth)
-                    GLES20.glDrawElements(prim.mode, prim.count, prim.type, prim.offset)
+                    dc.drawElements(prim.mode, prim.count, prim.type, prim.offset)
                 }
                 shapeCount++
             }
@@ -164,9 +164,8 @@ class DrawableSurfaceShape : Drawable {
         basicProgram.loadTexCoordMatrix(identityMatrix3)
         basicProgram.loadColor(color)
 
-        val terrainOrigin = terrain.vertexOrigin
         mvpMatrix.set(dc.modelviewProjection)
-        mvpMatrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+        terrain.multiplyByVertexTransform(mvpMatrix)
         basicProgram.loadModelviewProjection(mvpMatrix)
         terrain.drawTriangles(dc)
     }
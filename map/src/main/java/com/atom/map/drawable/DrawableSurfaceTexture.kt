@@ -110,7 +110,6 @@ class DrawableSurfaceTexture : Drawable,
 
             // Get the terrain's attributes, and keep a flag to ensure we apply the terrain's attributes at most once.
             val terrainSector = terrain.sector
-            val terrainOrigin = terrain.vertexOrigin
             var usingTerrainAttrs = false
 
             for (i in 0 until scratchList.size) {
@@ -131,7 +130,7 @@ class DrawableSurfaceTexture : Drawable,
                     terrain.useVertexTexCoordAttrib(dc, 1)) {
                     usingTerrainAttrs = true
                     this.program!!.mvpMatrix.set(dc.modelviewProjection)
-                    this.program!!.mvpMatrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+                    terrain.multiplyByVertexTransform(this.program!!.mvpMatrix)
                     this.program!!.loadModelviewProjection()
                 }
                 if (!usingTerrainAttrs) {
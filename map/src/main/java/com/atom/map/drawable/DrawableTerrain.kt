@@ -1,5 +1,6 @@
 package com.atom.map.drawable
 
+import com.atom.map.geom.Matrix4
 import com.atom.map.geom.Sector
 import com.atom.map.geom.Vec3
 
@@ -9,6 +10,20 @@ interface DrawableTerrain : Drawable {
 
     var vertexOrigin : Vec3
 
+    /**
+     * 顶点的缩放: 顶点乘以缩放再加上 vertexOrigin 为笛卡尔坐标. 浮点顶点的缩放为 1, 量化顶点为量化步长
+     */
+    var vertexScale : Vec3
+
+    /**
+     * 把顶点到笛卡尔坐标的变换 (平移到 vertexOrigin, 再缩放) 乘到 matrix 上
+     */
+    fun multiplyByVertexTransform(matrix: Matrix4): Matrix4 {
+        matrix.multiplyByTranslation(vertexOrigin.x, vertexOrigin.y, vertexOrigin.z)
+        matrix.multiplyByScale(vertexScale.x, vertexScale.y, vertexScale.z)
+        return matrix
+    }
+
     fun useVertexPointAttrib(dc: DrawContext, attribLocation: Int) : Boolean
 
     fun useVertexTexCoordAttrib(dc: DrawContext, attribLocation: Int) : Boolean
@@ -2,7 +2,6 @@ package com.atom.map.drawable
 
 import android.opengl.GLES20
 import com.atom.map.geom.Matrix4
-import com.atom.map.geom.Vec3
 import com.atom.map.geom.SimpleColor
 import com.atom.map.core.shader.BasicProgram
 import com.atom.map.util.pool.Pool
@@ -67,9 +66,8 @@ class DrawableTessellation : Drawable {
             if (!terrain.useVertexPointAttrib(dc, 0 /*vertexPoint*/)) {
                 continue  // vertex buffer failed to bind
             }
-            val terrainOrigin: Vec3 = terrain.vertexOrigin
             mvpMatrix.set(offsetMvpMatrix)
-            mvpMatrix.multiplyByTranslation(terrainOrigin.x, terrainOrigin.y, terrainOrigin.z)
+            terrain.multiplyByVertexTransform(mvpMatrix)
             program.loadModelviewProjection(mvpMatrix)
             terrain.drawLines(dc)
         }
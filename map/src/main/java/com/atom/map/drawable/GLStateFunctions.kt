@@ -0,0 +1,37 @@
+package com.atom.map.drawable
+
+import android.opengl.GLES20
+
+/**
+ * DrawContext 改变 GL 状态与发出绘制命令时调用的函数. 默认转发给 GLES20, 测试中可以替换为记录调用的实现
+ */
+interface GLStateFunctions {
+
+    fun useProgram(program: Int)
+
+    fun activeTexture(textureUnit: Int)
+
+    fun bindTexture(target: Int, texture: Int)
+
+    fun bindBuffer(target: Int, buffer: Int)
+
+    fun drawArrays(mode: Int, first: Int, count: Int)
+
+    fun drawElements(mode: Int, count: Int, type: Int, offset: Int)
+}
+
+object GLES20StateFunctions : GLStateFunctions {
+
+    override fun useProgram(program: Int) = GLES20.glUseProgram(program)
+
+    override fun activeTexture(textureUnit: Int) = GLES20.glActiveTexture(textureUnit)
+
+    override fun bindTexture(target: Int, texture: Int) = GLES20.glBindTexture(target, texture)
+
+    override fun bindBuffer(target: Int, buffer: Int) = GLES20.glBindBuffer(target, buffer)
+
+    override fun drawArrays(mode: Int, first: Int, count: Int) = GLES20.glDrawArrays(mode, first, count)
+
+    override fun drawElements(mode: Int, count: Int, type: Int, offset: Int) =
+        GLES20.glDrawElements(mode, count, type, offset)
+}
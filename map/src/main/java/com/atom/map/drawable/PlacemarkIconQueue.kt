@@ -0,0 +1,240 @@
+package com.atom.map.drawable
+
+import com.atom.map.WorldWind
+import com.atom.map.core.shader.GpuTexture
+import com.atom.map.core.shader.PlacemarkBatchProgram
+import com.atom.map.geom.Matrix4
+import com.atom.map.geom.SimpleColor
+import com.atom.map.util.pool.Pool
+import java.nio.ByteOrder
+import java.util.*
+
+/**
+ * 一帧中等待合批绘制的地标图标. 每个图标入队时在 CPU 上展开为屏幕坐标中的四边形, 4 个顶点依次对应单位正方形的
+ * (0, 0), (1, 0), (0, 1), (1, 1) 角, 每个顶点占 6 个 Int: x, y, z, s, t 的浮点位与按内存顺序 RGBA 排列的颜色字节.
+ * 排序可绘制对象之前由 assembleBatches 按纹理与深度测试分组为 DrawablePlacemarkBatch
+ */
+open class PlacemarkIconQueue {
+
+    companion object {
+        const val VERTEX_INTS = 6
+
+        const val VERTEX_STRIDE = VERTEX_INTS * 4
+
+        const val QUAD_INTS = VERTEX_INTS * 4
+
+        // 单位正方形四个角的 x, y
+        protected val CORNERS = doubleArrayOf(0.0, 0.0, 1.0, 0.0, 0.0, 1.0, 1.0, 1.0)
+
+        /**
+         * 把颜色预乘透明度后打包为 4 个归一化字节, 写入本机字节序的缓冲后内存顺序为 R, G, B, A
+         */
+        fun packColor(color: SimpleColor): Int {
+            val alpha = color.alpha
+            val r = Math.round(color.red * alpha * 0xFF) and 0xFF
+            val g = Math.round(color.green * alpha * 0xFF) and 0xFF
+            val b = Math.round(color.blue * alpha * 0xFF) and 0xFF
+            val a = Math.round(alpha * 0xFF) and 0xFF
+            return if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                r or (g shl 8) or (b shl 16) or (a shl 24)
+            } else {
+                (r shl 24) or (g shl 16) or (b shl 8) or a
+            }
+        }
+    }
+
+    protected var textures = arrayOfNulls<GpuTexture>(32)
+
+    protected var depthTests = BooleanArray(32)
+
+    protected var distances = DoubleArray(32)
+
+    var vertices = IntArray(32 * QUAD_INTS)
+        protected set
+
+    protected var size = 0
+
+    // 组批时按纹理查找批次, 开启与关闭深度测试的图标分开
+    protected val depthBatches = HashMap<GpuTexture, DrawablePlacemarkBatch>()
+
+    protected val overlayBatches = HashMap<GpuTexture, DrawablePlacemarkBatch>()
+
+    protected val batches = ArrayList<DrawablePlacemarkBatch>()
+
+    // 组批时形状分组的排序键, 以及按区间排列的图标
+    protected var shapeKeys = LongArray(32)
+
+    protected var order = LongArray(32)
+
+    fun count(): Int {
+        return size
+    }
+
+    fun getTexture(index: Int): GpuTexture? {
+        return if (index < size) textures[index] else null
+    }
+
+    fun getDistance(index: Int): Double {
+        return distances[index]
+    }
+
+    fun isDepthTest(index: Int): Boolean {
+        return depthTests[index]
+    }
+
+    /**
+     * 把 unitSquareTransform 变换后的单位正方形作为一个图标入队, 纹理坐标按纹理的 texCoordTransform 变换
+     */
+    fun offerIcon(
+        texture: GpuTexture, unitSquareTransform: Matrix4, color: SimpleColor,
+        enableDepthTest: Boolean, cameraDistance: Double
+    ) {
+        ensureCapacity(size + 1)
+        val m = unitSquareTransform.m
+        val t = texture.texCoordTransform.m
+        val packedColor = packColor(color)
+        val vertices = vertices
+        var idx = size * QUAD_INTS
+        for (corner in 0 until 4) {
+            val x = CORNERS[corner * 2]
+            val y = CORNERS[corner * 2 + 1]
+            vertices[idx++] = java.lang.Float.floatToRawIntBits((m[0] * x + m[1] * y + m[3]).toFloat())
+            vertices[idx++] = java.lang.Float.floatToRawIntBits((m[4] * x + m[5] * y + m[7]).toFloat())
+            vertices[idx++] = java.lang.Float.floatToRawIntBits((m[8] * x + m[9] * y + m[11]).toFloat())
+            vertices[idx++] = java.lang.Float.floatToRawIntBits((t[0] * x + t[1] * y + t[2]).toFloat())
+            vertices[idx++] = java.lang.Float.floatToRawIntBits((t[3] * x + t[4] * y + t[5]).toFloat())
+            vertices[idx++] = packedColor
+        }
+        textures[size] = texture
+        depthTests[size] = enableDepthTest
+        distances[size] = cameraDistance
+        size++
+    }
+
+    /**
+     * 把 source 中 [from, to) 的图标按顺序追加到队列末尾
+     */
+    fun offerIcons(source: PlacemarkIconQueue, from: Int, to: Int) {
+        if (to <= from) {
+            return
+        }
+        val count = to - from
+        ensureCapacity(size + count)
+        System.arraycopy(source.textures, from, textures, size, count)
+        System.arraycopy(source.depthTests, from, depthTests, size, count)
+        System.arraycopy(source.distances, from, distances, size, count)
+        System.arraycopy(source.vertices, from * QUAD_INTS, vertices, size * QUAD_INTS, count * QUAD_INTS)
+        size += count
+    }
+
+    fun clearIcons() {
+        Arrays.fill(textures, 0, size, null)
+        size = 0
+    }
+
+    /**
+     * 按纹理与深度测试把图标分组为批次并放入 queue, 之后清空本队列. 批次内的图标由远及近排列.
+     * queue 的形状分组中已有的半透明对象 (标注, 引线等) 把图标按排序键划分为区间, 批次不跨越区间,
+     * 每个批次以最远图标的距离入队, 与这些对象的先后顺序和逐个绘制图标时相同
+     */
+    open fun assembleBatches(program: PlacemarkBatchProgram, pool: Pool<DrawablePlacemarkBatch>, queue: DrawableQueue) {
+        val shapeCount = this.collectShapeKeys(queue)
+        if (order.size < size) {
+            order = LongArray(textures.size)
+        }
+        // 高 32 位为区间, 低 32 位为图标序号, 没有形状对象时都在区间 0 中
+        for (idx in 0 until size) {
+            var segment = 0L
+            if (shapeCount > 0) {
+                val iconKey = DrawableQueue.packSortKey(WorldWind.SHAPE_DRAWABLE, -distances[idx], 0)
+                segment = this.upperBound(iconKey, shapeCount).toLong()
+            }
+            order[idx] = (segment shl 32) or idx.toLong()
+        }
+        if (shapeCount > 0) {
+            Arrays.sort(order, 0, size)
+        }
+
+        var currentSegment = -1
+        for (pos in 0 until size) {
+            val segment = (order[pos] ushr 32).toInt()
+            val idx = order[pos].toInt()
+            if (segment != currentSegment) {
+                this.offerBatches(queue)
+                currentSegment = segment
+            }
+            val texture = textures[idx]!!
+            val map = if (depthTests[idx]) depthBatches else overlayBatches
+            var batch = map[texture]
+            if (batch == null) {
+                batch = DrawablePlacemarkBatch.obtain(pool)
+                batch.program = program
+                batch.texture = texture
+                batch.enableDepthTest = depthTests[idx]
+                map[texture] = batch
+                batches.add(batch)
+            }
+            batch.addIcon(idx)
+        }
+        this.offerBatches(queue)
+        clearIcons()
+    }
+
+    protected fun offerBatches(queue: DrawableQueue) {
+        for (batch in batches) {
+            batch.assembleVertices(this)
+            queue.offerDrawable(batch, WorldWind.SHAPE_DRAWABLE, -batch.farthestDistance)
+        }
+        batches.clear()
+        depthBatches.clear()
+        overlayBatches.clear()
+    }
+
+    /**
+     * 把 queue 中形状分组的半透明排序键按升序放入 shapeKeys, 返回个数
+     */
+    protected fun collectShapeKeys(queue: DrawableQueue): Int {
+        var count = 0
+        for (idx in 0 until queue.count()) {
+            val key = queue.getSortKey(idx)
+            if ((key ushr DrawableQueue.GROUP_SHIFT).toInt() != WorldWind.SHAPE_DRAWABLE ||
+                key and DrawableQueue.TRANSLUCENT_BIT == 0L) {
+                continue
+            }
+            if (count == shapeKeys.size) {
+                shapeKeys = shapeKeys.copyOf(count + (count shr 1))
+            }
+            shapeKeys[count++] = key
+        }
+        Arrays.sort(shapeKeys, 0, count)
+        return count
+    }
+
+    /**
+     * 不大于 key 的形状排序键的个数. 排序键相同时先入队的形状对象先绘制, 因此相等的键计入前一区间
+     */
+    protected fun upperBound(key: Long, count: Int): Int {
+        var low = 0
+        var high = count
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (shapeKeys[mid] <= key) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
+    }
+
+    protected fun ensureCapacity(capacity: Int) {
+        if (capacity <= textures.size) {
+            return
+        }
+        val newCapacity = Math.max(capacity, textures.size + (textures.size shr 1))
+        textures = textures.copyOf(newCapacity)
+        depthTests = depthTests.copyOf(newCapacity)
+        distances = distances.copyOf(newCapacity)
+        vertices = vertices.copyOf(newCapacity * QUAD_INTS)
+    }
+}
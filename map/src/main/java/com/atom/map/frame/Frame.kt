@@ -1,5 +1,6 @@
 package com.atom.map.frame
 
+import com.atom.map.core.shader.RenderResource
 import com.atom.map.drawable.DrawableQueue
 import com.atom.map.geom.Line
 import com.atom.map.geom.Matrix4
@@ -42,6 +43,26 @@ class Frame {
 
     var pickViewport: Viewport? = null
 
+    /**
+     * 流水线分配的帧序号
+     */
+    var sequence: Long = 0
+
+    /**
+     * 渲染线程开始渲染该帧的系统时间, 用于统计渲染到显示的延迟
+     */
+    var renderTimeMillis: Long = 0
+
+    /**
+     * 渲染时新建的资源, GL 线程在绘制之前创建对应的 GL 对象
+     */
+    val createdResources = ArrayList<RenderResource>()
+
+    /**
+     * 渲染时被缓存回收的资源, 之前的帧可能还在使用, GL 线程在该帧被替换之后释放
+     */
+    val evictedResources = ArrayList<RenderResource>()
+
     private var isDone = false
 
     private var isAwaitingDone = false
@@ -71,6 +92,10 @@ class Frame {
         pickRay = null
         pickPoint = null
         pickMode = false
+        sequence = 0
+        renderTimeMillis = 0
+        createdResources.clear()
+        evictedResources.clear()
 
         pool?.release(this)
         pool = null
@@ -1,8 +1,14 @@
 package com.atom.map.frame
 
+import com.atom.map.WorldWind
 import com.atom.map.drawable.DrawContext
+import com.atom.map.drawable.DrawStats
+import com.atom.map.globe.BasicTessellator
 import com.atom.map.renderable.RenderContext
 import com.atom.map.util.LruMemoryCache
+import com.atom.map.util.RenderResourceCache
+import com.atom.map.util.TaskService
+import com.atom.map.util.pool.BitmapPool
 import java.util.*
 
 /**
@@ -24,12 +30,69 @@ class FrameMetrics {
         var entryCount = 0
     }
 
+    class RetrievalMetrics {
+        var queueDepth = 0
+        var cancelledCount: Long = 0
+        var wastedCount: Long = 0
+    }
+
+    class PrefetchMetrics {
+        var requestCount: Long = 0
+        var hitCount: Long = 0
+        var lateCount: Long = 0
+        var unusedCount: Long = 0
+    }
+
+    class TessellationMetrics {
+        var nodesVisited = 0
+        var nodesReused = 0
+        var timeSavedNanos: Long = 0
+        var cacheHitCount: Long = 0
+        var cacheMissCount: Long = 0
+    }
+
     protected var renderMetrics: TimeMetrics = TimeMetrics()
 
     protected var drawMetrics: TimeMetrics = TimeMetrics()
 
+    /**
+     * 渲染线程开始渲染到 GL 线程第一次绘制完成的延迟
+     */
+    protected var latencyMetrics: TimeMetrics = TimeMetrics()
+
+    // 最近一个统计窗口内显示的新帧数
+    private var rateWindowBegin: Long = 0
+
+    private var rateWindowCount = 0
+
+    private var frameRate = 0.0
+
+    private var resourcesPrepared = 0
+
+    /**
+     * 最近一次绘制的非拾取帧中的状态切换与绘制命令数
+     */
+    protected var drawStats = DrawStats()
+
     protected var renderResourceCacheMetrics = CacheMetrics()
 
+    protected var retrievalMetrics = RetrievalMetrics()
+
+    protected var prefetchMetrics = PrefetchMetrics()
+
+    protected var tessellationMetrics = TessellationMetrics()
+
+    protected var terrainCacheMetrics = CacheMetrics()
+
+    /**
+     * 位图池的累计统计, 与上一帧的差值即为本帧的复用次数与避免分配的字节数
+     */
+    protected var bitmapPoolMetrics = BitmapPool.Metrics()
+
+    protected var lastBitmapPoolMetrics = BitmapPool.Metrics()
+
+    protected val taskMetrics = Array(TaskService.WORKLOAD_COUNT) { TaskService.PoolMetrics() }
+
     private val drawLock = Any()
 
     protected fun markBegin(metrics: TimeMetrics, timeMillis: Long) {
@@ -73,6 +136,37 @@ class FrameMetrics {
         metrics.entryCount = cache.getEntryCount()
     }
 
+    protected fun assembleRetrievalMetrics(metrics: RetrievalMetrics, cache: RenderResourceCache) {
+        metrics.queueDepth = cache.getRetrievalQueueDepth()
+        metrics.cancelledCount = cache.getRetrievalCancelledCount()
+        metrics.wastedCount = cache.getRetrievalWastedCount()
+    }
+
+    protected fun assemblePrefetchMetrics(metrics: PrefetchMetrics, cache: RenderResourceCache) {
+        metrics.requestCount = cache.getPrefetchRequestCount()
+        metrics.hitCount = cache.getPrefetchHitCount()
+        metrics.lateCount = cache.getPrefetchLateCount()
+        metrics.unusedCount = cache.getPrefetchUnusedCount()
+    }
+
+    protected fun assembleTessellationMetrics(metrics: TessellationMetrics, rc: RenderContext) {
+        val tessellator = rc.terrainTessellator as? BasicTessellator ?: return
+        metrics.nodesVisited = tessellator.getNodesVisited()
+        metrics.nodesReused = tessellator.getNodesReused()
+        metrics.timeSavedNanos = tessellator.getTimeSavedNanos()
+        metrics.cacheHitCount = tessellator.tileCache.getHitCount()
+        metrics.cacheMissCount = tessellator.tileCache.getMissCount()
+        terrainCacheMetrics.capacity = tessellator.tileCache.capacity
+        terrainCacheMetrics.usedCapacity = tessellator.tileCache.usedCapacity
+        terrainCacheMetrics.entryCount = tessellator.tileCache.getEntryCount()
+    }
+
+    protected fun assembleBitmapPoolMetrics(pool: BitmapPool) {
+        val swap = lastBitmapPoolMetrics
+        lastBitmapPoolMetrics = bitmapPoolMetrics
+        bitmapPoolMetrics = pool.assembleMetrics(swap)
+    }
+
     fun getRenderTime(): Long {
         return renderMetrics.time
     }
@@ -113,6 +207,48 @@ class FrameMetrics {
         return drawMetrics.count
     }
 
+    fun getFrameLatency(): Long {
+        return latencyMetrics.time
+    }
+
+    fun getFrameLatencyAverage(): Double {
+        return computeTimeAverage(latencyMetrics)
+    }
+
+    fun getFrameLatencyStdDev(): Double {
+        return computeTimeStdDev(latencyMetrics)
+    }
+
+    /**
+     * 最近一秒 GL 线程显示的新帧数, 即流水线的吞吐量
+     */
+    fun getFrameRate(): Double {
+        return frameRate
+    }
+
+    /**
+     * 上一帧绘制之前在 GL 线程中创建的资源数
+     */
+    fun getResourcesPrepared(): Int {
+        return resourcesPrepared
+    }
+
+    fun getProgramSwitches(): Int {
+        return drawStats.programSwitches
+    }
+
+    fun getTextureBinds(): Int {
+        return drawStats.textureBinds
+    }
+
+    fun getBufferBinds(): Int {
+        return drawStats.bufferBinds
+    }
+
+    fun getDrawCalls(): Int {
+        return drawStats.drawCalls
+    }
+
     fun getRenderResourceCacheCapacity(): Int {
         return renderResourceCacheMetrics.capacity
     }
@@ -125,6 +261,102 @@ class FrameMetrics {
         return renderResourceCacheMetrics.entryCount
     }
 
+    fun getRetrievalQueueDepth(): Int {
+        return retrievalMetrics.queueDepth
+    }
+
+    fun getRetrievalCancelledCount(): Long {
+        return retrievalMetrics.cancelledCount
+    }
+
+    fun getRetrievalWastedCount(): Long {
+        return retrievalMetrics.wastedCount
+    }
+
+    fun getPrefetchRequestCount(): Long {
+        return prefetchMetrics.requestCount
+    }
+
+    /**
+     * 预取命中率: 瓦片需要显示时预取已经完成的比例. 预取了但从未显示的瓦片不计入, 见 getPrefetchUnusedCount
+     */
+    fun getPrefetchHitRate(): Double {
+        val used = prefetchMetrics.hitCount + prefetchMetrics.lateCount
+        return if (used > 0) prefetchMetrics.hitCount / used.toDouble() else 0.0
+    }
+
+    fun getPrefetchUnusedCount(): Long {
+        return prefetchMetrics.unusedCount
+    }
+
+    /**
+     * 上一帧解码时从位图池取到位图的比例, 上一帧没有解码时为 0
+     */
+    fun getBitmapReuseRate(): Double {
+        val acquired = bitmapPoolMetrics.acquireCount - lastBitmapPoolMetrics.acquireCount
+        val reused = bitmapPoolMetrics.reuseCount - lastBitmapPoolMetrics.reuseCount
+        return if (acquired > 0) reused / acquired.toDouble() else 0.0
+    }
+
+    /**
+     * 上一帧通过复用位图避免分配的字节数
+     */
+    fun getBitmapBytesReused(): Long {
+        return bitmapPoolMetrics.reusedBytes - lastBitmapPoolMetrics.reusedBytes
+    }
+
+    fun getBitmapPoolBytes(): Int {
+        return bitmapPoolMetrics.pooledBytes
+    }
+
+    /**
+     * 上一帧地形细分遍历的节点数
+     */
+    fun getTessellationNodesVisited(): Int {
+        return tessellationMetrics.nodesVisited
+    }
+
+    /**
+     * 上一帧复用上次细分结果而没有遍历的节点数
+     */
+    fun getTessellationNodesReused(): Int {
+        return tessellationMetrics.nodesReused
+    }
+
+    /**
+     * 上一帧复用细分结果估计节省的时间, 单位毫秒
+     */
+    fun getTessellationTimeSaved(): Double {
+        return tessellationMetrics.timeSavedNanos / 1e6
+    }
+
+    fun getTerrainCacheCapacity(): Int {
+        return terrainCacheMetrics.capacity
+    }
+
+    fun getTerrainCacheUsedCapacity(): Int {
+        return terrainCacheMetrics.usedCapacity
+    }
+
+    fun getTerrainCacheEntryCount(): Int {
+        return terrainCacheMetrics.entryCount
+    }
+
+    /**
+     * 地形子瓦片缓存的累计命中率
+     */
+    fun getTerrainCacheHitRate(): Double {
+        val total = tessellationMetrics.cacheHitCount + tessellationMetrics.cacheMissCount
+        return if (total > 0) tessellationMetrics.cacheHitCount / total.toDouble() else 0.0
+    }
+
+    /**
+     * 指定类型线程池的活动线程数, 排队数, 拒绝数与任务延迟分布, 每帧渲染结束时更新
+     */
+    fun getTaskMetrics(@TaskService.Workload workload: Int): TaskService.PoolMetrics {
+        return taskMetrics[workload]
+    }
+
     fun beginRendering(rc: RenderContext) {
         val now = System.currentTimeMillis()
         markBegin(renderMetrics, now)
@@ -134,6 +366,13 @@ class FrameMetrics {
         val now = System.currentTimeMillis()
         markEnd(renderMetrics, now)
         this.assembleCacheMetrics(renderResourceCacheMetrics, rc.renderResourceCache!!)
+        this.assembleRetrievalMetrics(retrievalMetrics, rc.renderResourceCache!!)
+        this.assembleBitmapPoolMetrics(rc.renderResourceCache!!.bitmapPool)
+        this.assemblePrefetchMetrics(prefetchMetrics, rc.renderResourceCache!!)
+        this.assembleTessellationMetrics(tessellationMetrics, rc)
+        for (idx in taskMetrics.indices) {
+            WorldWind.taskService.assemblePoolMetrics(idx, taskMetrics[idx])
+        }
     }
 
     fun beginDrawing(dc: DrawContext) {
@@ -144,11 +383,40 @@ class FrameMetrics {
     fun endDrawing(dc: DrawContext) {
         val now = System.currentTimeMillis()
         markEnd(drawMetrics, now)
+        drawStats.set(dc.drawStats)
+    }
+
+    /**
+     * GL 线程第一次绘制完新帧之后调用, 统计帧延迟与帧率
+     */
+    fun framePresented(frame: Frame, resourcesPrepared: Int) {
+        val now = System.currentTimeMillis()
+        synchronized(this.drawLock) {
+            latencyMetrics.begin = frame.renderTimeMillis
+            markEnd(latencyMetrics, now)
+            this.resourcesPrepared = resourcesPrepared
+            if (rateWindowCount == 0) {
+                rateWindowBegin = now
+            }
+            rateWindowCount++
+            val elapsed = now - rateWindowBegin
+            if (elapsed >= 1000) {
+                frameRate = (rateWindowCount - 1) * 1000.0 / elapsed
+                rateWindowBegin = now
+                rateWindowCount = 1
+            }
+        }
     }
 
     fun reset() {
         this.resetTimeMetrics(renderMetrics)
-        synchronized(this.drawLock) { this.resetTimeMetrics(drawMetrics) }
+        synchronized(this.drawLock) {
+            this.resetTimeMetrics(drawMetrics)
+            this.resetTimeMetrics(latencyMetrics)
+            rateWindowCount = 0
+            frameRate = 0.0
+            drawStats.reset()
+        }
     }
 
 
@@ -160,6 +428,47 @@ class FrameMetrics {
         out.append(", entryCount=").append(metrics.entryCount)
     }
 
+    protected fun printRetrievalMetrics(metrics: RetrievalMetrics, out: java.lang.StringBuilder) {
+        out.append("queueDepth=").append(metrics.queueDepth)
+        out.append(", cancelled=").append(metrics.cancelledCount)
+        out.append(", wasted=").append(metrics.wastedCount)
+    }
+
+    protected fun printPrefetchMetrics(metrics: PrefetchMetrics, out: java.lang.StringBuilder) {
+        out.append("requested=").append(metrics.requestCount)
+        out.append(", hits=").append(metrics.hitCount)
+        out.append(", late=").append(metrics.lateCount)
+        out.append(", unused=").append(metrics.unusedCount)
+        out.append(", hitRate=").append(String.format(Locale.US, "%.2f", getPrefetchHitRate()))
+    }
+
+    protected fun printBitmapPoolMetrics(out: java.lang.StringBuilder) {
+        out.append("reuseRate=").append(String.format(Locale.US, "%.2f", getBitmapReuseRate()))
+        out.append(", bytesReused=").append(String.format(Locale.US, "%,.0f", getBitmapBytesReused() / 1024.0))
+            .append("KB")
+        out.append(", pooled=").append(String.format(Locale.US, "%,.0f", bitmapPoolMetrics.pooledBytes / 1024.0))
+            .append("KB")
+        out.append(", totalReuseCount=").append(bitmapPoolMetrics.reuseCount)
+        out.append(", discarded=").append(bitmapPoolMetrics.discardCount)
+    }
+
+    protected fun printTessellationMetrics(metrics: TessellationMetrics, out: java.lang.StringBuilder) {
+        out.append("nodesVisited=").append(metrics.nodesVisited)
+        out.append(", nodesReused=").append(metrics.nodesReused)
+        out.append(", timeSaved=").append(String.format(Locale.US, "%.2f", getTessellationTimeSaved())).append("ms")
+        out.append(", cacheHits=").append(metrics.cacheHitCount)
+        out.append(", cacheMisses=").append(metrics.cacheMissCount)
+        out.append(", cacheHitRate=").append(String.format(Locale.US, "%.2f", getTerrainCacheHitRate()))
+    }
+
+    protected fun printTaskMetrics(metrics: TaskService.PoolMetrics, out: java.lang.StringBuilder) {
+        out.append("active=").append(metrics.activeCount)
+        out.append(", queued=").append(metrics.queuedCount)
+        out.append(", rejected=").append(metrics.rejectedCount)
+        out.append(", completed=").append(metrics.completedCount)
+        out.append(", latencyHistogram=").append(Arrays.toString(metrics.latencyHistogram))
+    }
+
     protected fun printTimeMetrics(metrics: TimeMetrics, out: java.lang.StringBuilder) {
         out.append("lastTime=").append(metrics.time).append("ms")
         out.append(", totalTime=").append(metrics.timeSum).append("ms")
@@ -175,8 +484,27 @@ class FrameMetrics {
         this.printTimeMetrics(renderMetrics, sb)
         sb.append("}, drawMetrics={")
         this.printTimeMetrics(drawMetrics, sb)
+        sb.append("}, latencyMetrics={")
+        this.printTimeMetrics(latencyMetrics, sb)
+        sb.append(", frameRate=").append(String.format(Locale.US, "%.1f", frameRate))
+        sb.append(", resourcesPrepared=").append(resourcesPrepared)
+        sb.append("}, drawStats={").append(drawStats)
         sb.append("}, renderResourceCacheMetrics={")
         this.printCacheMetrics(renderResourceCacheMetrics, sb)
+        sb.append("}, retrievalMetrics={")
+        this.printRetrievalMetrics(retrievalMetrics, sb)
+        sb.append("}, prefetchMetrics={")
+        this.printPrefetchMetrics(prefetchMetrics, sb)
+        sb.append("}, bitmapPoolMetrics={")
+        this.printBitmapPoolMetrics(sb)
+        sb.append("}, tessellationMetrics={")
+        this.printTessellationMetrics(tessellationMetrics, sb)
+        sb.append("}, terrainCacheMetrics={")
+        this.printCacheMetrics(terrainCacheMetrics, sb)
+        for (idx in taskMetrics.indices) {
+            sb.append("}, ").append(WorldWind.taskService.getPoolConfig(idx).name).append("={")
+            this.printTaskMetrics(taskMetrics[idx], sb)
+        }
         sb.append("}")
         return sb.toString()
     }
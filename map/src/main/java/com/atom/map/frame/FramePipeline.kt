@@ -0,0 +1,288 @@
+package com.atom.map.frame
+
+import com.atom.map.util.Logger
+import com.atom.map.util.pool.Pool
+import com.atom.map.util.pool.SynchronizedPool
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * 渲染与绘制两级流水线. 专用的渲染线程遍历图层生成帧, 帧入队之后不再修改, 由 GL 线程按顺序取出绘制.
+ * 渲染线程最多领先 GL 线程 maxQueuedFrames 帧, 拾取帧优先于普通帧渲染
+ */
+class FramePipeline(protected val renderer: Renderer, val maxQueuedFrames: Int = 2) {
+
+    interface Renderer {
+
+        /**
+         * 在渲染线程中遍历图层, 把可绘制对象与资源请求写入帧
+         */
+        fun renderFrame(frame: Frame)
+
+        /**
+         * 帧入队之后在渲染线程中调用, 通常用于请求 GL 线程绘制
+         */
+        fun frameAvailable(frame: Frame)
+
+        /**
+         * 帧没有被绘制就丢弃时在回收之前调用, 用于交还帧中被缓存回收的资源
+         */
+        fun frameDiscarded(frame: Frame)
+    }
+
+    protected val framePool: Pool<Frame> = SynchronizedPool()
+
+    protected val frameQueue: Queue<Frame> = ConcurrentLinkedQueue()
+
+    protected val pickQueue: Queue<Frame> = ConcurrentLinkedQueue()
+
+    // 等待渲染的拾取帧
+    protected val pendingPicks: Queue<Frame> = ConcurrentLinkedQueue()
+
+    // 在渲染线程中执行的任务, 先于下一帧运行
+    protected val pendingTasks: Queue<Runnable> = ConcurrentLinkedQueue()
+
+    private val lock = ReentrantLock()
+
+    private val condition = lock.newCondition()
+
+    private var renderThread: Thread? = null
+
+    private var isStopping = false
+
+    private var isRenderRequested = false
+
+    private var frameSequence: Long = 0
+
+    /**
+     * 渲染线程因队列已满而等待 GL 线程的次数
+     */
+    @Volatile
+    var stallCount: Long = 0
+        protected set
+
+    init {
+        require(maxQueuedFrames >= 1) {
+            Logger.logMessage(Logger.ERROR, "FramePipeline", "constructor", "invalidMaxQueuedFrames")
+        }
+    }
+
+    fun isRunning() = renderThread != null
+
+    /**
+     * 启动渲染线程, 已启动时不做任何事
+     */
+    fun start() {
+        lock.lock()
+        try {
+            if (renderThread != null) {
+                return
+            }
+            isStopping = false
+            renderThread = Thread(Runnable { this.renderLoop() }, "World Wind Render").apply {
+                isDaemon = true
+                start()
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 停止渲染线程并等待其退出, 丢弃还没有绘制的帧. 等待中的拾取立即返回
+     */
+    fun stop() {
+        val thread: Thread
+        lock.lock()
+        try {
+            thread = renderThread ?: return
+            isStopping = true
+            condition.signalAll()
+        } finally {
+            lock.unlock()
+        }
+        if (thread !== Thread.currentThread()) {
+            try {
+                thread.join()
+            } catch (ignored: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+        }
+        lock.lock()
+        try {
+            renderThread = null
+            isRenderRequested = false
+        } finally {
+            lock.unlock()
+        }
+        pendingTasks.clear()
+        clearQueues()
+    }
+
+    /**
+     * 请求渲染一帧. 多次请求在渲染线程取走之前合并为一次
+     */
+    fun requestFrame() {
+        lock.lock()
+        try {
+            isRenderRequested = true
+            condition.signal()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 在渲染线程中渲染拾取帧. 调用方通过 frame.awaitDone 等待 GL 线程解析拾取结果
+     */
+    fun submitPick(frame: Frame) {
+        pendingPicks.offer(frame)
+        lock.lock()
+        try {
+            condition.signal()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 在渲染线程中下一帧之前执行任务, 用于修改只在渲染线程中访问的状态
+     */
+    fun post(task: Runnable) {
+        pendingTasks.offer(task)
+        lock.lock()
+        try {
+            condition.signal()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    fun obtainFrame() = Frame.obtain(framePool)
+
+    /**
+     * GL 线程取出下一个待绘制的拾取帧
+     */
+    fun pollPickFrame(): Frame? = pickQueue.poll()
+
+    /**
+     * GL 线程取出下一个待绘制的帧, 并唤醒等待队列空间的渲染线程
+     */
+    fun pollFrame(): Frame? {
+        val frame = frameQueue.poll() ?: return null
+        lock.lock()
+        try {
+            condition.signal()
+        } finally {
+            lock.unlock()
+        }
+        return frame
+    }
+
+    fun getQueuedFrameCount() = frameQueue.size
+
+    protected fun renderLoop() {
+        while (true) {
+            var pick: Frame? = null
+            var render = false
+            lock.lock()
+            try {
+                while (true) {
+                    if (isStopping) {
+                        return
+                    }
+                    if (pendingTasks.isNotEmpty()) {
+                        break
+                    }
+                    pick = pendingPicks.poll()
+                    if (pick != null) {
+                        break
+                    }
+                    if (isRenderRequested) {
+                        if (frameQueue.size < maxQueuedFrames) {
+                            isRenderRequested = false
+                            render = true
+                            break
+                        }
+                        stallCount++
+                    }
+                    condition.awaitUninterruptibly()
+                }
+            } finally {
+                lock.unlock()
+            }
+            runTasks()
+            if (pick != null) {
+                renderPick(pick)
+            } else if (render) {
+                renderNext()
+            }
+        }
+    }
+
+    protected fun runTasks() {
+        var task: Runnable?
+        while (pendingTasks.poll().also { task = it } != null) {
+            try {
+                task?.run()
+            } catch (e: Exception) {
+                Logger.logMessage(Logger.ERROR, "FramePipeline", "runTasks", "Exception while running task", e)
+            }
+        }
+    }
+
+    protected fun renderPick(frame: Frame) {
+        try {
+            frame.sequence = ++frameSequence
+            renderer.renderFrame(frame)
+        } catch (e: Exception) {
+            Logger.logMessage(Logger.ERROR, "FramePipeline", "renderPick", "Exception while rendering pick frame", e)
+            frame.signalDone()
+            discardFrame(frame)
+            return
+        }
+        pickQueue.offer(frame)
+        renderer.frameAvailable(frame)
+    }
+
+    protected fun renderNext() {
+        val frame = obtainFrame()
+        try {
+            frame.sequence = ++frameSequence
+            frame.renderTimeMillis = System.currentTimeMillis()
+            renderer.renderFrame(frame)
+        } catch (e: Exception) {
+            Logger.logMessage(Logger.ERROR, "FramePipeline", "renderNext", "Exception while rendering frame", e)
+            discardFrame(frame)
+            return
+        }
+        frameQueue.offer(frame)
+        renderer.frameAvailable(frame)
+    }
+
+    protected fun clearQueues() {
+        var pick: Frame?
+        while (pendingPicks.poll().also { pick = it } != null) {
+            pick?.signalDone()
+            pick?.let { discardFrame(it) }
+        }
+        while (pickQueue.poll().also { pick = it } != null) {
+            pick?.signalDone()
+            pick?.let { discardFrame(it) }
+        }
+        var frame: Frame?
+        while (frameQueue.poll().also { frame = it } != null) {
+            frame?.let { discardFrame(it) }
+        }
+    }
+
+    protected fun discardFrame(frame: Frame) {
+        try {
+            renderer.frameDiscarded(frame)
+        } catch (e: Exception) {
+            Logger.logMessage(Logger.ERROR, "FramePipeline", "discardFrame", "Exception while discarding frame", e)
+        }
+        frame.recycle()
+    }
+}
@@ -189,6 +189,21 @@ class BoundingBox() {
         } else true
     }
 
+    /**
+     * 判断边框是否完全位于视锥体内, 即在视锥体六个面的正侧
+     */
+    fun isInsideFrustum(frustum: Frustum): Boolean {
+        return this.isInside(frustum.near) && this.isInside(frustum.far) &&
+            this.isInside(frustum.left) && this.isInside(frustum.right) &&
+            this.isInside(frustum.top) && this.isInside(frustum.bottom)
+    }
+
+    private fun isInside(plane: Plane): Boolean {
+        val n: Vec3 = plane.normal
+        val effectiveRadius = 0.5 * (Math.abs(r.dot(n)) + Math.abs(s.dot(n)) + Math.abs(t.dot(n)))
+        return plane.dot(center) >= effectiveRadius
+    }
+
     // Internal. Intentionally not documented.
     private fun intersectsAt(plane: Plane): Double {
         val n: Vec3 = plane.normal
@@ -41,6 +41,17 @@ class Frustum {
         this.viewport.set(viewport)
     }
 
+    fun set(frustum: Frustum): Frustum {
+        left.set(frustum.left)
+        right.set(frustum.right)
+        bottom.set(frustum.bottom)
+        top.set(frustum.top)
+        near.set(frustum.near)
+        far.set(frustum.far)
+        viewport.set(frustum.viewport)
+        return this
+    }
+
     /**
      * 将此视锥设置为单位视锥，其每个平面距中心1米
      */
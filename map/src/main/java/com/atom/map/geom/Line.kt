@@ -96,6 +96,20 @@ class Line {
         elements: ShortArray?,
         count : Int ,
         result: Vec3?
+    ): Boolean {
+        return triStripIntersection(points, stride, elements, 0, count, result)
+    }
+
+    /**
+     * 计算该线与三角带 elements[first, first + count) 的最近交点, 交点在线的起点之前时不计入
+     */
+    fun triStripIntersection(
+        points: FloatArray?,
+        stride: Int,
+        elements: ShortArray?,
+        first: Int,
+        count: Int,
+        result: Vec3?
     ): Boolean {
         require(!(points == null || points.size < stride)) {
             Logger.logMessage(
@@ -126,19 +140,20 @@ class Line {
         val EPSILON = 0.00001
         // 获取三角形的第一个定点
         // Get the triangle strip's first vertex.
-        var vertex = elements[0] * stride
+        var vertex = elements[first] * stride
         var vert1x = points[vertex++].toDouble()
         var vert1y = points[vertex++].toDouble()
         var vert1z = points[vertex].toDouble()
         // 获取三角形的第2个定点
         // Get the triangle strip's second vertex.
-        vertex = elements[1] * stride
+        vertex = elements[first + 1] * stride
         var vert2x = points[vertex++].toDouble()
         var vert2y = points[vertex++].toDouble()
         var vert2z = points[vertex].toDouble()
         // 计算每个三角形与指定射线的交点。
-        var idx = 2
-        while (idx < count) {
+        var idx = first + 2
+        val end = first + count
+        while (idx < end) {
 
             val vert0x = vert1x
             val vert0y = vert1y
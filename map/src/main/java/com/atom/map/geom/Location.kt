@@ -1,6 +1,5 @@
 package com.atom.map.geom
 
-import android.util.SparseIntArray
 import com.atom.map.WorldWind
 import com.atom.map.util.Logger
 import java.util.*
@@ -9,37 +8,36 @@ open class Location(var latitude: Double, var longitude: Double) {
 
     companion object {
 
-        protected var timeZoneLatitudes = SparseIntArray()
+        // 普通的 Map 而不是 SparseIntArray, 使 Location 与 Sector 在没有 Android 运行时的单元测试中可用
+        protected val timeZoneLatitudes: Map<Int, Int> = hashMapOf(
+            -12 to -45, // GMT-12
+            -11 to -30, // GMT-11
+            -10 to 20, // GMT-10
+            -9 to 45, // GMT-9
+            -8 to 40, // GMT-8
+            -7 to 35, // GMT-7
+            -6 to 30, // GMT-6
+            -5 to 25, // GMT-5
+            -4 to -15, // GMT-4
+            -3 to 0, // GMT-3
+            -2 to 45, // GMT-2
+            -1 to 30, // GMT-1
+            0 to 30, // GMT+0
+            1 to 20, // GMT+1
+            2 to 20, // GMT+2
+            3 to 25, // GMT+3
+            4 to 30, // GMT+4
+            5 to 35, // GMT+5
+            6 to 30, // GMT+6
+            7 to 25, // GMT+7
+            8 to -30, // GMT+8
+            9 to -30, // GMT+9
+            10 to -30, // GMT+10
+            11 to -45, // GMT+11
+            12 to -45 // GMT+12
+        )
         protected const val TOLERANCE = 1e-15
 
-        init {
-            timeZoneLatitudes.put(-12, -45)// GMT-12
-            timeZoneLatitudes.put(-11, -30)// GMT-11
-            timeZoneLatitudes.put(-10, 20) // GMT-10
-            timeZoneLatitudes.put(-9, 45)  // GMT-9
-            timeZoneLatitudes.put(-8, 40)  // GMT-8
-            timeZoneLatitudes.put(-7, 35)  // GMT-7
-            timeZoneLatitudes.put(-6, 30)  // GMT-6
-            timeZoneLatitudes.put(-5, 25)  // GMT-5
-            timeZoneLatitudes.put(-4, -15) // GMT-4
-            timeZoneLatitudes.put(-3, 0)   // GMT-3
-            timeZoneLatitudes.put(-2, 45)  // GMT-2
-            timeZoneLatitudes.put(-1, 30)   // GMT-1
-            timeZoneLatitudes.put(0, 30)   // GMT+0
-            timeZoneLatitudes.put(1, 20)   // GMT+1
-            timeZoneLatitudes.put(2, 20)   // GMT+2
-            timeZoneLatitudes.put(3, 25)   // GMT+3
-            timeZoneLatitudes.put(4, 30)   // GMT+4
-            timeZoneLatitudes.put(5, 35)   // GMT+5
-            timeZoneLatitudes.put(6, 30)   // GMT+6
-            timeZoneLatitudes.put(7, 25)   // GMT+7
-            timeZoneLatitudes.put(8, -30)  // GMT+8
-            timeZoneLatitudes.put(9, -30)  // GMT+9
-            timeZoneLatitudes.put(10, -30) // GMT+10
-            timeZoneLatitudes.put(11, -45) // GMT+11
-            timeZoneLatitudes.put(12, -45) // GMT+12
-        }
-
         /**
          * Constructs an approximate location for a specified time zone. Used when selecting an initial navigator position
          * based on the device's current time zone.
@@ -59,7 +57,7 @@ open class Location(var latitude: Double, var longitude: Double) {
             val millisPerHour = 3.6e6 // 毫秒
             val offsetMillis = timeZone.rawOffset
             val offsetHours = (offsetMillis / millisPerHour).toInt()
-            val lat: Double = timeZoneLatitudes.get(offsetHours, 0)
+            val lat: Double = (timeZoneLatitudes[offsetHours] ?: 0)
                 .toDouble() // use a pre-determined latitude or 0 if none is available
             val lon =
                 180 * offsetHours / 12.toDouble() // center on the time zone's average longitude
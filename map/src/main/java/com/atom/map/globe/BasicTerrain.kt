@@ -4,14 +4,22 @@ import com.atom.map.geom.Line
 import com.atom.map.geom.Sector
 import com.atom.map.geom.Vec3
 import com.atom.map.core.tile.TerrainTile
+import com.atom.map.core.tile.Tile
 import com.atom.map.util.WWMath
 import java.util.*
 
 /**
- * 基本地形
+ * 基本地形.
+ * surfacePoint 在按 (级别, 行, 列) 索引瓦片的线性四叉树中查找包含坐标的瓦片, 索引在本帧添加瓦片后的第一次查询时建立;
+ * intersect 先以瓦片顶点的包围盒筛选与射线相交的瓦片, 按射线进入包围盒的距离由近到远计算三角带交点,
+ * 已找到的交点比下一个包围盒更近时结束
  */
 class BasicTerrain() : Terrain {
 
+    companion object {
+        private const val MIN_TABLE_SIZE = 16
+    }
+
     var tiles = ArrayList<TerrainTile>()
 
     override var sector: Sector = Sector()
@@ -22,97 +30,367 @@ class BasicTerrain() : Terrain {
 
     val normal = Vec3()
 
+    /**
+     * 瓦片索引: 以 Tile.packedKey 为键的开放寻址散列表, 组成线性四叉树. 本帧的瓦片为叶节点,
+     * 它们在 minLevel 与自身级别之间的祖先为内部节点 (tableUsed 为 true, tableTiles 为 null)
+     */
+    protected var tableKeys = LongArray(MIN_TABLE_SIZE)
+
+    protected var tableTiles = arrayOfNulls<TerrainTile>(MIN_TABLE_SIZE)
+
+    protected var tableUsed = BooleanArray(MIN_TABLE_SIZE)
+
+    /**
+     * 以级别号为下标的瓦片边长的倒数, 以及本帧瓦片的最低与最高级别
+     */
+    protected var levelScales = DoubleArray(0)
+
+    protected var minLevel = 0
+
+    protected var maxLevel = -1
+
+    // 并行渲染图层时多个线程同时查询, 索引加锁建立
+    @Volatile
+    protected var indexValid = false
+
+    /**
+     * 上一次 surfacePoint 找到的瓦片, 相邻的查询通常落在同一个瓦片中
+     */
+    protected var lastTile: TerrainTile? = null
+
+    /**
+     * intersect 的候选瓦片与射线进入其包围盒的距离
+     */
+    protected var candidateTiles = arrayOfNulls<TerrainTile>(0)
+
+    protected var candidateDistances = DoubleArray(0)
+
     fun addTile(tile: TerrainTile) {
         tiles.add(tile)
         sector.union(tile.sector)
+        indexValid = false
     }
 
     fun clear() {
         tiles.clear()
         sector.setEmpty()
         triStripElements = null
+        Arrays.fill(tableTiles, null)
+        Arrays.fill(tableUsed, false)
+        Arrays.fill(candidateTiles, null)
+        maxLevel = -1
+        indexValid = false
+        lastTile = null
     }
 
     override fun intersect(line: Line, result: Vec3): Boolean {
-        var minDist2 = Double.POSITIVE_INFINITY
-        var idx = 0
+        val elements = triStripElements ?: return false
         val len = tiles.size
-        while (idx < len) {
+        if (candidateTiles.size < len) {
+            candidateTiles = arrayOfNulls(len)
+            candidateDistances = DoubleArray(len)
+        }
+
+        // 筛选包围盒与射线相交的瓦片, 按进入包围盒的距离插入排序
+        var count = 0
+        for (idx in 0 until len) {
             val tile = tiles[idx]
+            val bounds = tile.getPointBounds() ?: continue
+            val distance = this.rayEntry(line, tile.origin, bounds, bounds.size - 6)
+            if (distance == Double.POSITIVE_INFINITY) {
+                continue
+            }
+            var pos = count++
+            while (pos > 0 && candidateDistances[pos - 1] > distance) {
+                candidateTiles[pos] = candidateTiles[pos - 1]
+                candidateDistances[pos] = candidateDistances[pos - 1]
+                pos--
+            }
+            candidateTiles[pos] = tile
+            candidateDistances[pos] = distance
+        }
+
+        // 每 BOUNDS_ROWS 行三角带的索引数, 每行末尾有两个连接下一行的退化三角形索引
+        val numLon = tiles.firstOrNull()?.level?.tileWidth?.plus(2) ?: 0
+        val bandElements = TerrainTile.BOUNDS_ROWS * (numLon * 2 + 2)
+        val dirLength2 = line.direction.magnitudeSquared()
+        var minDist2 = Double.POSITIVE_INFINITY
+        for (idx in 0 until count) {
+            val tile = candidateTiles[idx]!!
+            val entry = candidateDistances[idx]
+            if (entry * entry * dirLength2 > minDist2) {
+                break // 已找到的交点比其余的瓦片都近
+            }
+            val bounds = tile.getPointBounds()!!
+            val bandCount = bounds.size / 6 - 1
             line.origin.subtract(tile.origin)
-            if (line.triStripIntersection(tile.points, 3, triStripElements,
-                    triStripElements!!.size, intersectPoint)) {
-                val dist2 = line.origin.distanceToSquared(intersectPoint)
-                if (minDist2 > dist2) {
-                    minDist2 = dist2
-                    result.set(intersectPoint).add(tile.origin)
+            for (band in 0 until bandCount) {
+                val bandEntry = this.rayEntry(line, null, bounds, band * 6)
+                if (bandEntry == Double.POSITIVE_INFINITY || bandEntry * bandEntry * dirLength2 > minDist2) {
+                    continue
+                }
+                val first = band * bandElements
+                // 最后一行之后没有退化三角形
+                val last = Math.min(first + bandElements, elements.size + 2) - 2
+                if (line.triStripIntersection(tile.points, 3, elements, first, last - first, intersectPoint)) {
+                    val dist2 = line.origin.distanceToSquared(intersectPoint)
+                    if (minDist2 > dist2) {
+                        minDist2 = dist2
+                        result.set(intersectPoint).add(tile.origin)
+                    }
                 }
             }
             line.origin.add(tile.origin)
-            idx++
         }
+        Arrays.fill(candidateTiles, 0, count, null)
 
         return minDist2 != Double.POSITIVE_INFINITY
     }
 
+    /**
+     * 射线进入包围盒 bounds[offset, offset + 6) 的参数距离, 起点在包围盒内时为 0, 不相交时为正无穷.
+     * origin 不为空时包围盒相对于 origin
+     */
+    protected fun rayEntry(line: Line, origin: Vec3?, bounds: FloatArray, offset: Int): Double {
+        var near = 0.0
+        var far = Double.POSITIVE_INFINITY
+        for (axis in 0 until 3) {
+            val o = when (axis) {
+                0 -> line.origin.x - (origin?.x ?: 0.0)
+                1 -> line.origin.y - (origin?.y ?: 0.0)
+                else -> line.origin.z - (origin?.z ?: 0.0)
+            }
+            val d = when (axis) {
+                0 -> line.direction.x
+                1 -> line.direction.y
+                else -> line.direction.z
+            }
+            val min = bounds[offset + axis]
+            val max = bounds[offset + axis + 3]
+            if (d == 0.0) {
+                if (o < min || o > max) {
+                    return Double.POSITIVE_INFINITY
+                }
+                continue
+            }
+            var t0 = (min - o) / d
+            var t1 = (max - o) / d
+            if (t0 > t1) {
+                val t = t0
+                t0 = t1
+                t1 = t
+            }
+            if (t0 > near) near = t0
+            if (t1 < far) far = t1
+            if (near > far) {
+                return Double.POSITIVE_INFINITY
+            }
+        }
+        return near
+    }
+
+    /**
+     * 查找包含该坐标的瓦片. 先检查上一次找到的瓦片, 再在四叉树的级别上二分查找: 坐标所在的行列为内部节点时
+     * 包含它的瓦片在更高的级别, 不在索引中时在更低的级别
+     */
+    protected fun findTile(latitude: Double, longitude: Double): TerrainTile? {
+        lastTile?.let {
+            if (it.sector.contains(latitude, longitude)) {
+                return it
+            }
+        }
+        if (!sector.contains(latitude, longitude)) {
+            return null
+        }
+        if (!indexValid) {
+            synchronized(this) {
+                if (!indexValid) {
+                    this.buildIndex()
+                }
+            }
+        }
+        var low = minLevel
+        var high = maxLevel
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val scale = levelScales[mid]
+            // 坐标在扇区内, 行列号非负, 取整即向下取整
+            val index = this.indexOf(mid, ((latitude + 90) * scale).toInt(), ((longitude + 180) * scale).toInt())
+            when {
+                index < 0 -> high = mid - 1
+                tableTiles[index] == null -> low = mid + 1
+                else -> {
+                    lastTile = tableTiles[index]
+                    return lastTile
+                }
+            }
+        }
+        return this.findEdgeTile(latitude, longitude)
+    }
+
+    /**
+     * 瓦片的扇区包含边界, 坐标恰好在行列的南边界或西边界上时, 包含它的瓦片可能在相邻的行列中
+     */
+    protected fun findEdgeTile(latitude: Double, longitude: Double): TerrainTile? {
+        // 较低级别的行列边界也是最高级别的行列边界
+        val finest = levelScales[maxLevel]
+        val rows = (latitude + 90) * finest
+        val columns = (longitude + 180) * finest
+        if (rows != Math.floor(rows) && columns != Math.floor(columns)) {
+            return null
+        }
+        for (level in minLevel..maxLevel) {
+            val scale = levelScales[level]
+            val row = ((latitude + 90) * scale).toInt()
+            val column = ((longitude + 180) * scale).toInt()
+            val onRowEdge = row > 0 && (latitude + 90) * scale == row.toDouble()
+            val onColumnEdge = column > 0 && (longitude + 180) * scale == column.toDouble()
+            if (!onRowEdge && !onColumnEdge) {
+                continue
+            }
+            for (rowOffset in 0..(if (onRowEdge) 1 else 0)) {
+                for (columnOffset in 0..(if (onColumnEdge) 1 else 0)) {
+                    val index = this.indexOf(level, row - rowOffset, column - columnOffset)
+                    if (index >= 0 && tableTiles[index] != null) {
+                        lastTile = tableTiles[index]
+                        return lastTile
+                    }
+                }
+            }
+        }
+        return null
+    }
+
+    /**
+     * 返回该行列在索引中的位置, 不在索引中时返回 -1
+     */
+    protected fun indexOf(levelNumber: Int, row: Int, column: Int): Int {
+        val key = Tile.packKey(levelNumber, row, column)
+        val mask = tableKeys.size - 1
+        var index = this.indexOf(key, mask)
+        while (tableUsed[index]) {
+            if (tableKeys[index] == key) {
+                return index
+            }
+            index = (index + 1) and mask
+        }
+        return -1
+    }
+
+    protected fun buildIndex() {
+        minLevel = Int.MAX_VALUE
+        maxLevel = -1
+        for (tile in tiles) {
+            minLevel = Math.min(minLevel, tile.level.levelNumber)
+            maxLevel = Math.max(maxLevel, tile.level.levelNumber)
+        }
+        if (maxLevel < 0) {
+            indexValid = true
+            return
+        }
+        if (levelScales.size <= maxLevel) {
+            levelScales = DoubleArray(maxLevel + 1)
+        }
+        val levelSet = tiles[0].level.parent
+        for (level in minLevel..maxLevel) {
+            levelScales[level] = 1 / (levelSet.level(level)?.tileDelta ?: 1.0)
+        }
+
+        // 每个瓦片最多有 maxLevel - minLevel 个祖先
+        var size = tableKeys.size
+        while (size < tiles.size * (maxLevel - minLevel + 1) * 2) {
+            size = size shl 1
+        }
+        if (size != tableKeys.size) {
+            tableKeys = LongArray(size)
+            tableTiles = arrayOfNulls(size)
+            tableUsed = BooleanArray(size)
+        } else {
+            Arrays.fill(tableTiles, null)
+            Arrays.fill(tableUsed, false)
+        }
+        for (tile in tiles) {
+            this.insert(tile.packedKey, tile)
+            val levelNumber = tile.level.levelNumber
+            for (level in levelNumber - 1 downTo minLevel) {
+                val shift = levelNumber - level
+                val key = Tile.packKey(level, tile.row shr shift, tile.column shr shift)
+                if (this.indexOf(level, tile.row shr shift, tile.column shr shift) >= 0) {
+                    break // 更低级别的祖先已经加入
+                }
+                this.insert(key, null)
+            }
+        }
+        // 索引建立完成之后才对其他线程可见
+        indexValid = true
+    }
+
+    protected fun insert(key: Long, tile: TerrainTile?) {
+        val mask = tableKeys.size - 1
+        var index = this.indexOf(key, mask)
+        while (tableUsed[index]) {
+            index = (index + 1) and mask
+        }
+        tableKeys[index] = key
+        tableTiles[index] = tile
+        tableUsed[index] = true
+    }
+
+    protected fun indexOf(key: Long, mask: Int): Int {
+        var hash = key * -0x61c8864680b583ebL
+        hash = hash xor (hash ushr 32)
+        return hash.toInt() and mask
+    }
+
     override fun surfacePoint(
         latitude: Double,
         longitude: Double,
         result: Vec3
     ): Boolean {
-        var idx = 0
-        val len = tiles.size
-        while (idx < len) {
-            val tile = tiles[idx]
-            val sector = tile.sector
-            // 找到包含该坐标的图块
-            if (sector.contains(latitude, longitude)) {
-                // Compute the location's parameterized coordinates (s, t) within the tile grid, along with the
-                // fractional component (sf, tf) and integral component (si, ti).
-                val tileWidth = tile.level.tileWidth // 图块的宽
-                val tileHeight = tile.level.tileHeight // 图块的高
-                val tempW_1 = tileWidth - 1
-                val tempH_1 = tileHeight - 1
-                val s: Double   = (longitude - sector.minLongitude) / sector.deltaLongitude() * tempW_1 // 图块在该区域的相对左下角的宽度
-                val t: Double   = (latitude - sector.minLatitude) / sector.deltaLatitude() * tempH_1 // 图块在该区域的相对左下角的高度
-                val sf = if (s < tileWidth - 1) WWMath.fract(s) else 1.0
-                val tf = if (t < tileHeight - 1) WWMath.fract(t) else 1.0
-                val si = if (s < tileWidth - 1) (s + 1).toInt() else tileWidth - 1
-                val ti = if (t < tileHeight - 1) (t + 1).toInt() else tileHeight - 1
-
-                // Compute the location in the tile's local coordinate system. Perform a bilinear interpolation of
-                // the cell's four points based on the fractional portion of the location's parameterized coordinates.
-                // Tile coordinates are organized in the vertexPoints array in row major order, starting at the tile's
-                // Southwest corner.
-
-                // Compute the location in the tile's local coordinate system. Perform a bilinear interpolation of
-                // the cell's four points based on the fractional portion of the location's parameterized coordinates.
-                // Tile coordinates are organized in the points array in row major order, starting at the tile's
-                // Southwest corner. Account for the tile's border vertices, which are embedded in the points array but
-                // must be ignored for this computation.
-                val tileRowStride = tileWidth + 2
-                val i00 = (si + ti * tileRowStride) * 3 // lower left coordinate
-                val i10 = i00 + 3 // lower right coordinate
-                val i01 = (si + (ti + 1) * tileRowStride) * 3 // upper left coordinate
-                val i11 = i01 + 3
-                val f00 = (1 - sf) * (1 - tf)
-                val f10 = sf * (1 - tf)
-                val f01 = (1 - sf) * tf
-                val f11 = sf * tf
-
-                val points = tile.points !!
-                result.x = points[i00] *     f00 + points[i10] *     f10 + points[i01] *     f01 + points[i11] *     f11
-                result.y = points[i00 + 1] * f00 + points[i10 + 1] * f10 + points[i01 + 1] * f01 + points[i11 + 1] * f11
-                result.z = points[i00 + 2] * f00 + points[i10 + 2] * f10 + points[i01 + 2] * f01 + points[i11 + 2] * f11
-                // Translate the surface point from the tile's local coordinate system to Cartesian coordinates.
-                result.x += tile.origin.x
-                result.y += tile.origin.y
-                result.z += tile.origin.z
-                return true
-            }
-            idx++
-        }
         // No tile was found that contains the location.
-        return false
+        val tile = this.findTile(latitude, longitude) ?: return false
+        val sector = tile.sector
+        // Compute the location's parameterized coordinates (s, t) within the tile grid, along with the
+        // fractional component (sf, tf) and integral component (si, ti).
+        val tileWidth = tile.level.tileWidth // 图块的宽
+        val tileHeight = tile.level.tileHeight // 图块的高
+        val tempW_1 = tileWidth - 1
+        val tempH_1 = tileHeight - 1
+        val s: Double   = (longitude - sector.minLongitude) / sector.deltaLongitude() * tempW_1 // 图块在该区域的相对左下角的宽度
+        val t: Double   = (latitude - sector.minLatitude) / sector.deltaLatitude() * tempH_1 // 图块在该区域的相对左下角的高度
+        val sf = if (s < tileWidth - 1) WWMath.fract(s) else 1.0
+        val tf = if (t < tileHeight - 1) WWMath.fract(t) else 1.0
+        val si = if (s < tileWidth - 1) (s + 1).toInt() else tileWidth - 1
+        val ti = if (t < tileHeight - 1) (t + 1).toInt() else tileHeight - 1
+
+        // Compute the location in the tile's local coordinate system. Perform a bilinear interpolation of
+        // the cell's four points based on the fractional portion of the location's parameterized coordinates.
+        // Tile coordinates are organized in the vertexPoints array in row major order, starting at the tile's
+        // Southwest corner.
+
+        // Compute the location in the tile's local coordinate system. Perform a bilinear interpolation of
+        // the cell's four points based on the fractional portion of the location's parameterized coordinates.
+        // Tile coordinates are organized in the points array in row major order, starting at the tile's
+        // Southwest corner. Account for the tile's border vertices, which are embedded in the points array but
+        // must be ignored for this computation.
+        val tileRowStride = tileWidth + 2
+        val i00 = (si + ti * tileRowStride) * 3 // lower left coordinate
+        val i10 = i00 + 3 // lower right coordinate
+        val i01 = (si + (ti + 1) * tileRowStride) * 3 // upper left coordinate
+        val i11 = i01 + 3
+        val f00 = (1 - sf) * (1 - tf)
+        val f10 = sf * (1 - tf)
+        val f01 = (1 - sf) * tf
+        val f11 = sf * tf
+
+        val points = tile.points !!
+        result.x = points[i00] *     f00 + points[i10] *     f10 + points[i01] *     f01 + points[i11] *     f11
+        result.y = points[i00 + 1] * f00 + points[i10 + 1] * f10 + points[i01 + 1] * f01 + points[i11 + 1] * f11
+        result.z = points[i00 + 2] * f00 + points[i10 + 2] * f10 + points[i01 + 2] * f01 + points[i11 + 2] * f11
+        // Translate the surface point from the tile's local coordinate system to Cartesian coordinates.
+        result.x += tile.origin.x
+        result.y += tile.origin.y
+        result.z += tile.origin.z
+        return true
     }
-}
\ No newline at end of file
+}
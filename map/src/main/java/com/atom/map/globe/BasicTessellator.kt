@@ -1,24 +1,50 @@
 package com.atom.map.globe
 
 import android.opengl.GLES20
+import com.atom.map.WorldWind
 import com.atom.map.renderable.RenderContext
 import com.atom.map.drawable.BasicDrawableTerrain
+import com.atom.map.geom.Matrix4
 import com.atom.map.geom.Range
 import com.atom.map.geom.Sector
 import com.atom.map.geom.Vec3
+import com.atom.map.geom.Viewport
 import com.atom.map.core.shader.BufferObject
 import com.atom.map.core.tile.TerrainTile
+import com.atom.map.core.tile.TerrainTileCache
 import com.atom.map.core.tile.Tile
 import com.atom.map.core.tile.TileFactory
 import com.atom.map.util.Level
 import com.atom.map.util.LevelSet
 import com.atom.map.util.Logger
-import com.atom.map.util.LruMemoryCache
+import com.atom.map.util.TaskService
 import com.atom.map.util.pool.Pool
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.*
-
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 地形镶嵌器. 每帧先遍历得到可见的地形瓦片, 再统一准备瓦片的高度与顶点.
+ *
+ * 准备分为纯计算阶段 (读取高度网格, 计算笛卡尔坐标网格与裙边) 与渲染线程阶段 (采用计算结果, 上传顶点缓存).
+ * parallelPreparation 为 true 时计算阶段在 [TaskService.TERRAIN_PREPARE] 线程池中执行:
+ * 还没有顶点的瓦片本帧必须绘制, 由线程池与渲染线程共同计算并等待完成;
+ * 高程或垂直夸张变化后已有顶点的瓦片在后台重新计算, 完成前继续绘制旧的顶点, 计算结果按瓦片的提交序号采用.
+ *
+ * incrementalTessellation 为 true 时遍历在帧间复用: 模型视图, 投影, 高程与垂直夸张都没有变化时直接使用上一帧的瓦片;
+ * 只有相机位姿变化时, 完全位于视锥体内且相机移动距离小于细分余量 (各节点到相机的距离与细分临界距离之差的最小值)
+ * 的子树复用上次的结果, 其余子树重新细分或合并.
+ *
+ * adaptiveTessellation 为 true 时按瓦片的几何误差 (高程插值误差与椭球面弦高) 投影到屏幕上的像素数细分,
+ * 平坦区域的瓦片停留在较粗的级别, 起伏的区域细分得更深. 相邻瓦片的级别可能相差多级,
+ * 接缝由每个瓦片边缘下垂到 minTerrainElevation 的裙边遮挡, 不会出现裂缝.
+ *
+ * compactVertices 为 true 时顶点缓冲区使用 16 位量化的顶点 (见 [TerrainTile.quantizePoints]), 顶点内存与上传量减半,
+ * 绘制时由 DrawableTerrain.multiplyByVertexTransform 与 ground 着色器的 vertexScale 解码.
+ */
 class BasicTessellator : Tessellator,
     TileFactory {
 
@@ -29,12 +55,35 @@ class BasicTessellator : Tessellator,
         }
     var detailControl = 80.0
 
+    /**
+     * 为 true 时按几何误差的屏幕投影细分, 否则按纹素大小 (detailControl) 细分
+     */
+    var adaptiveTessellation = false
+
+    /**
+     * 自适应细分允许的最大屏幕误差, 单位像素
+     */
+    var maxScreenError = 2.0
+
+    /**
+     * 为 true 时顶点缓冲区使用 16 位量化的顶点. 切换时重新创建瓦片, 两种格式的缓冲区不会混用
+     */
+    var compactVertices = false
+        set(value) {
+            if (field != value) {
+                field = value
+                this.invalidateTiles()
+            }
+        }
+
     var topLevelTiles = ArrayList<Tile>()
 
     var currentTerrain: BasicTerrain = BasicTerrain()
 
-    var tileCache: LruMemoryCache<String?, Array<Tile?>?> =
-        LruMemoryCache(200) // cache for 300 tiles
+    /**
+     * 子瓦片缓存, 容量为地形数据的内存预算, 单位字节
+     */
+    var tileCache = TerrainTileCache(32 * 1024 * 1024)
 
     var levelSetVertexTexCoords: FloatArray? = null
 
@@ -54,6 +103,83 @@ class BasicTessellator : Tessellator,
 
     var levelSetElementKey = this.javaClass.name + ".elementKey"
 
+    /**
+     * 是否在 TERRAIN_PREPARE 线程池中并行准备瓦片, false 时在渲染线程中依次准备
+     */
+    var parallelPreparation = true
+
+    /**
+     * 本帧必须完成的瓦片少于该数量时直接在渲染线程中计算
+     */
+    var minParallelTiles = 4
+
+    /**
+     * 是否在帧间复用瓦片遍历的结果
+     */
+    var incrementalTessellation = true
+
+    /**
+     * 上一帧的可见瓦片, 视图不变时直接复用
+     */
+    protected val frameTiles = ArrayList<TerrainTile>()
+
+    /**
+     * 上一帧遍历中细分过的瓦片, 视图不变时同样需要访问它们的缓存条目
+     */
+    protected val frameParents = ArrayList<TerrainTile>()
+
+    /**
+     * 投影, 高程, 垂直夸张或细节系数变化时递增, 使所有子树缓存失效
+     */
+    protected var viewEpoch: Long = 0
+
+    protected var lastEpochValid = false
+
+    protected val lastModelview = Matrix4()
+
+    protected val lastProjection = Matrix4()
+
+    protected val lastViewport = Viewport()
+
+    protected var lastElevationTimestamp: Long = 0
+
+    /**
+     * 高程数据变化会改变瓦片的高程范围与细分结果, 但只有变化范围内的瓦片重新计算顶点
+     */
+    protected var lastElevationDirtySequence: Long = 0
+
+    protected var lastVerticalExaggeration = 0.0
+
+    protected var lastDetailControl = 0.0
+
+    protected var lastAdaptiveTessellation = false
+
+    protected var lastMaxScreenError = 0.0
+
+    /**
+     * 计算高程误差时读取高度网格的临时数组
+     */
+    protected var errorHeights: FloatArray? = null
+
+    protected var lastNodeCount = 0
+
+    protected var visitedCount = 0
+
+    protected var reusedCount = 0
+
+    protected var preparedCount: Long = 0
+
+    /**
+     * 遍历每个节点的平均耗时, 用于估算复用节省的时间
+     */
+    protected var nanosPerNode = 0.0
+
+    protected var timeSaved: Long = 0
+
+    protected val requiredPreparations = ArrayList<TerrainTile.Preparation>()
+
+    protected val requiredTiles = ArrayList<TerrainTile>()
+
     constructor() {
     }
 
@@ -123,8 +249,31 @@ class BasicTessellator : Tessellator,
         levelSetVertexTexCoords = null
         levelSetLineElements = null
         levelSetTriStripElements = null
+        frameTiles.clear()
+        frameParents.clear()
+        lastEpochValid = false
     }
 
+    /**
+     * 上一帧遍历的节点数, 包括复用子树时检查的节点
+     */
+    fun getNodesVisited() = visitedCount
+
+    /**
+     * 上一帧通过复用而没有遍历的节点数
+     */
+    fun getNodesReused() = reusedCount
+
+    /**
+     * 累计提交计算高度与顶点的瓦片数
+     */
+    fun getTilesPrepared() = preparedCount
+
+    /**
+     * 按平均每个节点的遍历耗时估算的上一帧复用节省的时间
+     */
+    fun getTimeSavedNanos() = timeSaved
+
     /**
      * 重新组装瓦片
      * 1 先清理  （清理地形中的瓦片集合，清理地形secort区域为0）
@@ -136,17 +285,46 @@ class BasicTessellator : Tessellator,
         this.assembleLevelSetBuffers(rc)
         currentTerrain.triStripElements = levelSetTriStripElements
 
-        if (topLevelTiles.isEmpty()) {
-            createTopLevelTiles()
-        }
-        for (tile in topLevelTiles) {
-            addTileOrDescendants(rc, tile as TerrainTile)
+        val tiles = this.selectTiles(rc)
+        this.prepareTiles(rc.globe, rc.verticalExaggeration, tiles)
+        for (tile in tiles) {
+            this.offerTile(rc, tile)
         }
 
         levelSetVertexTexCoordBuffer = null
         levelSetElementBuffer = null
     }
 
+    /**
+     * 遍历瓦片树, 返回本帧可见的地形瓦片. 返回的瓦片还没有准备顶点, 见 [prepareTiles]
+     */
+    fun selectTiles(rc: RenderContext): List<TerrainTile> {
+        if (topLevelTiles.isEmpty()) {
+            createTopLevelTiles()
+        }
+
+        val begin = System.nanoTime()
+        visitedCount = 0
+        reusedCount = 0
+        if (incrementalTessellation && this.isViewUnchanged(rc) && this.touchCachedParents(frameParents)) {
+            reusedCount = lastNodeCount // reuse the previous frame's tiles
+        } else {
+            this.updateView(rc)
+            frameTiles.clear()
+            frameParents.clear()
+            for (tile in topLevelTiles) {
+                addTileOrDescendants(rc, tile as TerrainTile)
+            }
+            lastNodeCount = visitedCount + reusedCount
+            if (visitedCount > 0) {
+                val nanos = (System.nanoTime() - begin) / visitedCount.toDouble()
+                nanosPerNode = if (nanosPerNode == 0.0) nanos else nanosPerNode * 0.9 + nanos * 0.1
+            }
+        }
+        timeSaved = (reusedCount * nanosPerNode).toLong()
+        return frameTiles
+    }
+
     protected fun createTopLevelTiles() {
         val firstLevel: Level = this.levelSet.firstLevel() ?: return
         Tile.assembleTilesForLevel(firstLevel, this, topLevelTiles)
@@ -157,26 +335,200 @@ class BasicTessellator : Tessellator,
      *  判断是否在视锥体内
      *  判断是否是最底层瓦片和是否需要细分（若需要则开始细分）并将瓦片加到地形中
      */
-    protected fun addTileOrDescendants(rc: RenderContext, tile: TerrainTile) {
+    protected fun addTileOrDescendants(rc: RenderContext, tile: TerrainTile): Double {
+        visitedCount++
+        if (incrementalTessellation && this.reuseSubtree(rc, tile)) {
+            return tile.subtreeSlack
+        }
+        tile.subtreeEpoch = -1
         if (!tile.intersectsFrustum(rc, rc.frustum)) {
-            return
+            return 0.0
         }
-        if (tile.level.isLastLevel() || !tile.mustSubdivide(rc, detailControl)) {
+        val firstTile = frameTiles.size
+        val firstParent = frameParents.size
+        val firstNode = visitedCount + reusedCount - 1
+        var slack: Double
+        if (tile.level.isLastLevel()) {
+            slack = Double.MAX_VALUE
+            addTile(rc, tile)
+        } else if (!this.mustSubdivide(rc, tile)) {
+            slack = Math.abs(tile.distanceToCamera - this.subdivisionDistance(rc, tile))
             addTile(rc, tile)
-            return  // 如果不需要细分，请使用图块
+            // 如果不需要细分，请使用图块
+        } else {
+            slack = Math.abs(tile.distanceToCamera - this.subdivisionDistance(rc, tile))
+            frameParents.add(tile)
+            for (child in tileCache.subdivide(tile, this)!!) {
+                slack = Math.min(slack, addTileOrDescendants(rc, child as TerrainTile)) // 递归处理磁贴的子代
+            }
         }
-        for (child in tile.subdivideToCache(
-            this,
-            tileCache,
-            4
-        )!!) { // each tile has a cached size of 1每个图块的缓存大小为1
-            addTileOrDescendants(rc, child as TerrainTile) // 递归处理磁贴的子代
+        // 只缓存完全位于视锥体内的子树, 再次完全位于视锥体内时子树中的瓦片仍然可见
+        if (!incrementalTessellation || slack <= 0 || !tile.extent.isInsideFrustum(rc.frustum)) {
+            return 0.0
         }
+        val tiles = tile.subtreeTiles ?: ArrayList<TerrainTile>().also { tile.subtreeTiles = it }
+        tiles.clear()
+        tiles.addAll(frameTiles.subList(firstTile, frameTiles.size))
+        val parents = tile.subtreeParents ?: ArrayList<TerrainTile>().also { tile.subtreeParents = it }
+        parents.clear()
+        parents.addAll(frameParents.subList(firstParent, frameParents.size))
+        tile.subtreeEpoch = viewEpoch
+        tile.subtreeSlack = slack
+        tile.subtreeNodeCount = visitedCount + reusedCount - firstNode
+        tile.subtreeCameraPoint.set(rc.cameraPoint)
+        return slack
+    }
+
+    protected fun mustSubdivide(rc: RenderContext, tile: TerrainTile): Boolean {
+        if (!adaptiveTessellation) {
+            return tile.mustSubdivide(rc, detailControl)
+        }
+        this.updateTerrainError(rc, tile, false)
+        if (!tile.mustSubdivideByError(rc, maxScreenError)) {
+            return false // the height range bound is already small enough
+        }
+        if (tile.terrainErrorExact) {
+            return true
+        }
+        this.updateTerrainError(rc, tile, true)
+        return tile.mustSubdivideByError(rc, maxScreenError)
+    }
+
+    protected fun subdivisionDistance(rc: RenderContext, tile: TerrainTile): Double {
+        return if (adaptiveTessellation) {
+            tile.errorSubdivisionDistance(rc, maxScreenError)
+        } else {
+            tile.subdivisionDistance(rc, detailControl)
+        }
+    }
+
+    /**
+     * 更新瓦片的高程误差. 高程范围是插值误差的上界, 先用它判断, 只有不足以判断时 (exact 为 true) 才读取高度网格.
+     * 调用前瓦片的高程范围须是最新的, 见 [Tile.getExtent]
+     */
+    protected fun updateTerrainError(rc: RenderContext, tile: TerrainTile, exact: Boolean) {
+        val timestamp = rc.globe.elevationModel.getTimestamp()
+        if (tile.terrainErrorTimestamp != timestamp || tile.terrainErrorVersion != tile.heightLimitsVersion) {
+            tile.terrainError = Math.max(tile.heightLimits[1] - tile.heightLimits[0], 0f)
+            tile.terrainErrorExact = false
+            tile.terrainErrorTimestamp = timestamp
+            tile.terrainErrorVersion = tile.heightLimitsVersion
+        }
+        if (exact && !tile.terrainErrorExact) {
+            tile.terrainError = Math.min(tile.terrainError, this.computeTerrainError(rc.globe, tile, timestamp))
+            tile.terrainErrorExact = true
+        }
+    }
+
+    /**
+     * 估计瓦片网格的高程插值误差: 网格抽稀一半时, 奇数行列的高度与相邻偶数点线性插值之差的最大值.
+     * 这是比本瓦片更粗一级的网格的误差, 作为本瓦片误差的保守估计
+     */
+    protected fun computeTerrainError(globe: Globe, tile: TerrainTile, timestamp: Long): Float {
+        val width = tile.level.tileWidth
+        val height = tile.level.tileHeight
+        var heights = tile.heights
+        if (heights == null || tile.heightTimestamp != timestamp || this.isHeightDirty(globe, tile)) {
+            heights = errorHeights?.takeIf { it.size == width * height } ?: FloatArray(width * height)
+            errorHeights = heights
+            heights.fill(0f)
+            globe.elevationModel.getHeightGrid(tile.sector, width, height, heights)
+        }
+        var error = 0f
+        for (j in 0 until height) {
+            val row = j * width
+            var i = 1
+            while (i < width - 1) {
+                error = Math.max(error, Math.abs(heights[row + i] - (heights[row + i - 1] + heights[row + i + 1]) * 0.5f))
+                i += 2
+            }
+        }
+        var j = 1
+        while (j < height - 1) {
+            val row = j * width
+            for (i in 0 until width) {
+                error = Math.max(error, Math.abs(heights[row + i] - (heights[row - width + i] + heights[row + width + i]) * 0.5f))
+            }
+            j += 2
+        }
+        return error
+    }
+
+    /**
+     * 相机移动距离在子树的细分余量内且子树仍完全位于视锥体内时, 复用子树上次的瓦片.
+     * 到相机的距离随相机移动的变化不超过移动距离, 这里只使用一半的余量以包含最近点位置的变化.
+     * 复用的瓦片不经过瓦片缓存, 因此逐个访问子树的缓存条目, 使仍然可见的瓦片保持最近使用并更新条目大小,
+     * 有条目已被回收时放弃复用, 重新遍历子树. 复用瓦片到相机的距离也在这里更新
+     */
+    protected fun reuseSubtree(rc: RenderContext, tile: TerrainTile): Boolean {
+        val tiles = tile.subtreeTiles ?: return false
+        val parents = tile.subtreeParents ?: return false
+        if (tile.subtreeEpoch != viewEpoch ||
+            rc.cameraPoint.distanceTo(tile.subtreeCameraPoint) >= tile.subtreeSlack * 0.5 ||
+            !tile.getExtent(rc).isInsideFrustum(rc.frustum) ||
+            !this.touchCachedParents(parents)) {
+            return false
+        }
+        for (reused in tiles) {
+            reused.updateDistanceToCamera(rc)
+        }
+        frameTiles.addAll(tiles)
+        frameParents.addAll(parents)
+        reusedCount += tile.subtreeNodeCount - 1 // this node was visited
+        return true
+    }
+
+    /**
+     * 依次访问 parents 的子瓦片缓存条目, 全部仍在缓存中时返回 true
+     */
+    protected fun touchCachedParents(parents: List<TerrainTile>): Boolean {
+        for (parent in parents) {
+            if (tileCache.get(parent.packedKey) == null) {
+                return false
+            }
+        }
+        return true
+    }
+
+    protected fun isViewUnchanged(rc: RenderContext): Boolean {
+        return lastEpochValid && this.isEpochUnchanged(rc) && lastModelview == rc.modelview
+    }
+
+    protected fun isEpochUnchanged(rc: RenderContext): Boolean {
+        return lastProjection == rc.projection && lastViewport == rc.viewport &&
+            lastElevationTimestamp == rc.globe.elevationModel.getTimestamp() &&
+            lastElevationDirtySequence == rc.globe.elevationModel.getDirtySequence() &&
+            lastVerticalExaggeration == rc.verticalExaggeration && lastDetailControl == detailControl &&
+            lastAdaptiveTessellation == adaptiveTessellation && lastMaxScreenError == maxScreenError
+    }
+
+    /**
+     * 记录本帧的视图. 影响细分结果的视图参数变化时递增 viewEpoch, 仅相机位姿变化时子树缓存仍然有效
+     */
+    protected fun updateView(rc: RenderContext) {
+        if (!lastEpochValid || !this.isEpochUnchanged(rc)) {
+            viewEpoch++
+            lastProjection.set(rc.projection)
+            lastViewport.set(rc.viewport)
+            lastElevationTimestamp = rc.globe.elevationModel.getTimestamp()
+            lastElevationDirtySequence = rc.globe.elevationModel.getDirtySequence()
+            lastVerticalExaggeration = rc.verticalExaggeration
+            lastDetailControl = detailControl
+            lastAdaptiveTessellation = adaptiveTessellation
+            lastMaxScreenError = maxScreenError
+            lastEpochValid = true
+        }
+        lastModelview.set(rc.modelview)
     }
 
     protected fun addTile(rc: RenderContext, tile: TerrainTile) {
-        // Assemble the terrain tile's vertex points and add the terrain tile.
-        this.prepareTile(rc, tile)
+        frameTiles.add(tile) // 遍历结束后统一准备顶点
+    }
+
+    protected fun offerTile(rc: RenderContext, tile: TerrainTile) {
+        if (tile.points == null) {
+            return // the tile's preparation failed
+        }
         currentTerrain.addTile(tile) //只添加最后等级的图块 或者 无需再次细分的图块
 
         val pool: Pool<BasicDrawableTerrain> = rc.getDrawablePool(
@@ -192,13 +544,23 @@ class BasicTessellator : Tessellator,
         drawable: BasicDrawableTerrain
     ) {
         drawable.sector.set(tile.sector)
-        drawable.vertexOrigin.set(tile.origin)
+        if (compactVertices) {
+            // the quantized offset and scale are assigned when the buffer is created
+            drawable.vertexPoints = tile.getQuantizedPointBuffer(rc)
+            drawable.vertexType = GLES20.GL_SHORT
+            drawable.vertexOrigin.set(tile.origin).add(tile.quantizedOffset)
+            drawable.vertexScale.set(tile.quantizedScale)
+        } else {
+            drawable.vertexPoints = tile.getPointBuffer(rc)
+            drawable.vertexType = GLES20.GL_FLOAT
+            drawable.vertexOrigin.set(tile.origin)
+            drawable.vertexScale.set(1.0, 1.0, 1.0)
+        }
         // Assemble the drawable's element buffer ranges.
         drawable.lineElementRange.set(levelSetLineElementRange)
         drawable.triStripElementRange.set(levelSetTriStripElementRange)
 
         // Assemble the drawable's OpenGL buffer objects.
-        drawable.vertexPoints = tile.getPointBuffer(rc)
         drawable.vertexTexCoords = levelSetVertexTexCoordBuffer
         drawable.elements = levelSetElementBuffer
     }
@@ -274,37 +636,135 @@ class BasicTessellator : Tessellator,
         }
     }
 
-    protected fun prepareTile(rc: RenderContext, tile: TerrainTile) {
-        val tileWidth = tile.level.tileWidth
-        val tileHeight = tile.level.tileHeight
-        val elevationTimestamp: Long = rc.globe.elevationModel.getTimestamp()
-        if (elevationTimestamp != tile.heightTimestamp) {
-            var heights = tile.heights
-            if (heights == null) {
-                heights = FloatArray(tileWidth * tileHeight)
+    /**
+     * 准备瓦片的高度与顶点. 先采用后台已完成的结果; 没有顶点的瓦片本帧计算完成后返回;
+     * 数据过期的瓦片在 parallelPreparation 时提交后台计算, 否则同样在本帧计算
+     */
+    fun prepareTiles(globe: Globe, verticalExaggeration: Double, tiles: List<TerrainTile>) {
+        val elevationTimestamp = globe.elevationModel.getTimestamp()
+        val elevationDirtySequence = globe.elevationModel.getDirtySequence()
+        for (tile in tiles) {
+            tile.adoptPreparation()
+            if (tile.heightTimestamp == elevationTimestamp && tile.verticalExaggeration == verticalExaggeration &&
+                !this.isHeightDirty(globe, tile)) {
+                continue // the tile is current
             }
-            Arrays.fill(heights, 0f)
-            rc.globe.elevationModel.getHeightGrid(tile.sector, tileWidth, tileHeight, heights)
-            tile.heights = (heights)
-        }
-        val verticalExaggeration = rc.verticalExaggeration
-        if (verticalExaggeration != tile.verticalExaggeration || elevationTimestamp != tile.heightTimestamp) {
-            val origin: Vec3 = tile.origin
-            val heights = tile.heights
-            var points = tile.points
-            val borderHeight = (tile.minTerrainElevation * verticalExaggeration).toFloat()
+            if (tile.points != null && tile.requestedTimestamp == elevationTimestamp &&
+                tile.requestedExaggeration == verticalExaggeration &&
+                (tile.requestedDirtySequence == elevationDirtySequence ||
+                    !globe.elevationModel.isDirty(tile.sector, tile.requestedDirtySequence, tile.heightQuality))) {
+                continue // the tile's current version is being computed in the background
+            }
+            val preparation = tile.newPreparation(elevationTimestamp, elevationDirtySequence, verticalExaggeration)
+            preparedCount++
+            if (tile.points == null || !parallelPreparation) {
+                requiredTiles.add(tile)
+                requiredPreparations.add(preparation)
+            } else {
+                this.prepareTileAsync(globe, tile, preparation)
+            }
+        }
 
-            if (points == null) {
-                points = FloatArray((tileWidth + 2) * (tileHeight + 2) * 3)
+        if (parallelPreparation && requiredTiles.size >= minParallelTiles) {
+            this.computeParallel(globe, requiredTiles, requiredPreparations)
+        } else {
+            for (idx in requiredTiles.indices) {
+                this.computeTile(globe, requiredTiles[idx], requiredPreparations[idx])
             }
+        }
+        for (tile in requiredTiles) {
+            tile.adoptPreparation()
+        }
+        requiredTiles.clear()
+        requiredPreparations.clear()
+    }
+
+    /**
+     * 瓦片的高度读取后本瓦片范围内是否有数据变化. 没有时推进已检查的序号, 下次只检查新的变化
+     */
+    protected fun isHeightDirty(globe: Globe, tile: TerrainTile): Boolean {
+        val dirtySequence = globe.elevationModel.getDirtySequence()
+        if (dirtySequence == tile.heightDirtySequence) {
+            return false
+        }
+        if (globe.elevationModel.isDirty(tile.sector, tile.heightDirtySequence, tile.heightQuality)) {
+            return true
+        }
+        tile.heightDirtySequence = dirtySequence
+        return false
+    }
+
+    protected fun prepareTileAsync(globe: Globe, tile: TerrainTile, preparation: TerrainTile.Preparation) {
+        val task = Runnable {
+            this.computeTile(globe, tile, preparation)
+            WorldWind.requestRedraw()
+        }
+        try {
+            WorldWind.taskService.execute(TaskService.TERRAIN_PREPARE, task)
+        } catch (ex: RejectedExecutionException) {
+            task.run() // the pool has been shut down
+        }
+    }
+
+    /**
+     * 线程池中的任务与渲染线程按下标领取瓦片, 渲染线程领取完毕后等待已被领取的瓦片完成.
+     * 线程池繁忙时渲染线程独自完成全部瓦片
+     */
+    protected fun computeParallel(
+        globe: Globe,
+        tiles: List<TerrainTile>,
+        preparations: List<TerrainTile.Preparation>
+    ) {
+        val count = tiles.size
+        val next = AtomicInteger()
+        val done = CountDownLatch(count)
+        val worker = Runnable {
+            while (true) {
+                val idx = next.getAndIncrement()
+                if (idx >= count) {
+                    break
+                }
+                try {
+                    this.computeTile(globe, tiles[idx], preparations[idx])
+                } finally {
+                    done.countDown()
+                }
+            }
+        }
+        val helpers = Math.min(count - 1, WorldWind.taskService.getPoolConfig(TaskService.TERRAIN_PREPARE).maxThreads)
+        for (idx in 0 until helpers) {
+            try {
+                WorldWind.taskService.execute(TaskService.TERRAIN_PREPARE, worker)
+            } catch (ex: RejectedExecutionException) {
+                break
+            }
+        }
+        worker.run()
+        done.await()
+    }
+
+    /**
+     * 纯计算阶段, 可在任意线程执行: 读取高度网格并计算相对瓦片中心的顶点, 结果写入 preparation 后发布到瓦片
+     */
+    protected fun computeTile(globe: Globe, tile: TerrainTile, preparation: TerrainTile.Preparation) {
+        val tileWidth = tile.level.tileWidth
+        val tileHeight = tile.level.tileHeight
+        val verticalExaggeration = preparation.verticalExaggeration
+        try {
+            val heights = FloatArray(tileWidth * tileHeight)
+            preparation.heightQuality = globe.elevationModel.getHeightGrid(tile.sector, tileWidth, tileHeight, heights)
+
+            val points = FloatArray((tileWidth + 2) * (tileHeight + 2) * 3)
+            val origin = preparation.origin
+            val borderHeight = (tile.minTerrainElevation * verticalExaggeration).toFloat()
             val rowStride = (tileWidth + 2) * 3
-            rc.globe.geographicToCartesian(
+            globe.geographicToCartesian(
                 tile.sector.centroidLatitude(),
                 tile.sector.centroidLongitude(),
                 0.0,
                 origin
             )
-            rc.globe.geographicToCartesianGrid(
+            globe.geographicToCartesianGrid(
                 tile.sector,
                 tileWidth,
                 tileHeight,
@@ -315,7 +775,7 @@ class BasicTessellator : Tessellator,
                 rowStride + 3,
                 rowStride
             )
-            rc.globe.geographicToCartesianBorder(
+            globe.geographicToCartesianBorder(
                 tile.sector,
                 tileWidth + 2,
                 tileHeight + 2,
@@ -323,11 +783,12 @@ class BasicTessellator : Tessellator,
                 origin,
                 points
             )
-            tile.origin.set(origin)
-            tile.points = (points)
+            preparation.heights = heights
+            preparation.points = points
+            tile.publishPreparation(preparation)
+        } catch (ex: RuntimeException) {
+            Logger.logMessage(Logger.ERROR, "BasicTessellator", "computeTile", "Terrain tile preparation failed", ex)
         }
-        tile.heightTimestamp = (elevationTimestamp)
-        tile.verticalExaggeration = (verticalExaggeration)
     }
 
     /**
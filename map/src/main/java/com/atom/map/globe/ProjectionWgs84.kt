@@ -9,7 +9,63 @@ import com.atom.map.util.Logger
  */
 class ProjectionWgs84 : GeographicProjection {
 
-    val scratchPos: Position = Position()
+    companion object {
+        /**
+         * 缓存的角度表数量上限. 每个级别的瓦片网格与裙边各使用一个纬度表与一个经度表
+         */
+        const val MAX_ANGLE_TABLES = 64
+
+        @Volatile
+        private var angleTables = arrayOfNulls<AngleTable>(0)
+
+        /**
+         * 返回角度 k * delta (k = 0 until count) 的正弦与余弦表. 同一级别的瓦片的角度间隔只有舍入误差的差别,
+         * 第一次使用时创建, 之后共用; 最近创建的表在前, 超出上限时丢弃最早的表
+         */
+        fun angleTable(delta: Double, count: Int): AngleTable {
+            findAngleTable(angleTables, delta, count)?.let { return it }
+            synchronized(this) {
+                val tables = angleTables
+                findAngleTable(tables, delta, count)?.let { return it }
+                val table = AngleTable(delta, count)
+                val size = Math.min(tables.size + 1, MAX_ANGLE_TABLES)
+                val next = arrayOfNulls<AngleTable>(size)
+                next[0] = table
+                System.arraycopy(tables, 0, next, 1, size - 1)
+                angleTables = next
+                return table
+            }
+        }
+
+        private fun findAngleTable(tables: Array<AngleTable?>, delta: Double, count: Int): AngleTable? {
+            for (table in tables) {
+                if (table != null && table.count == count && Math.abs(table.delta - delta) <= Math.abs(delta) * 1.0e-12) {
+                    return table
+                }
+            }
+            return null
+        }
+    }
+
+    /**
+     * 等间隔角度的正弦与余弦表, 正弦与余弦分别存放在两个数组中
+     */
+    class AngleTable(val delta: Double, val count: Int) {
+
+        val sin = DoubleArray(count)
+
+        val cos = DoubleArray(count)
+
+        init {
+            for (k in 0 until count) {
+                sin[k] = Math.sin(k * delta)
+                cos[k] = Math.cos(k * delta)
+            }
+        }
+    }
+
+    // 延迟创建, 只做坐标网格转换时不需要加载 Position
+    val scratchPos: Position by lazy { Position() }
 
     override fun getDisplayName(): String {
         return "WGS84"
@@ -152,66 +208,63 @@ class ProjectionWgs84 : GeographicProjection {
 
         val eqr: Double = globe.getEquatorialRadius()
         val ec2: Double = globe.getEccentricitySquared()
-        var cosLat: Double
-        var sinLat: Double
-        var rpm: Double
-        val cosLon = DoubleArray(numLon)
-        val sinLon = DoubleArray(numLon)
 
-        var latIndex :Int
-        var lonIndex :Int
-        var elevIndex  = 0
-
-        var lat: Double
-        var lon: Double
-        var hgt: Float
+        // 第 k 行的纬度为 minLat + k * deltaLat, 其正弦与余弦由 minLat 与角度表按和角公式得到, 同一级别的瓦片共用角度表.
+        // 最后一行与最后一列直接使用 maxLat 与 maxLon, 保证相邻瓦片的公共边完全一致
+        val latTable = angleTable(deltaLat, numLat)
+        val lonTable = angleTable(deltaLon, numLon)
+        val sinMinLat = Math.sin(minLat)
+        val cosMinLat = Math.cos(minLat)
+        val sinMaxLat = Math.sin(maxLat)
+        val cosMaxLat = Math.cos(maxLat)
+        val sinMinLon = Math.sin(minLon)
+        val cosMinLon = Math.cos(minLon)
+        val sinMaxLon = Math.sin(maxLon)
+        val cosMaxLon = Math.cos(maxLon)
+        val tableSin = lonTable.sin
+        val tableCos = lonTable.cos
 
         val xOffset: Double = if (origin != null) -origin.x else 0.0
         val yOffset: Double = if (origin != null) -origin.y else 0.0
         val zOffset: Double = if (origin != null) -origin.z else 0.0
 
-        // Compute and save values that are a function of each unique longitude value in the specified sector. This
-        // eliminates the need to re-compute these values for each column of constant longitude.
-        lonIndex = 0
-        lon = minLon
-        while (lonIndex < numLon) {
-            if (lonIndex == numLon - 1) {
-                lon = maxLon // explicitly set the last lon to the max longitude to ensure alignment
-            }
-            cosLon[lonIndex] = Math.cos(lon) //每份的cos 经度
-            sinLon[lonIndex] = Math.sin(lon) //每份的sin 经度
-            lonIndex++
-            lon += deltaLon
-        }
-
         var rowIndex = offset // 行的索引起点偏移
         if (rowStride == 0) {
             rowStride = numLon * 3 //行的步
         }
-        // 开始的起点偏移量 加上 该瓦片中 一行(经度点) * 3 就是 中间空余出一行的点数的float的值
-        lat = minLat
-        latIndex = 0
-        while (latIndex < numLat) {
+        var elevIndex = 0
+        val lastLon = numLon - 1
+        for (latIndex in 0 until numLat) {
+            val sinLat: Double
+            val cosLat: Double
             if (latIndex == numLat - 1) {
-                lat = maxLat // explicitly set the last lat to the max latitude to ensure alignment
+                sinLat = sinMaxLat
+                cosLat = cosMaxLat
+            } else {
+                sinLat = sinMinLat * latTable.cos[latIndex] + cosMinLat * latTable.sin[latIndex]
+                cosLat = cosMinLat * latTable.cos[latIndex] - sinMinLat * latTable.sin[latIndex]
             }
             // Latitude is constant for each row. Values that are a function of latitude can be computed once per row.
-            cosLat = Math.cos(lat)
-            sinLat = Math.sin(lat)
-            rpm = eqr / Math.sqrt(1.0 - ec2 * sinLat * sinLat)
+            val rpm = eqr / Math.sqrt(1.0 - ec2 * sinLat * sinLat)
+            val rpmY = rpm * (1.0 - ec2)
             var colIndex = rowIndex
-            lonIndex = 0
-            while (lonIndex < numLon) {
-                hgt = height?.get(elevIndex++) ?:0f * verticalExaggeration
-                result[colIndex++] = ((hgt + rpm) * cosLat * sinLon[lonIndex] + xOffset).toFloat()
-                result[colIndex++] = ((hgt + rpm * (1.0 - ec2)) * sinLat + yOffset).toFloat()
-                result[colIndex++] = ((hgt + rpm) * cosLat * cosLon[lonIndex] + zOffset).toFloat()
-                lonIndex++
+            for (lonIndex in 0 until numLon) {
+                val sinLon: Double
+                val cosLon: Double
+                if (lonIndex == lastLon) {
+                    sinLon = sinMaxLon
+                    cosLon = cosMaxLon
+                } else {
+                    sinLon = sinMinLon * tableCos[lonIndex] + cosMinLon * tableSin[lonIndex]
+                    cosLon = cosMinLon * tableCos[lonIndex] - sinMinLon * tableSin[lonIndex]
+                }
+                val hgt = (if (height != null) height[elevIndex++] else 0f) * verticalExaggeration
+                val xz = (hgt + rpm) * cosLat
+                result[colIndex++] = (xz * sinLon + xOffset).toFloat()
+                result[colIndex++] = ((hgt + rpmY) * sinLat + yOffset).toFloat()
+                result[colIndex++] = (xz * cosLon + zOffset).toFloat()
             }
             rowIndex += rowStride
-
-            latIndex++
-            lat += deltaLat
         }
         return result
     }
@@ -233,12 +286,23 @@ class ProjectionWgs84 : GeographicProjection {
         val maxLon = Math.toRadians(sector.maxLongitude)
         val deltaLat = (maxLat - minLat) / if (numLat > 1) numLat - 3 else 1 // 16 - 3 == 13
         val deltaLon = (maxLon - minLon) / if (numLon > 1) numLon - 3 else 1
-        var lat = minLat // 最小的纬度
-        var lon = minLon // 最小的经度
 
         val eqr = globe.getEquatorialRadius()
         val ec2 = globe.getEccentricitySquared()
 
+        // 前两行与前两列位于最小经纬度, 后两行与后两列位于最大经纬度, 第 k 行 (1 <= k <= numLat - 2) 的纬度为
+        // minLat + (k - 1) * deltaLat, 与 geographicToCartesianGrid 一样由角度表计算
+        val latTable = angleTable(deltaLat, Math.max(numLat - 2, 1))
+        val lonTable = angleTable(deltaLon, Math.max(numLon - 2, 1))
+        val sinMinLat = Math.sin(minLat)
+        val cosMinLat = Math.cos(minLat)
+        val sinMaxLat = Math.sin(maxLat)
+        val cosMaxLat = Math.cos(maxLat)
+        val sinMinLon = Math.sin(minLon)
+        val cosMinLon = Math.cos(minLon)
+        val sinMaxLon = Math.sin(maxLon)
+        val cosMaxLon = Math.cos(maxLon)
+
         val xOffset = if (origin != null) -origin.x else 0.toDouble()
         val yOffset = if (origin != null) -origin.y else 0.toDouble()
         val zOffset = if (origin != null) -origin.z else 0.toDouble()
@@ -246,31 +310,41 @@ class ProjectionWgs84 : GeographicProjection {
         // Iterate over the edges of the specified sector, computing the Cartesian point at designated latitude and
         // longitude around the border.
         for (latIndex in 0 until numLat) {
+            val sinLat: Double
+            val cosLat: Double
             if (latIndex < 2) {
-                lat = minLat // explicitly set the first lat to the min latitude to ensure alignment
+                sinLat = sinMinLat // explicitly set the first lat to the min latitude to ensure alignment
+                cosLat = cosMinLat
             } else if (latIndex < numLat - 2) {
-                lat += deltaLat
+                val k = latIndex - 1
+                sinLat = sinMinLat * latTable.cos[k] + cosMinLat * latTable.sin[k]
+                cosLat = cosMinLat * latTable.cos[k] - sinMinLat * latTable.sin[k]
             } else {
-                lat = maxLat // explicitly set the last lat to the max latitude to ensure alignment
+                sinLat = sinMaxLat // explicitly set the last lat to the max latitude to ensure alignment
+                cosLat = cosMaxLat
             }
             // Latitude is constant for each row. Values that are a function of latitude can be computed once per row.
-            val cosLat = Math.cos(lat)
-            val sinLat = Math.sin(lat)
             val rpm = eqr / Math.sqrt(1.0 - ec2 * sinLat * sinLat)
+            val xz = (height + rpm) * cosLat
+            val y = ((height + rpm * (1.0 - ec2)) * sinLat + yOffset).toFloat()
             var lonIndex = 0
             while (lonIndex < numLon) {
+                val sinLon: Double
+                val cosLon: Double
                 if (lonIndex < 2) {
-                    lon = minLon // explicitly set the first lon to the min longitude to ensure alignment
+                    sinLon = sinMinLon // explicitly set the first lon to the min longitude to ensure alignment
+                    cosLon = cosMinLon
                 } else if (lonIndex < numLon - 2) {
-                    lon += deltaLon
+                    val k = lonIndex - 1
+                    sinLon = sinMinLon * lonTable.cos[k] + cosMinLon * lonTable.sin[k]
+                    cosLon = cosMinLon * lonTable.cos[k] - sinMinLon * lonTable.sin[k]
                 } else {
-                    lon = maxLon // explicitly set the last lon to the max longitude to ensure alignment
+                    sinLon = sinMaxLon // explicitly set the last lon to the max longitude to ensure alignment
+                    cosLon = cosMaxLon
                 }
-                val cosLon = Math.cos(lon)
-                val sinLon = Math.sin(lon)
-                result[resultIndex++] = ((height + rpm) * cosLat * sinLon + xOffset).toFloat()
-                result[resultIndex++] = ((height + rpm * (1.0 - ec2)) * sinLat + yOffset).toFloat()
-                result[resultIndex++] = ((height + rpm) * cosLat * cosLon + zOffset).toFloat()
+                result[resultIndex++] = (xz * sinLon + xOffset).toFloat()
+                result[resultIndex++] = y
+                result[resultIndex++] = (xz * cosLon + zOffset).toFloat()
                 if (lonIndex == 0 && latIndex != 0 && latIndex != numLat - 1) {
                     val skip = numLon - 2
                     lonIndex += skip
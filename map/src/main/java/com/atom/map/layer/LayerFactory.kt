@@ -22,6 +22,7 @@ import com.atom.map.ogc.wtms.WmtsLayer
 import com.atom.map.util.LevelSet
 import com.atom.map.util.LevelSetConfig
 import com.atom.map.util.Logger
+import com.atom.map.util.TaskService
 import com.atom.map.util.WWUtil
 import java.io.BufferedInputStream
 import java.io.InputStream
@@ -75,8 +76,8 @@ open class LayerFactory() {
         layer.pickEnabled = (false)
         val task = GeoPackageAsyncTask(this, pathName, layer, callback)
         try {
-            WorldWind.taskService.execute(task)
-        } catch (logged: RejectedExecutionException) { // singleton task service is full; this should never happen but we check anyway
+            WorldWind.taskService.execute(TaskService.LAYER_CREATION, task)
+        } catch (logged: RejectedExecutionException) { // layer creation pool is full
             callback.creationFailed(this, layer, logged)
         }
         return layer
@@ -111,8 +112,8 @@ open class LayerFactory() {
         layer.pickEnabled = (false)
         val task = WmsAsyncTask(this, serviceAddress, layerNames, layer, callback)
         try {
-            WorldWind.taskService.execute(task)
-        } catch (logged: RejectedExecutionException) { // singleton task service is full; this should never happen but we check anyway
+            WorldWind.taskService.execute(TaskService.LAYER_CREATION, task)
+        } catch (logged: RejectedExecutionException) { // layer creation pool is full
             callback.creationFailed(this, layer, logged)
         }
         return layer
@@ -213,8 +214,8 @@ open class LayerFactory() {
             callback
         )
         try {
-            WorldWind.taskService.execute(task)
-        } catch (logged: RejectedExecutionException) { // singleton task service is full; this should never happen but we check anyway
+            WorldWind.taskService.execute(TaskService.LAYER_CREATION, task)
+        } catch (logged: RejectedExecutionException) { // layer creation pool is full
             callback.creationFailed(this, layer, logged)
         }
         return layer
@@ -235,8 +236,8 @@ open class LayerFactory() {
             callback
         )
         try {
-            WorldWind.taskService.execute(task)
-        } catch (logged: RejectedExecutionException) { // singleton task service is full; this should never happen but we check anyway
+            WorldWind.taskService.execute(TaskService.LAYER_CREATION, task)
+        } catch (logged: RejectedExecutionException) { // layer creation pool is full
             callback.creationFailed(this, layer, logged)
         }
         return layer
@@ -2,10 +2,19 @@ package com.atom.map.layer
 
 import com.atom.map.renderable.RenderContext
 import com.atom.map.util.Logger
+import java.util.*
 
+/**
+ * 图层列表. 应用可以在任意线程中增删图层, 渲染线程每帧渲染时使用 getSnapshot 返回的快照,
+ * 渲染过程中的修改在下一帧生效. 修改与创建快照在 layers 上同步
+ */
 class LayerList() : Iterable<Layer> {
     private val layers = arrayListOf<Layer>()
 
+    // 修改后置空, 下一次 getSnapshot 时重新创建
+    @Volatile
+    private var layersSnapshot: List<Layer>? = null
+
     constructor(layers: Iterable<Layer>) : this() {
         this.addAllLayers(layers)
     }
@@ -15,32 +24,38 @@ class LayerList() : Iterable<Layer> {
     }
 
     fun count(): Int {
-        return layers.size
+        synchronized(layers) { return layers.size }
     }
 
     fun getLayer(index: Int): Layer {
-        if (index < 0 || index >= layers.size) {
-            throw IllegalArgumentException(
-                Logger.logMessage(Logger.ERROR, "LayerList", "getLayer", "invalidIndex")
-            )
+        synchronized(layers) {
+            if (index < 0 || index >= layers.size) {
+                throw IllegalArgumentException(
+                    Logger.logMessage(Logger.ERROR, "LayerList", "getLayer", "invalidIndex")
+                )
+            }
+            return this.layers[index]
         }
-        return this.layers[index]
     }
 
     fun setLayer(index: Int, layer: Layer): Layer {
-        if (index < 0 || index >= layers.size) {
-            throw java.lang.IllegalArgumentException(
-                Logger.logMessage(Logger.ERROR, "LayerList", "setLayer", "invalidIndex")
-            )
+        synchronized(layers) {
+            if (index < 0 || index >= layers.size) {
+                throw java.lang.IllegalArgumentException(
+                    Logger.logMessage(Logger.ERROR, "LayerList", "setLayer", "invalidIndex")
+                )
+            }
+            layersSnapshot = null
+            return this.layers.set(index, layer)
         }
-        return this.layers.set(index, layer)
     }
 
     fun indexOfLayer(layer: Layer): Int {
-        return layers.indexOf(layer)
+        synchronized(layers) { return layers.indexOf(layer) }
     }
 
     fun indexOfLayerNamed(name: String?): Int {
+        val layers = this.getSnapshot()
         for (i in layers.indices) {
             val layerName = layers[i].displayName
             if (layerName.equals(name)) {
@@ -51,6 +66,7 @@ class LayerList() : Iterable<Layer> {
     }
 
     fun indexOfLayerWithProperty(key: Any, value: Any?): Int {
+        val layers = this.getSnapshot()
         for (i in layers.indices) {
             val layer: Layer = layers[i]
             if (layer.hasUserProperty(key)) {
@@ -64,72 +80,113 @@ class LayerList() : Iterable<Layer> {
     }
 
     fun addLayer(layer: Layer) {
-        layers.add(layer)
+        synchronized(layers) {
+            layers.add(layer)
+            layersSnapshot = null
+        }
     }
 
     fun addLayer(index: Int, layer: Layer) {
-        if (index < 0 || index > layers.size) {
-            throw java.lang.IllegalArgumentException(
-                Logger.logMessage(Logger.ERROR, "LayerList", "addLayer", "invalidIndex")
-            )
+        synchronized(layers) {
+            if (index < 0 || index > layers.size) {
+                throw java.lang.IllegalArgumentException(
+                    Logger.logMessage(Logger.ERROR, "LayerList", "addLayer", "invalidIndex")
+                )
+            }
+            layers.add(index, layer)
+            layersSnapshot = null
         }
-        layers.add(index, layer)
     }
 
     fun addAllLayers(layers: Iterable<Layer?>) {
-        layers.forEach {
-            it?.also { itLayer ->
-                this.layers.add(itLayer)
+        synchronized(this.layers) {
+            layers.forEach {
+                it?.also { itLayer ->
+                    this.layers.add(itLayer)
+                }
             }
+            layersSnapshot = null
         }
     }
 
     fun addAllLayers(layerList: LayerList) {
-        val thisList = layers
-        val thatList = layerList.layers
-        thisList.ensureCapacity(thatList.size)
-        var idx = 0
-        val len = thatList.size
-        while (idx < len) {
-            thisList.add(thatList[idx]) // we know the contents of layerList.layers is valid
-            idx++
+        val thatList = layerList.getSnapshot()
+        synchronized(layers) {
+            layers.addAll(thatList)
+            layersSnapshot = null
         }
     }
 
     fun removeLayer(layer: Layer): Boolean {
-        return layers.remove(layer)
+        synchronized(layers) {
+            layersSnapshot = null
+            return layers.remove(layer)
+        }
     }
 
     fun removeLayer(index: Int): Layer? {
-        if (index < 0 || index >= layers.size) {
-            throw java.lang.IllegalArgumentException(
-                Logger.logMessage(Logger.ERROR, "LayerList", "removeLayer", "invalidIndex")
-            )
+        synchronized(layers) {
+            if (index < 0 || index >= layers.size) {
+                throw java.lang.IllegalArgumentException(
+                    Logger.logMessage(Logger.ERROR, "LayerList", "removeLayer", "invalidIndex")
+                )
+            }
+            layersSnapshot = null
+            return layers.removeAt(index)
         }
-        return layers.removeAt(index)
     }
 
     fun removeAllLayers(layers: Iterable<Layer?>): Boolean {
-        var removed = false
-        for (layer in layers) {
-            val let = layer?.let {
-                this.layers.remove(it)
-            } ?: false
-            removed = removed or let
+        synchronized(this.layers) {
+            var removed = false
+            for (layer in layers) {
+                val let = layer?.let {
+                    this.layers.remove(it)
+                } ?: false
+                removed = removed or let
 
+            }
+            layersSnapshot = null
+            return removed
         }
-        return removed
     }
 
     fun clearLayers() {
-        layers.clear()
+        synchronized(layers) {
+            layers.clear()
+            layersSnapshot = null
+        }
     }
 
+    /**
+     * 返回当前图层的不可变快照, 列表没有修改时返回同一个对象
+     */
+    fun getSnapshot(): List<Layer> {
+        layersSnapshot?.let { return it }
+        synchronized(layers) {
+            return layersSnapshot ?: Collections.unmodifiableList(ArrayList(layers)).also { layersSnapshot = it }
+        }
+    }
+
+    /**
+     * 遍历快照, 遍历过程中可以修改列表
+     */
     override fun iterator(): Iterator<Layer> {
-        return layers.iterator()
+        return this.getSnapshot().iterator()
     }
 
+    /**
+     * 设置后非拾取帧的图层在线程池中并行渲染, 拾取帧始终顺序渲染以保证拾取编号确定
+     */
+    var parallelRenderer: ParallelLayerRenderer? = null
+
     fun render(rc: RenderContext) {
+        val parallelRenderer = parallelRenderer
+        val layers = this.getSnapshot()
+        if (parallelRenderer != null && !rc.pickMode) {
+            parallelRenderer.render(rc, layers)
+            return
+        }
         var idx = 0
         val len = layers.size
         while (idx < len) {
@@ -0,0 +1,213 @@
+package com.atom.map.layer
+
+import com.atom.map.renderable.RenderContext
+import com.atom.map.renderable.Renderable
+import com.atom.map.renderable.WorkerRenderContext
+import com.atom.map.util.Logger
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * 在 fork-join 线程池中并行渲染图层. 每个任务渲染一个图层, 可渲染对象超过 chunkSize 的
+ * RenderableLayer 被拆成多个任务. 任务写入各自工作环境的队列分片, 全部完成后按图层顺序与
+ * 图层内的顺序合并到 rc 的队列, 待合批的地标图标同样按任务顺序合并到 rc.placemarkIcons,
+ * 合并结果与顺序渲染相同, 与线程调度无关
+ */
+open class ParallelLayerRenderer(
+    val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+    val chunkSize: Int = DEFAULT_CHUNK_SIZE
+) {
+
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 2048
+    }
+
+    /**
+     * 一个图层或图层快照中 [start, end) 范围的可渲染对象, 渲染结果在 context 队列中的位置
+     */
+    protected class Task {
+        lateinit var layer: Layer
+        var renderables: List<Renderable>? = null
+        var start = 0
+        var end = 0
+        var context: WorkerRenderContext? = null
+        var drawableStart = 0
+        var drawableEnd = 0
+        var terrainStart = 0
+        var terrainEnd = 0
+        var iconStart = 0
+        var iconEnd = 0
+        var redrawRequested = false
+
+        fun set(layer: Layer, renderables: List<Renderable>?, start: Int, end: Int): Task {
+            this.layer = layer
+            this.renderables = renderables
+            this.start = start
+            this.end = end
+            context = null
+            redrawRequested = false
+            return this
+        }
+    }
+
+    protected inner class RenderAction(val from: Int, val to: Int) : RecursiveAction() {
+        override fun compute() {
+            if (to - from == 1) {
+                renderTask(tasks[from])
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(RenderAction(from, mid), RenderAction(mid, to))
+            }
+        }
+    }
+
+    protected val pool: ForkJoinPool
+
+    protected val tasks = ArrayList<Task>()
+
+    protected val taskPool = ArrayList<Task>()
+
+    // 空闲的工作环境, 跨帧复用, 同时使用的数量不超过任务数
+    protected val idleContexts = ConcurrentLinkedQueue<WorkerRenderContext>()
+
+    // 工作线程访问资源缓存时的锁
+    protected val resourceLock = Any()
+
+    protected var currentContext: RenderContext? = null
+
+    init {
+        require(parallelism >= 1) {
+            Logger.logMessage(Logger.ERROR, "ParallelLayerRenderer", "constructor", "invalidParallelism")
+        }
+        require(chunkSize >= 1) {
+            Logger.logMessage(Logger.ERROR, "ParallelLayerRenderer", "constructor", "invalidChunkSize")
+        }
+        pool = ForkJoinPool(parallelism)
+    }
+
+    /**
+     * 渲染 layers 中的所有图层, 返回时可绘制对象已经按顺序放入 rc 的队列
+     */
+    open fun render(rc: RenderContext, layers: List<Layer>) {
+        assembleTasks(rc, layers)
+        if (tasks.isEmpty()) {
+            return
+        }
+        currentContext = rc
+        try {
+            pool.invoke(RenderAction(0, tasks.size))
+            mergeTasks(rc)
+        } finally {
+            currentContext = null
+            releaseTasks()
+        }
+    }
+
+    /**
+     * 关闭线程池, 之后不能再渲染
+     */
+    open fun shutdown() {
+        pool.shutdown()
+        idleContexts.clear()
+    }
+
+    protected open fun assembleTasks(rc: RenderContext, layers: List<Layer>) {
+        for (layer in layers) {
+            // 各个范围来自同一个快照, 渲染过程中图层的修改不影响本帧
+            val renderables = if (layer is RenderableLayer && layer.isSplittable) layer.getSnapshot() else null
+            if (renderables != null && renderables.size > chunkSize) {
+                // 与 AbstractLayer.render 相同的检查只做一次, 之后直接渲染各个范围
+                if (!layer.enabled || !layer.isWithinActiveAltitudes(rc)) {
+                    continue
+                }
+                val count = renderables.size
+                var start = 0
+                while (start < count) {
+                    val end = Math.min(start + chunkSize, count)
+                    tasks.add(obtainTask().set(layer, renderables, start, end))
+                    start = end
+                }
+            } else {
+                tasks.add(obtainTask().set(layer, null, 0, -1))
+            }
+        }
+    }
+
+    protected open fun renderTask(task: Task) {
+        val context = idleContexts.poll() ?: WorkerRenderContext(resourceLock)
+        synchronized(resourceLock) {
+            context.attach(currentContext!!)
+        }
+        val drawables = context.drawableQueue!!
+        val terrain = context.drawableTerrain!!
+        val icons = context.placemarkIcons
+        task.context = context
+        task.drawableStart = drawables.count()
+        task.terrainStart = terrain.count()
+        task.iconStart = icons.count()
+        context.redrawRequested = false
+        context.currentLayer = task.layer
+        try {
+            val layer = task.layer
+            val renderables = task.renderables
+            if (renderables == null) {
+                layer.render(context)
+            } else {
+                (layer as RenderableLayer).doRender(context, renderables, task.start, task.end)
+            }
+        } catch (e: Exception) {
+            Logger.logMessage(
+                Logger.ERROR, "ParallelLayerRenderer", "renderTask",
+                "Exception while rendering layer \'" + task.layer.displayName + "\'", e
+            )
+        }
+        context.currentLayer = null
+        task.drawableEnd = drawables.count()
+        task.terrainEnd = terrain.count()
+        task.iconEnd = icons.count()
+        task.redrawRequested = context.redrawRequested
+        // 同一线程的下一个任务可以继续使用这个环境, 追加在已有分片之后
+        idleContexts.offer(context)
+    }
+
+    protected open fun mergeTasks(rc: RenderContext) {
+        val drawableQueue = rc.drawableQueue
+        val drawableTerrain = rc.drawableTerrain
+        for (task in tasks) {
+            val context = task.context ?: continue
+            drawableQueue?.offerDrawables(context.drawableQueue!!, task.drawableStart, task.drawableEnd)
+            drawableTerrain?.offerDrawables(context.drawableTerrain!!, task.terrainStart, task.terrainEnd)
+            rc.placemarkIcons.offerIcons(context.placemarkIcons, task.iconStart, task.iconEnd)
+            if (task.redrawRequested) {
+                rc.redrawRequested = true
+            }
+        }
+        if (drawableQueue == null || drawableTerrain == null) {
+            // 没有目标队列时可绘制对象无人引用, 回收到各自的池中
+            for (context in idleContexts) {
+                if (drawableQueue == null) context.drawableQueue!!.clearDrawables()
+                if (drawableTerrain == null) context.drawableTerrain!!.clearDrawables()
+            }
+        }
+    }
+
+    protected open fun releaseTasks() {
+        for (context in idleContexts) {
+            context.drawableQueue!!.discardDrawables()
+            context.drawableTerrain!!.discardDrawables()
+            context.placemarkIcons.clearIcons()
+            context.detach()
+        }
+        for (task in tasks) {
+            task.context = null
+            task.renderables = null
+            taskPool.add(task)
+        }
+        tasks.clear()
+    }
+
+    protected fun obtainTask(): Task {
+        return if (taskPool.isEmpty()) Task() else taskPool.removeAt(taskPool.size - 1)
+    }
+}
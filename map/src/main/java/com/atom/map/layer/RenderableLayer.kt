@@ -3,11 +3,25 @@ package com.atom.map.layer
 import com.atom.map.renderable.RenderContext
 import com.atom.map.renderable.Renderable
 import com.atom.map.util.Logger
-
+import java.util.*
+
+/**
+ * 可渲染对象图层. 应用可以在任意线程中增删可渲染对象, 渲染线程每帧渲染图层时使用 getSnapshot 返回的快照,
+ * 渲染过程中的增删在下一帧生效.
+ *
+ * 可渲染对象自身的属性不加锁. 替换整个对象引用的修改 (例如 placemark.position = Position(...),
+ * placemark.attributes = ...) 对渲染线程要么完全可见要么不可见; 原地修改 (例如 position.set(...),
+ * 修改属性对象的字段) 可能在一帧中只生效一部分. 需要同时生效的修改通过 WorldWindow.postToRenderThread
+ * 在渲染线程中两帧之间执行
+ */
 open class RenderableLayer(displayName: String) : AbstractLayer(displayName), Iterable<Renderable> {
 
     protected val renderables = arrayListOf<Renderable>()
 
+    // 修改后置空, 下一次 getSnapshot 时重新创建
+    @Volatile
+    protected var renderablesSnapshot: List<Renderable>? = null
+
     constructor() : this("RenderableLayer")
 
     constructor(renderables: Iterable<Renderable>) : this("RenderableLayer") {
@@ -18,27 +32,32 @@ open class RenderableLayer(displayName: String) : AbstractLayer(displayName), It
         addAllRenderables(layer)
     }
     fun count(): Int {
-        return renderables.size
+        synchronized(renderables) { return renderables.size }
     }
 
     fun getRenderable(index: Int): Renderable? {
-        if (index < 0 || index >= renderables.size) {
-            throw IllegalArgumentException(
-                    Logger.logMessage(Logger.ERROR, "RenderableLayer", "getRenderable", "invalidIndex"))
+        synchronized(renderables) {
+            if (index < 0 || index >= renderables.size) {
+                throw IllegalArgumentException(
+                        Logger.logMessage(Logger.ERROR, "RenderableLayer", "getRenderable", "invalidIndex"))
+            }
+            return renderables[index]
         }
-        return renderables[index]
     }
 
     fun setRenderable(index: Int, renderable: Renderable?): Renderable? {
-        if (index < 0 || index >= renderables.size) {
-            throw IllegalArgumentException(
-                    Logger.logMessage(Logger.ERROR, "RenderableLayer", "setRenderable", "invalidIndex"))
-        }
-        if (renderable == null) {
-            throw IllegalArgumentException(
-                    Logger.logMessage(Logger.ERROR, "RenderableLayer", "setRenderable", "missingRenderable"))
+        synchronized(renderables) {
+            if (index < 0 || index >= renderables.size) {
+                throw IllegalArgumentException(
+                        Logger.logMessage(Logger.ERROR, "RenderableLayer", "setRenderable", "invalidIndex"))
+            }
+            if (renderable == null) {
+                throw IllegalArgumentException(
+                        Logger.logMessage(Logger.ERROR, "RenderableLayer", "setRenderable", "missingRenderable"))
+            }
+            renderablesSnapshot = null
+            return renderables.set(index, renderable)
         }
-        return renderables.set(index, renderable)
     }
 
     fun indexOfRenderable(renderable: Renderable?): Int {
@@ -46,10 +65,11 @@ open class RenderableLayer(displayName: String) : AbstractLayer(displayName), It
             throw IllegalArgumentException(
                     Logger.logMessage(Logger.ERROR, "RenderableLayer", "indexOfRenderable", "missingRenderable"))
         }
-        return renderables.indexOf(renderable)
+        synchronized(renderables) { return renderables.indexOf(renderable) }
     }
 
     fun indexOfRenderableNamed(name: String?): Int {
+        val renderables = this.getSnapshot()
         for (i in renderables.indices) {
             if (renderables[i].displayName == name) {
                 return i
@@ -59,6 +79,7 @@ open class RenderableLayer(displayName: String) : AbstractLayer(displayName), It
     }
 
     fun indexOfRenderableWithProperty(key: Any, value: Any?): Int {
+        val renderables = this.getSnapshot()
         for (i in renderables.indices) {
             val renderable: Renderable = renderables[i]
             if (renderable.hasUserProperty(key)) {
@@ -72,60 +93,102 @@ open class RenderableLayer(displayName: String) : AbstractLayer(displayName), It
     }
 
     fun addRenderable(renderable: Renderable) {
-        renderables.add(renderable)
+        synchronized(renderables) {
+            renderables.add(renderable)
+            renderablesSnapshot = null
+        }
     }
 
     fun addRenderable(index: Int, renderable: Renderable) {
-        if (index < 0 || index > renderables.size) {
-            throw java.lang.IllegalArgumentException(
-                    Logger.logMessage(Logger.ERROR, "RenderableLayer", "addRenderable", "invalidIndex"))
+        synchronized(renderables) {
+            if (index < 0 || index > renderables.size) {
+                throw java.lang.IllegalArgumentException(
+                        Logger.logMessage(Logger.ERROR, "RenderableLayer", "addRenderable", "invalidIndex"))
+            }
+            renderables.add(index, renderable)
+            renderablesSnapshot = null
         }
-        renderables.add(index, renderable)
     }
 
     open fun addAllRenderables(layer: RenderableLayer) {
-        val thisList = renderables
-        val thatList = layer.renderables
-        thisList.ensureCapacity(thatList.size)
-        var idx = 0
-        val len = thatList.size
-        while (idx < len) {
-            thisList.add(thatList[idx]) // we know the contents of layer.renderables is valid
-            idx++
+        val thatList = layer.getSnapshot()
+        synchronized(renderables) {
+            renderables.addAll(thatList)
+            renderablesSnapshot = null
         }
     }
     fun addAllRenderables(renderables: Iterable<Renderable>) {
-        for (renderable in renderables) {
-            this.renderables.add(renderable)
+        synchronized(this.renderables) {
+            for (renderable in renderables) {
+                this.renderables.add(renderable)
+            }
+            renderablesSnapshot = null
         }
     }
 
     fun removeRenderable(renderable: Renderable): Boolean {
-        return renderables.remove(renderable)
+        synchronized(renderables) {
+            renderablesSnapshot = null
+            return renderables.remove(renderable)
+        }
     }
 
     fun removeRenderable(index: Int): Renderable? {
-        if (index < 0 || index >= renderables.size) {
-            throw java.lang.IllegalArgumentException(
-                    Logger.logMessage(Logger.ERROR, "RenderableLayer", "removeRenderable", "invalidIndex"))
+        synchronized(renderables) {
+            if (index < 0 || index >= renderables.size) {
+                throw java.lang.IllegalArgumentException(
+                        Logger.logMessage(Logger.ERROR, "RenderableLayer", "removeRenderable", "invalidIndex"))
+            }
+            renderablesSnapshot = null
+            return renderables.removeAt(index)
         }
-        return renderables.removeAt(index)
     }
 
     fun removeAllRenderables(renderables: Iterable<Renderable>): Boolean {
-        var removed = false
-        for (renderable in renderables) {
-            removed = removed or this.renderables.remove(renderable)
+        synchronized(this.renderables) {
+            var removed = false
+            for (renderable in renderables) {
+                removed = removed or this.renderables.remove(renderable)
+            }
+            renderablesSnapshot = null
+            return removed
         }
-        return removed
     }
 
     fun clearRenderables() {
-        renderables.clear()
+        synchronized(renderables) {
+            renderables.clear()
+            renderablesSnapshot = null
+        }
     }
 
+    /**
+     * 返回当前可渲染对象的不可变快照, 列表没有修改时返回同一个对象
+     */
+    fun getSnapshot(): List<Renderable> {
+        renderablesSnapshot?.let { return it }
+        synchronized(renderables) {
+            return renderablesSnapshot ?: Collections.unmodifiableList(ArrayList(renderables)).also { renderablesSnapshot = it }
+        }
+    }
+
+    /**
+     * 是否可以把可渲染对象分段交给不同线程渲染, 重写了 doRender 的子类应返回 false
+     */
+    open val isSplittable: Boolean
+        get() = true
+
     override fun doRender(rc: RenderContext) {
-        for (renderable in renderables) {
+        val renderables = this.getSnapshot()
+        doRender(rc, renderables, 0, renderables.size)
+    }
+
+    /**
+     * 渲染快照 renderables 中 [start, end) 范围内的可渲染对象
+     */
+    open fun doRender(rc: RenderContext, renderables: List<Renderable>, start: Int, end: Int) {
+        for (idx in start until end) {
+            val renderable = renderables[idx]
             try {
                 renderable.render(rc)
             } catch (e: Exception) {
@@ -135,8 +198,11 @@ open class RenderableLayer(displayName: String) : AbstractLayer(displayName), It
         }
     }
 
+    /**
+     * 遍历快照, 遍历过程中可以修改图层
+     */
     override fun iterator(): Iterator<Renderable> {
-        return renderables.iterator()
+        return this.getSnapshot().iterator()
     }
 
 
@@ -0,0 +1,107 @@
+package com.atom.map.navigator
+
+import com.atom.map.WorldWind
+import com.atom.map.geom.Camera
+import com.atom.map.util.WWMath
+
+/**
+ * 根据最近几帧导航器的位置估计相机的运动速度, 预测一段时间之后的相机位置, 用于预取相机即将看到的瓦片.
+ *
+ * 每帧渲染时以当前相机调用 addSample, 速度按指数平滑; 高度按对数变化率估计, 以适应缩放时按比例变化的高度.
+ * 两次采样间隔超过 maxSampleIntervalMillis 时认为运动已经中断, 速度清零.
+ */
+class MotionPredictor {
+
+    /**
+     * 新速度的权重, 越大越灵敏
+     */
+    var smoothing = 0.5
+
+    var maxSampleIntervalMillis: Long = 250
+
+    private var hasSample = false
+
+    private var lastTime: Long = 0
+
+    private var lastLatitude = 0.0
+
+    private var lastLongitude = 0.0
+
+    private var lastLogAltitude = 0.0
+
+    private var lastHeading = 0.0
+
+    private var lastTilt = 0.0
+
+    // 每毫秒的变化量
+    private var latitudeRate = 0.0
+
+    private var longitudeRate = 0.0
+
+    private var logAltitudeRate = 0.0
+
+    private var headingRate = 0.0
+
+    private var tiltRate = 0.0
+
+    fun addSample(camera: Camera, timeMillis: Long) {
+        val logAltitude = Math.log(Math.max(camera.altitude, 1.0))
+        val elapsed = timeMillis - lastTime
+        if (!hasSample || elapsed > maxSampleIntervalMillis) {
+            this.clearRates()
+        } else if (elapsed > 0) {
+            val w = smoothing
+            latitudeRate += w * ((camera.latitude - lastLatitude) / elapsed - latitudeRate)
+            longitudeRate += w * (WWMath.normalizeAngle180(camera.longitude - lastLongitude) / elapsed - longitudeRate)
+            logAltitudeRate += w * ((logAltitude - lastLogAltitude) / elapsed - logAltitudeRate)
+            headingRate += w * (WWMath.normalizeAngle180(camera.heading - lastHeading) / elapsed - headingRate)
+            tiltRate += w * ((camera.tilt - lastTilt) / elapsed - tiltRate)
+        } else {
+            return // 同一时刻的重复采样
+        }
+        hasSample = true
+        lastTime = timeMillis
+        lastLatitude = camera.latitude
+        lastLongitude = camera.longitude
+        lastLogAltitude = logAltitude
+        lastHeading = camera.heading
+        lastTilt = camera.tilt
+    }
+
+    /**
+     * 最近的采样显示相机正在移动时返回 true
+     */
+    fun isMoving(): Boolean {
+        val epsilon = 1e-9
+        return Math.abs(latitudeRate) > epsilon || Math.abs(longitudeRate) > epsilon ||
+                Math.abs(logAltitudeRate) > epsilon || Math.abs(headingRate) > epsilon || Math.abs(tiltRate) > epsilon
+    }
+
+    /**
+     * 按当前速度外推 leadMillis 毫秒之后的相机位置
+     */
+    fun predict(camera: Camera, leadMillis: Long, result: Camera): Camera {
+        val t = leadMillis.toDouble()
+        result.latitude = WWMath.clamp(camera.latitude + latitudeRate * t, -90.0, 90.0)
+        result.longitude = WWMath.normalizeAngle180(camera.longitude + longitudeRate * t)
+        result.altitude = Math.max(camera.altitude, 1.0) * Math.exp(logAltitudeRate * t)
+        result.altitudeMode = WorldWind.ABSOLUTE
+        result.heading = WWMath.normalizeAngle360(camera.heading + headingRate * t)
+        result.tilt = WWMath.clamp(camera.tilt + tiltRate * t, 0.0, 90.0)
+        result.roll = camera.roll
+        return result
+    }
+
+    fun reset() {
+        hasSample = false
+        this.clearRates()
+    }
+
+    private fun clearRates() {
+        latitudeRate = 0.0
+        longitudeRate = 0.0
+        logAltitudeRate = 0.0
+        headingRate = 0.0
+        tiltRate = 0.0
+    }
+}
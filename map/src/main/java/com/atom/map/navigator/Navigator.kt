@@ -81,6 +81,13 @@ class Navigator {
         return result
     }
 
+    /**
+     * 把指定的相机转换为观察矩阵, 不修改导航器的状态, 例如计算预测的相机位置的视锥
+     */
+    fun getCameraAsViewingMatrix(globe: Globe, camera: Camera, result: Matrix4): Matrix4 {
+        return this.cameraToViewingMatrix(globe, camera, result)
+    }
+
     protected fun cameraToLookAt(globe: Globe, camera: Camera, result: LookAt): LookAt {
         cameraToViewingMatrix(globe, camera, modelview)
         modelview.extractEyePoint(forwardRay.origin)
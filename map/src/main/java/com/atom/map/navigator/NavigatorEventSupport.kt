@@ -79,13 +79,20 @@ class NavigatorEventSupport(wwd: WorldHelper) {
     }
 
     fun onFrameRendered(rc: RenderContext) {
+        onFrameRendered(rc.modelview)
+    }
+
+    /**
+     * 在主线程中调用, modelview 为刚渲染完成的帧的模型视图矩阵
+     */
+    fun onFrameRendered(modelview: Matrix4) {
         if (listeners.isEmpty()) {
             return
         }
         if (lastModelview == null) {
-            lastModelview = Matrix4(rc.modelview)
-        } else if (!lastModelview!!.equals(rc.modelview)) {
-            lastModelview!!.set(rc.modelview)
+            lastModelview = Matrix4(modelview)
+        } else if (!lastModelview!!.equals(modelview)) {
+            lastModelview!!.set(modelview)
             onNavigatorMoved()
             stopHandler.removeMessages(0 /*what*/)
             stopHandler.sendEmptyMessageDelayed(0 /*what*/, stoppedEventDelay)
@@ -6,16 +6,50 @@ import java.util.*
 abstract class AbstractElevationCoverage :
     ElevationCoverage {
 
+    companion object {
+        /**
+         * 每个覆盖保留的变化记录数, 更早的记录被覆盖后按全部范围已变化处理
+         */
+        const val MAX_DIRTY_SECTORS = 64
+
+        /**
+         * 变化序号在所有覆盖之间分配, 分配与记录在同一锁内完成, 读到的最大序号之前的记录都已写入
+         */
+        private val dirtyLock = Any()
+
+        private var lastDirtySequence: Long = 0
+    }
+
     override var displayName: String = ""
 
     override var enabled: Boolean = true
         set(value) {
             field = value
-            this.updateTimestamp()
+            this.invalidateSector(this.coverageSector())
         }
 
     override var timestamp: Long = 0
 
+    @Volatile
+    override var dirtySequence: Long = 0
+        protected set
+
+    /**
+     * 最近 MAX_DIRTY_SECTORS 次变化的范围与序号, 按序号循环存放.
+     * dirtyRefinements 为 true 的记录只是数据细化, 不影响已是最终质量的高度
+     */
+    protected val dirtySectors = Array(MAX_DIRTY_SECTORS) { Sector() }
+
+    protected val dirtySequences = LongArray(MAX_DIRTY_SECTORS)
+
+    protected val dirtyRefinements = BooleanArray(MAX_DIRTY_SECTORS)
+
+    // 本覆盖的记录数, 决定下一条记录的位置. 全局序号只用于比较先后
+    protected var dirtyCount: Long = 0
+
+    // 被覆盖的记录中最大的序号, 晚于 since 时该记录已无法检查
+    protected var evictedSequence: Long = 0
+
     override var userProperties: HashMap<Any, Any>? = null
 
     constructor() {
@@ -26,6 +60,58 @@ abstract class AbstractElevationCoverage :
         timestamp = System.currentTimeMillis()
     }
 
+    /**
+     * 覆盖的数据范围, 启用或禁用时该范围内的高度全部变化
+     */
+    protected open fun coverageSector(): Sector {
+        return Sector().setFullSphere()
+    }
+
+    /**
+     * 记录 sector 范围内的数据已变化, 该范围内的高度全部需要重新读取
+     */
+    open fun invalidateSector(sector: Sector) {
+        this.addDirtySector(sector, false)
+    }
+
+    /**
+     * 记录 sector 范围内有了更精细的数据, 只有该范围内尚未达到最终质量的高度需要重新读取
+     */
+    protected open fun addRefinement(sector: Sector) {
+        this.addDirtySector(sector, true)
+    }
+
+    protected fun addDirtySector(sector: Sector, refinement: Boolean) {
+        synchronized(dirtyLock) {
+            val sequence = ++lastDirtySequence
+            val idx = (dirtyCount++ % MAX_DIRTY_SECTORS).toInt()
+            evictedSequence = Math.max(evictedSequence, dirtySequences[idx])
+            dirtySectors[idx].set(sector)
+            dirtySequences[idx] = sequence
+            dirtyRefinements[idx] = refinement
+            dirtySequence = sequence
+        }
+    }
+
+    override fun isDirty(sector: Sector, since: Long, quality: Int): Boolean {
+        if (dirtySequence <= since) {
+            return false
+        }
+        synchronized(dirtyLock) {
+            // 晚于 since 的记录已被覆盖时无法确定变化范围, 按已变化处理
+            if (evictedSequence > since) {
+                return true
+            }
+            for (idx in 0 until MAX_DIRTY_SECTORS) {
+                if (dirtySequences[idx] > since && dirtySectors[idx].intersects(sector) &&
+                    (!dirtyRefinements[idx] || quality != ElevationCoverage.QUALITY_FINAL)) {
+                    return true
+                }
+            }
+            return false
+        }
+    }
+
     override fun getUserProperty(key: Any): Any? {
         return userProperties?.get(key)
     }
@@ -57,18 +143,18 @@ abstract class AbstractElevationCoverage :
         gridWidth: Int,
         gridHeight: Int,
         result: FloatArray
-    ) {
+    ): Int {
         if (!this.enabled) {
-            return
+            return ElevationCoverage.QUALITY_FINAL
         }
-        doGetHeightGrid(gridSector, gridWidth, gridHeight,  result)
+        return doGetHeightGrid(gridSector, gridWidth, gridHeight,  result)
     }
 
-    override fun getHeightLimits(sector: Sector,  result: FloatArray) {
+    override fun getHeightLimits(sector: Sector,  result: FloatArray): Int {
         if (!this.enabled) {
-            return
+            return ElevationCoverage.QUALITY_FINAL
         }
-        doGetHeightLimits(sector,  result)
+        return doGetHeightLimits(sector,  result)
     }
 
     abstract fun doGetHeight(
@@ -82,10 +168,10 @@ abstract class AbstractElevationCoverage :
         gridWidth: Int,
         gridHeight: Int,
         result: FloatArray
-    )
+    ): Int
 
     abstract fun doGetHeightLimits(
         sector: Sector,
         result: FloatArray
-    )
+    ): Int
 }
\ No newline at end of file
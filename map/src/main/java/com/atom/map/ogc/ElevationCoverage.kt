@@ -5,12 +5,34 @@ import java.util.*
 
 interface ElevationCoverage {
 
+    companion object {
+        /**
+         * 高度数据的质量: 没有可用的数据, 结果未写入, 数据到达后经 dirtySequence 通知
+         */
+        const val QUALITY_NONE = 0
+
+        /**
+         * 使用了比目标分辨率粗的数据, 目标分辨率的数据到达后经 dirtySequence 通知
+         */
+        const val QUALITY_COARSE = 1
+
+        /**
+         * 已使用目标分辨率的数据, 或者该范围没有覆盖, 结果不会再变化
+         */
+        const val QUALITY_FINAL = 2
+    }
+
     var displayName: String
 
     var enabled: Boolean
 
     var timestamp : Long
 
+    /**
+     * 最近一次数据变化 (细化, 启用或禁用, 数据源替换) 的序号, 没有变化时为 0. 序号在所有覆盖之间递增
+     */
+    val dirtySequence: Long
+
     var userProperties: HashMap<Any, Any>?
 
     fun getUserProperty(key: Any): Any?
@@ -23,8 +45,17 @@ interface ElevationCoverage {
 
     fun getHeight(latitude: Double, longitude: Double ,  result : FloatArray )
 
-    fun getHeightGrid(gridSector: Sector, gridWidth: Int, gridHeight: Int,  result: FloatArray)
+    /**
+     * 不等待缺失的数据, 以当前可用的最佳分辨率读取高度网格, 返回结果的质量 QUALITY_*
+     */
+    fun getHeightGrid(gridSector: Sector, gridWidth: Int, gridHeight: Int,  result: FloatArray): Int
+
+    fun getHeightLimits(sector: Sector, result: FloatArray): Int
 
-    fun getHeightLimits(sector: Sector, result: FloatArray)
+    /**
+     * 序号 since 之后是否有与 sector 相交的数据变化. quality 为 QUALITY_FINAL 时忽略只是数据细化的变化,
+     * 记录不足以判断时保守地返回 true
+     */
+    fun isDirty(sector: Sector, since: Long, quality: Int): Boolean
 
-}
\ No newline at end of file
+}
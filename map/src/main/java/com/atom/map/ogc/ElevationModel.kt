@@ -8,6 +8,11 @@ open class ElevationModel : Iterable<ElevationCoverage> {
 
     open var coverages: MutableList<ElevationCoverage> = ArrayList()
 
+    /**
+     * 覆盖增减的时间. 覆盖自身的变化按范围记录, 见 getDirtySequence
+     */
+    protected var coveragesTimestamp: Long = 0
+
     constructor() {}
 
     constructor(model: ElevationModel) {
@@ -64,7 +69,7 @@ open class ElevationModel : Iterable<ElevationCoverage> {
     }
 
     open fun addCoverage(coverage: ElevationCoverage): Boolean {
-        return !coverages.contains(coverage) && coverages.add(coverage)
+        return (!coverages.contains(coverage) && coverages.add(coverage)).also { if (it) this.updateTimestamp() }
     }
 
     open fun addAllCoverages(model: ElevationModel): Boolean {
@@ -80,15 +85,25 @@ open class ElevationModel : Iterable<ElevationCoverage> {
     }
 
     open fun removeCoverage(coverage: ElevationCoverage): Boolean {
-        return coverages.remove(coverage)
+        return coverages.remove(coverage).also { if (it) this.updateTimestamp() }
     }
 
     open fun removeAllCoverages(model: ElevationModel): Boolean {
-        return coverages.removeAll(model.coverages)
+        return coverages.removeAll(model.coverages).also { if (it) this.updateTimestamp() }
     }
 
     open fun clearCoverages() {
-        coverages.clear()
+        if (coverages.isNotEmpty()) {
+            coverages.clear()
+            this.updateTimestamp()
+        }
+    }
+
+    /**
+     * 新的时间戳严格大于当前值, 同一毫秒内的多次变化也能被察觉
+     */
+    protected open fun updateTimestamp() {
+        coveragesTimestamp = Math.max(System.currentTimeMillis(), this.getTimestamp() + 1)
     }
 
     override fun iterator(): Iterator<ElevationCoverage> {
@@ -96,7 +111,7 @@ open class ElevationModel : Iterable<ElevationCoverage> {
     }
 
     open fun getTimestamp(): Long {
-        var maxTimestamp: Long = 0
+        var maxTimestamp: Long = coveragesTimestamp
         var idx = 0
         val len = coverages.size
         while (idx < len) {
@@ -110,6 +125,36 @@ open class ElevationModel : Iterable<ElevationCoverage> {
         return maxTimestamp
     }
 
+    /**
+     * 各覆盖中最近一次数据变化的序号. 读取高度前记录该序号, 之后以 isDirty 判断读取的高度是否需要更新.
+     * 覆盖的增减使全部高度失效, 由 getTimestamp 反映
+     */
+    open fun getDirtySequence(): Long {
+        var maxSequence: Long = 0
+        var idx = 0
+        val len = coverages.size
+        while (idx < len) {
+            maxSequence = Math.max(maxSequence, coverages[idx].dirtySequence)
+            idx++
+        }
+        return maxSequence
+    }
+
+    /**
+     * 序号 since 之后 sector 范围内是否有数据变化, quality 为读取时返回的质量
+     */
+    open fun isDirty(sector: Sector, since: Long, quality: Int): Boolean {
+        var idx = 0
+        val len = coverages.size
+        while (idx < len) {
+            if (coverages[idx].isDirty(sector, since, quality)) {
+                return true
+            }
+            idx++
+        }
+        return false
+    }
+
     open fun getHeight(
         latitude: Double,
         longitude: Double,
@@ -121,31 +166,38 @@ open class ElevationModel : Iterable<ElevationCoverage> {
         }
     }
 
+    /**
+     * 不等待缺失的数据读取高度网格, 返回各覆盖中最低的质量 ElevationCoverage.QUALITY_*
+     */
     open fun getHeightGrid(
         gridSector: Sector,
         gridWidth: Int,
         gridHeight: Int,
         result: FloatArray
-    ) {
+    ): Int {
+        var quality = ElevationCoverage.QUALITY_FINAL
         var idx = 0
         val len = coverages.size
         while (idx < len) {
-            coverages[idx].getHeightGrid(gridSector, gridWidth, gridHeight, result)
+            quality = Math.min(quality, coverages[idx].getHeightGrid(gridSector, gridWidth, gridHeight, result))
             idx++
         }
+        return quality
     }
 
     open fun getHeightLimits(
         sector: Sector,
         result: FloatArray
-    ) {
+    ): Int {
+        var quality = ElevationCoverage.QUALITY_FINAL
         var idx = 0
         val len = coverages.size
         while (idx < len) {
             val coverage = coverages[idx]
-            coverage.getHeightLimits(sector, result)
+            quality = Math.min(quality, coverage.getHeightLimits(sector, result))
             idx++
         }
+        return quality
     }
 
 }
\ No newline at end of file
@@ -1,16 +1,15 @@
 package com.atom.map.ogc
 
+import com.atom.map.WorldWind
 import com.atom.map.tiff.Subfile
 import com.atom.map.tiff.Tiff
 import com.atom.map.renderable.ImageSource
 import com.atom.map.util.Logger
 import com.atom.map.util.Retriever
-import com.atom.map.util.WWUtil
 import com.atom.map.util.pool.SynchronizedPool
-import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.io.InputStream
-import java.net.URL
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.ShortBuffer
@@ -55,29 +54,34 @@ class ElevationRetriever(maxSimultaneousRetrievals: Int) :
 
     @Throws(IOException::class)
     protected fun decodeUrl(urlString: String?): ShortBuffer? {
-        var stream: InputStream? = null
-        return try {
-            val conn = URL(urlString).openConnection()
-            conn.connectTimeout = 3000
-            conn.readTimeout = 30000
-            stream = BufferedInputStream(conn.getInputStream())
-            val contentType = conn.contentType
-            return if (contentType.equals("application/bil16", ignoreCase = true)) {
-                this.readInt16Data(stream)
-            } else if (contentType.equals("image/tiff", ignoreCase = true)) {
-                this.readTiffData(stream)
-            } else {
-                throw RuntimeException(
-                    Logger.logMessage(
-                        Logger.ERROR,
-                        "ElevationRetriever",
-                        "decodeUrl",
-                        "Format not supported"
-                    )
+        urlString ?: return null
+        val response = WorldWind.tileTransport.fetch(urlString, null)
+        val data = response.data
+        if (!response.isSuccess() || data == null) {
+            throw IOException(
+                Logger.logMessage(
+                    Logger.ERROR,
+                    "ElevationRetriever",
+                    "decodeUrl",
+                    "Request failed with status code ${response.statusCode}"
                 )
-            }
-        } finally {
-            WWUtil.closeSilently(stream)
+            )
+        }
+        val stream = ByteArrayInputStream(data)
+        val contentType = response.contentType
+        return if (contentType.equals("application/bil16", ignoreCase = true)) {
+            this.readInt16Data(stream)
+        } else if (contentType.equals("image/tiff", ignoreCase = true)) {
+            this.readTiffData(stream)
+        } else {
+            throw RuntimeException(
+                Logger.logMessage(
+                    Logger.ERROR,
+                    "ElevationRetriever",
+                    "decodeUrl",
+                    "Format not supported"
+                )
+            )
         }
     }
 
@@ -0,0 +1,457 @@
+package com.atom.map.ogc
+
+import com.atom.map.geom.Sector
+import com.atom.map.geom.TileMatrix
+import com.atom.map.geom.TileMatrixSet
+import com.atom.map.tiff.Tiff
+import com.atom.map.util.Logger
+import com.atom.map.util.WWMath
+import com.atom.map.util.WWUtil
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.ShortBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * 以内存映射文件保存的本地高程瓦片库, 瓦片划分与 tileMatrixSet 相同.
+ * 每个级别一个文件, 包含该级别与 sector 相交的全部瓦片位置, 瓦片按行列顺序存放, 未写入的瓦片不占用磁盘空间 (稀疏文件).
+ * 读取的瓦片是映射区域上的 ShortBuffer, 不复制到堆内存. 单个文件的大小不受 2GB 映射限制, 映射按 MAX_CHUNK_BYTES 分段
+ */
+class ElevationTileStore(
+    val directory: File,
+    val tileMatrixSet: TileMatrixSet,
+    val sector: Sector,
+    val readOnly: Boolean = false
+) : Closeable {
+
+    companion object {
+        /**
+         * 文件头: 标识, 版本, 瓦片宽高, 起始行列与行列数, 之后是每个瓦片一个字节的写入标记
+         */
+        const val MAGIC = 0x454C5631 // "ELV1"
+
+        const val VERSION = 1
+
+        const val HEADER_BYTES = 32
+
+        /**
+         * 瓦片数据从该对齐位置开始, 与内存页对齐
+         */
+        const val DATA_ALIGNMENT = 4096
+
+        /**
+         * 单次映射的最大字节数, 每段包含整数个瓦片
+         */
+        const val MAX_CHUNK_BYTES = 32 * 1024 * 1024
+
+        /**
+         * 栅格无效值, 导入时按 0 处理
+         */
+        const val MISSING_DATA = Short.MIN_VALUE
+    }
+
+    /**
+     * 一个级别的瓦片文件
+     */
+    protected class LevelFile(
+        val file: RandomAccessFile,
+        val tileWidth: Int,
+        val tileHeight: Int,
+        val rowMin: Int,
+        val colMin: Int,
+        val rows: Int,
+        val cols: Int
+    ) {
+        val channel: FileChannel = file.channel
+
+        val tileBytes = tileWidth * tileHeight * 2
+
+        val dataOffset = (HEADER_BYTES + rows * cols + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT.toLong()
+
+        val chunkTiles = Math.max(1, MAX_CHUNK_BYTES / tileBytes)
+
+        val written = ByteArray(rows * cols)
+
+        val chunks = arrayOfNulls<MappedByteBuffer>((rows * cols + chunkTiles - 1) / chunkTiles)
+
+        fun slotOf(row: Int, column: Int): Int {
+            val r = row - rowMin
+            val c = column - colMin
+            return if (r < 0 || r >= rows || c < 0 || c >= cols) -1 else r * cols + c
+        }
+
+        fun slotPosition(slot: Int) = dataOffset + slot.toLong() * tileBytes
+    }
+
+    /**
+     * 导入时读取的栅格行窗口, 按需读取连续的若干行, 单次读取不超过 bandBytes, 栅格总大小不受 2GB 限制
+     */
+    protected class RasterBand(
+        val width: Int,
+        val height: Int,
+        bandBytes: Int,
+        val read: (firstRow: Int, rowCount: Int) -> ShortBuffer
+    ) {
+        val maxRows = Math.min(height, Math.max(2, bandBytes / 2 / width))
+
+        var firstRow = 0
+
+        var rowCount = 0
+
+        var rows: ShortBuffer? = null
+
+        /**
+         * 确保窗口包含 y0 到 y1 行, y1 最多比 y0 大 1
+         */
+        fun require(y0: Int, y1: Int) {
+            if (y0 < firstRow || y1 >= firstRow + rowCount) {
+                firstRow = Math.min(y0, height - maxRows)
+                rowCount = maxRows
+                rows = read(firstRow, rowCount)
+            }
+        }
+
+        fun value(x: Int, y: Int): Int {
+            val value = rows!!.get(x + (y - firstRow) * width)
+            return if (value == MISSING_DATA) 0 else value.toInt()
+        }
+    }
+
+    /**
+     * 导入文件时单次映射的栅格字节数上限, 至少包含两行
+     */
+    var importBandBytes = MAX_CHUNK_BYTES
+
+    protected val levels = arrayOfNulls<LevelFile>(tileMatrixSet.count())
+
+    /**
+     * 打开失败或没有文件的级别, 只读时不再重复尝试
+     */
+    protected val missingLevels = BooleanArray(tileMatrixSet.count())
+
+    init {
+        if (!readOnly && !directory.isDirectory && !directory.mkdirs()) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "ElevationTileStore", "constructor", "invalidDirectory: $directory")
+            )
+        }
+    }
+
+    fun levelFile(ordinal: Int) = File(directory, "$ordinal.elev")
+
+    /**
+     * 返回映射区域上的瓦片数据, 行从北向南, 小端序. 瓦片未写入时返回 null
+     */
+    fun readTile(tileMatrix: TileMatrix, row: Int, column: Int): ShortBuffer? {
+        val level = this.openLevel(tileMatrix, false) ?: return null
+        val slot = level.slotOf(row, column)
+        if (slot < 0 || level.written[slot].toInt() == 0) {
+            return null
+        }
+        val chunkIdx = slot / level.chunkTiles
+        val chunk = level.chunks[chunkIdx] ?: this.mapChunk(level, chunkIdx)
+        val view = chunk.duplicate()
+        val position = (slot - chunkIdx * level.chunkTiles) * level.tileBytes
+        view.limit(position + level.tileBytes)
+        view.position(position)
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+    }
+
+    fun containsTile(tileMatrix: TileMatrix, row: Int, column: Int): Boolean {
+        val level = this.openLevel(tileMatrix, false) ?: return false
+        val slot = level.slotOf(row, column)
+        return slot >= 0 && level.written[slot].toInt() != 0
+    }
+
+    /**
+     * 写入一个瓦片, 位于库范围之外的瓦片被忽略并返回 false. data 从当前位置读取 tileWidth * tileHeight 个值
+     */
+    fun writeTile(tileMatrix: TileMatrix, row: Int, column: Int, data: ShortBuffer): Boolean {
+        if (readOnly) {
+            throw IllegalStateException(
+                Logger.logMessage(Logger.ERROR, "ElevationTileStore", "writeTile", "The store is read only")
+            )
+        }
+        val level = this.openLevel(tileMatrix, true) ?: return false
+        val slot = level.slotOf(row, column)
+        if (slot < 0) {
+            return false
+        }
+        val bytes = ByteBuffer.allocate(level.tileBytes).order(ByteOrder.LITTLE_ENDIAN)
+        bytes.asShortBuffer().put(data.duplicate().limit(data.position() + level.tileBytes / 2) as ShortBuffer)
+        synchronized(level) {
+            var position = level.slotPosition(slot)
+            while (bytes.hasRemaining()) {
+                position += level.channel.write(bytes, position)
+            }
+            // 数据写入后再设置标记, 读取方不会看到未写完的瓦片
+            level.channel.write(ByteBuffer.wrap(byteArrayOf(1)), HEADER_BYTES.toLong() + slot)
+            level.written[slot] = 1
+        }
+        return true
+    }
+
+    /**
+     * 导入一个栅格, 行从北向南, 像素中心位于 rasterSector 按像素等分的格子中心.
+     * 导入从第 0 级到分辨率与栅格最接近的级别, 较粗的级别对栅格点采样. 瓦片在栅格之外的部分保留已写入的值, 新瓦片为 0
+     */
+    fun importRaster(raster: ShortBuffer, rasterWidth: Int, rasterHeight: Int, rasterSector: Sector) {
+        if (rasterWidth < 1 || rasterHeight < 1 || raster.remaining() < rasterWidth.toLong() * rasterHeight) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "ElevationTileStore", "importRaster", "invalidRaster")
+            )
+        }
+        val base = raster.position()
+        this.importRaster(RasterBand(rasterWidth, rasterHeight, importBandBytes) { firstRow, _ ->
+            (raster.duplicate().position(base + firstRow * rasterWidth) as ShortBuffer).slice()
+        }, rasterSector)
+    }
+
+    protected fun importRaster(band: RasterBand, rasterSector: Sector) {
+        val importSector = Sector(rasterSector)
+        if (!importSector.intersect(sector)) {
+            return
+        }
+        val maxIdx = tileMatrixSet.indexOfMatrixNearest(rasterSector.deltaLatitude() / band.height)
+        var data = ShortArray(0)
+        for (idx in 0..maxIdx) {
+            val tileMatrix = tileMatrixSet.matrix(idx) ?: continue
+            if (data.size != tileMatrix.tileWidth * tileMatrix.tileHeight) {
+                data = ShortArray(tileMatrix.tileWidth * tileMatrix.tileHeight)
+            }
+            val rowRange = this.tileRange(tileMatrix, importSector, true)
+            val colRange = this.tileRange(tileMatrix, importSector, false)
+            for (row in rowRange[0]..rowRange[1]) {
+                for (column in colRange[0]..colRange[1]) {
+                    val existing = this.readTile(tileMatrix, row, column)
+                    if (existing != null) existing.get(data) else data.fill(0)
+                    this.sampleRaster(band, rasterSector, tileMatrix, row, column, data)
+                    this.writeTile(tileMatrix, row, column, ShortBuffer.wrap(data))
+                }
+            }
+        }
+    }
+
+    /**
+     * 导入 BIL16 文件: 无文件头, 小端序 16 位有符号整数, 行从北向南. 文件按行分段映射, 可以超过 2GB
+     */
+    fun importBil16(file: File, rasterWidth: Int, rasterHeight: Int, rasterSector: Sector) {
+        if (rasterWidth < 1 || rasterHeight < 1) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "ElevationTileStore", "importBil16", "invalidRaster")
+            )
+        }
+        RandomAccessFile(file, "r").use {
+            val channel = it.channel
+            val rowBytes = rasterWidth * 2L
+            this.importRaster(RasterBand(rasterWidth, rasterHeight, importBandBytes) { firstRow, rowCount ->
+                channel.map(FileChannel.MapMode.READ_ONLY, firstRow * rowBytes, rowCount * rowBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+            }, rasterSector)
+        }
+    }
+
+    /**
+     * 导入未压缩的 16 位有符号整数 GeoTIFF 的第一个子文件. 地理范围由调用方提供, 不读取 GeoTIFF 的坐标标签.
+     * 像素数据先解出到同目录下的临时映射文件, 不占用堆内存. Tiff 以单个映射读取整个文件, 文件不能超过 2GB,
+     * 更大的栅格先转换为 BIL16 再用 importBil16 导入
+     */
+    fun importGeoTiff(file: File, rasterSector: Sector) {
+        if (file.length() > Int.MAX_VALUE) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "ElevationTileStore", "importGeoTiff", "Tiff file larger than 2GB: $file")
+            )
+        }
+        val scratch = File.createTempFile("import", ".raw", directory)
+        try {
+            RandomAccessFile(file, "r").use { input ->
+                val tiff = Tiff(input.channel.map(FileChannel.MapMode.READ_ONLY, 0, input.length()))
+                val subfile = tiff.getSubfiles()[0]
+                if (subfile.sampleFormat[0] != Tiff.TWOS_COMP_SIGNED_INT || subfile.bitsPerSample[0] != 16 ||
+                    subfile.samplesPerPixel != 1 || subfile.compression != 1) {
+                    throw IllegalArgumentException(
+                        Logger.logMessage(Logger.ERROR, "ElevationTileStore", "importGeoTiff", "Tiff file format not supported")
+                    )
+                }
+                RandomAccessFile(scratch, "rw").use { output ->
+                    val raster = output.channel.map(FileChannel.MapMode.READ_WRITE, 0, subfile.getDataSize().toLong())
+                    subfile.getData(raster)
+                    raster.clear()
+                    this.importRaster(raster.asShortBuffer(), subfile.imageWidth, subfile.imageLength, rasterSector)
+                }
+            }
+        } finally {
+            scratch.delete()
+        }
+    }
+
+    override fun close() {
+        for (idx in levels.indices) {
+            levels[idx]?.let { WWUtil.closeSilently(it.file) }
+            levels[idx] = null
+        }
+    }
+
+    protected fun openLevel(tileMatrix: TileMatrix, create: Boolean): LevelFile? {
+        val ordinal = tileMatrix.ordinal
+        if (ordinal < 0 || ordinal >= levels.size) {
+            return null
+        }
+        levels[ordinal]?.let { return it }
+        if (missingLevels[ordinal] && !create) {
+            return null
+        }
+        synchronized(levels) {
+            levels[ordinal]?.let { return it }
+            val path = this.levelFile(ordinal)
+            if (!path.exists() && !create) {
+                missingLevels[ordinal] = true
+                return null
+            }
+            try {
+                val level = if (path.exists()) this.readLevel(path, tileMatrix) else this.createLevel(path, tileMatrix)
+                levels[ordinal] = level
+                missingLevels[ordinal] = false
+                return level
+            } catch (ex: IOException) {
+                Logger.logMessage(Logger.ERROR, "ElevationTileStore", "openLevel", "Cannot open '$path'", ex)
+                missingLevels[ordinal] = true
+                return null
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    protected fun readLevel(path: File, tileMatrix: TileMatrix): LevelFile {
+        val file = RandomAccessFile(path, if (readOnly) "r" else "rw")
+        try {
+            val header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+            file.channel.read(header, 0)
+            header.flip()
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw IOException("Not an elevation tile file")
+            }
+            val level = LevelFile(
+                file, header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt()
+            )
+            if (level.tileWidth != tileMatrix.tileWidth || level.tileHeight != tileMatrix.tileHeight) {
+                throw IOException("Tile size does not match the tile matrix")
+            }
+            file.channel.read(ByteBuffer.wrap(level.written), HEADER_BYTES.toLong())
+            return level
+        } catch (ex: IOException) {
+            WWUtil.closeSilently(file)
+            throw ex
+        }
+    }
+
+    @Throws(IOException::class)
+    protected fun createLevel(path: File, tileMatrix: TileMatrix): LevelFile {
+        val rowRange = this.tileRange(tileMatrix, sector, true)
+        val colRange = this.tileRange(tileMatrix, sector, false)
+        val file = RandomAccessFile(path, "rw")
+        try {
+            val level = LevelFile(
+                file, tileMatrix.tileWidth, tileMatrix.tileHeight, rowRange[0], colRange[0],
+                rowRange[1] - rowRange[0] + 1, colRange[1] - colRange[0] + 1
+            )
+            val header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+            header.putInt(MAGIC).putInt(VERSION).putInt(level.tileWidth).putInt(level.tileHeight)
+            header.putInt(level.rowMin).putInt(level.colMin).putInt(level.rows).putInt(level.cols)
+            header.flip()
+            file.channel.write(header, 0)
+            // 预先设置文件长度, 只读映射不能超出文件末尾; 未写入的区域是文件空洞
+            file.setLength(level.slotPosition(level.rows * level.cols))
+            return level
+        } catch (ex: IOException) {
+            WWUtil.closeSilently(file)
+            throw ex
+        }
+    }
+
+    protected fun mapChunk(level: LevelFile, chunkIdx: Int): MappedByteBuffer {
+        synchronized(level) {
+            level.chunks[chunkIdx]?.let { return it }
+            val first = chunkIdx * level.chunkTiles
+            val count = Math.min(level.chunkTiles, level.rows * level.cols - first)
+            val chunk = level.channel.map(
+                FileChannel.MapMode.READ_ONLY, level.slotPosition(first), count.toLong() * level.tileBytes
+            )
+            level.chunks[chunkIdx] = chunk
+            return chunk
+        }
+    }
+
+    /**
+     * 与 region 相交的瓦片的行或列范围, 行从北向南
+     */
+    protected fun tileRange(tileMatrix: TileMatrix, region: Sector, rows: Boolean): IntArray {
+        val matrix = tileMatrix.sector
+        return if (rows) {
+            val tileDelta = matrix.deltaLatitude() / tileMatrix.matrixHeight
+            val first = Math.floor((matrix.maxLatitude - region.maxLatitude) / tileDelta).toInt()
+            val last = Math.ceil((matrix.maxLatitude - region.minLatitude) / tileDelta).toInt() - 1
+            intArrayOf(
+                WWMath.clamp(first.toDouble(), 0.0, tileMatrix.matrixHeight - 1.0).toInt(),
+                WWMath.clamp(Math.max(first, last).toDouble(), 0.0, tileMatrix.matrixHeight - 1.0).toInt()
+            )
+        } else {
+            val tileDelta = matrix.deltaLongitude() / tileMatrix.matrixWidth
+            val first = Math.floor((region.minLongitude - matrix.minLongitude) / tileDelta).toInt()
+            val last = Math.ceil((region.maxLongitude - matrix.minLongitude) / tileDelta).toInt() - 1
+            intArrayOf(
+                WWMath.clamp(first.toDouble(), 0.0, tileMatrix.matrixWidth - 1.0).toInt(),
+                WWMath.clamp(Math.max(first, last).toDouble(), 0.0, tileMatrix.matrixWidth - 1.0).toInt()
+            )
+        }
+    }
+
+    /**
+     * 以双线性插值把栅格采样到瓦片的像素中心, 只写入位于栅格范围内的像素
+     */
+    protected fun sampleRaster(
+        band: RasterBand, rasterSector: Sector, tileMatrix: TileMatrix, row: Int, column: Int, result: ShortArray
+    ) {
+        val rasterWidth = band.width
+        val rasterHeight = band.height
+        val tileSector = tileMatrix.tileSector(row, column)
+        val tileWidth = tileMatrix.tileWidth
+        val tileHeight = tileMatrix.tileHeight
+        val texelLat = tileSector.deltaLatitude() / tileHeight
+        val texelLon = tileSector.deltaLongitude() / tileWidth
+        val pixelLat = rasterSector.deltaLatitude() / rasterHeight
+        val pixelLon = rasterSector.deltaLongitude() / rasterWidth
+        for (j in 0 until tileHeight) {
+            val lat = tileSector.maxLatitude - (j + 0.5) * texelLat
+            if (lat < rasterSector.minLatitude || lat > rasterSector.maxLatitude) {
+                continue
+            }
+            val v = WWMath.clamp((rasterSector.maxLatitude - lat) / pixelLat - 0.5, 0.0, rasterHeight - 1.0)
+            val y0 = Math.min(v.toInt(), Math.max(rasterHeight - 2, 0))
+            val y1 = Math.min(y0 + 1, rasterHeight - 1)
+            val b = v - y0
+            band.require(y0, y1)
+            for (i in 0 until tileWidth) {
+                val lon = tileSector.minLongitude + (i + 0.5) * texelLon
+                if (lon < rasterSector.minLongitude || lon > rasterSector.maxLongitude) {
+                    continue
+                }
+                val u = WWMath.clamp((lon - rasterSector.minLongitude) / pixelLon - 0.5, 0.0, rasterWidth - 1.0)
+                val x0 = Math.min(u.toInt(), Math.max(rasterWidth - 2, 0))
+                val x1 = Math.min(x0 + 1, rasterWidth - 1)
+                val a = u - x0
+                val h00 = band.value(x0, y0)
+                val h10 = band.value(x1, y0)
+                val h01 = band.value(x0, y1)
+                val h11 = band.value(x1, y1)
+                val height = (1 - a) * (1 - b) * h00 + a * (1 - b) * h10 + (1 - a) * b * h01 + a * b * h11
+                result[i + j * tileWidth] = Math.round(height).toShort()
+            }
+        }
+    }
+}
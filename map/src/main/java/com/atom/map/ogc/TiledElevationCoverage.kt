@@ -9,13 +9,16 @@ import com.atom.map.geom.Sector
 import com.atom.map.geom.TileMatrix
 import com.atom.map.geom.TileMatrixSet
 import com.atom.map.renderable.ImageSource
+import com.atom.map.util.ConcurrentMemoryCache
 import com.atom.map.util.Logger
 import com.atom.map.util.LruMemoryCache
+import com.atom.map.util.TaskService
 import com.atom.map.util.Retriever
 import com.atom.map.util.WWMath
 import java.net.SocketTimeoutException
 import java.nio.ShortBuffer
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 open abstract class TiledElevationCoverage : AbstractElevationCoverage,
     Retriever.Callback<ImageSource, Void, ShortBuffer> {
@@ -38,37 +41,61 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
 
     var tileMatrixSet: TileMatrixSet = TileMatrixSet() // empty tile matrix set
         set(value) {
+            this.invalidateSector(field.sector)
             field = value
             this.invalidateTiles()
         }
 
     var coverageSource: LruMemoryCache<Long, ImageSource>
 
-    var coverageCache: LruMemoryCache<ImageSource, ShortArray>
+    /**
+     * 下载的瓦片. 设置了可写的 tileStore 时下载的瓦片写入其中, 不再放入该缓存
+     */
+    var coverageCache: LruMemoryCache<ImageSource, ShortBuffer>
 
     var coverageHandler: Handler
 
-    var enableRetrieval = false
-
     var coverageRetriever: ElevationRetriever
 
+    /**
+     * 已发起请求的瓦片. 数据到达后按瓦片的行列写入 tileStore, 并以其范围记录细化
+     */
+    protected val retrievalTiles = ConcurrentHashMap<ImageSource, RetrievalTile>()
+
     var tileFactory: TileFactory? = null
         set(value) {
             field = value
             this.invalidateTiles()
         }
 
+    /**
+     * 本地的内存映射高程瓦片库, 瓦片划分须与 tileMatrixSet 相同. 先从库中读取瓦片, 没有时才下载.
+     * 没有 tileFactory 时只使用库中的瓦片, 可以离线使用
+     */
+    var tileStore: ElevationTileStore? = null
+        set(value) {
+            field = value
+            this.invalidateTiles()
+        }
+
     open fun invalidateTiles() {
         coverageSource.clear()
         coverageCache.clear()
-        updateTimestamp()
+        retrievalTiles.clear()
+        this.invalidateSector(tileMatrixSet.sector)
+    }
+
+    override fun coverageSector(): Sector {
+        return Sector(tileMatrixSet.sector)
     }
 
 
     constructor() {
-        coverageSource = LruMemoryCache(200)
+        // 地形瓦片在 TERRAIN_PREPARE 线程池中并行读取高度, 缓存须支持并发访问
+        coverageSource = ConcurrentMemoryCache(200)
         coverageRetriever = ElevationRetriever(4)
-        coverageCache = LruMemoryCache(1024 * 1024 * 8)
+        coverageRetriever.workload = TaskService.ELEVATION_DECODE
+        coverageCache = ConcurrentMemoryCache(1024 * 1024 * 8)
         coverageHandler = Handler(Looper.getMainLooper(), Handler.Callback { false })
         Logger.log(
             Logger.DEBUG, java.lang.String.format(
@@ -89,30 +116,31 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         gridWidth: Int,
         gridHeight: Int,
         result: FloatArray
-    ) {
+    ): Int {
         if (!tileMatrixSet.sector.intersects(gridSector)) {
-            return  // no coverage in the specified sector
+            return ElevationCoverage.QUALITY_FINAL  // no coverage in the specified sector
         }
         val targetPixelSpan = gridSector.deltaLatitude() / gridHeight
         val targetIdx: Int = tileMatrixSet.indexOfMatrixNearest(targetPixelSpan)
         val tileBlock = TileBlock()
         for (idx in targetIdx downTo 0) {
-            this.enableRetrieval =
+            tileBlock.enableRetrieval =
                 (idx == targetIdx || idx == 0) // enable retrieval of the target matrix and the first matrix
             val tileMatrix = tileMatrixSet.matrix(idx) ?: continue
             if (this.fetchTileBlock(gridSector, gridWidth, gridHeight, tileMatrix, tileBlock)) {
                 readHeightGrid(gridSector, gridWidth, gridHeight, tileBlock, result)
-                return
+                return if (idx == targetIdx) ElevationCoverage.QUALITY_FINAL else ElevationCoverage.QUALITY_COARSE
             }
         }
+        return ElevationCoverage.QUALITY_NONE
     }
 
     override fun doGetHeightLimits(
         sector: Sector,
         result: FloatArray
-    ) {
+    ): Int {
         if (!tileMatrixSet.sector.intersects(sector)) {
-            return  // no coverage in the specified sector
+            return ElevationCoverage.QUALITY_FINAL  // no coverage in the specified sector
         }
         val targetPixelSpan =
             sector.deltaLatitude() / GET_HEIGHT_LIMIT_SAMPLES
@@ -120,14 +148,15 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         val tileBlock = TileBlock()
 
         for (idx in targetIdx downTo 0) {
-            this.enableRetrieval =
+            tileBlock.enableRetrieval =
                 (idx == targetIdx || idx == 0) // enable retrieval of the target matrix and the first matrix
             val tileMatrix = tileMatrixSet.matrix(idx) ?: continue
             if (this.fetchTileBlock(sector, tileMatrix, tileBlock)) {
                 scanHeightLimits(sector, tileBlock, result)
-                return
+                return if (idx == targetIdx) ElevationCoverage.QUALITY_FINAL else ElevationCoverage.QUALITY_COARSE
             }
         }
+        return ElevationCoverage.QUALITY_NONE
     }
 
     override fun retrievalSucceeded(
@@ -136,14 +165,15 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         options: Void?,
         value: ShortBuffer
     ) {
-        val finalArray = ShortArray(value.remaining())
-        value[finalArray]
-
-        coverageHandler.post {
-            coverageCache.put(key, finalArray, finalArray.size * 2)
-            updateTimestamp()
-            WorldWind.requestRedraw()
+        val tile = retrievalTiles.remove(key)
+        if (tile == null || !this.storeTile(tile, value)) {
+            val finalArray = ShortArray(value.remaining())
+            value[finalArray]
+            coverageCache.put(key, ShortBuffer.wrap(finalArray), finalArray.size * 2)
         }
+        // 只通知该瓦片范围内的高度细化, 不使全部地形失效
+        tile?.let { this.addRefinement(it.sector) } ?: this.addRefinement(tileMatrixSet.sector)
+        WorldWind.requestRedraw()
 
         if (Logger.isLoggable(Logger.DEBUG)) {
             Logger.log(Logger.DEBUG, "Coverage retrieval succeeded \'$key\'")
@@ -155,6 +185,7 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         key: ImageSource,
         ex: Throwable?
     ) {
+        retrievalTiles.remove(key)
         if (ex is SocketTimeoutException) { // log socket timeout exceptions while suppressing the stack trace
             Logger.log(Logger.ERROR, "Coverage retrieval Socket timeout \'$key\'")
         } else if (ex != null) { // log checked exceptions with the entire stack trace
@@ -173,6 +204,7 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         key: ImageSource,
         msg: String
     ) {
+        retrievalTiles.remove(key)
         if (Logger.isLoggable(Logger.DEBUG)) {
             Logger.log(Logger.DEBUG, "Coverage retrieval rejected \'$key\'")
         }
@@ -275,9 +307,9 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
             while (cidx < clen) {
                 val row = result.rows.keyAt(ridx)
                 val col = result.cols.keyAt(cidx)
-                val tileArray = this.fetchTileArray(tileMatrix, row, col)
-                if (tileArray != null) {
-                    result.putTileArray(row, col, tileArray)
+                val tileBuffer = this.fetchTileBuffer(tileMatrix, row, col, result.enableRetrieval)
+                if (tileBuffer != null) {
+                    result.putTileBuffer(row, col, tileBuffer)
                 } else {
                     return false
                 }
@@ -329,11 +361,11 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         result.clear()
         for (row in rowMin..rowMax) {
             for (col in colMin..colMax) {
-                val tileArray = fetchTileArray(tileMatrix, row, col)
-                if (tileArray != null) {
+                val tileBuffer = fetchTileBuffer(tileMatrix, row, col, result.enableRetrieval)
+                if (tileBuffer != null) {
                     result.rows.put(row, 0)
                     result.cols.put(col, 0)
-                    result.putTileArray(row, col, tileArray)
+                    result.putTileBuffer(row, col, tileBuffer)
                 } else {
                     return false
                 }
@@ -342,18 +374,55 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         return true
     }
 
-    protected open fun fetchTileArray(tileMatrix: TileMatrix, row: Int, column: Int): ShortArray? {
+    /**
+     * 瓦片数据, 来自 tileStore 的映射文件或下载的缓存, 都不复制. 没有时按 retrieve 发起下载并返回 null
+     */
+    protected open fun fetchTileBuffer(tileMatrix: TileMatrix, row: Int, column: Int, retrieve: Boolean): ShortBuffer? {
+        tileStore?.readTile(tileMatrix, row, column)?.let { return it }
+        val factory = tileFactory ?: return null
         val key = tileKey(tileMatrix, row, column)
         var tileSource = coverageSource.get(key)
         if (tileSource == null) {
-            tileSource = tileFactory!!.createTileSource(tileMatrix, row, column)
+            tileSource = factory.createTileSource(tileMatrix, row, column)
             coverageSource.put(key, tileSource, 1)
         }
-        val tileArray = coverageCache.get(tileSource)
-        if (tileArray == null && this.enableRetrieval) {
+        val tileBuffer = coverageCache.get(tileSource)
+        if (tileBuffer == null && retrieve) {
+            if (!retrievalTiles.containsKey(tileSource)) {
+                retrievalTiles[tileSource] = RetrievalTile(tileMatrix, row, column, this.retrievalSector(tileMatrix, row, column))
+            }
             coverageRetriever.retrieve(tileSource, null, this)
         }
-        return tileArray
+        return tileBuffer
+    }
+
+    /**
+     * 把下载的瓦片写入可写的 tileStore, 写入失败或瓦片在库的范围之外时返回 false
+     */
+    protected open fun storeTile(tile: RetrievalTile, value: ShortBuffer): Boolean {
+        val store = tileStore ?: return false
+        if (store.readOnly) {
+            return false
+        }
+        return try {
+            store.writeTile(tile.tileMatrix, tile.row, tile.column, value)
+        } catch (ex: Exception) {
+            Logger.logMessage(Logger.ERROR, "TiledElevationCoverage", "storeTile", "Cannot store the tile", ex)
+            false
+        }
+    }
+
+    /**
+     * 瓦片的范围向外扩展一个像素, 双线性插值会读到相邻瓦片的边缘像素
+     */
+    protected open fun retrievalSector(tileMatrix: TileMatrix, row: Int, column: Int): Sector {
+        val sector = tileMatrix.tileSector(row, column)
+        val texelLat = sector.deltaLatitude() / tileMatrix.tileHeight
+        val texelLon = sector.deltaLongitude() / tileMatrix.tileWidth
+        return Sector(
+            sector.minLatitude - texelLat, sector.minLongitude - texelLon,
+            sector.deltaLatitude() + 2 * texelLat, sector.deltaLongitude() + 2 * texelLon
+        )
     }
 
     protected open fun readHeightGrid(
@@ -505,12 +574,12 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
                     .toInt() % tileWidth
                 val i1 = WWMath.clamp(iMax.toDouble(), coliMin.toDouble(), coliMax.toDouble())
                     .toInt() % tileWidth
-                val tileArray = tileBlock.getTileArray(row, col)
+                val tileBuffer = tileBlock.getTileBuffer(row, col)
 
                 for (j in j0..j1) {
                     for (i in i0..i1) {
                         val pos = i + j * tileWidth
-                        tileArray?.get(pos)?.let {
+                        tileBuffer?.get(pos)?.let {
                             if (result[0] > it) {
                                 result[0] = it.toFloat()
                             }
@@ -526,42 +595,49 @@ open abstract class TiledElevationCoverage : AbstractElevationCoverage,
         }
     }
 
+    protected class RetrievalTile(val tileMatrix: TileMatrix, val row: Int, val column: Int, val sector: Sector)
+
+    /**
+     * 一次读取用到的瓦片. 瓦片是堆上数组或映射文件的 ShortBuffer, 只按绝对下标读取, 可在线程间共享
+     */
     protected class TileBlock {
         lateinit var tileMatrix: TileMatrix
+        // 缺失的瓦片是否发起请求, 只请求目标级别与第一级
+        var enableRetrieval = false
         var rows = SparseIntArray()
         var cols = SparseIntArray()
-        var arrays = LongSparseArray<ShortArray>()
+        var buffers = LongSparseArray<ShortBuffer>()
         private var texelRow = -1
         private var texelCol = -1
-        private var texelArray: ShortArray? = null
+        private var texelBuffer: ShortBuffer? = null
         fun clear() {
             rows.clear()
             cols.clear()
-            arrays.clear()
+            buffers.clear()
             texelRow = -1
             texelCol = -1
-            texelArray = null
+            texelBuffer = null
         }
 
-        fun putTileArray(row: Int, column: Int, array: ShortArray) {
+        fun putTileBuffer(row: Int, column: Int, buffer: ShortBuffer) {
             val key = tileKey(tileMatrix, row, column)
-            arrays.put(key, array)
+            buffers.put(key, buffer)
         }
 
-        fun getTileArray(row: Int, column: Int): ShortArray? {
+        fun getTileBuffer(row: Int, column: Int): ShortBuffer? {
             if (texelRow != row || texelCol != column) {
                 val key = tileKey(tileMatrix, row, column)
                 texelRow = row
                 texelCol = column
-                texelArray = arrays[key]
+                texelBuffer = buffers[key]
             }
-            return texelArray
+            return texelBuffer
         }
 
         fun readTexel(row: Int, column: Int, i: Int, j: Int): Short {
-            val array = getTileArray(row, column)
+            val buffer = getTileBuffer(row, column)
             val pos: Int = i + j * tileMatrix.tileWidth
-            return array!![pos]
+            return buffer!![pos]
         }
     }
 }
\ No newline at end of file
@@ -14,6 +14,7 @@ import com.atom.map.ogc.wcs.Wcs201CoverageDescription
 import com.atom.map.ogc.wcs.Wcs201CoverageDescriptions
 import com.atom.map.ogc.wcs.WcsXmlParser
 import com.atom.map.util.Logger
+import com.atom.map.util.TaskService
 import com.atom.map.util.WWUtil
 import java.io.BufferedInputStream
 import java.io.InputStream
@@ -77,7 +78,7 @@ class Wcs201ElevationCoverage : TiledElevationCoverage {
         // Fetch the DescribeCoverage document and determine the bounding box and number of levels
         val finalServiceAddress: String = serviceAddress
         val finalCoverageId: String = coverage
-        WorldWind.taskService.execute(Runnable {
+        WorldWind.taskService.execute(TaskService.NETWORK_IO, Runnable {
             try {
                 initAsync(finalServiceAddress, finalCoverageId)
             } catch (logged: Throwable) {
@@ -0,0 +1,402 @@
+package com.atom.map.ogc.gpkg
+
+import com.atom.map.WorldWind
+import com.atom.map.core.tile.ImageTile
+import com.atom.map.core.tile.Tile
+import com.atom.map.core.tile.TileFactory
+import com.atom.map.geom.Sector
+import com.atom.map.renderable.TiledSurfaceImage
+import com.atom.map.util.Level
+import com.atom.map.util.LevelSet
+import com.atom.map.util.Logger
+import com.atom.map.util.TaskService
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 把分层瓦片图像的一个区域下载到 GeoPackage 瓦片表, 供离线使用. 写入的文件可由 LayerFactory.createFromGeoPackage 直接加载.
+ *
+ * 按级别逐行枚举扇区内的瓦片 (行列号的计算与 Tile.assembleTilesForLevel 相同), 由 threadCount 个任务在
+ * [TaskService.BULK_DOWNLOAD] 线程池中通过 WorldWind.tileTransport 并行下载, 调用 seed 的线程每 batchSize 个瓦片
+ * 在一个事务中写入. 表中已有的瓦片直接跳过, 中断或部分失败后再次调用 seed 即从中断处继续.
+ * maxBytesPerSecond 大于 0 时限制所有下载任务的总速率.
+ *
+ * GeoPackage 的第 0 级瓦片为 180 度, 因此 levelSet.firstLevelDelta 必须是 180 除以 2 的幂, 写入时级别号加上两者相差的级数.
+ */
+class GpkgTileSeeder(val levelSet: LevelSet, val tileFactory: TileFactory) {
+
+    interface Listener {
+        fun onProgress(seeder: GpkgTileSeeder, progress: Progress)
+    }
+
+    class Progress {
+        /**
+         * 扇区与级别范围内的瓦片总数
+         */
+        var totalCount: Long = 0
+
+        var writtenCount: Long = 0
+
+        /**
+         * GeoPackage 中已存在而跳过的瓦片数
+         */
+        var skippedCount: Long = 0
+
+        var failedCount: Long = 0
+
+        var bytesDownloaded: Long = 0
+
+        fun getProcessedCount() = writtenCount + skippedCount + failedCount
+
+        fun isComplete() = writtenCount + skippedCount == totalCount
+
+        override fun toString(): String {
+            return "Progress{total=$totalCount, written=$writtenCount, skipped=$skippedCount, failed=$failedCount, bytes=$bytesDownloaded}"
+        }
+    }
+
+    /**
+     * 下载前的预估. levelTileCounts 按 firstLevel 到 lastLevel 的顺序排列
+     */
+    class Estimate(val tileCount: Long, val levelTileCounts: LongArray, val averageTileBytes: Long) {
+        val estimatedBytes: Long
+            get() = tileCount * averageTileBytes
+
+        override fun toString(): String {
+            return "Estimate{tiles=$tileCount, averageTileBytes=$averageTileBytes, bytes=$estimatedBytes}"
+        }
+    }
+
+    protected class LevelRange(val level: Level, val firstRow: Int, val lastRow: Int, val firstCol: Int, val lastCol: Int) {
+        val tileCount: Long
+            get() = (lastRow - firstRow + 1).toLong() * (lastCol - firstCol + 1)
+    }
+
+    protected class Job(val level: Level, val row: Int, val column: Int)
+
+    /**
+     * 按级别, 行, 列的顺序枚举瓦片, 进入新的级别时读取该级别已写入的瓦片并跳过它们
+     */
+    protected inner class Cursor(val ranges: List<LevelRange>, val writer: GpkgTileSink, val progress: Progress) {
+        var rangeIndex = -1
+        var row = 0
+        var column = 0
+        var existing: Set<Long> = emptySet()
+
+        @Synchronized
+        fun next(): Job? {
+            while (!cancelled) {
+                // 最后一个级别已经枚举完, 其他任务随后调用时不再前进
+                if (rangeIndex >= ranges.size) {
+                    return null
+                }
+                if (rangeIndex < 0 || !this.advance()) {
+                    if (++rangeIndex >= ranges.size) {
+                        return null
+                    }
+                    val range = ranges[rangeIndex]
+                    row = range.firstRow
+                    column = range.firstCol
+                    existing = writer.readTileKeys(zoomLevel(range.level))
+                }
+                val range = ranges[rangeIndex]
+                val gpkgRow = GpkgTileWriter.matrixHeight(zoomLevel(range.level)) - row - 1
+                if (existing.contains(GpkgTileWriter.tileKey(column, gpkgRow))) {
+                    synchronized(progress) { progress.skippedCount++ }
+                    continue
+                }
+                return Job(range.level, row, column)
+            }
+            return null
+        }
+
+        private fun advance(): Boolean {
+            val range = ranges[rangeIndex]
+            if (++column > range.lastCol) {
+                column = range.firstCol
+                if (++row > range.lastRow) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+
+    /**
+     * 令牌桶式的速率限制, 每个下载完成后按其字节数预约发送时间, 超出速率的任务等待到预约时间
+     */
+    protected class BandwidthLimiter(val bytesPerSecond: Long) {
+        private var availableAt = 0L
+
+        @Throws(InterruptedException::class)
+        fun acquire(bytes: Long) {
+            if (bytesPerSecond <= 0 || bytes <= 0) {
+                return
+            }
+            val now = System.nanoTime()
+            val waitNanos = synchronized(this) {
+                val start = Math.max(availableAt, now)
+                availableAt = start + bytes * 1000000000L / bytesPerSecond
+                start - now
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos)
+            }
+        }
+    }
+
+    /**
+     * GeoPackage 级别号与 levelSet 级别号之差
+     */
+    protected val zoomOffset: Int
+
+    var threadCount = 4
+
+    var batchSize = 64
+
+    /**
+     * 所有下载任务的总速率上限, 0 表示不限制
+     */
+    var maxBytesPerSecond: Long = 0
+
+    /**
+     * estimate 不采样时使用的平均瓦片大小
+     */
+    var averageTileBytes: Long = 16 * 1024
+
+    @Volatile
+    protected var cancelled = false
+
+    constructor(surfaceImage: TiledSurfaceImage) : this(
+        surfaceImage.levelSet,
+        surfaceImage.tileFactory ?: throw IllegalArgumentException(
+            Logger.logMessage(Logger.ERROR, "GpkgTileSeeder", "constructor", "missingTileFactory")
+        )
+    )
+
+    init {
+        val ratio = 180.0 / levelSet.firstLevelDelta
+        val offset = Math.round(Math.log(ratio) / Math.log(2.0)).toInt()
+        if (offset < 0 || Math.abs(180.0 / (1 shl offset) - levelSet.firstLevelDelta) > 1e-9) {
+            throw IllegalArgumentException(
+                Logger.logMessage(
+                    Logger.ERROR, "GpkgTileSeeder", "constructor",
+                    "The first level delta is not 180 divided by a power of two: ${levelSet.firstLevelDelta}"
+                )
+            )
+        }
+        this.zoomOffset = offset
+    }
+
+    fun zoomLevel(level: Level) = level.levelNumber + zoomOffset
+
+    /**
+     * 不下载写入, 只统计扇区与级别范围内的瓦片数并估算下载量. sampleCount 大于 0 时从最高级别中均匀选取该数量的瓦片下载,
+     * 以它们的平均大小代替 averageTileBytes
+     */
+    fun estimate(sector: Sector, firstLevel: Int, lastLevel: Int, sampleCount: Int = 0): Estimate {
+        val ranges = this.assembleRanges(sector, firstLevel, lastLevel)
+        val levelTileCounts = LongArray(ranges.size) { ranges[it].tileCount }
+        val tileCount = levelTileCounts.sum()
+        var average = averageTileBytes
+        if (sampleCount > 0 && ranges.isNotEmpty()) {
+            val range = ranges[ranges.size - 1]
+            val columns = range.lastCol - range.firstCol + 1
+            var bytes = 0L
+            var samples = 0
+            val count = Math.min(sampleCount.toLong(), range.tileCount).toInt()
+            for (idx in 0 until count) {
+                val index = idx * range.tileCount / count
+                val job = Job(range.level, range.firstRow + (index / columns).toInt(), range.firstCol + (index % columns).toInt())
+                val data = try {
+                    this.download(job)
+                } catch (ex: IOException) {
+                    null
+                } ?: continue
+                bytes += data.size
+                samples++
+            }
+            if (samples > 0) {
+                average = bytes / samples
+            }
+        }
+        return Estimate(tileCount, levelTileCounts, average)
+    }
+
+    /**
+     * 下载扇区内 firstLevel 到 lastLevel 级别的瓦片并写入 writer, 阻塞到全部完成或被 cancel, 返回最终进度.
+     * 须在后台线程调用, listener 在调用线程中于每批写入后回调
+     */
+    @Throws(InterruptedException::class)
+    fun seed(sector: Sector, firstLevel: Int, lastLevel: Int, writer: GpkgTileSink, listener: Listener?): Progress {
+        val ranges = this.assembleRanges(sector, firstLevel, lastLevel)
+        val progress = Progress()
+        progress.totalCount = ranges.fold(0L) { sum, range -> sum + range.tileCount }
+        if (ranges.isEmpty()) {
+            return progress
+        }
+        cancelled = false
+
+        for (range in ranges) {
+            writer.writeTileMatrix(zoomLevel(range.level), range.level.tileWidth, range.level.tileHeight)
+        }
+        writer.writeContentBounds(Sector(sector).apply { intersect(levelSet.sector) })
+
+        val cursor = Cursor(ranges, writer, progress)
+        val limiter = BandwidthLimiter(maxBytesPerSecond)
+        val results = LinkedBlockingQueue<GpkgTileUserData>(batchSize * 2)
+        val failed = AtomicLong()
+        val downloaded = AtomicLong()
+        val workers = CountDownLatch(threadCount)
+        // 下载下一个瓦片并放入 results, 没有剩余的瓦片时返回 false
+        val downloadNext = fun(): Boolean {
+            val job = cursor.next() ?: return false
+            val data = try {
+                this.download(job)
+            } catch (ex: IOException) {
+                null
+            }
+            if (data == null) {
+                failed.incrementAndGet()
+                return true
+            }
+            downloaded.addAndGet(data.size.toLong())
+            limiter.acquire(data.size.toLong())
+            val tile = GpkgTileUserData()
+            tile.zoomLevel = zoomLevel(job.level)
+            tile.tileColumn = job.column
+            tile.tileRow = GpkgTileWriter.matrixHeight(tile.zoomLevel) - job.row - 1
+            tile.tileData = data
+            results.put(tile)
+            return true
+        }
+        val worker = Runnable {
+            try {
+                while (downloadNext()) {
+                }
+            } catch (ex: InterruptedException) {
+                cancelled = true
+            } catch (ex: RuntimeException) {
+                Logger.logMessage(Logger.ERROR, "GpkgTileSeeder", "seed", "Seeding task failed", ex)
+                cancelled = true
+            } finally {
+                workers.countDown()
+            }
+        }
+        var started = 0
+        for (idx in 0 until threadCount) {
+            try {
+                WorldWind.taskService.execute(TaskService.BULK_DOWNLOAD, worker)
+                started++
+            } catch (ex: RejectedExecutionException) {
+                workers.countDown() // the bulk download pool is full; the remaining tasks share the work
+            }
+        }
+        // 批量下载线程池已满, 没有任务可以启动时在调用线程中逐个下载
+        var downloadInline = started == 0
+
+        val batch = ArrayList<GpkgTileUserData>(batchSize)
+        try {
+            while (true) {
+                if (downloadInline) {
+                    downloadInline = downloadNext()
+                }
+                val tile = results.poll(if (downloadInline) 0 else 250, TimeUnit.MILLISECONDS)
+                if (tile != null) {
+                    batch.add(tile)
+                    results.drainTo(batch, batchSize - batch.size)
+                }
+                val finished = tile == null && !downloadInline && workers.count == 0L && results.isEmpty()
+                if (batch.size >= batchSize || (batch.isNotEmpty() && (tile == null || finished))) {
+                    writer.writeTiles(batch)
+                    synchronized(progress) {
+                        progress.writtenCount += batch.size
+                        progress.failedCount = failed.get()
+                        progress.bytesDownloaded = downloaded.get()
+                    }
+                    batch.clear()
+                    listener?.onProgress(this, progress)
+                }
+                if (finished) {
+                    break
+                }
+            }
+        } catch (ex: Exception) {
+            cancelled = true
+            throw ex
+        } finally {
+            if (cancelled) {
+                results.clear() // unblock workers waiting on a full queue
+            }
+        }
+
+        synchronized(progress) {
+            progress.failedCount = failed.get()
+            progress.bytesDownloaded = downloaded.get()
+        }
+        listener?.onProgress(this, progress)
+        return progress
+    }
+
+    /**
+     * 停止正在进行的 seed. 已写入的瓦片保留, 再次 seed 时跳过
+     */
+    fun cancel() {
+        cancelled = true
+    }
+
+    fun isCancelled() = cancelled
+
+    /**
+     * 下载一个瓦片, 瓦片没有 URL 或服务端没有返回图片时返回 null
+     */
+    @Throws(IOException::class)
+    protected fun download(job: Job): ByteArray? {
+        val tileDelta = job.level.tileDelta
+        val sector = Sector(-90 + job.row * tileDelta, -180 + job.column * tileDelta, tileDelta, tileDelta)
+        val tile = tileFactory.createTile(sector, job.level, job.row, job.column) as? ImageTile ?: return null
+        val imageSource = tile.imageSource ?: return null
+        if (!imageSource.isUrl()) {
+            return null
+        }
+        val url = imageSource.asUrl() ?: return null
+        val response = WorldWind.tileTransport.fetch(url, null)
+        // WMS 等服务出错时可能以 200 返回 XML 异常报告
+        val contentType = response.contentType
+        if (!response.isSuccess() || (contentType != null && !contentType.startsWith("image/", true))) {
+            return null
+        }
+        return response.data
+    }
+
+    protected fun assembleRanges(sector: Sector, firstLevel: Int, lastLevel: Int): List<LevelRange> {
+        if (firstLevel < 0 || lastLevel < firstLevel) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "GpkgTileSeeder", "assembleRanges", "invalidLevelRange")
+            )
+        }
+        val bounds = Sector(sector)
+        if (!bounds.intersect(levelSet.sector)) {
+            return emptyList()
+        }
+        val result = arrayListOf<LevelRange>()
+        for (levelNumber in firstLevel..Math.min(lastLevel, levelSet.numLevels() - 1)) {
+            val level = levelSet.level(levelNumber) ?: continue
+            val tileDelta = level.tileDelta
+            result.add(
+                LevelRange(
+                    level,
+                    Tile.computeRow(tileDelta, bounds.minLatitude),
+                    Tile.computeLastRow(tileDelta, bounds.maxLatitude),
+                    Tile.computeColumn(tileDelta, bounds.minLongitude),
+                    Tile.computeLastColumn(tileDelta, bounds.maxLongitude)
+                )
+            )
+        }
+        return result
+    }
+}
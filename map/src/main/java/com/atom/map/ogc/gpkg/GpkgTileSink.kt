@@ -0,0 +1,20 @@
+package com.atom.map.ogc.gpkg
+
+import com.atom.map.geom.Sector
+
+/**
+ * GpkgTileSeeder 写入瓦片的目标, 由 GpkgTileWriter 实现. 级别号与行号使用 GeoPackage 的约定
+ */
+interface GpkgTileSink {
+
+    fun writeTileMatrix(zoomLevel: Int, tileWidth: Int, tileHeight: Int)
+
+    fun writeContentBounds(sector: Sector)
+
+    /**
+     * 返回一个级别中已写入的瓦片, 元素为 [GpkgTileWriter.tileKey]
+     */
+    fun readTileKeys(zoomLevel: Int): MutableSet<Long>
+
+    fun writeTiles(tiles: List<GpkgTileUserData>)
+}
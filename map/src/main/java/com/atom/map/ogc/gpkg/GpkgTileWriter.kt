@@ -0,0 +1,237 @@
+package com.atom.map.ogc.gpkg
+
+import android.content.ContentValues
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import com.atom.map.geom.Sector
+import com.atom.map.util.Logger
+import com.atom.map.util.WWUtil
+import java.io.Closeable
+
+/**
+ * 以读写方式打开或创建 GeoPackage, 向一个 EPSG:4326 瓦片表写入瓦片.
+ * 首次打开时创建 gpkg_spatial_ref_sys, gpkg_contents, gpkg_tile_matrix_set, gpkg_tile_matrix 与瓦片表,
+ * 瓦片矩阵以 180 度为第 0 级 (2 x 1 个瓦片), 与 LayerFactory.createFromGeoPackage 读取时的级别设置一致.
+ * 瓦片行号使用 GeoPackage 的约定, 从北向南递增.
+ */
+class GpkgTileWriter(val pathName: String, val tableName: String) : GpkgTileSink, Closeable {
+
+    companion object {
+        const val EPSG_4326 = 4326
+
+        /**
+         * GeoPackage 1.2 的 application_id ("GPKG") 与 user_version
+         */
+        const val APPLICATION_ID = 0x47504B47
+
+        const val USER_VERSION = 10200
+
+        private val TABLE_NAME_PATTERN = Regex("[A-Za-z_][A-Za-z0-9_]*")
+
+        fun tileKey(tileColumn: Int, tileRow: Int): Long {
+            return (tileColumn.toLong() shl 32) or (tileRow.toLong() and 0xFFFFFFFFL)
+        }
+
+        fun matrixWidth(zoomLevel: Int) = 2 shl zoomLevel
+
+        fun matrixHeight(zoomLevel: Int) = 1 shl zoomLevel
+    }
+
+    protected val database: SQLiteDatabase
+
+    init {
+        if (!TABLE_NAME_PATTERN.matches(tableName)) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "GpkgTileWriter", "constructor", "invalidTableName: $tableName")
+            )
+        }
+        database = SQLiteDatabase.openDatabase(
+            pathName, null, SQLiteDatabase.OPEN_READWRITE or SQLiteDatabase.CREATE_IF_NECESSARY
+        )
+        try {
+            this.createTables()
+        } catch (ex: RuntimeException) {
+            WWUtil.closeSilently(database)
+            throw ex
+        }
+    }
+
+    protected fun createTables() {
+        database.beginTransaction()
+        try {
+            if (database.version == 0) {
+                database.execSQL("PRAGMA application_id = $APPLICATION_ID")
+                database.version = USER_VERSION
+            }
+            database.execSQL(
+                "CREATE TABLE IF NOT EXISTS gpkg_spatial_ref_sys (" +
+                    "srs_name TEXT NOT NULL, srs_id INTEGER NOT NULL PRIMARY KEY, organization TEXT NOT NULL, " +
+                    "organization_coordsys_id INTEGER NOT NULL, definition TEXT NOT NULL, description TEXT)"
+            )
+            database.execSQL(
+                "CREATE TABLE IF NOT EXISTS gpkg_contents (" +
+                    "table_name TEXT NOT NULL PRIMARY KEY, data_type TEXT NOT NULL, identifier TEXT UNIQUE, " +
+                    "description TEXT DEFAULT '', " +
+                    "last_change DATETIME NOT NULL DEFAULT (strftime('%Y-%m-%dT%H:%M:%fZ','now')), " +
+                    "min_x DOUBLE, min_y DOUBLE, max_x DOUBLE, max_y DOUBLE, srs_id INTEGER, " +
+                    "CONSTRAINT fk_gc_r_srs_id FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys(srs_id))"
+            )
+            database.execSQL(
+                "CREATE TABLE IF NOT EXISTS gpkg_tile_matrix_set (" +
+                    "table_name TEXT NOT NULL PRIMARY KEY, srs_id INTEGER NOT NULL, " +
+                    "min_x DOUBLE NOT NULL, min_y DOUBLE NOT NULL, max_x DOUBLE NOT NULL, max_y DOUBLE NOT NULL, " +
+                    "CONSTRAINT fk_gtms_table_name FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name), " +
+                    "CONSTRAINT fk_gtms_srs FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys (srs_id))"
+            )
+            database.execSQL(
+                "CREATE TABLE IF NOT EXISTS gpkg_tile_matrix (" +
+                    "table_name TEXT NOT NULL, zoom_level INTEGER NOT NULL, " +
+                    "matrix_width INTEGER NOT NULL, matrix_height INTEGER NOT NULL, " +
+                    "tile_width INTEGER NOT NULL, tile_height INTEGER NOT NULL, " +
+                    "pixel_x_size DOUBLE NOT NULL, pixel_y_size DOUBLE NOT NULL, " +
+                    "CONSTRAINT pk_ttm PRIMARY KEY (table_name, zoom_level), " +
+                    "CONSTRAINT fk_tmm_table_name FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name))"
+            )
+            database.execSQL(
+                "CREATE TABLE IF NOT EXISTS '$tableName' (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, zoom_level INTEGER NOT NULL, " +
+                    "tile_column INTEGER NOT NULL, tile_row INTEGER NOT NULL, tile_data BLOB NOT NULL, " +
+                    "UNIQUE (zoom_level, tile_column, tile_row))"
+            )
+            // 规范要求的两个未定义坐标系与 WGS 84
+            database.execSQL(
+                "INSERT OR IGNORE INTO gpkg_spatial_ref_sys VALUES " +
+                    "('Undefined cartesian SRS', -1, 'NONE', -1, 'undefined', 'undefined cartesian coordinate reference system'), " +
+                    "('Undefined geographic SRS', 0, 'NONE', 0, 'undefined', 'undefined geographic coordinate reference system'), " +
+                    "('WGS 84 geodetic', $EPSG_4326, 'EPSG', $EPSG_4326, " +
+                    "'GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563]]," +
+                    "PRIMEM[\"Greenwich\",0],UNIT[\"degree\",0.0174532925199433]]', " +
+                    "'longitude/latitude coordinates in decimal degrees on the WGS 84 spheroid')"
+            )
+            database.execSQL(
+                "INSERT OR IGNORE INTO gpkg_contents (table_name, data_type, identifier, srs_id) " +
+                    "VALUES ('$tableName', 'tiles', '$tableName', $EPSG_4326)"
+            )
+            database.execSQL(
+                "INSERT OR IGNORE INTO gpkg_tile_matrix_set VALUES ('$tableName', $EPSG_4326, -180, -90, 180, 90)"
+            )
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+    }
+
+    /**
+     * 把 sector 合并到瓦片表内容的范围中. 读取时以该范围作为图层的扇区
+     */
+    override fun writeContentBounds(sector: Sector) {
+        val bounds = Sector(sector)
+        this.readContentBounds()?.let { bounds.union(it) }
+        val values = ContentValues()
+        values.put("min_x", bounds.minLongitude)
+        values.put("min_y", bounds.minLatitude)
+        values.put("max_x", bounds.maxLongitude)
+        values.put("max_y", bounds.maxLatitude)
+        database.update("gpkg_contents", values, "table_name=?", arrayOf(tableName))
+    }
+
+    fun readContentBounds(): Sector? {
+        var cursor: Cursor? = null
+        try {
+            cursor = database.rawQuery(
+                "SELECT min_x, min_y, max_x, max_y FROM gpkg_contents WHERE table_name=? AND min_x IS NOT NULL",
+                arrayOf(tableName)
+            )
+            if (!cursor.moveToNext()) {
+                return null
+            }
+            val minX = cursor.getDouble(0)
+            val minY = cursor.getDouble(1)
+            return Sector(minY, minX, cursor.getDouble(3) - minY, cursor.getDouble(2) - minX)
+        } finally {
+            WWUtil.closeSilently(cursor)
+        }
+    }
+
+    /**
+     * 写入一个级别的瓦片矩阵, 该级别的瓦片边长为 180 / 2^zoomLevel 度
+     */
+    override fun writeTileMatrix(zoomLevel: Int, tileWidth: Int, tileHeight: Int) {
+        val tileDelta = 180.0 / matrixHeight(zoomLevel)
+        val values = ContentValues()
+        values.put("table_name", tableName)
+        values.put("zoom_level", zoomLevel)
+        values.put("matrix_width", matrixWidth(zoomLevel))
+        values.put("matrix_height", matrixHeight(zoomLevel))
+        values.put("tile_width", tileWidth)
+        values.put("tile_height", tileHeight)
+        values.put("pixel_x_size", tileDelta / tileWidth)
+        values.put("pixel_y_size", tileDelta / tileHeight)
+        database.insertWithOnConflict("gpkg_tile_matrix", null, values, SQLiteDatabase.CONFLICT_REPLACE)
+    }
+
+    /**
+     * 返回一个级别中已写入的瓦片, 元素为 [tileKey]
+     */
+    override fun readTileKeys(zoomLevel: Int): MutableSet<Long> {
+        val result = hashSetOf<Long>()
+        var cursor: Cursor? = null
+        try {
+            cursor = database.rawQuery(
+                "SELECT tile_column, tile_row FROM '$tableName' WHERE zoom_level=?", arrayOf(zoomLevel.toString())
+            )
+            while (cursor.moveToNext()) {
+                result.add(tileKey(cursor.getInt(0), cursor.getInt(1)))
+            }
+        } finally {
+            WWUtil.closeSilently(cursor)
+        }
+        return result
+    }
+
+    fun readTileCount(): Long {
+        var cursor: Cursor? = null
+        try {
+            cursor = database.rawQuery("SELECT COUNT(*) FROM '$tableName'", null)
+            return if (cursor.moveToNext()) cursor.getLong(0) else 0
+        } finally {
+            WWUtil.closeSilently(cursor)
+        }
+    }
+
+    /**
+     * 在一个事务中写入一批瓦片, 已存在的瓦片被替换
+     */
+    override fun writeTiles(tiles: List<GpkgTileUserData>) {
+        if (tiles.isEmpty()) {
+            return
+        }
+        val statement = database.compileStatement(
+            "INSERT OR REPLACE INTO '$tableName' (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)"
+        )
+        database.beginTransaction()
+        try {
+            for (tile in tiles) {
+                val data = tile.tileData ?: continue
+                statement.clearBindings()
+                statement.bindLong(1, tile.zoomLevel.toLong())
+                statement.bindLong(2, tile.tileColumn.toLong())
+                statement.bindLong(3, tile.tileRow.toLong())
+                statement.bindBlob(4, data)
+                statement.executeInsert()
+            }
+            database.execSQL(
+                "UPDATE gpkg_contents SET last_change=strftime('%Y-%m-%dT%H:%M:%fZ','now') WHERE table_name=?",
+                arrayOf(tableName)
+            )
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+            WWUtil.closeSilently(statement)
+        }
+    }
+
+    override fun close() {
+        database.close()
+    }
+}
@@ -4,18 +4,25 @@ import android.content.res.Resources
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import com.atom.map.WorldWind
+import com.atom.map.util.DiskTileCache
 import com.atom.map.util.Retriever
-import com.atom.map.util.WWUtil
-import java.io.BufferedInputStream
-import java.io.InputStream
-import java.net.HttpURLConnection
-import java.net.URL
+import com.atom.map.util.TileResponse
+import com.atom.map.util.pool.BitmapPool
 
 open class ImageRetriever(maxSimultaneousRetrievals: Int = 8) :
     Retriever<ImageSource, ImageOptions, Bitmap>(maxSimultaneousRetrievals) {
 
     var resources: Resources? = null
 
+    // 网络瓦片的磁盘缓存, 请求网络之前先查询
+    var diskCache: DiskTileCache? = null
+
+    // 磁盘缓存中的瓦片超过该时间后向服务端重新验证
+    var revalidateAfterMillis: Long = 24 * 60 * 60 * 1000L
+
+    // 解码网络与文件图片时复用其中的位图, 为空时每次分配新的位图
+    var bitmapPool: BitmapPool? = null
+
     @Throws(Exception::class)
     override fun retrieveAsync(
         key: ImageSource,
@@ -50,38 +57,93 @@ open class ImageRetriever(maxSimultaneousRetrievals: Int = 8) :
     }
 
     private fun decodeResource(id: Int, imageOptions: ImageOptions?): Bitmap? {
+        val res = resources ?: return null
         val options: BitmapFactory.Options = this.bitmapFactoryOptions(imageOptions)
-        return if (resources != null) BitmapFactory.decodeResource(resources, id, options) else null
+        return this.decodePooled(options) { BitmapFactory.decodeResource(res, id, it) }
     }
 
     private fun decodeFilePath(pathName: String?, imageOptions: ImageOptions?): Bitmap? {
+        pathName ?: return null
         val options = bitmapFactoryOptions(imageOptions)
-        return BitmapFactory.decodeFile(pathName, options)
+        return this.decodePooled(options) { BitmapFactory.decodeFile(pathName, it) }
     }
 
     @Throws(Exception::class)
     private fun decodeUrl(urlString: String?, imageOptions: ImageOptions?): Bitmap? {
-        var stream: InputStream? = null
-        try {
-            urlString ?: return null
-            val url = URL(urlString)
-            val conn = url.openConnection() as (HttpURLConnection)
-            conn.connectTimeout = 3000
-            conn.requestMethod = "GET"
-            conn.readTimeout = 30000
-            // 模拟浏览器
-            conn.setRequestProperty("Accept-Language", "zh-CN")
-            conn.setRequestProperty("Charset", "UTF-8")
-            conn.setRequestProperty("User-Agent",
-                "Mozilla/4.0 (compatible; MSIE 7.0; Windows NT 5.2; Trident/4.0; " +
-                        ".NET CLR 1.1.4322; .NET CLR 2.0.50727; .NET CLR 3.0.04506.30; " +
-                        ".NET CLR 3.0.4506.2152; .NET CLR 3.5.30729)")
-            stream = BufferedInputStream(conn.inputStream)
-            val options = bitmapFactoryOptions(imageOptions)
-            return BitmapFactory.decodeStream(stream, null, options)
-        } finally {
-            WWUtil.closeSilently(stream)
+        urlString ?: return null
+        val options = bitmapFactoryOptions(imageOptions)
+        val cache = diskCache
+        val cached = cache?.getTile(urlString)
+        if (cache != null && cached != null) {
+            val age = System.currentTimeMillis() - cached.storedAt
+            if (age < revalidateAfterMillis || cached.validator == null) {
+                this.decodeBytes(cached.data, options)?.let { return it }
+                cache.remove(urlString) // 缓存的数据无法解码, 重新请求网络
+            } else {
+                // 缓存已过期, 发送条件请求; 网络不可用时继续使用过期的缓存
+                val response = try {
+                    this.fetchUrl(urlString, cached.validator)
+                } catch (ex: Exception) {
+                    null
+                }
+                if (response == null || !response.isSuccess()) {
+                    if (response != null && response.isNotModified()) {
+                        cache.put(urlString, cached.data, cached.validator) // 刷新写入时间
+                    }
+                    return this.decodeBytes(cached.data, options)
+                }
+                return this.decodeResponse(urlString, response, options)
+            }
+        }
+        return this.decodeResponse(urlString, this.fetchUrl(urlString, null), options)
+    }
+
+    private fun decodeResponse(urlString: String, response: TileResponse, options: BitmapFactory.Options): Bitmap? {
+        val bytes = response.data ?: return null
+        val bitmap = this.decodeBytes(bytes, options)
+        if (bitmap != null) {
+            diskCache?.put(urlString, bytes, response.validator)
+        }
+        return bitmap
+    }
+
+    private fun decodeBytes(bytes: ByteArray, options: BitmapFactory.Options): Bitmap? {
+        return this.decodePooled(options) { BitmapFactory.decodeByteArray(bytes, 0, bytes.size, it) }
+    }
+
+    /**
+     * 先只解码图片大小, 再从位图池中取出同样大小与格式的位图作为 inBitmap 解码.
+     * 解码出的位图登记到池中, 纹理上传之后可以归还
+     */
+    private inline fun decodePooled(options: BitmapFactory.Options, decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+        val pool = bitmapPool ?: return decode(options)
+        options.inJustDecodeBounds = true
+        decode(options)
+        options.inJustDecodeBounds = false
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null // 无法解码的数据
+        }
+        val config = options.inPreferredConfig ?: Bitmap.Config.ARGB_8888
+        val reusable = pool.acquire(options.outWidth, options.outHeight, config)
+        options.inMutable = true // 池中只保存可变位图
+        options.inBitmap = reusable
+        val bitmap = try {
+            decode(options)
+        } catch (ex: IllegalArgumentException) {
+            // 图片的格式与复用的位图不兼容, 分配新的位图
+            options.inBitmap = null
+            decode(options)
         }
+        if (reusable != null && bitmap !== reusable) {
+            pool.release(reusable)
+        }
+        bitmap?.let { pool.adopt(it) }
+        return bitmap
+    }
+
+    @Throws(Exception::class)
+    protected open fun fetchUrl(urlString: String, validator: String?): TileResponse {
+        return WorldWind.tileTransport.fetch(urlString, validator)
     }
 
     private fun decodeUnrecognized(imageSource: ImageSource): Bitmap? {
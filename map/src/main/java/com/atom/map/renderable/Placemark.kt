@@ -29,6 +29,8 @@ open class Placemark : AbstractRenderable,
 
         var DEFAULT_DEPTH_OFFSET = -0.003
 
+        var DEFAULT_ENABLE_BATCHING = true
+
         fun createSimple(position: Position, color: SimpleColor, pixelSize: Int): Placemark {
             val defaults = PlacemarkAttributes.defaults()
             defaults.imageColor = color
@@ -62,14 +64,33 @@ open class Placemark : AbstractRenderable,
             )
         }
 
-        private var placePoint = Vec3()
-        private val screenPlacePoint = Vec3()
-        private var groundPoint = Vec3()
-        private val offset: Vec2 = Vec2()
-        private val screenBounds = Viewport()
-        private val unitSquareTransform: Matrix4 = Matrix4()
+        /**
+         * 每个渲染线程一份临时对象, 并行渲染图层时不同线程中的地标互不干扰
+         */
+        private val scratchObjects = object : ThreadLocal<Scratch>() {
+            override fun initialValue() = Scratch()
+        }
+    }
+
+    protected class Scratch {
+        val placePoint = Vec3()
+        val screenPlacePoint = Vec3()
+        val groundPoint = Vec3()
+        val offset: Vec2 = Vec2()
+        val screenBounds = Viewport()
+        val unitSquareTransform: Matrix4 = Matrix4()
     }
 
+    // 本次 doRender 所在线程的临时对象
+    private lateinit var scratch: Scratch
+
+    private val placePoint get() = scratch.placePoint
+    private val screenPlacePoint get() = scratch.screenPlacePoint
+    private val groundPoint get() = scratch.groundPoint
+    private val offset get() = scratch.offset
+    private val screenBounds get() = scratch.screenBounds
+    private val unitSquareTransform get() = scratch.unitSquareTransform
+
     var position: Position
 
     var label: String
@@ -101,6 +122,11 @@ open class Placemark : AbstractRenderable,
     @WorldWind.OrientationMode
     var imageTiltReference = 0
 
+    /**
+     * 图标与使用同一纹理的其他地标合批绘制, 此时不调用 prepareDrawableIcon. 标注与引线不受影响
+     */
+    var enableBatching = DEFAULT_ENABLE_BATCHING
+
     /**
      * The picked object ID associated with the placemark during the current render pass.
      */
@@ -137,6 +163,7 @@ open class Placemark : AbstractRenderable,
 
     override fun doRender(rc: RenderContext) {
         val position = this.position ?: return
+        scratch = scratchObjects.get()
         // Compute the placemark's Cartesian model point.
         rc.geographicToCartesian(
             position.latitude,
@@ -171,6 +198,7 @@ open class Placemark : AbstractRenderable,
         levelOfDetailSelector?.selectLevelOfDetail(rc, this, cameraDistance)
 
         val drawableCount = rc.drawableCount()
+        val iconCount = rc.placemarkIcons.count()
         if (rc.pickMode) {
             pickedObjectId = rc.nextPickedObjectId()
             pickColor = PickedObject.identifierToUniqueColor(pickedObjectId, pickColor)
@@ -179,7 +207,7 @@ open class Placemark : AbstractRenderable,
 
         if (mustDrawLeader(rc)) {
             // Compute the placemark's Cartesian ground point.
-            groundPoint = rc.geographicToCartesian(
+            rc.geographicToCartesian(
                 position.latitude, position.longitude, 0.0, WorldWind.CLAMP_TO_GROUND,
                 groundPoint
             )
@@ -238,16 +266,25 @@ open class Placemark : AbstractRenderable,
         )
 
         if (rc.frustum.intersectsViewport(screenBounds) && surfaceTexture != null) {
-            val pool: Pool<DrawableScreenTexture> = rc.getDrawablePool(
-                DrawableScreenTexture::class.java
-            )
-            val drawable: DrawableScreenTexture = DrawableScreenTexture.obtain(pool)
-            prepareDrawableIcon(rc, drawable, surfaceTexture!!)
-            rc.offerShapeDrawable(drawable, cameraDistance)
+            if (enableBatching) {
+                // 图标交给 rc 按纹理合批, 拾取时顶点颜色即拾取颜色
+                rc.offerPlacemarkIcon(
+                    surfaceTexture!!, unitSquareTransform,
+                    if (rc.pickMode) pickColor else activeAttributes!!.imageColor,
+                    activeAttributes!!.depthTest, cameraDistance
+                )
+            } else {
+                val pool: Pool<DrawableScreenTexture> = rc.getDrawablePool(
+                    DrawableScreenTexture::class.java
+                )
+                val drawable: DrawableScreenTexture = DrawableScreenTexture.obtain(pool)
+                prepareDrawableIcon(rc, drawable, surfaceTexture!!)
+                rc.offerShapeDrawable(drawable, cameraDistance)
+            }
         }
 
         // Enqueue a picked object that associates the placemark's icon and leader with its picked object ID.
-        if (rc.pickMode && rc.drawableCount() != drawableCount) {
+        if (rc.pickMode && (rc.drawableCount() != drawableCount || rc.placemarkIcons.count() != iconCount)) {
             rc.offerPickedObject(
                 PickedObject.fromRenderable(
                     pickedObjectId,
@@ -1,145 +1,217 @@
 package com.atom.map.renderable
 
-import android.content.res.Resources
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import com.atom.map.WorldWind
-import com.atom.map.util.Retriever
-import com.atom.map.util.WWUtil
-import java.io.BufferedInputStream
-import java.io.InputStream
-import java.net.HttpURLConnection
-import java.net.URL
-import java.util.concurrent.PriorityBlockingQueue
-
-open class PriorityRetriever(maxSimultaneousRetrievals: Int = 8) :
-    Retriever<ImageSource, ImageOptions, Bitmap>(maxSimultaneousRetrievals) {
-
-    var resources: Resources? = null
-    private val idComparator = Comparator<Priority> { p0, p1 -> p0.id() - p1.id() }
-    private val queue = PriorityBlockingQueue(maxSimultaneousRetrievals, idComparator)
-
-    @Throws(Exception::class)
-    override fun retrieveAsync(
+import java.util.*
+
+/**
+ * 按优先级调度的图片请求器. 请求先进入优先级队列, 最多 maxSimultaneousRetrievals 个工作任务按优先级 (数值越小越优先,
+ * 通常为瓦片到相机的距离) 从队列中取出请求执行.
+ *
+ * 同一请求在每帧重复提交时更新其优先级与最近请求帧; beginFrame 时丢弃最近 maxIdleFrames 帧内没有再被请求的排队请求,
+ * 例如相机已经离开的瓦片. 下载完成时已不再被请求的记为浪费的请求.
+ * 排队或下载中的请求与 Retriever 一样合并重复请求的回调, 失败的请求同样进入失败缓存.
+ */
+open class PriorityRetriever(
+    maxSimultaneousRetrievals: Int = 8,
+    var maxQueuedRetrievals: Int = 256,
+    var maxIdleFrames: Int = 2
+) : ImageRetriever(maxSimultaneousRetrievals) {
+
+    protected class Request(val key: ImageSource, val options: ImageOptions?) {
+        var priority = 0
+        var lastFrame: Long = 0
+        // 每次重新评分递增, 队列中版本不一致的节点已过期
+        var version = 0
+    }
+
+    protected class QueueNode(val request: Request, val priority: Int, val version: Int)
+
+    protected val queue = PriorityQueue<QueueNode>(11, Comparator { lhs, rhs -> Integer.compare(lhs.priority, rhs.priority) })
+
+    protected val pending = hashMapOf<ImageSource, Request>()
+
+    protected val inFlight = hashMapOf<ImageSource, Request>()
+
+    protected var activeWorkers = 0
+
+    protected var frameNumber: Long = 0
+
+    protected var cancelled: Long = 0
+
+    protected var wasted: Long = 0
+
+    protected var completed: Long = 0
+
+    private val worker = Runnable { this.drainQueue() }
+
+    override fun retrieve(
         key: ImageSource,
         options: ImageOptions?,
         callback: Callback<ImageSource, ImageOptions, Bitmap>
     ) {
-        this.decodeImage(key, options)?.let {
-            callback.retrievalSucceeded(this, key, options, it)
-        } ?: let {
-            callback.retrievalFailed(this, key, null) // failed but no exception
-        }
+        retrieve(key, options, callback, Int.MAX_VALUE)
     }
 
-
     override fun retrieve(
         key: ImageSource,
         options: ImageOptions?,
         callback: Callback<ImageSource, ImageOptions, Bitmap>,
         id: Int
     ) {
-        obtainAsyncTask(key, options, callback)?.let {
-            if(queue.offer(Priority(id, it))){
-                try {
-                    WorldWind.taskService.execute(Runnable {
-                        queue.poll()?.task()?.run()
-                    })
-                } catch (ignored: Exception) {
-                    recycleAsyncTask(it)
-                    callback.retrievalRejected(
-                        this,
-                        key,
-                        ignored.localizedMessage ?: ignored.toString()
-                    )
+        var rejected: String? = null
+        var startWorker = false
+        synchronized(lock) {
+            if (this.isBackedOff(key)) {
+                return
+            }
+            inFlight[key]?.let {
+                it.lastFrame = frameNumber // 仍然需要, 下载完成时不计为浪费
+                this.attachCallback(key, callback)
+                return
+            }
+            val request = pending[key]
+            if (request != null) {
+                this.attachCallback(key, callback)
+                request.lastFrame = frameNumber
+                if (request.priority != id) {
+                    request.priority = id
+                    request.version++
+                    queue.offer(QueueNode(request, id, request.version))
+                }
+                return
+            }
+            if (pending.size >= maxQueuedRetrievals) {
+                rejected = "queue is full = ${pending.size}"
+            } else {
+                val newRequest = Request(key, options)
+                newRequest.priority = id
+                newRequest.lastFrame = frameNumber
+                pending[key] = newRequest
+                waiters[key] = arrayListOf(callback)
+                queue.offer(QueueNode(newRequest, id, newRequest.version))
+                if (activeWorkers < maxAsyncTasks) {
+                    activeWorkers++
+                    startWorker = true
                 }
-            }else{
-                callback.retrievalRejected(
-                    this,
-                    key,
-                    "queue is full = ${queue.size}"
-                )
             }
-        } ?: let {
-            callback.retrievalRejected(
-                this,
-                key,
-                "obtain this key or ${asyncTaskSet.size} >= ${maxAsyncTasks}"
-            )
-        }
-    }
-
-    @Throws(Exception::class)
-    private fun decodeImage(imageSource: ImageSource, imageOptions: ImageOptions?): Bitmap? {
-        if (imageSource.isBitmap()) {
-            return imageSource.asBitmap()
-        }
-        if (imageSource.isBitmapFactory()) {
-            return imageSource.asBitmapFactory()?.createBitmap()
         }
-        if (imageSource.isResource()) {
-            return this.decodeResource(imageSource.asResource(), imageOptions)
+        rejected?.let {
+            callback.retrievalRejected(this, key, it)
+            return
         }
-        if (imageSource.isFilePath()) {
-            return this.decodeFilePath(imageSource.asFilePath(), imageOptions)
+        if (startWorker) {
+            try {
+                WorldWind.taskService.execute(workload, worker)
+            } catch (ex: Exception) {
+                // 没有工作任务时排队的请求不会再被取出, 全部移出队列并通知拒绝
+                val dropped = hashMapOf<ImageSource, MutableList<Callback<ImageSource, ImageOptions, Bitmap>>>()
+                synchronized(lock) {
+                    activeWorkers--
+                    if (activeWorkers == 0) {
+                        for (request in pending.values) {
+                            waiters.remove(request.key)?.let { dropped[request.key] = it }
+                        }
+                        pending.clear()
+                        queue.clear()
+                    }
+                }
+                val msg = ex.localizedMessage ?: ex.toString()
+                for ((source, callbacks) in dropped) {
+                    for (it in callbacks) {
+                        it.retrievalRejected(this, source, msg)
+                    }
+                }
+            }
         }
-        if (imageSource.isUrl()) {
-            return decodeUrl(imageSource.asUrl(), imageOptions)
+    }
+
+    /**
+     * 每帧渲染开始时调用, 丢弃最近 maxIdleFrames 帧内没有再被请求的排队请求
+     */
+    open fun beginFrame() {
+        synchronized(lock) {
+            frameNumber++
+            val minFrame = frameNumber - maxIdleFrames
+            val iterator = pending.values.iterator()
+            while (iterator.hasNext()) {
+                val request = iterator.next()
+                if (request.lastFrame < minFrame) {
+                    iterator.remove()
+                    waiters.remove(request.key)
+                    cancelled++
+                }
+            }
+            // 重新评分会在队列中留下过期节点, 过多时重建队列
+            if (queue.size > pending.size * 4 + 64) {
+                queue.clear()
+                for (request in pending.values) {
+                    queue.offer(QueueNode(request, request.priority, request.version))
+                }
+            }
         }
-        return decodeUnrecognized(imageSource)
     }
 
-    private fun decodeResource(id: Int, imageOptions: ImageOptions?): Bitmap? {
-        val options: BitmapFactory.Options = this.bitmapFactoryOptions(imageOptions)
-        return if (resources != null) BitmapFactory.decodeResource(resources, id, options) else null
+    fun getQueueDepth(): Int {
+        synchronized(lock) { return pending.size }
     }
 
-    private fun decodeFilePath(pathName: String?, imageOptions: ImageOptions?): Bitmap? {
-        val options = bitmapFactoryOptions(imageOptions)
-        return BitmapFactory.decodeFile(pathName, options)
+    fun getActiveCount(): Int {
+        synchronized(lock) { return inFlight.size }
     }
 
-    @Throws(Exception::class)
-    private fun decodeUrl(urlString: String?, imageOptions: ImageOptions?): Bitmap? {
-        var stream: InputStream? = null
-        try {
-            urlString ?: return null
-            val url = URL(urlString)
-            val conn = url.openConnection() as (HttpURLConnection)
-            conn.connectTimeout = 3000
-            conn.requestMethod = "GET"
-            conn.readTimeout = 30000
-            // 模拟浏览器
-            conn.setRequestProperty("Accept-Language", "zh-CN")
-            conn.setRequestProperty("Charset", "UTF-8")
-            conn.setRequestProperty(
-                "User-Agent",
-                "Mozilla/4.0 (compatible; MSIE 7.0; Windows NT 5.2; Trident/4.0; " +
-                        ".NET CLR 1.1.4322; .NET CLR 2.0.50727; .NET CLR 3.0.04506.30; " +
-                        ".NET CLR 3.0.4506.2152; .NET CLR 3.5.30729)"
-            )
-            stream = BufferedInputStream(conn.inputStream)
-            val options = bitmapFactoryOptions(imageOptions)
-            return BitmapFactory.decodeStream(stream, null, options)
-        } finally {
-            WWUtil.closeSilently(stream)
-        }
+    fun getCancelledCount(): Long {
+        synchronized(lock) { return cancelled }
+    }
+
+    fun getWastedCount(): Long {
+        synchronized(lock) { return wasted }
+    }
+
+    fun getCompletedCount(): Long {
+        synchronized(lock) { return completed }
     }
 
-    private fun decodeUnrecognized(imageSource: ImageSource): Bitmap? {
-        return null
+    protected open fun drainQueue() {
+        while (true) {
+            val request = synchronized(lock) {
+                val next = this.pollRequest()
+                if (next == null) {
+                    activeWorkers--
+                } else {
+                    pending.remove(next.key)
+                    inFlight[next.key] = next
+                    asyncTaskSet.add(next.key)
+                }
+                next
+            } ?: return
+            try {
+                retrieveAsync(request.key, request.options, completion)
+            } catch (ex: Throwable) {
+                completion.retrievalFailed(this, request.key, ex)
+            } finally {
+                synchronized(lock) {
+                    inFlight.remove(request.key)
+                    asyncTaskSet.remove(request.key)
+                    completed++
+                    if (request.lastFrame < frameNumber - maxIdleFrames) {
+                        wasted++
+                    }
+                }
+            }
+        }
     }
 
-    private fun bitmapFactoryOptions(imageOptions: ImageOptions?): BitmapFactory.Options {
-        val options = BitmapFactory.Options()
-        options.inScaled =
-            false // suppress default image scaling; load the image in its native dimensions
-        imageOptions?.let {
-            when (imageOptions.imageFormat) {
-                WorldWind.RGBA_8888 -> options.inPreferredConfig = Bitmap.Config.ARGB_8888
-                WorldWind.RGB_565 -> options.inPreferredConfig = Bitmap.Config.RGB_565
+    /**
+     * 取出优先级最高的有效请求, 跳过重新评分或取消后遗留的节点. 调用时须持有 lock
+     */
+    protected fun pollRequest(): Request? {
+        while (true) {
+            val node = queue.poll() ?: return null
+            val request = node.request
+            if (node.version == request.version && pending[request.key] === request) {
+                return request
             }
         }
-        return options
     }
-}
\ No newline at end of file
+}
@@ -2,13 +2,17 @@ package com.atom.map.renderable
 
 import android.content.res.Resources
 import android.graphics.Typeface
+import android.util.DisplayMetrics
 import com.atom.map.WorldWind
 import com.atom.map.core.shader.BufferObject
 import com.atom.map.core.shader.GpuProgram
 import com.atom.map.core.shader.GpuTexture
+import com.atom.map.core.shader.PlacemarkBatchProgram
 import com.atom.map.drawable.Drawable
+import com.atom.map.drawable.DrawablePlacemarkBatch
 import com.atom.map.drawable.DrawableQueue
 import com.atom.map.drawable.DrawableTerrain
+import com.atom.map.drawable.PlacemarkIconQueue
 import com.atom.map.geom.*
 import com.atom.map.globe.Globe
 import com.atom.map.globe.Terrain
@@ -38,6 +42,11 @@ open class RenderContext {
 
     lateinit var resources: Resources
 
+    /**
+     * 屏幕密度, 每帧与 resources 一起设置, 瓦片细分时不再逐个读取 resources
+     */
+    var densityDpi = DisplayMetrics.DENSITY_DEFAULT
+
     var terrainTessellator: Tessellator? = null
 
     var terrain: Terrain? = null
@@ -73,10 +82,29 @@ open class RenderContext {
 
     var renderResourceCache: RenderResourceCache? = null
 
+    /**
+     * 本帧还可以预取的瓦片数, 为 0 时不预取
+     */
+    var prefetchBudget = 0
+
+    /**
+     * 预测的相机位置, 及其对应的相机坐标与视锥. 只在 prefetchBudget 大于 0 时有效
+     */
+    val prefetchCamera = Camera()
+
+    val prefetchCameraPoint = Vec3()
+
+    val prefetchFrustum = Frustum()
+
     var drawableQueue: DrawableQueue? = null
 
     var drawableTerrain: DrawableQueue? = null
 
+    /**
+     * 本帧等待合批绘制的地标图标, 排序可绘制对象时组批放入 drawableQueue
+     */
+    val placemarkIcons = PlacemarkIconQueue()
+
     var redrawRequested = false
 
     var pickedObjects: PickedObjectList? = null
@@ -97,7 +125,7 @@ open class RenderContext {
 
     var userProperties: HashMap<Any, Any> = HashMap()
 
-    val textRenderer = TextRenderer()
+    val textRenderer by lazy { TextRenderer() }
 
     val scratchTextCacheKey =
         TextCacheKey()
@@ -132,10 +160,12 @@ open class RenderContext {
         frustum.setToUnitFrustum()
 
         renderResourceCache = null
+        prefetchBudget = 0
         //resources = null
 
         drawableQueue = null
         drawableTerrain = null
+        placemarkIcons.clearIcons()
 
         redrawRequested = false
         pickViewport = null
@@ -149,6 +179,39 @@ open class RenderContext {
         userProperties.clear()
     }
 
+    /**
+     * 复制 rc 本帧的地球, 地形, 相机, 视锥与预取状态, 可绘制队列, 拾取列表与资源缓存不复制.
+     * 并行渲染图层时工作线程的 RenderContext 在每帧开始时调用
+     */
+    open fun copyFrameState(rc: RenderContext) {
+        globe = rc.globe
+        if (rc::resources.isInitialized) {
+            resources = rc.resources
+        }
+        densityDpi = rc.densityDpi
+        terrainTessellator = rc.terrainTessellator
+        terrain = rc.terrain
+        layers = rc.layers
+        verticalExaggeration = rc.verticalExaggeration
+        fieldOfView = rc.fieldOfView
+        horizonDistance = rc.horizonDistance
+        camera.set(rc.camera)
+        cameraPoint.set(rc.cameraPoint)
+        viewport.set(rc.viewport)
+        modelview.set(rc.modelview)
+        projection.set(rc.projection)
+        modelviewProjection.set(rc.modelviewProjection)
+        frustum.set(rc.frustum)
+        prefetchBudget = rc.prefetchBudget
+        prefetchCamera.set(rc.prefetchCamera)
+        prefetchCameraPoint.set(rc.prefetchCameraPoint)
+        prefetchFrustum.set(rc.prefetchFrustum)
+        pickMode = rc.pickMode
+        pixelSizeFactor = 0.0
+        userProperties.clear()
+        userProperties.putAll(rc.userProperties)
+    }
+
     open fun pixelSizeAtDistance(distance: Double): Double {
         if (pixelSizeFactor == 0.0) {
             // cache the scaling factor used to convert distances to pixel sizes
@@ -299,6 +362,20 @@ open class RenderContext {
         return renderResourceCache?.retrieveTexture(imageSource, imageOptions, id)
     }
 
+    /**
+     * 以低优先级预取纹理, 发出请求时消耗一个预取额度并返回 true
+     */
+    open fun prefetchTexture(imageSource: ImageSource, imageOptions: ImageOptions?, priority: Int): Boolean {
+        if (prefetchBudget <= 0) {
+            return false
+        }
+        if (renderResourceCache?.prefetchTexture(imageSource, imageOptions, priority) == true) {
+            prefetchBudget--
+            return true
+        }
+        return false
+    }
+
     open fun offerDrawable(drawable: Drawable, groupId: Int, depth: Double) {
         drawableQueue?.offerDrawable(drawable, groupId, depth)
     }
@@ -326,7 +403,31 @@ open class RenderContext {
         )
     }
 
+    open fun offerPlacemarkIcon(
+        texture: GpuTexture, unitSquareTransform: Matrix4, color: SimpleColor,
+        enableDepthTest: Boolean, cameraDistance: Double
+    ) {
+        placemarkIcons.offerIcon(texture, unitSquareTransform, color, enableDepthTest, cameraDistance)
+    }
+
+    /**
+     * 把本帧的地标图标按纹理组批放入 drawableQueue, 在排序之前调用
+     */
+    open fun flushPlacemarkIcons() {
+        val queue = drawableQueue
+        if (placemarkIcons.count() == 0 || queue == null) {
+            placemarkIcons.clearIcons()
+            return
+        }
+        var program = getProgram(PlacemarkBatchProgram.KEY) as PlacemarkBatchProgram?
+        if (program == null) {
+            program = putProgram(PlacemarkBatchProgram.KEY, PlacemarkBatchProgram(resources)) as PlacemarkBatchProgram
+        }
+        placemarkIcons.assembleBatches(program, getDrawablePool(DrawablePlacemarkBatch::class.java), queue)
+    }
+
     open fun sortDrawables() {
+        flushPlacemarkIcons()
         drawableQueue?.sortDrawables()
         drawableTerrain?.sortDrawables()
     }
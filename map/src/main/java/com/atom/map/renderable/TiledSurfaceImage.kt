@@ -17,6 +17,13 @@ import java.util.*
 open class TiledSurfaceImage :
     AbstractRenderable {
 
+    companion object {
+        /**
+         * 预取请求的优先级偏移, 预取的瓦片排在所有可见瓦片之后
+         */
+        const val PREFETCH_PRIORITY = 1 shl 30
+    }
+
     var levelSet: LevelSet = LevelSet()
         set(value) {
             field = value
@@ -65,6 +72,9 @@ open class TiledSurfaceImage :
         }
         this.determineActiveProgram(rc)
         this.assembleTiles(rc)
+        if (rc.prefetchBudget > 0) {
+            this.prefetchTiles(rc)
+        }
 
         this.activeProgram = null // clear the active program to avoid leaking render resources
         this.ancestorTile = null // clear the ancestor tile and texture
@@ -166,6 +176,52 @@ open class TiledSurfaceImage :
         }
     }
 
+    /**
+     * 以预测的相机位置遍历瓦片, 预取预测视锥内的瓦片及其下一级更精细的瓦片
+     */
+    protected open fun prefetchTiles(rc: RenderContext) {
+        val camera = rc.camera
+        val cameraPoint = rc.cameraPoint
+        rc.camera = rc.prefetchCamera
+        rc.cameraPoint = rc.prefetchCameraPoint
+        try {
+            for (tile in topLevelTiles) {
+                this.prefetchTileOrDescendants(rc, tile as ImageTile)
+            }
+        } finally {
+            rc.camera = camera
+            rc.cameraPoint = cameraPoint
+        }
+    }
+
+    protected fun prefetchTileOrDescendants(rc: RenderContext, tile: ImageTile) {
+        if (rc.prefetchBudget <= 0) {
+            return
+        }
+        if (!tile.intersectsSector(this.levelSet.sector) || !tile.intersectsFrustum(rc, rc.prefetchFrustum)) {
+            return
+        }
+        if (tile.level.isLastLevel() || !tile.mustSubdivide(rc, detailControl)) {
+            val distance = tile.distanceToCamera.toInt()
+            this.prefetchTile(rc, tile, distance)
+            if (!tile.level.isLastLevel()) {
+                // 下一级瓦片排在预测视锥内的瓦片之后
+                for (child in tile.subdivideToCache(tileFactory!!, tileCache, 4)!!) {
+                    this.prefetchTile(rc, child as ImageTile, distance * 2)
+                }
+            }
+            return
+        }
+        for (child in tile.subdivideToCache(tileFactory!!, tileCache, 4)!!) {
+            this.prefetchTileOrDescendants(rc, child as ImageTile)
+        }
+    }
+
+    protected fun prefetchTile(rc: RenderContext, tile: ImageTile, distance: Int) {
+        val imageSource = tile.imageSource ?: return
+        rc.prefetchTexture(imageSource, imageOptions, PREFETCH_PRIORITY + Math.min(Math.max(distance, 0), PREFETCH_PRIORITY - 1))
+    }
+
     protected fun invalidateTiles() {
         topLevelTiles.clear()
         tileCache!!.clear()
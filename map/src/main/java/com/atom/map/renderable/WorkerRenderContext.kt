@@ -0,0 +1,91 @@
+package com.atom.map.renderable
+
+import com.atom.map.core.shader.BufferObject
+import com.atom.map.core.shader.GpuProgram
+import com.atom.map.core.shader.GpuTexture
+import com.atom.map.drawable.DrawableQueue
+import com.atom.map.renderable.attribute.TextAttributes
+
+/**
+ * 并行渲染图层时工作线程使用的绘画环境. 可绘制对象写入自己的队列分片, 可绘制对象池也是自己的,
+ * 资源缓存的读写与预取额度委托给 parent, 并在 lock 上互斥
+ */
+open class WorkerRenderContext(protected val lock: Any) : RenderContext() {
+
+    var parent: RenderContext? = null
+        protected set
+
+    init {
+        drawableQueue = DrawableQueue()
+        drawableTerrain = DrawableQueue()
+    }
+
+    /**
+     * 每帧开始时复制 rc 的状态, 队列分片必须已经清空
+     */
+    open fun attach(rc: RenderContext) {
+        copyFrameState(rc)
+        parent = rc
+        redrawRequested = false
+    }
+
+    open fun detach() {
+        parent = null
+        terrain = null
+        terrainTessellator = null
+        layers = null
+        currentLayer = null
+    }
+
+    override fun getProgram(key: Any): GpuProgram? {
+        synchronized(lock) { return parent?.getProgram(key) }
+    }
+
+    override fun putProgram(key: Any, program: GpuProgram): GpuProgram {
+        synchronized(lock) { return parent?.putProgram(key, program) ?: program }
+    }
+
+    override fun getTexture(imageSource: ImageSource): GpuTexture? {
+        synchronized(lock) { return parent?.getTexture(imageSource) }
+    }
+
+    override fun putTexture(imageSource: ImageSource, texture: GpuTexture): GpuTexture? {
+        synchronized(lock) { return parent?.putTexture(imageSource, texture) }
+    }
+
+    override fun retrieveTexture(imageSource: ImageSource, imageOptions: ImageOptions?): GpuTexture? {
+        synchronized(lock) { return parent?.retrieveTexture(imageSource, imageOptions) }
+    }
+
+    override fun retrieveTexture(imageSource: ImageSource, imageOptions: ImageOptions?, id: Int): GpuTexture? {
+        synchronized(lock) { return parent?.retrieveTexture(imageSource, imageOptions, id) }
+    }
+
+    /**
+     * 预取额度由所有工作线程共享, 以 parent 的额度为准
+     */
+    override fun prefetchTexture(imageSource: ImageSource, imageOptions: ImageOptions?, priority: Int): Boolean {
+        synchronized(lock) {
+            val rc = parent ?: return false
+            val prefetched = rc.prefetchTexture(imageSource, imageOptions, priority)
+            prefetchBudget = rc.prefetchBudget
+            return prefetched
+        }
+    }
+
+    override fun getBufferObject(key: Any): BufferObject? {
+        synchronized(lock) { return parent?.getBufferObject(key) }
+    }
+
+    override fun putBufferObject(key: Any, buffer: BufferObject): BufferObject {
+        synchronized(lock) { return parent?.putBufferObject(key, buffer) ?: buffer }
+    }
+
+    override fun getText(text: String, attributes: TextAttributes): GpuTexture? {
+        synchronized(lock) { return parent?.getText(text, attributes) }
+    }
+
+    override fun renderText(text: String, attributes: TextAttributes): GpuTexture {
+        synchronized(lock) { return parent?.renderText(text, attributes) ?: super.renderText(text, attributes) }
+    }
+}
@@ -49,10 +49,9 @@ class Ellipse : AbstractShape {
         protected val defaultOutlineImageOptions: ImageOptions =
             ImageOptions()
 
+        // 所有椭圆共用, 并行渲染时加锁访问
         protected var elementBufferKeys = SparseArray<Any>()
 
-        private val scratchPosition: Position = Position()
-
         init {
             defaultInteriorImageOptions.wrapMode = WorldWind.REPEAT
             defaultOutlineImageOptions.resamplingMode = WorldWind.NEAREST_NEIGHBOR
@@ -148,6 +147,9 @@ class Ellipse : AbstractShape {
         }
     }
 
+    // 组装几何用的临时对象, 每个实例一份, 并行渲染时互不干扰
+    private val scratchPosition: Position = Position()
+
     var center: Position = Position()
         set(value) {
             field.set(value)
@@ -297,11 +299,10 @@ class Ellipse : AbstractShape {
             rc.putBufferObject(vertexBufferKey, drawState.vertexBuffer!!)
         }
         // Get the attributes of the element buffer
-        var elementBufferKey = elementBufferKeys[activeIntervals]
-        if (elementBufferKey == null) {
-            elementBufferKey =
-                nextCacheKey()
-            elementBufferKeys.put(activeIntervals, elementBufferKey)
+        val elementBufferKey = synchronized(elementBufferKeys) {
+            elementBufferKeys[activeIntervals] ?: nextCacheKey().also {
+                elementBufferKeys.put(activeIntervals, it)
+            }
         }
 
         drawState.elementBuffer = rc.getBufferObject(elementBufferKey)
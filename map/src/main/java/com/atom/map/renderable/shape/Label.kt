@@ -19,17 +19,40 @@ open class Label : AbstractRenderable,
     Movable {
     companion object {
         const val DEFAULT_DEPTH_OFFSET = -0.1
-        var groundPoint = Vec3()
-        var placePoint: Vec3 = Vec3()
-        var screenPlacePoint: Vec3 = Vec3()
-        var offset: Vec2 = Vec2()
-        var unitSquareTransform: Matrix4 = Matrix4()
-        var screenBounds: Viewport = Viewport()
-        var pickedObjectId = 0
-        var pickColor: SimpleColor = SimpleColor()
-        var cameraDistance = 0.0
+
+        /**
+         * 每个渲染线程一份临时对象, 并行渲染图层时不同线程中的标签互不干扰
+         */
+        private val scratchObjects = object : ThreadLocal<Scratch>() {
+            override fun initialValue() = Scratch()
+        }
     }
 
+    protected class Scratch {
+        val groundPoint = Vec3()
+        val placePoint: Vec3 = Vec3()
+        val screenPlacePoint: Vec3 = Vec3()
+        val offset: Vec2 = Vec2()
+        val unitSquareTransform: Matrix4 = Matrix4()
+        val screenBounds: Viewport = Viewport()
+    }
+
+    // 本次 doRender 所在线程的临时对象
+    private lateinit var scratch: Scratch
+
+    private val groundPoint get() = scratch.groundPoint
+    private val placePoint get() = scratch.placePoint
+    private val screenPlacePoint get() = scratch.screenPlacePoint
+    private val offset get() = scratch.offset
+    private val unitSquareTransform get() = scratch.unitSquareTransform
+    private val screenBounds get() = scratch.screenBounds
+
+    protected var pickedObjectId = 0
+
+    protected var pickColor: SimpleColor = SimpleColor()
+
+    protected var cameraDistance = 0.0
+
     var position = Position()
 
     @WorldWind.AltitudeMode
@@ -66,6 +89,7 @@ open class Label : AbstractRenderable,
 
     override fun doRender(rc: RenderContext) {
         this.text.also { if (it.isEmpty()) return }
+        scratch = scratchObjects.get()
         // 计算经纬度换算成笛卡尔的坐标
         rc.geographicToCartesian(
             position.latitude,
@@ -114,7 +138,7 @@ open class Label : AbstractRenderable,
 
         if (mustDrawLeader(rc)) {
             // Compute the placemark's Cartesian ground point.
-            groundPoint = rc.geographicToCartesian(
+            rc.geographicToCartesian(
                 position.latitude,
                 position.longitude,
                 0.0,
@@ -21,17 +21,18 @@ class Rectangle : AbstractShape {
     companion object {
         const val VERTEX_STRIDE = 6
 
-        val SCRATCH = Location()
-
-        val START = Location()
-
-        val END = Location()
-
         fun nextCacheKey(): Any {
             return Any()
         }
     }
 
+    // 组装几何用的临时对象, 每个实例一份, 并行渲染时互不干扰
+    private val scratchLocation = Location()
+
+    private val startLocation = Location()
+
+    private val endLocation = Location()
+
     /**
      * Then center position of the Rectangle
      */
@@ -264,32 +265,32 @@ class Rectangle : AbstractShape {
             center!!.greatCircleLocation(
                 headingDegrees,
                 heightRadians / 2 - j * heightStep * heightRadians,
-                SCRATCH
+                scratchLocation
             )
             // Start from the "negative" side (furtherest west if no heading is applied)
-            SCRATCH.greatCircleLocation(
+            scratchLocation.greatCircleLocation(
                 headingDegrees - 90.0,
                 widthRadians / 2,
-                START
+                startLocation
             )
             // End at the "positive" side
-            SCRATCH.greatCircleLocation(
+            scratchLocation.greatCircleLocation(
                 headingDegrees + 90.0,
                 widthRadians / 2,
-                END
+                endLocation
             )
             // Sample from negative to positive along the path
             for (i in 0..widthSegments) {
-                START.interpolateAlongPath(
+                startLocation.interpolateAlongPath(
                     WorldWind.GREAT_CIRCLE,
                     i * widthStep,
-                    END,
-                    SCRATCH
+                    endLocation,
+                    scratchLocation
                 )
                 addVertex(
                     rc,
-                    SCRATCH.latitude,
-                    SCRATCH.longitude,
+                    scratchLocation.latitude,
+                    scratchLocation.longitude,
                     0.0
                 )
             }
@@ -0,0 +1,324 @@
+package com.atom.map.util
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * 分段锁的并发LRU缓存, 用于替换 SynchronizedMemoryCache.
+ *
+ * get/containsKey 不加锁, 只在节点上记录访问序号 (读取时不递增序号, 两次写入之间的访问视为同时发生);
+ * put/remove 只锁定key所在的分段;
+ * 回收时比较各分段中最久未使用的节点, 按访问序号得到近似的全局LRU顺序.
+ * 容量按条目的 size 累计, 与 LruMemoryCache 保持一致. entryRemoved 在分段锁内回调.
+ */
+open class ConcurrentMemoryCache<K : Any, V> : LruMemoryCache<K, V> {
+
+    companion object {
+        const val DEFAULT_SEGMENT_COUNT = 16
+    }
+
+    protected class Node<K, V>(val key: K, val value: V, val size: Int) {
+        @Volatile
+        var lastUsed: Long = 0
+
+        @Volatile
+        var accessOrder: Long = 0
+
+        // 节点链入分段链表时的访问序号, 小于 accessOrder 说明之后被读路径访问过
+        var linkedOrder: Long = 0
+
+        var prev: Node<K, V>? = null
+
+        var next: Node<K, V>? = null
+    }
+
+    protected class Segment<K, V> {
+
+        val lock = ReentrantLock()
+
+        var head: Node<K, V>? = null
+
+        var tail: Node<K, V>? = null
+
+        var count = 0
+
+        fun linkLast(node: Node<K, V>) {
+            val last = tail
+            node.linkedOrder = node.accessOrder
+            node.prev = last
+            node.next = null
+            if (last == null) {
+                head = node
+            } else {
+                last.next = node
+            }
+            tail = node
+            count++
+        }
+
+        fun unlink(node: Node<K, V>) {
+            val prev = node.prev
+            val next = node.next
+            if (prev == null) {
+                head = next
+            } else {
+                prev.next = next
+            }
+            if (next == null) {
+                tail = prev
+            } else {
+                next.prev = prev
+            }
+            node.prev = null
+            node.next = null
+            count--
+        }
+
+        /**
+         * 把读路径访问过的头部节点移动到尾部, 返回分段中最久未使用的节点. 调用时须持有 lock
+         */
+        fun eldest(): Node<K, V>? {
+            var remaining = count
+            while (remaining-- > 0) {
+                val node = head ?: return null
+                if (node.accessOrder == node.linkedOrder) {
+                    return node
+                }
+                this.unlink(node)
+                this.linkLast(node)
+            }
+            return head
+        }
+    }
+
+    protected val map = ConcurrentHashMap<K, Node<K, V>>()
+
+    protected val segments: Array<Segment<K, V>>
+
+    protected val segmentMask: Int
+
+    protected val evictionLock = ReentrantLock()
+
+    protected val accessSequence = AtomicLong()
+
+    protected val used = AtomicInteger()
+
+    override var usedCapacity: Int
+        get() = used.get()
+        set(value) {
+            used.set(value)
+        }
+
+    constructor(capacity: Int, lowWater: Int, segmentCount: Int) : super(capacity, lowWater) {
+        this.segments = newSegments(segmentCount)
+        this.segmentMask = segments.size - 1
+    }
+
+    constructor(capacity: Int, lowWater: Int) : this(capacity, lowWater, DEFAULT_SEGMENT_COUNT)
+
+    constructor(capacity: Int) : super(capacity) {
+        this.segments = newSegments(DEFAULT_SEGMENT_COUNT)
+        this.segmentMask = segments.size - 1
+    }
+
+    override fun getEntryCount(): Int {
+        return map.size
+    }
+
+    override fun get(key: K): V? {
+        val node = map[key] ?: return null
+        // 读路径不递增全局序号, 只在值变化时写入节点, 避免多个读线程争用同一缓存行
+        val order = accessSequence.get() + 1
+        if (node.accessOrder != order) {
+            node.accessOrder = order
+        }
+        val now = System.currentTimeMillis()
+        if (node.lastUsed != now) {
+            node.lastUsed = now
+        }
+        return node.value
+    }
+
+    override fun put(key: K, value: V, size: Int): V? {
+        if (used.get() + size > capacity) {
+            makeSpace(size)
+        }
+        val newNode = Node(key, value, size)
+        newNode.lastUsed = System.currentTimeMillis()
+        newNode.accessOrder = accessSequence.incrementAndGet()
+        val segment = segmentFor(key)
+        segment.lock.lock()
+        try {
+            val oldNode = map.put(key, newNode)
+            oldNode?.let { segment.unlink(it) }
+            segment.linkLast(newNode)
+            used.addAndGet(size - (oldNode?.size ?: 0))
+            return oldNode?.let {
+                if (newNode.value !== it.value) {
+                    entryRemoved(it.key, it.value, newNode.value, false)
+                    it.value
+                } else {
+                    null
+                }
+            }
+        } finally {
+            segment.lock.unlock()
+        }
+    }
+
+    override fun remove(key: K): V? {
+        val segment = segmentFor(key)
+        segment.lock.lock()
+        try {
+            val node = map.remove(key) ?: return null
+            segment.unlink(node)
+            used.addAndGet(-node.size)
+            entryRemoved(node.key, node.value, null, false)
+            return node.value
+        } finally {
+            segment.lock.unlock()
+        }
+    }
+
+    override fun containsKey(key: K) = map.containsKey(key)
+
+    override fun trimToAge(maxAgeMillis: Long): Int {
+        var trimmedCapacity = 0
+        for (segment in segments) {
+            segment.lock.lock()
+            try {
+                while (true) {
+                    val node = segment.eldest() ?: break
+                    if (node.lastUsed >= maxAgeMillis) {
+                        break
+                    }
+                    this.removeNode(segment, node)
+                    trimmedCapacity += node.size
+                    entryRemoved(node.key, node.value, null, false)
+                }
+            } finally {
+                segment.lock.unlock()
+            }
+        }
+        return trimmedCapacity
+    }
+
+    override fun clear() {
+        for (segment in segments) {
+            segment.lock.lock()
+            try {
+                while (true) {
+                    val node = segment.head ?: break
+                    this.removeNode(segment, node)
+                    entryRemoved(node.key, node.value, null, false)
+                }
+            } finally {
+                segment.lock.unlock()
+            }
+        }
+    }
+
+    override fun makeSpace(spaceRequired: Int) {
+        evictionLock.lock()
+        try {
+            while (this.needsSpace(spaceRequired)) {
+                if (!this.evictEldest(spaceRequired)) {
+                    break
+                }
+            }
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    override fun removeAllEntries() {
+        for (segment in segments) {
+            segment.lock.lock()
+            try {
+                while (true) {
+                    this.removeNode(segment, segment.head ?: break)
+                }
+            } finally {
+                segment.lock.unlock()
+            }
+        }
+    }
+
+    /**
+     * 找到最久未使用节点的访问序号最小的分段, 从该分段连续回收, 直到它的最久未使用节点不再是全局最旧的.
+     * 没有可回收的节点时返回 false
+     */
+    protected open fun evictEldest(spaceRequired: Int): Boolean {
+        var victimSegment: Segment<K, V>? = null
+        var victimOrder = Long.MAX_VALUE
+        var runnerUpOrder = Long.MAX_VALUE
+        for (segment in segments) {
+            segment.lock.lock()
+            try {
+                val order = segment.eldest()?.accessOrder ?: continue
+                if (order < victimOrder) {
+                    runnerUpOrder = victimOrder
+                    victimOrder = order
+                    victimSegment = segment
+                } else if (order < runnerUpOrder) {
+                    runnerUpOrder = order
+                }
+            } finally {
+                segment.lock.unlock()
+            }
+        }
+        val segment = victimSegment ?: return false
+        segment.lock.lock()
+        try {
+            // 比较期间其他线程可能已修改该分段, 这里回收它当前最久未使用的节点
+            var evicted = false
+            while (this.needsSpace(spaceRequired)) {
+                val node = segment.eldest() ?: break
+                if (evicted && node.accessOrder > runnerUpOrder) {
+                    break
+                }
+                this.removeNode(segment, node)
+                entryRemoved(node.key, node.value, null, true)
+                evicted = true
+            }
+        } finally {
+            segment.lock.unlock()
+        }
+        return true
+    }
+
+    protected fun needsSpace(spaceRequired: Int): Boolean {
+        val used = this.used.get()
+        return used > lowWater || (capacity - used) < spaceRequired
+    }
+
+    protected fun segmentFor(key: K): Segment<K, V> {
+        var h = key.hashCode()
+        h = h xor (h ushr 16)
+        return segments[h and segmentMask]
+    }
+
+    private fun removeNode(segment: Segment<K, V>, node: Node<K, V>) {
+        map.remove(node.key, node)
+        segment.unlink(node)
+        used.addAndGet(-node.size)
+    }
+
+    private fun newSegments(segmentCount: Int): Array<Segment<K, V>> {
+        if (segmentCount < 1) {
+            throw IllegalArgumentException(
+                Logger.logMessage(
+                    Logger.ERROR, "ConcurrentMemoryCache", "constructor",
+                    "The specified segment count is less than 1"
+                )
+            )
+        }
+        var size = 1
+        while (size < segmentCount) {
+            size = size shl 1
+        }
+        return Array(size) { Segment<K, V>() }
+    }
+}
@@ -0,0 +1,619 @@
+package com.atom.map.util
+
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.CheckedOutputStream
+
+/**
+ * 瓦片的磁盘二级缓存, 以 URL 为 key 保存未解码的原始字节, 以及用于条件请求的校验值 (ETag 或 Last-Modified) 与写入时间.
+ *
+ * 数据以记录的形式追加写入大小受限的分段文件, 每条记录自带 key 与 CRC 校验; 内存中维护 key 到记录位置的索引,
+ * 并每隔一定次数的写入把索引快照写入 index 文件. 打开时先读取快照, 再扫描快照之后追加的记录,
+ * 快照缺失或损坏时扫描全部分段, 遇到写了一半的记录时截断该分段, 因此进程崩溃后索引可以恢复.
+ *
+ * 总大小超出配额时回收最旧的分段; 分段封存之后又被访问过的条目视为热点, 回收前复制到当前分段, 近似LRU.
+ * 首次访问时才打开目录, 避免在主线程上做磁盘 I/O.
+ */
+class DiskTileCache(val directory: File, quota: Long, val segmentSize: Int) : Closeable {
+
+    companion object {
+        const val DEFAULT_QUOTA = 1024 * 1024 * 128L
+
+        const val DEFAULT_SEGMENT_SIZE = 1024 * 1024 * 4
+
+        private const val RECORD_MAGIC = 0x57544332 // "WTC2"
+
+        private const val INDEX_MAGIC = 0x57544932 // "WTI2"
+
+        private const val INDEX_FILE = "index"
+
+        private const val INDEX_TEMP_FILE = "index.tmp"
+
+        private const val SEGMENT_SUFFIX = ".seg"
+
+        private const val CHECKPOINT_INTERVAL = 64
+
+        private const val HEADER_PREFIX_SIZE = 8 // magic + key length + validator length
+
+        private const val HEADER_SUFFIX_SIZE = 16 // stored time + data length + crc
+    }
+
+    private class Segment(val id: Int, val file: File, val channel: FileChannel) {
+        var length: Long = 0
+        // 分段封存时的访问序号, 之后被访问过的条目在回收时保留
+        var sealedAt: Long = Long.MAX_VALUE
+        val entries = HashSet<Entry>()
+    }
+
+    private class Entry(
+        val key: String,
+        val validator: String?,
+        val storedAt: Long,
+        val segment: Segment,
+        val offset: Long,
+        val length: Int
+    ) {
+        var lastUsed: Long = 0
+    }
+
+    /**
+     * 缓存的瓦片数据. validator 为写入时服务端返回的校验值, storedAt 为写入或最近一次重新验证的时间
+     */
+    class CachedTile(val data: ByteArray, val validator: String?, val storedAt: Long)
+
+    var quota: Long = quota
+        set(value) {
+            synchronized(lock) {
+                field = value
+                if (opened) {
+                    this.trimToQuota()
+                }
+            }
+        }
+
+    private val lock = Any()
+
+    private val index = HashMap<String, Entry>()
+
+    private val segments = TreeMap<Int, Segment>()
+
+    private var active: Segment? = null
+
+    private var totalBytes: Long = 0
+
+    private var sequence: Long = 0
+
+    private var dirtyCount = 0
+
+    private var opened = false
+
+    private var openFailed = false
+
+    private val hits = AtomicLong()
+
+    private val misses = AtomicLong()
+
+    private val puts = AtomicLong()
+
+    private val evictions = AtomicLong()
+
+    constructor(directory: File, quota: Long) : this(directory, quota, DEFAULT_SEGMENT_SIZE)
+
+    constructor(directory: File) : this(directory, DEFAULT_QUOTA, DEFAULT_SEGMENT_SIZE)
+
+    init {
+        if (quota < 1 || segmentSize < 1) {
+            throw IllegalArgumentException(
+                Logger.logMessage(Logger.ERROR, "DiskTileCache", "constructor", "invalidCapacity")
+            )
+        }
+    }
+
+    fun getHitCount() = hits.get()
+
+    fun getMissCount() = misses.get()
+
+    fun getPutCount() = puts.get()
+
+    fun getEvictionCount() = evictions.get()
+
+    fun getEntryCount(): Int {
+        synchronized(lock) { return if (this.ensureOpen()) index.size else 0 }
+    }
+
+    fun getUsedBytes(): Long {
+        synchronized(lock) { return if (this.ensureOpen()) totalBytes else 0 }
+    }
+
+    fun containsKey(key: String): Boolean {
+        synchronized(lock) { return this.ensureOpen() && index.containsKey(key) }
+    }
+
+    fun get(key: String): ByteArray? {
+        return this.getTile(key)?.data
+    }
+
+    fun getTile(key: String): CachedTile? {
+        val entry = synchronized(lock) {
+            val found = if (this.ensureOpen()) index[key] else null
+            if (found != null) {
+                found.lastUsed = ++sequence
+            }
+            found
+        } ?: let {
+            misses.incrementAndGet()
+            return null
+        }
+        // 分段通道支持并发的定位读取, 读数据时不持有锁; 分段在此期间被回收时按未命中处理
+        return try {
+            val data = this.readData(entry)
+            hits.incrementAndGet()
+            CachedTile(data, entry.validator, entry.storedAt)
+        } catch (ex: IOException) {
+            synchronized(lock) {
+                if (index[key] === entry) {
+                    this.removeEntry(entry)
+                }
+            }
+            misses.incrementAndGet()
+            null
+        }
+    }
+
+    fun put(key: String, data: ByteArray): Boolean {
+        return this.put(key, data, null)
+    }
+
+    /**
+     * 写入一条记录, 超出单个分段大小的数据不缓存. 重新验证通过的瓦片也通过这里刷新写入时间
+     */
+    fun put(key: String, data: ByteArray, validator: String?): Boolean {
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        val validatorBytes = validator?.toByteArray(Charsets.UTF_8) ?: ByteArray(0)
+        if (keyBytes.size > 0xFFFF || validatorBytes.size > 0xFFFF ||
+            recordSize(keyBytes.size + validatorBytes.size, data.size) > segmentSize
+        ) {
+            return false
+        }
+        synchronized(lock) {
+            if (!this.ensureOpen()) {
+                return false
+            }
+            try {
+                val entry = this.appendRecord(key, keyBytes, validator, validatorBytes, System.currentTimeMillis(), data)
+                entry.lastUsed = ++sequence
+                this.putEntry(entry)
+                puts.incrementAndGet()
+                this.trimToQuota()
+                if (++dirtyCount >= CHECKPOINT_INTERVAL) {
+                    this.writeIndex()
+                }
+                return true
+            } catch (ex: IOException) {
+                Logger.logMessage(Logger.WARN, "DiskTileCache", "put", "Failed to write tile $key", ex)
+                return false
+            }
+        }
+    }
+
+    fun remove(key: String): Boolean {
+        synchronized(lock) {
+            if (!this.ensureOpen()) {
+                return false
+            }
+            val entry = index[key] ?: return false
+            this.removeEntry(entry)
+            dirtyCount++
+            return true
+        }
+    }
+
+    /**
+     * 立即写出索引快照
+     */
+    fun flush() {
+        synchronized(lock) {
+            if (opened) {
+                this.writeIndexSilently()
+            }
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            this.closeSegments()
+            directory.listFiles()?.forEach { it.delete() }
+            openFailed = false
+        }
+    }
+
+    override fun close() {
+        synchronized(lock) {
+            if (opened) {
+                this.writeIndexSilently()
+            }
+            this.closeSegments()
+        }
+    }
+
+    private fun ensureOpen(): Boolean {
+        if (opened) {
+            return true
+        }
+        if (openFailed) {
+            return false
+        }
+        try {
+            this.open()
+            opened = true
+            this.trimToQuota()
+        } catch (ex: IOException) {
+            Logger.logMessage(Logger.ERROR, "DiskTileCache", "open", "Failed to open $directory", ex)
+            this.closeSegments()
+            openFailed = true
+        }
+        return opened
+    }
+
+    @Throws(IOException::class)
+    private fun open() {
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw IOException("Cannot create $directory")
+        }
+        val files = directory.listFiles() ?: throw IOException("Cannot list $directory")
+        for (file in files) {
+            val name = file.name
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue
+            }
+            val id = name.substring(0, name.length - SEGMENT_SUFFIX.length).toIntOrNull() ?: continue
+            val segment = Segment(id, file, RandomAccessFile(file, "rw").channel)
+            segment.length = segment.channel.size()
+            segments[id] = segment
+        }
+
+        val scanFrom = HashMap<Int, Long>()
+        if (!this.readIndex(scanFrom)) {
+            index.clear()
+            scanFrom.clear()
+            for (segment in segments.values) {
+                segment.entries.clear()
+            }
+        }
+        for (segment in segments.values) {
+            this.scanSegment(segment, scanFrom[segment.id] ?: 0L)
+            totalBytes += segment.length
+        }
+        active = segments.lastEntry()?.value
+        for (segment in segments.values) {
+            if (segment !== active && segment.sealedAt == Long.MAX_VALUE) {
+                segment.sealedAt = sequence
+            }
+        }
+    }
+
+    /**
+     * 读取索引快照, 校验失败时返回 false 且不修改索引
+     */
+    private fun readIndex(scanFrom: MutableMap<Int, Long>): Boolean {
+        val file = File(directory, INDEX_FILE)
+        if (!file.isFile) {
+            return false
+        }
+        var stream: DataInputStream? = null
+        try {
+            val checked = CheckedInputStream(BufferedInputStream(FileInputStream(file)), CRC32())
+            stream = DataInputStream(checked)
+            if (stream.readInt() != INDEX_MAGIC) {
+                return false
+            }
+            val savedSequence = stream.readLong()
+            val validLength = HashMap<Int, Long>()
+            val sealedAt = HashMap<Int, Long>()
+            val segmentCount = stream.readInt()
+            for (i in 0 until segmentCount) {
+                val id = stream.readInt()
+                val length = stream.readLong()
+                val sealed = stream.readLong()
+                val segment = segments[id] ?: continue
+                validLength[id] = Math.min(length, segment.length)
+                sealedAt[id] = sealed
+            }
+            val entries = ArrayList<Entry>()
+            val entryCount = stream.readInt()
+            for (i in 0 until entryCount) {
+                val key = stream.readUTF()
+                val validator = if (stream.readBoolean()) stream.readUTF() else null
+                val storedAt = stream.readLong()
+                val id = stream.readInt()
+                val offset = stream.readLong()
+                val length = stream.readInt()
+                val lastUsed = stream.readLong()
+                val segment = segments[id] ?: continue
+                val limit = validLength[id] ?: continue
+                if (offset + length <= limit) {
+                    val entry = Entry(key, validator, storedAt, segment, offset, length)
+                    entry.lastUsed = lastUsed
+                    entries.add(entry)
+                }
+            }
+            val expected = checked.checksum.value.toInt()
+            if (stream.readInt() != expected) {
+                return false
+            }
+            for (entry in entries) {
+                this.putEntry(entry)
+            }
+            for ((id, sealed) in sealedAt) {
+                segments[id]?.sealedAt = sealed
+            }
+            scanFrom.putAll(validLength)
+            sequence = savedSequence
+            return true
+        } catch (ex: IOException) {
+            return false
+        } finally {
+            WWUtil.closeSilently(stream)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeIndex() {
+        val temp = File(directory, INDEX_TEMP_FILE)
+        val fileStream = FileOutputStream(temp)
+        try {
+            val checked = CheckedOutputStream(BufferedOutputStream(fileStream), CRC32())
+            val stream = DataOutputStream(checked)
+            stream.writeInt(INDEX_MAGIC)
+            stream.writeLong(sequence)
+            stream.writeInt(segments.size)
+            for (segment in segments.values) {
+                stream.writeInt(segment.id)
+                stream.writeLong(segment.length)
+                stream.writeLong(segment.sealedAt)
+            }
+            stream.writeInt(index.size)
+            for (entry in index.values) {
+                stream.writeUTF(entry.key)
+                stream.writeBoolean(entry.validator != null)
+                entry.validator?.let { stream.writeUTF(it) }
+                stream.writeLong(entry.storedAt)
+                stream.writeInt(entry.segment.id)
+                stream.writeLong(entry.offset)
+                stream.writeInt(entry.length)
+                stream.writeLong(entry.lastUsed)
+            }
+            stream.writeInt(checked.checksum.value.toInt())
+            stream.flush()
+            fileStream.fd.sync()
+        } finally {
+            WWUtil.closeSilently(fileStream)
+        }
+        if (!temp.renameTo(File(directory, INDEX_FILE))) {
+            throw IOException("Cannot replace index in $directory")
+        }
+        dirtyCount = 0
+    }
+
+    private fun writeIndexSilently() {
+        try {
+            this.writeIndex()
+        } catch (ex: IOException) {
+            Logger.logMessage(Logger.WARN, "DiskTileCache", "writeIndex", "Failed to write index", ex)
+        }
+    }
+
+    /**
+     * 从指定位置开始扫描分段中的记录并加入索引, 截断末尾不完整或校验失败的记录
+     */
+    @Throws(IOException::class)
+    private fun scanSegment(segment: Segment, from: Long) {
+        val channel = segment.channel
+        val prefix = ByteBuffer.allocate(HEADER_PREFIX_SIZE)
+        val suffix = ByteBuffer.allocate(HEADER_SUFFIX_SIZE)
+        val crc = CRC32()
+        var position = from
+        while (position < segment.length) {
+            prefix.clear()
+            if (!readFully(channel, prefix, position) || prefix.getInt(0) != RECORD_MAGIC) {
+                break
+            }
+            val keyLength = prefix.getShort(4).toInt() and 0xFFFF
+            val validatorLength = prefix.getShort(6).toInt() and 0xFFFF
+            val keyBuffer = ByteBuffer.allocate(keyLength + validatorLength)
+            suffix.clear()
+            if (!readFully(channel, keyBuffer, position + HEADER_PREFIX_SIZE) ||
+                !readFully(channel, suffix, position + HEADER_PREFIX_SIZE + keyBuffer.capacity())
+            ) {
+                break
+            }
+            val storedAt = suffix.getLong(0)
+            val dataLength = suffix.getInt(8)
+            val dataOffset = position + HEADER_PREFIX_SIZE + keyBuffer.capacity() + HEADER_SUFFIX_SIZE
+            if (dataLength < 0 || dataOffset + dataLength > segment.length) {
+                break
+            }
+            val data = ByteArray(dataLength)
+            if (!readFully(channel, ByteBuffer.wrap(data), dataOffset)) {
+                break
+            }
+            crc.reset()
+            crc.update(data, 0, dataLength)
+            if (crc.value.toInt() != suffix.getInt(12)) {
+                break
+            }
+            val key = String(keyBuffer.array(), 0, keyLength, Charsets.UTF_8)
+            val validator = if (validatorLength > 0) String(keyBuffer.array(), keyLength, validatorLength, Charsets.UTF_8) else null
+            val entry = Entry(key, validator, storedAt, segment, dataOffset, dataLength)
+            entry.lastUsed = ++sequence
+            this.putEntry(entry)
+            position = dataOffset + dataLength
+        }
+        if (position < segment.length) {
+            channel.truncate(position)
+            segment.length = position
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun appendRecord(
+        key: String,
+        keyBytes: ByteArray,
+        validator: String?,
+        validatorBytes: ByteArray,
+        storedAt: Long,
+        data: ByteArray
+    ): Entry {
+        val recordSize = recordSize(keyBytes.size + validatorBytes.size, data.size)
+        var segment = active
+        if (segment == null || (segment.length > 0 && segment.length + recordSize > segmentSize)) {
+            segment?.sealedAt = sequence
+            segment = this.newSegment()
+        }
+        val crc = CRC32()
+        crc.update(data, 0, data.size)
+        val header = ByteBuffer.allocate(HEADER_PREFIX_SIZE + keyBytes.size + validatorBytes.size + HEADER_SUFFIX_SIZE)
+        header.putInt(RECORD_MAGIC).putShort(keyBytes.size.toShort()).putShort(validatorBytes.size.toShort())
+        header.put(keyBytes).put(validatorBytes)
+        header.putLong(storedAt).putInt(data.size).putInt(crc.value.toInt())
+        header.flip()
+        val body = ByteBuffer.wrap(data)
+        val channel = segment.channel
+        var position = segment.length
+        while (header.hasRemaining()) {
+            position += channel.write(header, position)
+        }
+        while (body.hasRemaining()) {
+            position += channel.write(body, position)
+        }
+        val entry = Entry(key, validator, storedAt, segment, segment.length + header.capacity(), data.size)
+        totalBytes += recordSize
+        segment.length += recordSize
+        return entry
+    }
+
+    @Throws(IOException::class)
+    private fun newSegment(): Segment {
+        val id = if (segments.isEmpty()) 1 else segments.lastKey() + 1
+        val file = File(directory, String.format(Locale.US, "%08d%s", id, SEGMENT_SUFFIX))
+        val segment = Segment(id, file, RandomAccessFile(file, "rw").channel)
+        segment.channel.truncate(0)
+        segments[id] = segment
+        active = segment
+        return segment
+    }
+
+    private fun trimToQuota() {
+        while (totalBytes > quota && segments.size > 1) {
+            this.evictSegment(segments.firstEntry().value)
+        }
+    }
+
+    /**
+     * 回收一个分段. 封存后被访问过的条目按最近访问顺序复制到当前分段, 最多复制半个分段大小
+     */
+    private fun evictSegment(victim: Segment) {
+        segments.remove(victim.id)
+        totalBytes -= victim.length
+        var budget = segmentSize / 2L
+        val hot = ArrayList<Entry>()
+        for (entry in victim.entries) {
+            if (entry.lastUsed > victim.sealedAt) {
+                hot.add(entry)
+            }
+        }
+        hot.sortWith(Comparator { lhs, rhs -> java.lang.Long.compare(rhs.lastUsed, lhs.lastUsed) })
+        for (entry in hot) {
+            if (entry.length > budget) {
+                continue
+            }
+            try {
+                val keyBytes = entry.key.toByteArray(Charsets.UTF_8)
+                val validatorBytes = entry.validator?.toByteArray(Charsets.UTF_8) ?: ByteArray(0)
+                val copy = this.appendRecord(
+                    entry.key, keyBytes, entry.validator, validatorBytes, entry.storedAt, this.readData(entry)
+                )
+                copy.lastUsed = entry.lastUsed
+                victim.entries.remove(entry)
+                this.putEntry(copy)
+                budget -= entry.length
+            } catch (ex: IOException) {
+                break
+            }
+        }
+        for (entry in victim.entries) {
+            if (index[entry.key] === entry) {
+                index.remove(entry.key)
+                evictions.incrementAndGet()
+            }
+        }
+        victim.entries.clear()
+        WWUtil.closeSilently(victim.channel)
+        victim.file.delete()
+        dirtyCount++
+    }
+
+    private fun putEntry(entry: Entry) {
+        index.put(entry.key, entry)?.let { it.segment.entries.remove(it) }
+        entry.segment.entries.add(entry)
+    }
+
+    private fun removeEntry(entry: Entry) {
+        index.remove(entry.key)
+        entry.segment.entries.remove(entry)
+    }
+
+    /**
+     * 读取条目数据并校验 CRC, 数据不完整或校验失败时抛出 IOException
+     */
+    @Throws(IOException::class)
+    private fun readData(entry: Entry): ByteArray {
+        val crcBuffer = ByteBuffer.allocate(4)
+        val data = ByteArray(entry.length)
+        if (!readFully(entry.segment.channel, crcBuffer, entry.offset - 4) ||
+            !readFully(entry.segment.channel, ByteBuffer.wrap(data), entry.offset)
+        ) {
+            throw EOFException(entry.key)
+        }
+        val crc = CRC32()
+        crc.update(data, 0, data.size)
+        if (crc.value.toInt() != crcBuffer.getInt(0)) {
+            throw IOException("Checksum mismatch ${entry.key}")
+        }
+        return data
+    }
+
+    private fun closeSegments() {
+        for (segment in segments.values) {
+            WWUtil.closeSilently(segment.channel)
+        }
+        segments.clear()
+        index.clear()
+        active = null
+        totalBytes = 0
+        dirtyCount = 0
+        opened = false
+    }
+
+    private fun recordSize(keyLength: Int, dataLength: Int): Int {
+        return HEADER_PREFIX_SIZE + keyLength + HEADER_SUFFIX_SIZE + dataLength
+    }
+
+    @Throws(IOException::class)
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long): Boolean {
+        var offset = position
+        while (buffer.hasRemaining()) {
+            val count = channel.read(buffer, offset)
+            if (count < 0) {
+                return false
+            }
+            offset += count
+        }
+        return true
+    }
+}
@@ -0,0 +1,169 @@
+package com.atom.map.util
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPInputStream
+
+/**
+ * 基于 HttpURLConnection 的瓦片传输层.
+ *
+ * HttpURLConnection 在响应体读取完毕并关闭流后把连接放回按主机划分的 keep-alive 连接池, 因此这里始终完整读取响应
+ * (包括错误响应) 且从不调用 disconnect. 每个主机的并发请求数限制为 maxConnectionsPerHost, 超出的请求等待空闲连接,
+ * 避免为同一主机建立过多连接. 请求失败, 服务端 5xx 或 429 时按带随机抖动的指数退避重试 maxRetries 次.
+ */
+open class HttpTileTransport(
+    maxConnectionsPerHost: Int = DEFAULT_MAX_CONNECTIONS_PER_HOST,
+    var maxRetries: Int = 2
+) : TileTransport {
+
+    companion object {
+        const val DEFAULT_MAX_CONNECTIONS_PER_HOST = 6
+
+        private const val ETAG_PREFIX = "etag:"
+
+        private const val DATE_PREFIX = "date:"
+
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+    }
+
+    var connectTimeout = 3000
+
+    var readTimeout = 30000
+
+    var userAgent: String? = System.getProperty("http.agent")
+
+    var retryBaseDelayMillis: Long = 200
+
+    var retryMaxDelayMillis: Long = 5000
+
+    var maxConnectionsPerHost = maxConnectionsPerHost
+        set(value) {
+            if (value < 1) {
+                throw IllegalArgumentException(
+                    Logger.logMessage(
+                        Logger.ERROR, "HttpTileTransport", "setMaxConnectionsPerHost",
+                        "The specified connection count is less than 1"
+                    )
+                )
+            }
+            field = value
+            hostPermits.clear() // 已在等待的请求继续使用旧的限制
+        }
+
+    protected val hostPermits = ConcurrentHashMap<String, Semaphore>()
+
+    protected val requests = AtomicLong()
+
+    protected val retries = AtomicLong()
+
+    protected val bytesRead = AtomicLong()
+
+    init {
+        this.maxConnectionsPerHost = maxConnectionsPerHost
+    }
+
+    fun getRequestCount() = requests.get()
+
+    fun getRetryCount() = retries.get()
+
+    fun getBytesRead() = bytesRead.get()
+
+    @Throws(IOException::class)
+    override fun fetch(url: String, validator: String?): TileResponse {
+        val target = URL(url)
+        val permits = hostPermits.getOrPut(target.authority ?: "") { Semaphore(maxConnectionsPerHost) }
+        var attempt = 0
+        while (true) {
+            val response = try {
+                permits.acquire()
+                try {
+                    this.request(target, validator)
+                } finally {
+                    permits.release()
+                }
+            } catch (ex: InterruptedException) {
+                throw InterruptedIOException()
+            } catch (ex: IOException) {
+                if (attempt >= maxRetries) {
+                    throw ex
+                }
+                null
+            }
+            if (response != null && (attempt >= maxRetries || !this.shouldRetry(response.statusCode))) {
+                return response
+            }
+            this.backoff(attempt++)
+        }
+    }
+
+    protected open fun shouldRetry(statusCode: Int): Boolean {
+        return statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || statusCode == HTTP_TOO_MANY_REQUESTS
+    }
+
+    @Throws(IOException::class)
+    protected open fun request(url: URL, validator: String?): TileResponse {
+        requests.incrementAndGet()
+        val conn = url.openConnection() as HttpURLConnection
+        conn.connectTimeout = connectTimeout
+        conn.readTimeout = readTimeout
+        conn.requestMethod = "GET"
+        conn.setRequestProperty("Accept-Encoding", "gzip")
+        userAgent?.let { conn.setRequestProperty("User-Agent", it) }
+        if (validator != null) {
+            if (validator.startsWith(ETAG_PREFIX)) {
+                conn.setRequestProperty("If-None-Match", validator.substring(ETAG_PREFIX.length))
+            } else if (validator.startsWith(DATE_PREFIX)) {
+                conn.setRequestProperty("If-Modified-Since", validator.substring(DATE_PREFIX.length))
+            }
+        }
+        val statusCode = conn.responseCode
+        // 完整读取并关闭响应体, 连接才会回到 keep-alive 连接池
+        val stream = if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) conn.errorStream else conn.inputStream
+        val body = stream?.let { this.readBody(conn, it) }
+        if (statusCode != HttpURLConnection.HTTP_OK) {
+            return TileResponse(statusCode, null, conn.contentType, validator)
+        }
+        val etag = conn.getHeaderField("ETag")
+        val lastModified = conn.getHeaderField("Last-Modified")
+        val newValidator = when {
+            etag != null -> ETAG_PREFIX + etag
+            lastModified != null -> DATE_PREFIX + lastModified
+            else -> null
+        }
+        return TileResponse(statusCode, body, conn.contentType, newValidator)
+    }
+
+    @Throws(IOException::class)
+    protected open fun readBody(conn: HttpURLConnection, stream: InputStream): ByteArray {
+        try {
+            val bytes = if ("gzip".equals(conn.contentEncoding, ignoreCase = true)) {
+                GZIPInputStream(stream).use { it.readBytes() }
+            } else {
+                stream.readBytes()
+            }
+            bytesRead.addAndGet(bytes.size.toLong())
+            return bytes
+        } finally {
+            WWUtil.closeSilently(stream)
+        }
+    }
+
+    @Throws(InterruptedIOException::class)
+    protected open fun backoff(attempt: Int) {
+        retries.incrementAndGet()
+        val delay = Math.min(retryMaxDelayMillis, retryBaseDelayMillis shl Math.min(attempt, 16))
+        try {
+            // 在 [delay/2, delay] 之间随机等待, 避免多个请求同时重试
+            Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1))
+        } catch (ex: InterruptedException) {
+            throw InterruptedIOException()
+        }
+    }
+}
@@ -1,21 +1,34 @@
 package com.atom.map.util
 
-import java.util.*
-import kotlin.Comparator
-
+/**
+ * 基于访问顺序双向链表的LRU缓存. 链表头为最久未使用的条目, 链表尾为最近使用的条目,
+ * get/put/remove 均为 O(1), makeSpace 与 trimToAge 只遍历被回收的条目.
+ */
 open class LruMemoryCache<K, V> {
 
     class Entry<K, V>(val key: K, val value: V, val size: Int) {
+        // 最近一次访问的系统时间, 供 trimToAge 使用
         var lastUsed: Long = 0
+
+        internal var prev: Entry<K, V>? = null
+
+        internal var next: Entry<K, V>? = null
     }
 
-    protected val entries = hashMapOf<K, Entry<K, V>>()
+    // 只有本类的实现使用, 重写全部访问方法的子类 (如 ConcurrentMemoryCache) 不会分配
+    protected val entries by lazy(LazyThreadSafetyMode.NONE) { hashMapOf<K, Entry<K, V>>() }
+
+    // 最久未使用的条目, 回收从这里开始
+    protected var head: Entry<K, V>? = null
 
-    protected val lruComparator: Comparator<Entry<K, V>> =
-        Comparator { lhs, rhs -> ((lhs.lastUsed - rhs.lastUsed).toInt()) }
+    // 最近使用的条目
+    protected var tail: Entry<K, V>? = null
 
+    // ConcurrentMemoryCache 在不加锁的路径上读取
+    @Volatile
     open var capacity = 0
 
+    @Volatile
     open var lowWater = 0
 
     open var usedCapacity = 0
@@ -62,7 +75,9 @@ open class LruMemoryCache<K, V> {
     open fun get(key: K): V? {
         val entry: Entry<K, V>? = entries[key]
         return if (entry != null) {
-            entry.lastUsed = System.currentTimeMillis()
+            this.touchEntry(entry)
+            this.unlinkEntry(entry)
+            this.linkLast(entry)
             entry.value
         } else {
             null
@@ -74,9 +89,11 @@ open class LruMemoryCache<K, V> {
             makeSpace(size)
         }
         val newEntry = Entry(key, value, size)
-        newEntry.lastUsed = System.currentTimeMillis()
+        this.touchEntry(newEntry)
         this.usedCapacity += newEntry.size
         val oldEntry = entries.put(newEntry.key, newEntry)
+        oldEntry?.let { this.unlinkEntry(it) }
+        this.linkLast(newEntry)
 
         return oldEntry?.let {
             usedCapacity -= it.size
@@ -93,6 +110,7 @@ open class LruMemoryCache<K, V> {
 
     open fun remove(key: K): V? {
         return entries.remove(key) ?.let {
+            this.unlinkEntry(it)
             usedCapacity -= it.size
             entryRemoved(it.key, it.value, null, false)
             it.value
@@ -105,48 +123,90 @@ open class LruMemoryCache<K, V> {
 
     open fun trimToAge(maxAgeMillis: Long): Int {
         var trimmedCapacity = 0
-        for (entry in this.assembleSortedEntries()) {
-            if (entry.lastUsed < maxAgeMillis) {
-                entries.remove(entry.key)
-                usedCapacity -= entry.size
-                trimmedCapacity += entry.size
-                entryRemoved(entry.key, entry.value, null, false)
-            } else {
+        while (true) {
+            val entry = head ?: break
+            if (entry.lastUsed >= maxAgeMillis) {
                 break
             }
+            this.removeEntry(entry)
+            trimmedCapacity += entry.size
+            entryRemoved(entry.key, entry.value, null, false)
         }
         return trimmedCapacity
     }
 
     open fun clear() {
-        for (entry in entries.values) {
+        var entry = head
+        while (entry != null) {
             entryRemoved(entry.key, entry.value, null, false)
+            entry = entry.next
         }
-        entries.clear()
-        usedCapacity = 0
+        this.removeAllEntries()
     }
 
     protected open fun makeSpace(spaceRequired: Int) {
-        for (entry in this.assembleSortedEntries()) {
-            if (usedCapacity > lowWater || (capacity - usedCapacity) < spaceRequired) {
-                entries.remove(entry.key)
-                usedCapacity -= entry.size
-                entryRemoved(entry.key, entry.value, null, true)
-            } else {
-                break
-            }
+        while (usedCapacity > lowWater || (capacity - usedCapacity) < spaceRequired) {
+            val entry = head ?: break
+            this.removeEntry(entry)
+            entryRemoved(entry.key, entry.value, null, true)
         }
     }
 
-    protected open fun assembleSortedEntries(): ArrayList<Entry<K, V>> {
-        val sortedEntries: ArrayList<Entry<K, V>> = ArrayList(entries.size)
-        for (entry in entries.values) {
-            sortedEntries.add(entry)
+    /**
+     * 移除全部条目但不回调 entryRemoved
+     */
+    protected open fun removeAllEntries() {
+        var entry = head
+        while (entry != null) {
+            val next = entry.next
+            entry.prev = null
+            entry.next = null
+            entry = next
         }
-        Collections.sort(sortedEntries, lruComparator)
-        return sortedEntries
+        entries.clear()
+        head = null
+        tail = null
+        usedCapacity = 0
     }
 
     protected open fun entryRemoved(key: K, oldValue: V, newValue: V?, evicted: Boolean) {}
 
-}
\ No newline at end of file
+    private fun touchEntry(entry: Entry<K, V>) {
+        entry.lastUsed = System.currentTimeMillis()
+    }
+
+    private fun removeEntry(entry: Entry<K, V>) {
+        entries.remove(entry.key)
+        this.unlinkEntry(entry)
+        usedCapacity -= entry.size
+    }
+
+    private fun linkLast(entry: Entry<K, V>) {
+        val last = tail
+        entry.prev = last
+        entry.next = null
+        if (last == null) {
+            head = entry
+        } else {
+            last.next = entry
+        }
+        tail = entry
+    }
+
+    private fun unlinkEntry(entry: Entry<K, V>) {
+        val prev = entry.prev
+        val next = entry.next
+        if (prev == null) {
+            head = next
+        } else {
+            prev.next = next
+        }
+        if (next == null) {
+            tail = prev
+        } else {
+            next.prev = prev
+        }
+        entry.prev = null
+        entry.next = null
+    }
+}
@@ -14,6 +14,8 @@ import com.atom.map.drawable.DrawContext
 import com.atom.map.renderable.ImageOptions
 import com.atom.map.renderable.ImageRetriever
 import com.atom.map.renderable.ImageSource
+import com.atom.map.renderable.PriorityRetriever
+import com.atom.map.util.pool.BitmapPool
 import java.net.SocketTimeoutException
 import java.util.*
 import java.util.concurrent.ConcurrentLinkedQueue
@@ -26,6 +28,7 @@ class RenderResourceCache
         protected const val STALE_RETRIEVAL_AGE = 3000
         protected const val TRIM_STALE_RETRIEVALS = 1
         protected const val TRIM_STALE_RETRIEVALS_DELAY = 6000L
+        protected const val MAX_PREFETCHED = 1024
         fun recommendedCapacity(context: Context?): Int {
             val am =
                 if (context != null) context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager else null
@@ -55,9 +58,47 @@ class RenderResourceCache
             (imageRetriever as ImageRetriever).resources = value
         }
 
+    /**
+     * 网络瓦片的磁盘二级缓存, 为空时每次都请求网络
+     */
+    var diskCache: DiskTileCache? = null
+        set(value) {
+            field = value
+            (urlImageRetriever as ImageRetriever).diskCache = value
+        }
+
+    /**
+     * 图片解码复用的位图池, 纹理上传之后位图归还到这里
+     */
+    val bitmapPool = BitmapPool()
+
+    /**
+     * 预取过且还没有显示的图片. 只在渲染线程中访问
+     */
+    private val prefetched = object : LinkedHashMap<ImageSource, ImageSource>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ImageSource, ImageSource>?): Boolean {
+            if (size > MAX_PREFETCHED) {
+                prefetchUnused++
+                return true
+            }
+            return false
+        }
+    }
+
+    private var prefetchRequests: Long = 0
+
+    private var prefetchHits: Long = 0
+
+    private var prefetchLate: Long = 0
+
+    private var prefetchUnused: Long = 0
+
     // 回收队列
     private val evictionQueue: Queue<RenderResource>
 
+    // 新建资源队列, 渲染线程放入, 随帧交给 GL 线程创建
+    private val creationQueue: Queue<RenderResource> = ConcurrentLinkedQueue()
+
     private val imageRetriever: Retriever<ImageSource, ImageOptions, Bitmap>
 
     private val urlImageRetriever: Retriever<ImageSource, ImageOptions, Bitmap>
@@ -73,8 +114,12 @@ class RenderResourceCache
         handler = Handler(this)
         evictionQueue = ConcurrentLinkedQueue()
         imageRetriever = ImageRetriever(2)
-        urlImageRetriever = ImageRetriever(8)
-        imageRetrieverCache = SynchronizedMemoryCache(this.capacity / 8)
+        imageRetriever.workload = TaskService.IMAGE_DECODE
+        (imageRetriever as ImageRetriever).bitmapPool = bitmapPool
+        urlImageRetriever = PriorityRetriever(8)
+        urlImageRetriever.workload = TaskService.NETWORK_IO
+        (urlImageRetriever as ImageRetriever).bitmapPool = bitmapPool
+        imageRetrieverCache = ConcurrentMemoryCache(this.capacity / 8)
         Logger.log(
             Logger.INFO, String.format(
                 Locale.US, "RenderResourceCache initialized  %,.0f KB  (%,.0f KB retrieval cache)",
@@ -85,10 +130,17 @@ class RenderResourceCache
 
     override fun clear() {
         handler.removeMessages(TRIM_STALE_RETRIEVALS)
-        entries.clear()
+        removeAllEntries()
         evictionQueue.clear()
+        creationQueue.clear()
         imageRetrieverCache.clear()
-        usedCapacity = 0
+        bitmapPool.clear()
+        prefetched.clear()
+    }
+
+    override fun put(key: Any, value: RenderResource, size: Int): RenderResource? {
+        creationQueue.offer(value)
+        return super.put(key, value, size)
     }
 
     override fun entryRemoved(
@@ -100,6 +152,25 @@ class RenderResourceCache
         evictionQueue.offer(oldValue)
     }
 
+    /**
+     * 每帧渲染开始时调用, 丢弃相机已经离开的瓦片的排队请求
+     */
+    fun beginFrame() {
+        (urlImageRetriever as PriorityRetriever).beginFrame()
+    }
+
+    fun getRetrievalQueueDepth(): Int {
+        return (urlImageRetriever as PriorityRetriever).getQueueDepth()
+    }
+
+    fun getRetrievalCancelledCount(): Long {
+        return (urlImageRetriever as PriorityRetriever).getCancelledCount()
+    }
+
+    fun getRetrievalWastedCount(): Long {
+        return (urlImageRetriever as PriorityRetriever).getWastedCount()
+    }
+
     fun releaseEvictedResources(dc: DrawContext) {
         var evicted: RenderResource?
         while (evictionQueue.poll().also { evicted = it } != null) {
@@ -111,23 +182,35 @@ class RenderResourceCache
         }
     }
 
-    fun retrieveTexture(imageSource: ImageSource, imageOptions: ImageOptions?): GpuTexture? {
-        if (imageSource.isBitmap()) {
-            val texture = this.createTexture(imageSource, imageOptions, imageSource.asBitmap());
-            put(imageSource, texture, texture.textureByteCount)
-            return texture
+    /**
+     * 把上次调用之后新建的资源移入 result, 由 GL 线程在绘制帧之前创建
+     */
+    fun drainCreatedResources(result: MutableList<RenderResource>) {
+        var created: RenderResource?
+        while (creationQueue.poll().also { created = it } != null) {
+            created?.let { result.add(it) }
         }
-        imageRetrieverCache.remove(imageSource)?.let {
-            val texture = this.createTexture(imageSource, imageOptions, it);
-            put(imageSource, texture, texture.textureByteCount)
-            return texture
-        }
-        if (imageSource.isUrl()) {
-            urlImageRetriever.retrieve(imageSource, imageOptions, this)
-        } else {
-            imageRetriever.retrieve(imageSource, imageOptions, this)
+    }
+
+    /**
+     * 把上次调用之后回收的资源移入 result, 由 GL 线程在不再有帧使用之后释放
+     */
+    fun drainEvictedResources(result: MutableList<RenderResource>) {
+        var evicted: RenderResource?
+        while (evictionQueue.poll().also { evicted = it } != null) {
+            evicted?.let { result.add(it) }
         }
-        return null
+    }
+
+    /**
+     * 把没有绘制就被丢弃的帧中回收的资源放回回收队列, 之后由其他帧或 releaseEvictedResources 释放
+     */
+    fun requeueEvictedResources(resources: Collection<RenderResource>) {
+        evictionQueue.addAll(resources)
+    }
+
+    fun retrieveTexture(imageSource: ImageSource, imageOptions: ImageOptions?): GpuTexture? {
+        return this.retrieveTexture(imageSource, imageOptions, Int.MAX_VALUE)
     }
 
     fun retrieveTexture(
@@ -141,10 +224,19 @@ class RenderResourceCache
             return texture
         }
         imageRetrieverCache.remove(imageSource)?.let {
+            if (prefetched.remove(imageSource) != null) {
+                prefetchHits++ // 需要显示时预取已经完成
+            }
             val texture = this.createTexture(imageSource, imageOptions, it);
+            if (bitmapPool.owns(it)) {
+                texture.bitmapPool = bitmapPool // 请求器为池解码的位图归纹理所有, 应用提供的位图不归还
+            }
             put(imageSource, texture, texture.textureByteCount)
             return texture
         }
+        if (prefetched.remove(imageSource) != null) {
+            prefetchLate++ // 需要显示时预取还没有完成, 改为按显示的优先级请求
+        }
         if (imageSource.isUrl()) {
             urlImageRetriever.retrieve(imageSource, imageOptions, this, id)
         } else {
@@ -153,6 +245,36 @@ class RenderResourceCache
         return null
     }
 
+    /**
+     * 预取网络图片, 只请求不创建纹理. 纹理或图片已经在缓存中时不请求并返回 false
+     */
+    fun prefetchTexture(imageSource: ImageSource, imageOptions: ImageOptions?, priority: Int): Boolean {
+        if (!imageSource.isUrl() || this.containsKey(imageSource) || imageRetrieverCache.containsKey(imageSource)) {
+            return false
+        }
+        if (prefetched.put(imageSource, imageSource) == null) {
+            prefetchRequests++
+        }
+        urlImageRetriever.retrieve(imageSource, imageOptions, this, priority)
+        return true
+    }
+
+    fun getPrefetchRequestCount(): Long {
+        return prefetchRequests
+    }
+
+    fun getPrefetchHitCount(): Long {
+        return prefetchHits
+    }
+
+    fun getPrefetchLateCount(): Long {
+        return prefetchLate
+    }
+
+    fun getPrefetchUnusedCount(): Long {
+        return prefetchUnused
+    }
+
     protected fun createTexture(
         imageSource: ImageSource,
         options: ImageOptions?,
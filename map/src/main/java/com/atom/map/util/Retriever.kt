@@ -4,6 +4,11 @@ import com.atom.map.WorldWind
 import com.atom.map.util.pool.Pool
 import com.atom.map.util.pool.Pools
 
+/**
+ * 异步请求器. 同一个 key 的重复请求合并到正在执行的请求上, 完成时通知所有回调;
+ * 请求失败的 key 进入失败缓存, 按指数退避在 failureBackoffMillis 到 maxFailureBackoffMillis 之间不再请求,
+ * 避免缺失的瓦片每帧都重新请求.
+ */
 abstract class Retriever<K, O, V>(maxSimultaneousRetrievals: Int) {
 
     interface Callback<K, O, V> {
@@ -20,12 +25,79 @@ abstract class Retriever<K, O, V>(maxSimultaneousRetrievals: Int) {
 
     protected var asyncTaskPool: Pool<AsyncTask<K, O, V>>
 
+    /**
+     * 正在执行或排队的请求的回调, 重复的请求把回调加入列表而不是再次请求
+     */
+    protected val waiters = hashMapOf<K, MutableList<Callback<K, O, V>>>()
+
+    /**
+     * 请求失败的 key 与下次允许请求的时间
+     */
+    protected val failures = hashMapOf<K, Failure>()
+
+    protected var coalesced: Long = 0
+
+    protected var suppressed: Long = 0
+
+    /**
+     * 第一次失败后的退避时间, 之后每次失败加倍
+     */
+    var failureBackoffMillis: Long = 2000
+
+    var maxFailureBackoffMillis: Long = 5 * 60 * 1000L
+
+    /**
+     * 失败缓存的最大条目数, 超出时丢弃已过退避时间的条目
+     */
+    var maxFailureEntries = 1024
+
+    /**
+     * 传给 retrieveAsync 的回调, 记录失败并把结果分发给该 key 的所有回调
+     */
+    protected val completion = object : Callback<K, O, V> {
+        override fun retrievalSucceeded(retriever: Retriever<K, O, V>, key: K, options: O?, value: V) {
+            val callbacks = synchronized(lock) {
+                failures.remove(key)
+                waiters.remove(key)
+            } ?: return
+            for (callback in callbacks) {
+                callback.retrievalSucceeded(retriever, key, options, value)
+            }
+        }
+
+        override fun retrievalFailed(retriever: Retriever<K, O, V>, key: K, ex: Throwable?) {
+            // 回调已分发过的 key 不再记录失败, 例如成功回调本身抛出异常
+            val callbacks = synchronized(lock) { waiters.remove(key)?.also { recordFailure(key) } } ?: return
+            for (callback in callbacks) {
+                callback.retrievalFailed(retriever, key, ex)
+            }
+        }
+
+        override fun retrievalRejected(retriever: Retriever<K, O, V>, key: K, msg: String) {
+            val callbacks = synchronized(lock) { waiters.remove(key) } ?: return
+            for (callback in callbacks) {
+                callback.retrievalRejected(retriever, key, msg)
+            }
+        }
+    }
+
+    /**
+     * 执行请求任务的线程池类型, 见 [TaskService.Workload]
+     */
+    @TaskService.Workload
+    var workload = TaskService.GENERAL
+
     init {
         this.maxAsyncTasks = maxSimultaneousRetrievals
         this.asyncTaskSet = mutableSetOf()
         this.asyncTaskPool = Pools.newPool()
     }
 
+    protected class Failure {
+        var count = 0
+        var retryAt: Long = 0
+    }
+
     @Throws(Exception::class)
     protected abstract fun retrieveAsync(key: K, options: O?, callback: Callback<K, O, V>)
 
@@ -49,8 +121,9 @@ abstract class Retriever<K, O, V>(maxSimultaneousRetrievals: Int) {
                 return null
             }
             asyncTaskSet.add(key)
-            return asyncTaskPool.acquire()?.set(this, key, options, callback)
-                ?: let { AsyncTask<K, O, V>().set(this, key, options, callback) }
+            waiters[key] = arrayListOf(callback)
+            return asyncTaskPool.acquire()?.set(this, key, options, completion)
+                ?: let { AsyncTask<K, O, V>().set(this, key, options, completion) }
         }
     }
 
@@ -61,15 +134,81 @@ abstract class Retriever<K, O, V>(maxSimultaneousRetrievals: Int) {
         synchronized(lock) { return asyncTaskSet.contains(key) }
     }
 
-    fun retrieve(
+    /**
+     * key 处于失败退避期时返回 true. 调用时须持有 lock
+     */
+    protected fun isBackedOff(key: K): Boolean {
+        val failure = failures[key] ?: return false
+        if (System.currentTimeMillis() < failure.retryAt) {
+            suppressed++
+            return true
+        }
+        return false
+    }
+
+    /**
+     * key 已有请求时把回调加入该请求并返回 true. 调用时须持有 lock
+     */
+    protected fun attachCallback(key: K, callback: Callback<K, O, V>): Boolean {
+        val callbacks = waiters[key] ?: return false
+        if (callbacks.none { it === callback }) {
+            callbacks.add(callback)
+        }
+        coalesced++
+        return true
+    }
+
+    /**
+     * 记录一次失败, 下次允许请求的时间按失败次数指数增长. 调用时须持有 lock
+     */
+    protected fun recordFailure(key: K) {
+        val now = System.currentTimeMillis()
+        if (failures.size >= maxFailureEntries && !failures.containsKey(key)) {
+            failures.values.removeAll { it.retryAt <= now }
+            if (failures.size >= maxFailureEntries) {
+                failures.clear()
+            }
+        }
+        val failure = failures.getOrPut(key) { Failure() }
+        val backoff = failureBackoffMillis shl Math.min(failure.count, 20)
+        failure.count++
+        failure.retryAt = now + Math.min(backoff, maxFailureBackoffMillis)
+    }
+
+    /**
+     * 清除失败缓存, 例如网络恢复后立即重新请求缺失的瓦片
+     */
+    open fun clearFailures() {
+        synchronized(lock) { failures.clear() }
+    }
+
+    fun getFailedKeyCount(): Int {
+        synchronized(lock) { return failures.size }
+    }
+
+    fun getCoalescedCount(): Long {
+        synchronized(lock) { return coalesced }
+    }
+
+    fun getSuppressedCount(): Long {
+        synchronized(lock) { return suppressed }
+    }
+
+    open fun retrieve(
         key: K,
         options: O?,
         callback: Callback<K, O, V>
     ) {
+        synchronized(lock) {
+            if (this.isBackedOff(key) || this.attachCallback(key, callback)) {
+                return
+            }
+        }
         obtainAsyncTask(key, options, callback)?.let {
             try {
-                WorldWind.taskService.execute(it)
+                WorldWind.taskService.execute(workload, it)
             } catch (ignored: Exception) {
+                synchronized(lock) { waiters.remove(key) }
                 recycleAsyncTask(it)
                 callback.retrievalRejected(
                     this,
@@ -97,25 +236,6 @@ abstract class Retriever<K, O, V>(maxSimultaneousRetrievals: Int) {
     }
 
 
-    protected class Priority {
-        private val id: Int
-        private val task: AsyncTask<*, *, *>
-
-        constructor(id: Int, task: AsyncTask<*, *, *>) {
-            this.id = id
-            this.task = task
-        }
-
-        fun id(): Int {
-            return id
-        }
-
-        fun task(): AsyncTask<*, *, *> {
-            return task
-        }
-
-    }
-
     /**
      * 任务
      */
@@ -1,45 +1,289 @@
 package com.atom.map.util
 
+import androidx.annotation.IntDef
 import java.util.concurrent.*
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * 按任务类型划分的有界线程池. 每类任务 (网络请求, 图片解码, 高程解码, 图层创建, 批量下载, 地形准备, 其他) 使用独立的线程池,
+ * 各自配置线程数, 队列长度与队列满时的处理策略, 避免突发的瓦片请求无限制地创建线程.
+ *
+ * 运行时支持虚拟线程时, 可为阻塞 I/O 的线程池开启 useVirtualThreads.
+ */
 class TaskService {
 
-    protected var executorService: ExecutorService? = null
+    @IntDef(GENERAL, NETWORK_IO, IMAGE_DECODE, ELEVATION_DECODE, LAYER_CREATION, BULK_DOWNLOAD, TERRAIN_PREPARE)
+    @kotlin.annotation.Retention(AnnotationRetention.SOURCE)
+    annotation class Workload
 
-    constructor()
+    @IntDef(REJECT, CALLER_RUNS, DISCARD_OLDEST)
+    @kotlin.annotation.Retention(AnnotationRetention.SOURCE)
+    annotation class Backpressure
 
-    fun execute(command: Runnable) {
-        this.executorService().execute(command)
+    companion object {
+        /**
+         * [Workload] constant indicating miscellaneous background tasks.
+         */
+        const val GENERAL = 0
+
+        /**
+         * [Workload] constant indicating tasks that block on network I/O, such as tile retrieval.
+         */
+        const val NETWORK_IO = 1
+
+        /**
+         * [Workload] constant indicating CPU bound image decoding of local resources and files.
+         */
+        const val IMAGE_DECODE = 2
+
+        /**
+         * [Workload] constant indicating elevation coverage retrieval and decoding.
+         */
+        const val ELEVATION_DECODE = 3
+
+        /**
+         * [Workload] constant indicating asynchronous layer creation in LayerFactory.
+         */
+        const val LAYER_CREATION = 4
+
+        /**
+         * [Workload] constant indicating long running bulk downloads, such as seeding an offline GeoPackage. Kept apart
+         * from NETWORK_IO so that seeding never delays the tiles needed for the current frame.
+         */
+        const val BULK_DOWNLOAD = 5
+
+        /**
+         * [Workload] constant indicating CPU bound terrain tile preparation. A full pool runs tasks on the submitting
+         * thread, so the render thread keeps making progress instead of dropping terrain.
+         */
+        const val TERRAIN_PREPARE = 6
+
+        const val WORKLOAD_COUNT = 7
+
+        /**
+         * [Backpressure] constant indicating that a task submitted to a full pool is rejected with a
+         * RejectedExecutionException.
+         */
+        const val REJECT = 0
+
+        /**
+         * [Backpressure] constant indicating that a task submitted to a full pool runs on the submitting thread.
+         */
+        const val CALLER_RUNS = 1
+
+        /**
+         * [Backpressure] constant indicating that the oldest queued task is discarded to make room. Discarded tasks
+         * never run, so this policy is only suitable for tasks that need no completion callback.
+         */
+        const val DISCARD_OLDEST = 2
+
+        /**
+         * Number of latency histogram buckets. Bucket 0 counts tasks completed in less than 1 ms, bucket i counts
+         * tasks completed in [2^(i-1), 2^i) ms and the last bucket counts everything slower.
+         */
+        const val LATENCY_BUCKETS = 12
+
+        fun defaultConfig(@Workload workload: Int): PoolConfig {
+            val processors = Math.max(1, Runtime.getRuntime().availableProcessors())
+            return when (workload) {
+                NETWORK_IO -> PoolConfig("Network", 10, 64, REJECT, false)
+                IMAGE_DECODE -> PoolConfig("Image Decode", Math.min(4, processors), 64, REJECT, false)
+                ELEVATION_DECODE -> PoolConfig("Elevation Decode", 4, 64, REJECT, false)
+                LAYER_CREATION -> PoolConfig("Layer Creation", 2, 32, REJECT, false)
+                BULK_DOWNLOAD -> PoolConfig("Bulk Download", 4, 16, REJECT, false)
+                TERRAIN_PREPARE -> PoolConfig("Terrain", Math.max(1, processors - 1), 256, CALLER_RUNS, false)
+                else -> PoolConfig("General", 2, 128, REJECT, false)
+            }
+        }
+
+        fun latencyBucket(latencyMillis: Long): Int {
+            var bucket = 0
+            var bound = 1L
+            while (latencyMillis >= bound && bucket < LATENCY_BUCKETS - 1) {
+                bound = bound shl 1
+                bucket++
+            }
+            return bucket
+        }
+    }
+
+    class PoolConfig(
+        val name: String,
+        val maxThreads: Int,
+        val queueCapacity: Int,
+        @Backpressure val backpressure: Int,
+        val useVirtualThreads: Boolean
+    ) {
+        init {
+            if (maxThreads < 1 || queueCapacity < 0) {
+                throw IllegalArgumentException(
+                    Logger.logMessage(Logger.ERROR, "TaskService", "PoolConfig", "invalidCapacity")
+                )
+            }
+        }
+    }
+
+    class PoolMetrics {
+        var activeCount = 0
+        var queuedCount = 0
+        var rejectedCount: Long = 0
+        var completedCount: Long = 0
+        val latencyHistogram = LongArray(LATENCY_BUCKETS)
     }
 
-    protected fun executorService(): ExecutorService {
-        if (executorService == null) {
-            executorService = ThreadPoolExecutor(
-                0,
-                Int.MAX_VALUE,
+    protected class Pool(val config: PoolConfig) {
+
+        val rejected = AtomicLong()
+
+        val completed = AtomicLong()
+
+        val latencyHistogram = Array(LATENCY_BUCKETS) { AtomicLong() }
+
+        val executor: ThreadPoolExecutor
+
+        init {
+            val queue: BlockingQueue<Runnable> = if (config.queueCapacity > 0) {
+                ArrayBlockingQueue(config.queueCapacity)
+            } else {
+                SynchronousQueue()
+            }
+            executor = ThreadPoolExecutor(
+                config.maxThreads,
+                config.maxThreads,
                 60,
                 TimeUnit.SECONDS,
-                SynchronousQueue(),
+                queue,
                 this.threadFactory(),
-                this.rejectedExecutionHandler())
+                this.rejectedExecutionHandler()
+            )
+            executor.allowCoreThreadTimeOut(true) // idle pools release their threads
+        }
+
+        fun execute(command: Runnable) {
+            executor.execute(TimedTask(this, command, System.nanoTime()))
+        }
+
+        fun recordCompletion(submitNanos: Long) {
+            val latencyMillis = (System.nanoTime() - submitNanos) / 1000000
+            latencyHistogram[latencyBucket(latencyMillis)].incrementAndGet()
+            completed.incrementAndGet()
+        }
+
+        fun assembleMetrics(result: PoolMetrics) {
+            result.activeCount = executor.activeCount
+            result.queuedCount = executor.queue.size
+            result.rejectedCount = rejected.get()
+            result.completedCount = completed.get()
+            for (idx in 0 until LATENCY_BUCKETS) {
+                result.latencyHistogram[idx] = latencyHistogram[idx].get()
+            }
+        }
+
+        private fun threadFactory(): ThreadFactory {
+            if (config.useVirtualThreads) {
+                virtualThreadFactory("World Wind ${config.name} ")?.let { return it }
+            }
+            val threadName = "World Wind ${config.name} "
+            val threadNumber = AtomicInteger(1)
+            return ThreadFactory { r ->
+                val thread = Thread(r, threadName + threadNumber.getAndIncrement())
+                thread.isDaemon = true // task threads do not prevent the process from terminating
+                thread
+            }
+        }
+
+        /**
+         * 通过反射创建虚拟线程工厂 (Thread.ofVirtual().name(prefix, 1).factory()), 运行时不支持时返回 null
+         */
+        private fun virtualThreadFactory(prefix: String): ThreadFactory? {
+            return try {
+                val builder = Thread::class.java.getMethod("ofVirtual").invoke(null)
+                val builderClass = Class.forName("java.lang.Thread\$Builder")
+                val named = builderClass.getMethod("name", String::class.java, java.lang.Long.TYPE)
+                    .invoke(builder, prefix, 1L)
+                builderClass.getMethod("factory").invoke(named) as ThreadFactory
+            } catch (ignored: Exception) {
+                null
+            }
+        }
+
+        private fun rejectedExecutionHandler(): RejectedExecutionHandler {
+            return RejectedExecutionHandler { r, executor ->
+                rejected.incrementAndGet()
+                when (config.backpressure) {
+                    CALLER_RUNS -> if (!executor.isShutdown) r.run()
+                    DISCARD_OLDEST -> if (!executor.isShutdown) {
+                        executor.queue.poll()
+                        executor.execute(r)
+                    }
+                    else -> throw RejectedExecutionException() // throw an exception but suppress the message to avoid string allocation
+                }
+            }
+        }
+    }
+
+    protected class TimedTask(val pool: Pool, val command: Runnable, val submitNanos: Long) : Runnable {
+        override fun run() {
+            try {
+                command.run()
+            } finally {
+                pool.recordCompletion(submitNanos)
+            }
+        }
+    }
+
+    private val lock = Any()
+
+    private val configs = Array(WORKLOAD_COUNT) { defaultConfig(it) }
+
+    private val pools = arrayOfNulls<Pool>(WORKLOAD_COUNT)
+
+    constructor()
+
+    fun execute(command: Runnable) {
+        this.execute(GENERAL, command)
+    }
+
+    /**
+     * 在指定类型的线程池中执行任务. 线程池已满且策略为 REJECT 时抛出 RejectedExecutionException
+     */
+    fun execute(@Workload workload: Int, command: Runnable) {
+        this.pool(workload).execute(command)
+    }
+
+    fun getPoolConfig(@Workload workload: Int): PoolConfig {
+        synchronized(lock) { return configs[workload] }
+    }
+
+    /**
+     * 修改线程池配置. 已创建的线程池不再接受新任务, 已提交的任务继续执行完毕
+     */
+    fun setPoolConfig(@Workload workload: Int, config: PoolConfig) {
+        synchronized(lock) {
+            configs[workload] = config
+            pools[workload]?.executor?.shutdown()
+            pools[workload] = null
         }
-        return executorService!!
     }
 
-    protected fun threadFactory(): ThreadFactory? {
-        val threadName = "World Wind Task Service "
-        val threadNumber = AtomicInteger(1)
-        return ThreadFactory { r ->
-            val thread = Thread(r, threadName + threadNumber.getAndIncrement())
-            thread.isDaemon = true // task threads do not prevent the process from terminating
-            thread
+    fun assemblePoolMetrics(@Workload workload: Int, result: PoolMetrics): PoolMetrics {
+        val pool = synchronized(lock) { pools[workload] }
+        if (pool != null) {
+            pool.assembleMetrics(result)
+        } else {
+            result.activeCount = 0
+            result.queuedCount = 0
+            result.rejectedCount = 0
+            result.completedCount = 0
+            result.latencyHistogram.fill(0)
         }
+        return result
     }
 
-    protected fun rejectedExecutionHandler(): RejectedExecutionHandler? {
-        return RejectedExecutionHandler { _, _ ->
-            throw RejectedExecutionException() // throw an exception but suppress the message to avoid string allocation
+    private fun pool(workload: Int): Pool {
+        synchronized(lock) {
+            return pools[workload] ?: Pool(configs[workload]).also { pools[workload] = it }
         }
     }
-}
\ No newline at end of file
+}
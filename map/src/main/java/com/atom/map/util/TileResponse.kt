@@ -0,0 +1,17 @@
+package com.atom.map.util
+
+import java.net.HttpURLConnection
+
+/**
+ * 瓦片请求的响应. validator 为服务端返回的 ETag 或 Last-Modified, 可原样传回 TileTransport.fetch 进行条件请求
+ */
+class TileResponse(val statusCode: Int, val data: ByteArray?, val contentType: String?, val validator: String?) {
+
+    fun isSuccess() = statusCode == HttpURLConnection.HTTP_OK && data != null
+
+    fun isNotModified() = statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+
+    override fun toString(): String {
+        return "TileResponse{statusCode=$statusCode, length=${data?.size ?: 0}, contentType=$contentType}"
+    }
+}
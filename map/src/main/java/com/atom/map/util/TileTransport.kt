@@ -0,0 +1,16 @@
+package com.atom.map.util
+
+import java.io.IOException
+
+/**
+ * 瓦片的网络传输层. 图片与高程请求器共用同一个实例 (WorldWind.tileTransport), 以便共享连接池与每个主机的并发限制.
+ * 可替换为基于其他 HTTP 客户端的实现, 例如支持 HTTP/2 多路复用的客户端.
+ */
+interface TileTransport {
+
+    /**
+     * 请求指定的 URL. validator 为上一次响应返回的校验值, 不为空时发送条件请求, 服务端未修改时返回状态码 304 且不带数据
+     */
+    @Throws(IOException::class)
+    fun fetch(url: String, validator: String?): TileResponse
+}
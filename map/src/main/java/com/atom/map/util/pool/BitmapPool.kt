@@ -0,0 +1,127 @@
+package com.atom.map.util.pool
+
+import android.graphics.Bitmap
+import java.util.*
+
+/**
+ * 按宽高与像素格式分组的位图池. 解码瓦片时通过 BitmapFactory.Options.inBitmap 复用池中的位图,
+ * 纹理上传到 GPU 之后把位图归还到池中, 避免每个瓦片都分配新的位图.
+ *
+ * 只有解码时通过 adopt 登记的位图才会被池接受, 应用自己创建的位图不会被复用.
+ * 池中位图的总字节数不超过 maxPooledBytes, 超出时归还的位图直接丢弃. 可在多个线程中使用.
+ */
+class BitmapPool(var maxPooledBytes: Int = 1024 * 1024 * 8) {
+
+    class Metrics {
+        var pooledBytes = 0
+        var acquireCount: Long = 0
+        var reuseCount: Long = 0
+        var reusedBytes: Long = 0
+        var discardCount: Long = 0
+    }
+
+    private val lock = Any()
+
+    private val pools = hashMapOf<Long, BasicPool<Bitmap>>()
+
+    // 登记过的位图, 弱引用不妨碍未归还的位图被回收
+    private val owned: MutableSet<Bitmap> = Collections.newSetFromMap(WeakHashMap<Bitmap, Boolean>())
+
+    private var pooledBytes = 0
+
+    private var acquireCount: Long = 0
+
+    private var reuseCount: Long = 0
+
+    private var reusedBytes: Long = 0
+
+    private var discardCount: Long = 0
+
+    /**
+     * 取出一个指定大小与格式的可变位图, 池中没有时返回 null
+     */
+    fun acquire(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+        synchronized(lock) {
+            acquireCount++
+            val bitmap = pools[key(width, height, config)]?.acquire() ?: return null
+            val byteCount = bitmap.byteCount
+            pooledBytes -= byteCount
+            reuseCount++
+            reusedBytes += byteCount
+            return bitmap
+        }
+    }
+
+    /**
+     * 登记一个为池解码的位图, 之后可以归还到池中
+     */
+    fun adopt(bitmap: Bitmap) {
+        synchronized(lock) { owned.add(bitmap) }
+    }
+
+    /**
+     * 位图是否登记过, 只有登记过的位图可以归还到池中
+     */
+    fun owns(bitmap: Bitmap?): Boolean {
+        bitmap ?: return false
+        synchronized(lock) { return owned.contains(bitmap) }
+    }
+
+    /**
+     * 归还一个不再使用的位图. 只接受登记过、可变且未回收的位图, 调用方归还之后不能再使用该位图
+     */
+    fun release(bitmap: Bitmap?) {
+        if (bitmap == null || bitmap.isRecycled || !bitmap.isMutable) {
+            return
+        }
+        val config = bitmap.config ?: return
+        val byteCount = bitmap.byteCount
+        synchronized(lock) {
+            if (!owned.contains(bitmap)) {
+                return
+            }
+            if (pooledBytes + byteCount > maxPooledBytes) {
+                discardCount++
+                return
+            }
+            pools.getOrPut(key(bitmap.width, bitmap.height, config)) { BasicPool() }.release(bitmap)
+            pooledBytes += byteCount
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            pools.clear()
+            pooledBytes = 0
+        }
+    }
+
+    fun getPooledBytes(): Int {
+        synchronized(lock) { return pooledBytes }
+    }
+
+    /**
+     * 复用率: 从池中取到位图的次数占请求次数的比例
+     */
+    fun getReuseRate(): Double {
+        synchronized(lock) { return if (acquireCount > 0) reuseCount / acquireCount.toDouble() else 0.0 }
+    }
+
+    /**
+     * 获取累计的统计数据
+     */
+    fun assembleMetrics(result: Metrics): Metrics {
+        synchronized(lock) {
+            result.pooledBytes = pooledBytes
+            result.acquireCount = acquireCount
+            result.reuseCount = reuseCount
+            result.reusedBytes = reusedBytes
+            result.discardCount = discardCount
+        }
+        return result
+    }
+
+    private fun key(width: Int, height: Int, config: Bitmap.Config): Long {
+        return (width.toLong() shl 36) or (height.toLong() shl 8) or config.ordinal.toLong()
+    }
+}
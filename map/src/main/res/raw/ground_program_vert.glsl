@@ -5,6 +5,7 @@ uniform int fragMode;
 uniform mat4 mvpMatrix;
 uniform mat3 texCoordMatrix;
 uniform vec3 vertexOrigin;
+uniform vec3 vertexScale;
 uniform vec3 eyePoint;
 uniform float eyeMagnitude;
 uniform float eyeMagnitude2;
@@ -34,7 +35,8 @@ float scaleFunc(float cos) {
 }
 
 void main() {
-    vec3 point = vertexPoint.xyz + vertexOrigin;
+    /* Quantized terrain vertices are scaled back to model coordinates; float vertices use a scale of 1. */
+    vec3 point = vertexPoint.xyz * vertexScale + vertexOrigin;
     vec3 ray = point - eyePoint;
     float far = length(ray);
     ray /= far;
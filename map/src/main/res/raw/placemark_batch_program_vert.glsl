@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2016 United States Government as represented by the Administrator of the
+ * National Aeronautics and Space Administration. All Rights Reserved.
+ */
+
+uniform mat4 mvpMatrix;
+
+attribute vec4 vertexPoint;
+attribute vec2 vertexTexCoord;
+attribute vec4 vertexColor;
+
+varying vec2 texCoord;
+varying vec4 color;
+
+void main() {
+    /* Transform the screen coordinate vertex position by the screen projection matrix */
+    gl_Position = mvpMatrix * vertexPoint;
+
+    /* Tex coords are already transformed by the texture's tex coord matrix */
+    texCoord = vertexTexCoord;
+    color = vertexColor;
+}
@@ -0,0 +1,70 @@
+package com.atom.map.core.tile
+
+import com.atom.map.geom.Sector
+import com.atom.map.util.Level
+import com.atom.map.util.LevelSet
+import org.junit.Assert.*
+import org.junit.Test
+
+class TerrainTileCacheTest {
+
+    private val levelSet = LevelSet(Sector().setFullSphere(), 90.0, 20, 32, 32)
+
+    private fun children(level: Level, row: Int, pointCount: Int): Array<Tile?> {
+        return Array(4) {
+            val sector = Sector(-90 + row * level.tileDelta, -180 + it * level.tileDelta, level.tileDelta, level.tileDelta)
+            TerrainTile(sector, level, row, it).apply { points = FloatArray(pointCount) }
+        }
+    }
+
+    @Test
+    fun packedKeysAreDistinct() {
+        val keys = hashSetOf<Long>()
+        for (level in 0 until 20) {
+            for (row in 0 until 8) {
+                for (column in 0 until 8) {
+                    assertTrue(keys.add(Tile.packKey(level, row, column)))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun evictsByMemoryAndTracksHits() {
+        val level = levelSet.level(5)!!
+        val entryBytes = 4 * (TerrainTileCache.TILE_OVERHEAD + 1000 * 4)
+        val cache = TerrainTileCache(entryBytes * 4)
+        for (row in 0 until 4) {
+            cache.put(row.toLong(), children(level, row, 1000))
+        }
+        assertEquals(4, cache.getEntryCount())
+        assertEquals(entryBytes * 4, cache.usedCapacity)
+
+        assertNotNull(cache.get(0)) // 0 becomes the most recently used
+        assertNull(cache.get(99))
+        assertEquals(0.5, cache.getHitRate(), 0.0)
+
+        // a fifth entry exceeds the budget and evicts the least recently used entry down to the low-water mark
+        cache.put(4, children(level, 4, 1000))
+        assertTrue(cache.usedCapacity <= cache.capacity)
+        assertEquals(4, cache.getEntryCount())
+        assertTrue(cache.containsKey(0))
+        assertTrue(cache.containsKey(4))
+        assertFalse(cache.containsKey(1))
+        assertTrue(cache.getEvictionCount() > 0)
+    }
+
+    @Test
+    fun resizesEntriesWhenTileDataChanges() {
+        val level = levelSet.level(5)!!
+        val cache = TerrainTileCache(1024 * 1024)
+        val tiles = children(level, 0, 0)
+        cache.put(7, tiles)
+        assertEquals(4 * TerrainTileCache.TILE_OVERHEAD, cache.usedCapacity)
+
+        (tiles[0] as TerrainTile).heights = FloatArray(100)
+        (tiles[0] as TerrainTile).bufferBytes = 800
+        cache.get(7)
+        assertEquals(4 * TerrainTileCache.TILE_OVERHEAD + 400 + 800, cache.usedCapacity)
+    }
+}
@@ -0,0 +1,197 @@
+package com.atom.map.drawable
+
+import com.atom.map.WorldWind
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class DrawBatchingTest {
+
+    companion object {
+        private const val GL_ARRAY_BUFFER = 0x8892
+
+        private const val GL_TRIANGLES = 0x0004
+    }
+
+    /**
+     * 记录实际发出的 GL 调用
+     */
+    private class RecordingGL : GLStateFunctions {
+
+        val calls = ArrayList<String>()
+
+        override fun useProgram(program: Int) {
+            calls.add("program $program")
+        }
+
+        override fun activeTexture(textureUnit: Int) {
+            calls.add("activeTexture $textureUnit")
+        }
+
+        override fun bindTexture(target: Int, texture: Int) {
+            calls.add("texture $texture")
+        }
+
+        override fun bindBuffer(target: Int, buffer: Int) {
+            calls.add("buffer $buffer")
+        }
+
+        override fun drawArrays(mode: Int, first: Int, count: Int) {
+            calls.add("drawArrays")
+        }
+
+        override fun drawElements(mode: Int, count: Int, type: Int, offset: Int) {
+            calls.add("drawElements")
+        }
+    }
+
+    /**
+     * 按程序, 纹理, 缓冲编号绘制的对象, 合批状态按 DrawableQueue.batchState 的位布局直接由编号组成
+     */
+    private class TestDrawable(
+        val program: Int, val texture: Int, val buffer: Int, val opaque: Boolean, val depth: Double
+    ) : Drawable {
+
+        override val sortState: Int
+            get() = (program shl 8) or texture
+
+        override val batchState: Long
+            get() = if (opaque) (program.toLong() shl 27) or (texture.toLong() shl 15) or buffer.toLong() else -1
+
+        override fun draw(dc: DrawContext) {
+            dc.useProgram(program)
+            dc.bindTexture(texture)
+            dc.bindBuffer(GL_ARRAY_BUFFER, buffer)
+            dc.drawArrays(GL_TRIANGLES, 0, 3)
+        }
+
+        override fun recycle() {}
+    }
+
+    private fun createDrawables(): List<TestDrawable> {
+        val random = Random(11)
+        val drawables = ArrayList<TestDrawable>()
+        for (idx in 0 until 2000) {
+            val opaque = idx % 5 != 0
+            drawables.add(TestDrawable(
+                1 + random.nextInt(4), 1 + random.nextInt(8), 1 + random.nextInt(16), opaque, -random.nextDouble() * 1e5
+            ))
+        }
+        return drawables
+    }
+
+    private fun draw(dc: DrawContext, queue: DrawableQueue): List<TestDrawable> {
+        val drawn = ArrayList<TestDrawable>()
+        dc.drawableQueue = queue
+        dc.rewindDrawables()
+        while (true) {
+            val drawable = dc.pollDrawable() ?: break
+            drawable.draw(dc)
+            drawn.add(drawable as TestDrawable)
+        }
+        return drawn
+    }
+
+    @Test
+    fun opaqueDrawablesBatchByProgramTextureBuffer() {
+        val drawables = createDrawables()
+        val queue = DrawableQueue()
+        drawables.forEach { queue.offerDrawable(it, WorldWind.SHAPE_DRAWABLE, it.depth) }
+
+        val gl = RecordingGL()
+        val dc = DrawContext()
+        dc.gl = gl
+        val drawn = draw(dc, queue)
+        assertEquals(drawables.size, drawn.size)
+        assertEquals(drawables.size, dc.drawStats.drawCalls)
+
+        // 不透明对象在前, 按程序, 纹理, 缓冲相邻排列
+        val opaqueCount = drawables.count { it.opaque }
+        assertTrue(drawn.subList(0, opaqueCount).all { it.opaque })
+        val opaqueStates = drawn.subList(0, opaqueCount).map { it.batchState }
+        assertEquals(opaqueStates.sorted(), opaqueStates)
+
+        // 半透明对象保持深度顺序
+        val translucent = drawn.subList(opaqueCount, drawn.size)
+        assertTrue(translucent.none { it.opaque })
+        assertEquals(translucent.map { it.depth }.sorted(), translucent.map { it.depth })
+        val expectedTranslucent = drawables.filter { !it.opaque }.sortedBy { it.depth }
+        assertEquals(expectedTranslucent, translucent)
+
+        // 4 个程序, 每个程序最多 8 个纹理, 之后是半透明对象的切换
+        val opaqueCalls = countCalls(gl.calls, opaqueCount)
+        assertEquals(4, opaqueCalls.programSwitches)
+        assertTrue(opaqueCalls.textureBinds <= 4 * 8)
+        assertTrue(opaqueCalls.bufferBinds <= 4 * 8 * 16)
+    }
+
+    @Test
+    fun sortedFrameIssuesFewerStateChangesThanInsertionOrder() {
+        val drawables = createDrawables()
+
+        val unsortedGl = RecordingGL()
+        val unsorted = DrawContext()
+        unsorted.gl = unsortedGl
+        for (drawable in drawables) {
+            drawable.draw(unsorted)
+        }
+
+        val queue = DrawableQueue()
+        drawables.forEach { queue.offerDrawable(it, WorldWind.SHAPE_DRAWABLE, it.depth) }
+        val sortedGl = RecordingGL()
+        val sorted = DrawContext()
+        sorted.gl = sortedGl
+        draw(sorted, queue)
+
+        assertEquals(unsorted.drawStats.drawCalls, sorted.drawStats.drawCalls)
+        assertTrue(sorted.drawStats.programSwitches * 3 < unsorted.drawStats.programSwitches)
+        assertTrue(sorted.drawStats.textureBinds * 2 < unsorted.drawStats.textureBinds)
+        // 计数与实际发出的调用一致
+        assertEquals(sortedGl.calls.count { it.startsWith("program") }, sorted.drawStats.programSwitches)
+        assertEquals(sortedGl.calls.count { it.startsWith("texture") }, sorted.drawStats.textureBinds)
+        assertEquals(sortedGl.calls.count { it.startsWith("buffer") }, sorted.drawStats.bufferBinds)
+        println("DrawBatching ${drawables.size} drawables: insertion order {${unsorted.drawStats}}, sorted {${sorted.drawStats}}")
+    }
+
+    @Test
+    fun redundantBindsAreElidedUntilDeleted() {
+        val gl = RecordingGL()
+        val dc = DrawContext()
+        dc.gl = gl
+        dc.bindBuffer(GL_ARRAY_BUFFER, 5)
+        dc.bindBuffer(GL_ARRAY_BUFFER, 5)
+        dc.bindTexture(7)
+        dc.bindTexture(7)
+        dc.useProgram(3)
+        dc.useProgram(3)
+        assertEquals(listOf("buffer 5", "texture 7", "program 3"), gl.calls)
+
+        // 删除之后同名对象需要重新绑定
+        dc.bufferDeleted(5)
+        dc.textureDeleted(7)
+        dc.bindBuffer(GL_ARRAY_BUFFER, 5)
+        dc.bindTexture(7)
+        assertEquals(listOf("buffer 5", "texture 7", "program 3", "buffer 5", "texture 7"), gl.calls)
+        assertEquals(2, dc.drawStats.bufferBinds)
+        assertEquals(2, dc.drawStats.textureBinds)
+        assertEquals(1, dc.drawStats.programSwitches)
+        dc.drawStats.reset()
+        assertEquals(0, dc.drawStats.bufferBinds)
+    }
+
+    private fun countCalls(calls: List<String>, drawCount: Int): DrawStats {
+        val stats = DrawStats()
+        for (call in calls) {
+            when {
+                call == "drawArrays" -> stats.drawCalls++
+                call.startsWith("program") -> stats.programSwitches++
+                call.startsWith("texture") -> stats.textureBinds++
+                call.startsWith("buffer") -> stats.bufferBinds++
+            }
+            if (stats.drawCalls == drawCount) {
+                break
+            }
+        }
+        return stats
+    }
+}
@@ -0,0 +1,191 @@
+package com.atom.map.drawable
+
+import com.atom.map.WorldWind
+import com.atom.map.core.shader.GpuTexture
+import com.atom.map.core.shader.PlacemarkBatchProgram
+import com.atom.map.geom.Matrix4
+import com.atom.map.geom.SimpleColor
+import com.atom.map.renderable.pick.PickedObject
+import com.atom.map.util.pool.SynchronizedPool
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.*
+
+class DrawablePlacemarkBatchTest {
+
+    companion object {
+        private const val GL_RGBA = 0x1908
+
+        private const val GL_UNSIGNED_BYTE = 0x1401
+    }
+
+    // 组批只用到程序的引用, 不需要着色器源码
+    private val program = PlacemarkBatchProgram()
+
+    private val pool = SynchronizedPool<DrawablePlacemarkBatch>()
+
+    private class TestLabel : Drawable {
+        override val sortState: Int
+            get() = DrawableQueue.sortState(DrawableQueue.STATE_SCREEN_TEXTURE, null, null)
+
+        override fun draw(dc: DrawContext) {}
+
+        override fun recycle() {}
+    }
+
+    private fun vertexFloat(vertices: IntArray, quad: Int, corner: Int, component: Int): Float {
+        val idx = quad * PlacemarkIconQueue.QUAD_INTS + corner * PlacemarkIconQueue.VERTEX_INTS + component
+        return java.lang.Float.intBitsToFloat(vertices[idx])
+    }
+
+    // 按上传到 GL 的内存顺序读取颜色字节
+    private fun colorBytes(packed: Int): IntArray {
+        val buffer = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder())
+        buffer.putInt(packed).flip()
+        return IntArray(4) { buffer.get().toInt() and 0xFF }
+    }
+
+    @Test
+    fun iconExpandsToTransformedCorners() {
+        val texture = GpuTexture(32, 32, GL_RGBA, GL_UNSIGNED_BYTE)
+        texture.texCoordTransform.setToVerticalFlip()
+        val transform = Matrix4().setToTranslation(100.0, 200.0, 0.25).multiplyByScale(32.0, 16.0, 1.0)
+        val icons = PlacemarkIconQueue()
+        icons.offerIcon(texture, transform, SimpleColor(1f, 0.5f, 0f, 0.5f), true, 10.0)
+
+        val expected = arrayOf(
+            floatArrayOf(100f, 200f, 0.25f, 0f, 1f),
+            floatArrayOf(132f, 200f, 0.25f, 1f, 1f),
+            floatArrayOf(100f, 216f, 0.25f, 0f, 0f),
+            floatArrayOf(132f, 216f, 0.25f, 1f, 0f)
+        )
+        for (corner in 0 until 4) {
+            for (component in 0 until 5) {
+                assertEquals(expected[corner][component], vertexFloat(icons.vertices, 0, corner, component), 0f)
+            }
+            // 颜色预乘透明度
+            val color = icons.vertices[corner * PlacemarkIconQueue.VERTEX_INTS + 5]
+            assertArrayEquals(intArrayOf(128, 64, 0, 128), colorBytes(color))
+        }
+    }
+
+    @Test
+    fun pickColorsSurviveVertexPacking() {
+        val color = SimpleColor()
+        for (id in intArrayOf(1, 255, 256, 65535, 0x123456, 0xFFFFFF)) {
+            PickedObject.identifierToUniqueColor(id, color)
+            val bytes = colorBytes(PlacemarkIconQueue.packColor(color))
+            assertArrayEquals(intArrayOf(id shr 16 and 0xFF, id shr 8 and 0xFF, id and 0xFF, 0xFF), bytes)
+        }
+    }
+
+    @Test
+    fun iconsBatchByTextureAndDepthTestFarToNear() {
+        val textures = Array(3) { GpuTexture(32, 32, GL_RGBA, GL_UNSIGNED_BYTE) }
+        val random = Random(5)
+        val icons = PlacemarkIconQueue()
+        val transform = Matrix4()
+        val color = SimpleColor()
+        var farthest = 0.0
+        for (idx in 0 until 3000) {
+            val distance = 1000.0 + random.nextInt(5000) * 10.0
+            farthest = Math.max(farthest, distance)
+            // 用 x 坐标记录距离, 用 y 坐标记录入队顺序
+            transform.setToTranslation(distance, idx.toDouble(), 0.0)
+            icons.offerIcon(textures[idx % 3], transform, color, idx % 2 == 0, distance)
+        }
+
+        // 比所有图标都远的标注不划分图标
+        val queue = DrawableQueue()
+        val label = TestLabel()
+        queue.offerDrawable(label, WorldWind.SHAPE_DRAWABLE, -farthest - 10)
+        icons.assembleBatches(program, pool, queue)
+        assertEquals(0, icons.count())
+        // 3 个纹理, 各自开启与关闭深度测试
+        assertEquals(7, queue.count())
+
+        val batches = (1 until queue.count()).map { queue.getDrawable(it) as DrawablePlacemarkBatch }
+        assertEquals(3000, batches.sumBy { it.quadCount })
+        for (batch in batches) {
+            assertSame(program, batch.program)
+            val vertices = IntArray(batch.vertices.remaining())
+            batch.vertices.duplicate().get(vertices)
+            assertEquals(batch.quadCount * PlacemarkIconQueue.QUAD_INTS, vertices.size)
+            for (quad in 1 until batch.quadCount) {
+                val prevDistance = vertexFloat(vertices, quad - 1, 0, 0)
+                val distance = vertexFloat(vertices, quad, 0, 0)
+                assertTrue(prevDistance >= distance)
+                // 距离相同时保持入队顺序
+                if (prevDistance == distance) {
+                    assertTrue(vertexFloat(vertices, quad - 1, 0, 1) < vertexFloat(vertices, quad, 0, 1))
+                }
+            }
+            assertEquals(batch.farthestDistance, vertexFloat(vertices, 0, 0, 0).toDouble(), 0.0)
+        }
+
+        queue.sortDrawables()
+        assertSame(label, queue.pollDrawable())
+
+        queue.clearDrawables()
+        assertTrue(batches.all { it.texture == null && it.quadCount == 0 })
+    }
+
+    @Test
+    fun labelsSplitBatchesByDistance() {
+        val texture = GpuTexture(32, 32, GL_RGBA, GL_UNSIGNED_BYTE)
+        val icons = PlacemarkIconQueue()
+        val queue = DrawableQueue()
+        val transform = Matrix4()
+        val color = SimpleColor()
+        // 与 Placemark 相同, 先入队标注再入队图标. 只有 2000 米的地标有标注
+        val label = TestLabel()
+        for (distance in doubleArrayOf(3000.0, 2000.0, 1000.0)) {
+            if (distance == 2000.0) {
+                queue.offerDrawable(label, WorldWind.SHAPE_DRAWABLE, -distance)
+            }
+            transform.setToTranslation(distance, 0.0, 0.0)
+            icons.offerIcon(texture, transform, color, true, distance)
+        }
+        icons.assembleBatches(program, pool, queue)
+
+        queue.sortDrawables()
+        val far = queue.pollDrawable() as DrawablePlacemarkBatch
+        assertSame(label, queue.pollDrawable())
+        val near = queue.pollDrawable() as DrawablePlacemarkBatch
+        assertNull(queue.pollDrawable())
+        // 标注之前的两个图标仍然合批, 较近的图标绘制在标注之上
+        assertEquals(2, far.quadCount)
+        assertEquals(3000.0, far.farthestDistance, 0.0)
+        assertEquals(1, near.quadCount)
+        assertEquals(1000.0, near.farthestDistance, 0.0)
+    }
+
+    @Test
+    fun shardsMergeInOrder() {
+        val texture = GpuTexture(32, 32, GL_RGBA, GL_UNSIGNED_BYTE)
+        val shard = PlacemarkIconQueue()
+        val transform = Matrix4()
+        val color = SimpleColor()
+        for (idx in 0 until 100) {
+            transform.setToTranslation(idx.toDouble(), 0.0, 0.0)
+            shard.offerIcon(texture, transform, color, true, idx.toDouble())
+        }
+        val icons = PlacemarkIconQueue()
+        icons.offerIcons(shard, 10, 60)
+        icons.offerIcons(shard, 80, 100)
+        assertEquals(70, icons.count())
+        assertEquals(59.0, icons.getDistance(49), 0.0)
+        assertEquals(80f, vertexFloat(icons.vertices, 50, 0, 0))
+        assertSame(texture, icons.getTexture(69))
+        assertNull(icons.getTexture(70))
+    }
+
+    @Test
+    fun quadIndicesCoverUnsignedShortRange() {
+        assertArrayEquals(shortArrayOf(0, 1, 2, 2, 1, 3, 4, 5, 6, 6, 5, 7), PlacemarkBatchProgram.quadIndices(2))
+        val indices = PlacemarkBatchProgram.quadIndices(PlacemarkBatchProgram.MAX_QUADS)
+        assertEquals(0xFFFF, indices[indices.size - 1].toInt() and 0xFFFF)
+    }
+}
@@ -0,0 +1,160 @@
+package com.atom.map.drawable
+
+import com.atom.map.WorldWind
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class DrawableQueueTest {
+
+    private class TestDrawable(val groupId: Int, val order: Double, val state: Int = 0, val id: Int = 0) : Drawable {
+
+        var recycled = false
+
+        override val sortState: Int
+            get() = state
+
+        override fun draw(dc: DrawContext) {}
+
+        override fun recycle() {
+            recycled = true
+        }
+    }
+
+    private fun drain(queue: DrawableQueue): List<TestDrawable> {
+        val result = ArrayList<TestDrawable>()
+        while (true) {
+            result.add((queue.pollDrawable() ?: break) as TestDrawable)
+        }
+        return result
+    }
+
+    @Test
+    fun sortsByGroupThenOrderThenInsertion() {
+        val queue = DrawableQueue()
+        val offered = listOf(
+            TestDrawable(WorldWind.SCREEN_DRAWABLE, 1.0, id = 0),
+            TestDrawable(WorldWind.SHAPE_DRAWABLE, -10.0, id = 1),
+            TestDrawable(WorldWind.SURFACE_DRAWABLE, Double.POSITIVE_INFINITY, id = 2),
+            TestDrawable(WorldWind.SHAPE_DRAWABLE, -1000.5, id = 3),
+            TestDrawable(WorldWind.SURFACE_DRAWABLE, 0.0, id = 4),
+            TestDrawable(WorldWind.SURFACE_DRAWABLE, Double.NEGATIVE_INFINITY, id = 5),
+            TestDrawable(WorldWind.SHAPE_DRAWABLE, -10.0, id = 6),
+            TestDrawable(WorldWind.SURFACE_DRAWABLE, 0.0, id = 7),
+            TestDrawable(WorldWind.SHAPE_DRAWABLE, 2.5e-7, id = 8),
+            TestDrawable(WorldWind.BACKGROUND_DRAWABLE, 5.0, id = 9)
+        )
+        offered.forEach { queue.offerDrawable(it, it.groupId, it.order) }
+        queue.sortDrawables()
+        assertEquals(listOf(9, 5, 4, 7, 2, 3, 1, 6, 8, 0), drain(queue).map { it.id })
+    }
+
+    @Test
+    fun randomQueueMatchesStableComparatorSort() {
+        val random = Random(3)
+        val queue = DrawableQueue()
+        val offered = ArrayList<TestDrawable>()
+        for (idx in 0 until 5000) {
+            // 少量离散深度制造大量相同深度的对象
+            val drawable = TestDrawable(random.nextInt(4), (random.nextInt(50) - 25) * 1.5, 0, idx)
+            offered.add(drawable)
+            queue.offerDrawable(drawable, drawable.groupId, drawable.order)
+        }
+        val expected = offered.sortedWith(compareBy<TestDrawable> { it.groupId }.thenBy { it.order })
+        queue.sortDrawables()
+        assertEquals(expected.map { it.id }, drain(queue).map { it.id })
+    }
+
+    @Test
+    fun equalDepthsGroupByState() {
+        val queue = DrawableQueue()
+        val states = intArrayOf(7, 3, 7, 3, 7, 1)
+        for (idx in states.indices) {
+            queue.offerDrawable(TestDrawable(WorldWind.SCREEN_DRAWABLE, 0.0, states[idx], idx), WorldWind.SCREEN_DRAWABLE, 0.0)
+        }
+        queue.offerDrawable(TestDrawable(WorldWind.SCREEN_DRAWABLE, -1.0, 9, 6), WorldWind.SCREEN_DRAWABLE, -1.0)
+        queue.sortDrawables()
+        // 深度优先于状态, 状态相同时保持入队顺序
+        assertEquals(listOf(6, 5, 1, 3, 0, 2, 4), drain(queue).map { it.id })
+    }
+
+    @Test
+    fun transferredDrawablesKeepKeysAndDiscardedShardDoesNotRecycle() {
+        val shard = DrawableQueue()
+        val drawables = (0 until 4).map { TestDrawable(WorldWind.SHAPE_DRAWABLE, -it.toDouble(), 0, it) }
+        drawables.forEach { shard.offerDrawable(it, it.groupId, it.order) }
+        val queue = DrawableQueue()
+        queue.offerDrawables(shard, 1, 4)
+        shard.discardDrawables()
+        assertEquals(0, shard.count())
+        assertFalse(drawables.any { it.recycled })
+        assertEquals(shard.getSortKey(0), 0L)
+        assertEquals(DrawableQueue.packSortKey(WorldWind.SHAPE_DRAWABLE, -1.0, 0), queue.getSortKey(0))
+        queue.sortDrawables()
+        assertEquals(listOf(3, 2, 1), drain(queue).map { it.id })
+        queue.clearDrawables()
+        assertTrue(drawables.subList(1, 4).all { it.recycled })
+    }
+
+    @Test
+    fun sortKeysFollowOrderAcrossSigns() {
+        val orders = doubleArrayOf(Double.NEGATIVE_INFINITY, -1e12, -3.0, -1e-9, 0.0, 1e-9, 3.0, 1e12, Double.POSITIVE_INFINITY)
+        for (idx in 1 until orders.size) {
+            val lower = DrawableQueue.packSortKey(WorldWind.SHAPE_DRAWABLE, orders[idx - 1], 0)
+            val upper = DrawableQueue.packSortKey(WorldWind.SHAPE_DRAWABLE, orders[idx], 0)
+            assertTrue("${orders[idx - 1]} < ${orders[idx]}", java.lang.Long.compareUnsigned(lower, upper) < 0)
+        }
+        assertTrue(java.lang.Long.compareUnsigned(
+            DrawableQueue.packSortKey(WorldWind.SURFACE_DRAWABLE, Double.POSITIVE_INFINITY, DrawableQueue.STATE_MASK),
+            DrawableQueue.packSortKey(WorldWind.SHAPE_DRAWABLE, Double.NEGATIVE_INFINITY, 0)) < 0)
+    }
+
+    /**
+     * 入队顺序的对象按比较器排序与按打包键基数排序的耗时
+     */
+    @Test
+    fun benchmarkSort() {
+        val comparator = Comparator<TestDrawable> { lhs, rhs ->
+            when {
+                lhs.groupId < rhs.groupId -> -1
+                lhs.groupId > rhs.groupId -> 1
+                lhs.order < rhs.order -> -1
+                lhs.order > rhs.order -> 1
+                else -> lhs.id - rhs.id
+            }
+        }
+        val report = StringBuilder("DrawableQueue sort:")
+        for (count in intArrayOf(1000, 10000, 100000)) {
+            val random = Random(count.toLong())
+            val drawables = Array(count) {
+                val group = if (random.nextInt(10) < 8) WorldWind.SCREEN_DRAWABLE else WorldWind.SHAPE_DRAWABLE
+                TestDrawable(group, -random.nextDouble() * 1e6, random.nextInt(16), it)
+            }
+            val queue = DrawableQueue()
+            var comparatorNanos = Long.MAX_VALUE
+            var radixNanos = Long.MAX_VALUE
+            val rounds = if (count >= 100000) 10 else 40
+            for (round in 0 until rounds) {
+                val array = drawables.copyOf()
+                var start = System.nanoTime()
+                Arrays.sort(array, comparator)
+                comparatorNanos = Math.min(comparatorNanos, System.nanoTime() - start)
+
+                for (drawable in drawables) {
+                    queue.offerDrawable(drawable, drawable.groupId, drawable.order)
+                }
+                start = System.nanoTime()
+                queue.sortDrawables()
+                radixNanos = Math.min(radixNanos, System.nanoTime() - start)
+                assertSame(array[0], queue.peekDrawable())
+                queue.discardDrawables()
+            }
+            report.append(String.format(" %d: comparator %.3f ms, radix %.3f ms;",
+                count, comparatorNanos / 1e6, radixNanos / 1e6))
+            if (count >= 10000) {
+                assertTrue(radixNanos < comparatorNanos)
+            }
+        }
+        println(report)
+    }
+}
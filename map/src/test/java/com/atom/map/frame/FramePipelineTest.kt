@@ -0,0 +1,242 @@
+package com.atom.map.frame
+
+import com.atom.map.core.shader.RenderResource
+import com.atom.map.drawable.DrawContext
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class FramePipelineTest {
+
+    /**
+     * 模拟图层遍历耗时的渲染器, 记录每帧入队时的队列长度
+     */
+    private class SleepingRenderer(val renderMillis: Long) : FramePipeline.Renderer {
+
+        lateinit var pipeline: FramePipeline
+
+        val rendered = AtomicInteger()
+
+        val available = Semaphore(0)
+
+        @Volatile
+        var maxQueued = 0
+
+        @Volatile
+        var renderThread: Thread? = null
+
+        // 每帧开始渲染时释放, startedSequence 为开始渲染的帧序号
+        val started = Semaphore(0)
+
+        @Volatile
+        var startedSequence: Long = 0
+
+        // 每帧渲染时放入帧中的被回收资源
+        @Volatile
+        var evicted: RenderResource? = null
+
+        val discarded: MutableList<RenderResource> = Collections.synchronizedList(ArrayList<RenderResource>())
+
+        override fun renderFrame(frame: Frame) {
+            renderThread = Thread.currentThread()
+            startedSequence = frame.sequence
+            started.release()
+            if (renderMillis > 0) {
+                Thread.sleep(renderMillis)
+            }
+            evicted?.let { frame.evictedResources.add(it) }
+            rendered.incrementAndGet()
+        }
+
+        override fun frameAvailable(frame: Frame) {
+            maxQueued = Math.max(maxQueued, pipeline.getQueuedFrameCount())
+            available.release()
+        }
+
+        override fun frameDiscarded(frame: Frame) {
+            discarded.addAll(frame.evictedResources)
+        }
+    }
+
+    private val pipelines = ArrayList<FramePipeline>()
+
+    private fun pipeline(renderer: SleepingRenderer, maxQueuedFrames: Int = 2): FramePipeline {
+        val pipeline = FramePipeline(renderer, maxQueuedFrames)
+        renderer.pipeline = pipeline
+        pipelines.add(pipeline)
+        pipeline.start()
+        return pipeline
+    }
+
+    @After
+    fun tearDown() {
+        pipelines.forEach { it.stop() }
+    }
+
+    @Test
+    fun framesAreRenderedOnDedicatedThreadInOrder() {
+        val renderer = SleepingRenderer(0)
+        val pipeline = pipeline(renderer)
+        var lastSequence = 0L
+        for (idx in 0 until 20) {
+            pipeline.requestFrame()
+            assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+            val frame = pipeline.pollFrame()!!
+            assertTrue(frame.sequence > lastSequence)
+            assertTrue(frame.renderTimeMillis > 0)
+            lastSequence = frame.sequence
+            frame.recycle()
+        }
+        assertNotSame(Thread.currentThread(), renderer.renderThread)
+        assertEquals(20, renderer.rendered.get())
+    }
+
+    @Test
+    fun renderThreadStaysWithinQueueBound() {
+        val renderer = SleepingRenderer(0)
+        val pipeline = pipeline(renderer)
+        // GL 线程没有取帧时渲染线程最多领先两帧
+        for (idx in 0 until 5) {
+            pipeline.requestFrame()
+            Thread.sleep(20)
+        }
+        assertEquals(2, renderer.rendered.get())
+        assertEquals(2, pipeline.getQueuedFrameCount())
+        assertTrue(pipeline.stallCount > 0)
+        // 取走一帧后合并的请求只渲染一帧
+        pipeline.pollFrame()!!.recycle()
+        assertTrue(renderer.available.tryAcquire(3, 5, TimeUnit.SECONDS))
+        Thread.sleep(20)
+        assertEquals(3, renderer.rendered.get())
+        assertTrue(renderer.maxQueued <= 2)
+    }
+
+    @Test
+    fun picksBypassFullFrameQueue() {
+        val renderer = SleepingRenderer(0)
+        val pipeline = pipeline(renderer, 1)
+        pipeline.requestFrame()
+        assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+        pipeline.requestFrame()
+
+        val pick = pipeline.obtainFrame()
+        pick.pickMode = true
+        val done = CountDownLatch(1)
+        Thread(Runnable {
+            pipeline.submitPick(pick)
+            pick.awaitDone()
+            done.countDown()
+        }).start()
+        assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+        // 模拟 GL 线程绘制拾取帧
+        val frame = pipeline.pollPickFrame()
+        assertSame(pick, frame)
+        pick.signalDone()
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(1, pipeline.getQueuedFrameCount())
+    }
+
+    @Test
+    fun stopReleasesWaitingPicksAndTasksRunOnRenderThread() {
+        val renderer = SleepingRenderer(0)
+        val pipeline = pipeline(renderer)
+        val taskThread = arrayOfNulls<Thread>(1)
+        val ran = CountDownLatch(1)
+        pipeline.post(Runnable {
+            taskThread[0] = Thread.currentThread()
+            ran.countDown()
+        })
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+        pipeline.requestFrame()
+        assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+        assertSame(renderer.renderThread, taskThread[0])
+
+        val pick = pipeline.obtainFrame()
+        pipeline.submitPick(pick)
+        assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+        // 拾取帧还没有被 GL 线程绘制时停止, 等待者不会一直阻塞
+        pipeline.stop()
+        assertFalse(pipeline.isRunning())
+        pick.awaitDone()
+        assertEquals(0, pipeline.getQueuedFrameCount())
+        assertNull(pipeline.pollPickFrame())
+    }
+
+    @Test
+    fun stopHandsBackEvictedResourcesOfUndrawnFrames() {
+        val renderer = SleepingRenderer(0)
+        val resource = object : RenderResource {
+            override fun release(dc: DrawContext) {}
+        }
+        renderer.evicted = resource
+        val pipeline = pipeline(renderer)
+        pipeline.requestFrame()
+        assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+        // 帧还在队列中没有被 GL 线程绘制, 它持有的被回收资源交还给渲染器
+        pipeline.stop()
+        assertEquals(listOf(resource), renderer.discarded)
+    }
+
+    @Test
+    fun presentedFramesUpdateLatencyAndRate() {
+        val metrics = FrameMetrics()
+        val frame = Frame()
+        for (idx in 0 until 30) {
+            frame.renderTimeMillis = System.currentTimeMillis() - 5
+            metrics.framePresented(frame, idx)
+            Thread.sleep(40)
+        }
+        assertTrue(metrics.getFrameLatency() >= 5)
+        assertTrue(metrics.getFrameLatencyAverage() >= 5.0)
+        assertEquals(29, metrics.getResourcesPrepared())
+        // 每帧之间至少间隔 40 ms, 30 帧超过一秒的统计窗口, 帧率不超过 25 fps
+        assertTrue(metrics.getFrameRate() > 0.0)
+        assertTrue(metrics.getFrameRate() <= 1000.0 / 40)
+    }
+
+    /**
+     * 渲染与绘制各耗时 8 ms 时, 下一帧在当前帧绘制期间开始渲染. 同一线程先渲染后绘制与两级流水线的帧率只输出不断言
+     */
+    @Test
+    fun benchmarkPipelinedFrames() {
+        val frames = 60
+        val renderMillis = 8L
+        val drawMillis = 8L
+
+        var start = System.nanoTime()
+        for (idx in 0 until frames) {
+            Thread.sleep(renderMillis)
+            Thread.sleep(drawMillis)
+        }
+        val serialNanos = System.nanoTime() - start
+
+        val renderer = SleepingRenderer(renderMillis)
+        val pipeline = pipeline(renderer)
+        start = System.nanoTime()
+        var drawn = 0
+        pipeline.requestFrame()
+        assertTrue(renderer.started.tryAcquire(5, TimeUnit.SECONDS))
+        while (drawn < frames) {
+            assertTrue(renderer.available.tryAcquire(5, TimeUnit.SECONDS))
+            val frame = pipeline.pollFrame()!!
+            pipeline.requestFrame() // 下一帧在绘制期间渲染
+            // 当前帧绘制完成之前下一帧已经开始渲染
+            assertTrue(renderer.started.tryAcquire(5, TimeUnit.SECONDS))
+            assertEquals(frame.sequence + 1, renderer.startedSequence)
+            Thread.sleep(drawMillis)
+            frame.recycle()
+            drawn++
+        }
+        val pipelinedNanos = System.nanoTime() - start
+
+        val serialFps = frames * 1e9 / serialNanos
+        val pipelinedFps = frames * 1e9 / pipelinedNanos
+        println(String.format("FramePipeline %d ms render + %d ms draw: serial %.1f fps, pipelined %.1f fps",
+            renderMillis, drawMillis, serialFps, pipelinedFps))
+    }
+}
@@ -0,0 +1,296 @@
+package com.atom.map.globe
+
+import android.util.DisplayMetrics
+import com.atom.map.WorldWind
+import com.atom.map.core.tile.TerrainTile
+import com.atom.map.geom.Line
+import com.atom.map.geom.Sector
+import com.atom.map.geom.Vec3
+import com.atom.map.ogc.AbstractElevationCoverage
+import com.atom.map.ogc.ElevationCoverage
+import com.atom.map.renderable.RenderContext
+import com.atom.map.util.WWMath
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class BasicTerrainTest {
+
+    /**
+     * 多个频率叠加的山地
+     */
+    private class HillsCoverage : AbstractElevationCoverage() {
+
+        override fun doGetHeight(latitude: Double, longitude: Double, result: FloatArray) {
+            result[0] = height(latitude, longitude)
+        }
+
+        override fun doGetHeightGrid(gridSector: Sector, gridWidth: Int, gridHeight: Int, result: FloatArray): Int {
+            val deltaLat = gridSector.deltaLatitude() / (gridHeight - 1)
+            val deltaLon = gridSector.deltaLongitude() / (gridWidth - 1)
+            var idx = 0
+            for (j in 0 until gridHeight) {
+                for (i in 0 until gridWidth) {
+                    result[idx++] = height(gridSector.minLatitude + j * deltaLat, gridSector.minLongitude + i * deltaLon)
+                }
+            }
+            return ElevationCoverage.QUALITY_FINAL
+        }
+
+        override fun doGetHeightLimits(sector: Sector, result: FloatArray): Int {
+            result[0] = -2000f
+            result[1] = 2000f
+            return ElevationCoverage.QUALITY_FINAL
+        }
+
+        fun height(latitude: Double, longitude: Double): Float {
+            var height = 0.0
+            var amplitude = 1000.0
+            var frequency = 2.0
+            for (octave in 0 until 4) {
+                height += amplitude * Math.sin(latitude * frequency) * Math.sin(longitude * frequency * 1.3)
+                amplitude *= 0.5
+                frequency *= 2.1
+            }
+            return height.toFloat()
+        }
+    }
+
+    private val globe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84()).apply {
+        elevationModel.addCoverage(HillsCoverage())
+    }
+
+    /**
+     * 10 公里高度倾斜 80 度观察的一帧地形, 包含多个级别的瓦片
+     */
+    private fun createTerrain(): Pair<RenderContext, BasicTerrain> {
+        val rc = RenderContext()
+        rc.globe = globe
+        rc.densityDpi = DisplayMetrics.DENSITY_XXHIGH
+        rc.fieldOfView = 45.0
+        rc.viewport.set(0, 0, 1920, 1080)
+        rc.camera.set(30.0, 20.0, 10000.0, WorldWind.ABSOLUTE, 0.0, 80.0, 0.0)
+        globe.geographicToCartesian(rc.camera.latitude, rc.camera.longitude, rc.camera.altitude, rc.cameraPoint)
+        globe.geographicToCartesianTransform(rc.camera.latitude, rc.camera.longitude, rc.camera.altitude, rc.modelview)
+        rc.modelview.multiplyByRotation(1.0, 0.0, 0.0, rc.camera.tilt)
+        rc.modelview.invertOrthonormal()
+        val far = globe.horizonDistance(rc.camera.altitude) + globe.horizonDistance(160000.0)
+        rc.projection.setToPerspectiveProjection(1920.0, 1080.0, rc.fieldOfView, rc.camera.altitude * 0.5, far)
+        rc.modelviewProjection.setToMultiply(rc.projection, rc.modelview)
+        rc.frustum.setToModelviewProjection(rc.projection, rc.modelview, rc.viewport)
+
+        val tessellator = BasicTessellator()
+        tessellator.parallelPreparation = false
+        val tiles = tessellator.selectTiles(rc)
+        tessellator.prepareTiles(globe, 1.0, tiles)
+        val terrain = BasicTerrain()
+        terrain.triStripElements = triStripElements(tessellator.levelSet.tileHeight + 2, tessellator.levelSet.tileWidth + 2)
+        for (tile in tiles) {
+            terrain.addTile(tile)
+        }
+        return Pair(rc, terrain)
+    }
+
+    /**
+     * 与 BasicTessellator 相同的瓦片三角带索引
+     */
+    private fun triStripElements(numLat: Int, numLon: Int): ShortArray {
+        val result = ShortArray(((numLat - 1) * numLon + (numLat - 2)) * 2)
+        var pos = 0
+        var vertex = 0
+        for (latIndex in 0 until numLat - 1) {
+            for (lonIndex in 0 until numLon) {
+                vertex = lonIndex + latIndex * numLon
+                result[pos++] = (vertex + numLon).toShort()
+                result[pos++] = vertex.toShort()
+            }
+            if (latIndex < numLat - 2) {
+                result[pos++] = vertex.toShort()
+                result[pos++] = ((latIndex + 2) * numLon).toShort()
+            }
+        }
+        return result
+    }
+
+    /**
+     * 逐个检查瓦片的 surfacePoint, 与建立索引前的实现相同
+     */
+    private fun linearSurfacePoint(terrain: BasicTerrain, latitude: Double, longitude: Double, result: Vec3): Boolean {
+        for (tile in terrain.tiles) {
+            val sector = tile.sector
+            if (!sector.contains(latitude, longitude)) {
+                continue
+            }
+            val tileWidth = tile.level.tileWidth
+            val tileHeight = tile.level.tileHeight
+            val s = (longitude - sector.minLongitude) / sector.deltaLongitude() * (tileWidth - 1)
+            val t = (latitude - sector.minLatitude) / sector.deltaLatitude() * (tileHeight - 1)
+            val sf = if (s < tileWidth - 1) WWMath.fract(s) else 1.0
+            val tf = if (t < tileHeight - 1) WWMath.fract(t) else 1.0
+            val si = if (s < tileWidth - 1) (s + 1).toInt() else tileWidth - 1
+            val ti = if (t < tileHeight - 1) (t + 1).toInt() else tileHeight - 1
+            val i00 = (si + ti * (tileWidth + 2)) * 3
+            val i01 = (si + (ti + 1) * (tileWidth + 2)) * 3
+            val points = tile.points!!
+            val f00 = (1 - sf) * (1 - tf)
+            val f10 = sf * (1 - tf)
+            val f01 = (1 - sf) * tf
+            val f11 = sf * tf
+            result.x = points[i00] * f00 + points[i00 + 3] * f10 + points[i01] * f01 + points[i01 + 3] * f11 + tile.origin.x
+            result.y = points[i00 + 1] * f00 + points[i00 + 4] * f10 + points[i01 + 1] * f01 + points[i01 + 4] * f11 + tile.origin.y
+            result.z = points[i00 + 2] * f00 + points[i00 + 5] * f10 + points[i01 + 2] * f01 + points[i01 + 5] * f11 + tile.origin.z
+            return true
+        }
+        return false
+    }
+
+    /**
+     * 与每个瓦片的整个三角带求交, 与建立索引前的实现相同
+     */
+    private fun linearIntersect(terrain: BasicTerrain, line: Line, result: Vec3): Boolean {
+        val point = Vec3()
+        var minDist2 = Double.POSITIVE_INFINITY
+        for (tile in terrain.tiles) {
+            line.origin.subtract(tile.origin)
+            val elements = terrain.triStripElements!!
+            if (line.triStripIntersection(tile.points, 3, elements, elements.size, point)) {
+                val dist2 = line.origin.distanceToSquared(point)
+                if (minDist2 > dist2) {
+                    minDist2 = dist2
+                    result.set(point).add(tile.origin)
+                }
+            }
+            line.origin.add(tile.origin)
+        }
+        return minDist2 != Double.POSITIVE_INFINITY
+    }
+
+    private fun randomLocations(sector: Sector, count: Int, random: Random): DoubleArray {
+        val locations = DoubleArray(count * 2)
+        for (idx in 0 until count) {
+            locations[idx * 2] = sector.minLatitude + random.nextDouble() * sector.deltaLatitude()
+            locations[idx * 2 + 1] = sector.minLongitude + random.nextDouble() * sector.deltaLongitude()
+        }
+        return locations
+    }
+
+    @Test
+    fun surfacePointMatchesLinearSearch() {
+        val terrain = createTerrain().second
+        assertTrue(terrain.tiles.map { it.level.levelNumber }.distinct().size > 1)
+        val locations = randomLocations(terrain.sector, 2000, Random(7))
+        val expected = Vec3()
+        val actual = Vec3()
+        for (idx in 0 until 2000) {
+            val lat = locations[idx * 2]
+            val lon = locations[idx * 2 + 1]
+            val found = linearSurfacePoint(terrain, lat, lon, expected)
+            assertEquals(found, terrain.surfacePoint(lat, lon, actual))
+            if (found) {
+                assertEquals(0.0, expected.distanceTo(actual), 1.0e-6)
+            }
+        }
+        // 瓦片边界上的坐标
+        for (tile in terrain.tiles) {
+            for (lat in doubleArrayOf(tile.sector.minLatitude, tile.sector.maxLatitude)) {
+                for (lon in doubleArrayOf(tile.sector.minLongitude, tile.sector.maxLongitude)) {
+                    // 不同级别的瓦片在公共边上的高度可能不同, 只要求找到瓦片
+                    assertTrue(terrain.surfacePoint(lat, lon, actual))
+                }
+            }
+        }
+        val sector = terrain.sector
+        assertFalse(terrain.surfacePoint(sector.maxLatitude + 1, sector.maxLongitude, actual))
+    }
+
+    @Test
+    fun intersectMatchesLinearSearch() {
+        val (rc, terrain) = createTerrain()
+        val locations = randomLocations(terrain.sector, 500, Random(11))
+        val line = Line()
+        val surface = Vec3()
+        val expected = Vec3()
+        val actual = Vec3()
+        var hits = 0
+        for (idx in 0 until 500) {
+            if (!terrain.surfacePoint(locations[idx * 2], locations[idx * 2 + 1], surface)) {
+                continue
+            }
+            line.setToSegment(rc.cameraPoint, surface)
+            val found = linearIntersect(terrain, line, expected)
+            assertEquals(found, terrain.intersect(line, actual))
+            if (found) {
+                assertEquals(0.0, expected.distanceTo(actual), 1.0e-3)
+                hits++
+            }
+        }
+        assertTrue(hits > 0)
+    }
+
+    /**
+     * 每帧 10000 次 surfacePoint (随机坐标与按行列顺序的坐标) 与相机射向地面的 intersect, 索引前后的耗时
+     */
+    @Test
+    fun benchmarkSurfacePoint() {
+        val (rc, terrain) = createTerrain()
+        val count = 10000
+        val random = randomLocations(terrain.sector, count, Random(3))
+        val ordered = DoubleArray(count * 2)
+        val sector = terrain.sector
+        for (idx in 0 until count) {
+            ordered[idx * 2] = sector.minLatitude + (idx / 100 + 0.5) / 100 * sector.deltaLatitude()
+            ordered[idx * 2 + 1] = sector.minLongitude + (idx % 100 + 0.5) / 100 * sector.deltaLongitude()
+        }
+        val result = Vec3()
+        // 交替测量, 取每种方式的最短耗时
+        val nanos = LongArray(4) { Long.MAX_VALUE }
+        for (round in 0 until 30) {
+            for (variant in 0 until 4) {
+                val locations = if (variant < 2) random else ordered
+                val start = System.nanoTime()
+                if (variant % 2 == 0) {
+                    for (idx in 0 until count) {
+                        linearSurfacePoint(terrain, locations[idx * 2], locations[idx * 2 + 1], result)
+                    }
+                } else {
+                    for (idx in 0 until count) {
+                        terrain.surfacePoint(locations[idx * 2], locations[idx * 2 + 1], result)
+                    }
+                }
+                nanos[variant] = Math.min(nanos[variant], System.nanoTime() - start)
+            }
+        }
+        val linearRandom = nanos[0] / 1e6
+        val indexedRandom = nanos[1] / 1e6
+        val linearOrdered = nanos[2] / 1e6
+        val indexedOrdered = nanos[3] / 1e6
+
+        val lines = ArrayList<Line>()
+        for (idx in 0 until 200) {
+            if (terrain.surfacePoint(random[idx * 2], random[idx * 2 + 1], result)) {
+                lines.add(Line().setToSegment(rc.cameraPoint, result))
+            }
+        }
+        var linearIntersect = Long.MAX_VALUE
+        var indexedIntersect = Long.MAX_VALUE
+        for (round in 0 until 5) {
+            var start = System.nanoTime()
+            for (line in lines) linearIntersect(terrain, line, result)
+            linearIntersect = Math.min(linearIntersect, System.nanoTime() - start)
+            start = System.nanoTime()
+            for (line in lines) terrain.intersect(line, result)
+            indexedIntersect = Math.min(indexedIntersect, System.nanoTime() - start)
+        }
+
+        println(
+            String.format(
+                "BasicTerrain %d tiles, %d surfacePoint per frame: random %.3f ms -> %.3f ms, ordered %.3f ms -> %.3f ms; " +
+                    "%d intersect: %.3f ms -> %.3f ms",
+                terrain.tiles.size, count, linearRandom, indexedRandom, linearOrdered, indexedOrdered,
+                lines.size, linearIntersect / 1e6, indexedIntersect / 1e6
+            )
+        )
+        assertTrue(indexedRandom < linearRandom)
+        assertTrue(indexedIntersect < linearIntersect)
+    }
+}
@@ -0,0 +1,604 @@
+package com.atom.map.globe
+
+import android.util.DisplayMetrics
+import com.atom.map.WorldWind
+import com.atom.map.core.tile.TerrainTile
+import com.atom.map.core.tile.TerrainTileCache
+import com.atom.map.core.tile.Tile
+import com.atom.map.geom.Sector
+import com.atom.map.geom.Vec3
+import com.atom.map.ogc.AbstractElevationCoverage
+import com.atom.map.ogc.ElevationCoverage
+import com.atom.map.renderable.RenderContext
+import com.atom.map.util.LevelSet
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.*
+
+class BasicTessellatorTest {
+
+    /**
+     * 以双线性插值读取合成栅格的高程, 计算量与 TiledElevationCoverage.readHeightGrid 相当
+     */
+    private class RasterCoverage : AbstractElevationCoverage() {
+
+        val size = 1024
+
+        val raster = ShortArray(size * size) { (Math.sin(it * 0.001) * 4000).toInt().toShort() }
+
+        override fun doGetHeight(latitude: Double, longitude: Double, result: FloatArray) {
+            result[0] = sample(latitude, longitude)
+        }
+
+        override fun doGetHeightGrid(gridSector: Sector, gridWidth: Int, gridHeight: Int, result: FloatArray): Int {
+            val deltaLat = gridSector.deltaLatitude() / (gridHeight - 1)
+            val deltaLon = gridSector.deltaLongitude() / (gridWidth - 1)
+            var idx = 0
+            for (j in 0 until gridHeight) {
+                for (i in 0 until gridWidth) {
+                    result[idx++] = sample(gridSector.minLatitude + j * deltaLat, gridSector.minLongitude + i * deltaLon)
+                }
+            }
+            return ElevationCoverage.QUALITY_FINAL
+        }
+
+        override fun doGetHeightLimits(sector: Sector, result: FloatArray): Int {
+            result[0] = -4000f
+            result[1] = 4000f
+            return ElevationCoverage.QUALITY_FINAL
+        }
+
+        fun sample(latitude: Double, longitude: Double): Float {
+            val u = (longitude + 180) / 360 * (size - 1)
+            val v = (latitude + 90) / 180 * (size - 1)
+            val i0 = Math.min(u.toInt(), size - 2)
+            val j0 = Math.min(v.toInt(), size - 2)
+            val a = u - i0
+            val b = v - j0
+            val h00 = raster[i0 + j0 * size]
+            val h10 = raster[i0 + 1 + j0 * size]
+            val h01 = raster[i0 + (j0 + 1) * size]
+            val h11 = raster[i0 + 1 + (j0 + 1) * size]
+            return ((1 - a) * (1 - b) * h00 + a * (1 - b) * h10 + (1 - a) * b * h01 + a * b * h11).toFloat()
+        }
+    }
+
+    /**
+     * 西半球为平坦的海面, 东半球为多个频率叠加的山地
+     */
+    private class CoastCoverage : AbstractElevationCoverage() {
+
+        override fun doGetHeight(latitude: Double, longitude: Double, result: FloatArray) {
+            result[0] = height(latitude, longitude)
+        }
+
+        override fun doGetHeightGrid(gridSector: Sector, gridWidth: Int, gridHeight: Int, result: FloatArray): Int {
+            val deltaLat = gridSector.deltaLatitude() / (gridHeight - 1)
+            val deltaLon = gridSector.deltaLongitude() / (gridWidth - 1)
+            var idx = 0
+            for (j in 0 until gridHeight) {
+                for (i in 0 until gridWidth) {
+                    result[idx++] = height(gridSector.minLatitude + j * deltaLat, gridSector.minLongitude + i * deltaLon)
+                }
+            }
+            return ElevationCoverage.QUALITY_FINAL
+        }
+
+        override fun doGetHeightLimits(sector: Sector, result: FloatArray): Int {
+            result[0] = if (sector.maxLongitude <= 0) 0f else -MAX_HEIGHT
+            result[1] = if (sector.maxLongitude <= 0) 0f else MAX_HEIGHT
+            return ElevationCoverage.QUALITY_FINAL
+        }
+
+        fun height(latitude: Double, longitude: Double): Float {
+            if (longitude <= 0) {
+                return 0f
+            }
+            var height = 0.0
+            var amplitude = MAX_HEIGHT * 0.5
+            var frequency = 0.5
+            for (octave in 0 until 8) {
+                height += amplitude * Math.sin(latitude * frequency) * Math.sin(longitude * frequency * 1.3)
+                amplitude *= 0.5
+                frequency *= 2.1
+            }
+            return height.toFloat()
+        }
+
+        companion object {
+            const val MAX_HEIGHT = 4000f
+        }
+    }
+
+    /**
+     * 先以粗糙数据返回 100 米的高度, 细化后的范围内返回 200 米, 与下载中的高程瓦片相同
+     */
+    private class StreamingCoverage : AbstractElevationCoverage() {
+
+        val availableSectors = ArrayList<Sector>()
+
+        fun refine(sector: Sector) {
+            availableSectors.add(Sector(sector))
+            this.addRefinement(sector)
+        }
+
+        override fun doGetHeight(latitude: Double, longitude: Double, result: FloatArray) {
+            result[0] = if (availableSectors.any { it.contains(latitude, longitude) }) 200f else 100f
+        }
+
+        override fun doGetHeightGrid(gridSector: Sector, gridWidth: Int, gridHeight: Int, result: FloatArray): Int {
+            val refined = availableSectors.any { it.contains(gridSector) }
+            result.fill(if (refined) 200f else 100f, 0, gridWidth * gridHeight)
+            return if (refined) ElevationCoverage.QUALITY_FINAL else ElevationCoverage.QUALITY_COARSE
+        }
+
+        override fun doGetHeightLimits(sector: Sector, result: FloatArray): Int {
+            result[0] = 100f
+            result[1] = 200f
+            return ElevationCoverage.QUALITY_FINAL
+        }
+    }
+
+    private val globe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84()).apply {
+        elevationModel.addCoverage(RasterCoverage())
+    }
+
+    private fun createTiles(tessellator: BasicTessellator, count: Int): List<TerrainTile> {
+        val level = tessellator.levelSet.level(5)!!
+        val tiles = ArrayList<TerrainTile>()
+        var row = 0
+        while (tiles.size < count) {
+            for (column in 0 until 20) {
+                val sector = Sector(-90 + row * level.tileDelta, -180 + column * level.tileDelta, level.tileDelta, level.tileDelta)
+                tiles.add(tessellator.createTile(sector, level, row, column) as TerrainTile)
+            }
+            row++
+        }
+        return tiles
+    }
+
+    /**
+     * 等待后台计算完成并采用结果
+     */
+    private fun awaitCurrent(tessellator: BasicTessellator, tiles: List<TerrainTile>, verticalExaggeration: Double) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (System.currentTimeMillis() < deadline) {
+            tessellator.prepareTiles(globe, verticalExaggeration, tiles)
+            if (tiles.all { it.verticalExaggeration == verticalExaggeration }) {
+                return
+            }
+            Thread.sleep(1)
+        }
+        fail("background preparation did not complete")
+    }
+
+    @Test
+    fun parallelPreparationMatchesSerial() {
+        val serial = BasicTessellator()
+        serial.parallelPreparation = false
+        val serialTiles = createTiles(serial, 40)
+        serial.prepareTiles(globe, 1.0, serialTiles)
+
+        val parallel = BasicTessellator()
+        val parallelTiles = createTiles(parallel, 40)
+        parallel.prepareTiles(globe, 1.0, parallelTiles)
+
+        for (idx in serialTiles.indices) {
+            assertArrayEquals(serialTiles[idx].points, parallelTiles[idx].points, 0f)
+            assertArrayEquals(serialTiles[idx].heights, parallelTiles[idx].heights, 0f)
+            assertEquals(serialTiles[idx].origin, parallelTiles[idx].origin)
+        }
+
+        // 垂直夸张变化后旧顶点继续可用, 后台计算完成后被替换
+        val oldPoints = parallelTiles[0].points
+        parallel.prepareTiles(globe, 2.0, parallelTiles)
+        assertNotNull(parallelTiles[0].points)
+        awaitCurrent(parallel, parallelTiles, 2.0)
+        assertNotSame(oldPoints, parallelTiles[0].points)
+        serial.prepareTiles(globe, 2.0, serialTiles)
+        assertArrayEquals(serialTiles[0].points, parallelTiles[0].points, 0f)
+    }
+
+    @Test
+    fun refinementRebuildsOnlyAffectedTiles() {
+        val coverage = StreamingCoverage()
+        val streamingGlobe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
+        streamingGlobe.elevationModel.addCoverage(coverage)
+        val tessellator = BasicTessellator()
+        tessellator.parallelPreparation = false
+        val tiles = createTiles(tessellator, 40)
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        assertTrue(tiles.all { it.heightQuality == ElevationCoverage.QUALITY_COARSE })
+
+        // 细化前两个瓦片的范围, 只有这两个瓦片重新计算, 与其共享边的瓦片不受影响
+        var points = tiles.map { it.points }
+        coverage.refine(Sector(tiles[0].sector).union(tiles[1].sector))
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        for (idx in tiles.indices) {
+            if (idx < 2) {
+                assertNotSame(points[idx], tiles[idx].points)
+                assertEquals(ElevationCoverage.QUALITY_FINAL, tiles[idx].heightQuality)
+                assertEquals(200f, tiles[idx].heights!![0], 0f)
+            } else {
+                assertSame(points[idx], tiles[idx].points)
+                assertEquals(ElevationCoverage.QUALITY_COARSE, tiles[idx].heightQuality)
+            }
+        }
+
+        // 没有新的细化时不重新计算
+        points = tiles.map { it.points }
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        for (idx in tiles.indices) {
+            assertSame(points[idx], tiles[idx].points)
+        }
+
+        // 已是最终质量的瓦片不再因细化重新计算
+        val all = Sector(tiles[0].sector)
+        tiles.forEach { all.union(it.sector) }
+        coverage.refine(all)
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        for (idx in tiles.indices) {
+            if (idx < 2) {
+                assertSame(points[idx], tiles[idx].points)
+            } else {
+                assertNotSame(points[idx], tiles[idx].points)
+            }
+            assertEquals(ElevationCoverage.QUALITY_FINAL, tiles[idx].heightQuality)
+        }
+    }
+
+    @Test
+    fun invalidationRebuildsFinalTilesInSector() {
+        val coverage = StreamingCoverage()
+        val streamingGlobe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
+        streamingGlobe.elevationModel.addCoverage(coverage)
+        val tessellator = BasicTessellator()
+        tessellator.parallelPreparation = false
+        val tiles = createTiles(tessellator, 40)
+        val all = Sector(tiles[0].sector)
+        tiles.forEach { all.union(it.sector) }
+        coverage.refine(all)
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        assertTrue(tiles.all { it.heightQuality == ElevationCoverage.QUALITY_FINAL })
+
+        // 数据变化使范围内已是最终质量的瓦片重新计算, 范围外的瓦片不受影响
+        val points = tiles.map { it.points }
+        val prepared = tessellator.getTilesPrepared()
+        coverage.invalidateSector(tiles[5].sector)
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        assertEquals(1, tessellator.getTilesPrepared() - prepared)
+        for (idx in tiles.indices) {
+            if (idx == 5) {
+                assertNotSame(points[idx], tiles[idx].points)
+            } else {
+                assertSame(points[idx], tiles[idx].points)
+            }
+        }
+
+        // 禁用覆盖使其全部范围失效
+        coverage.enabled = false
+        tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+        assertEquals(1L + tiles.size, tessellator.getTilesPrepared() - prepared)
+    }
+
+    /**
+     * 变化序号在覆盖之间共享, 每个覆盖的记录按自己的记录数循环存放. 另一个覆盖记录了很多变化之后,
+     * 本覆盖的记录被覆盖时仍然报告瓦片范围已变化
+     */
+    @Test
+    fun dirtySectorsSurviveSharedSequence() {
+        val a = StreamingCoverage()
+        val b = StreamingCoverage()
+        val tileSector = Sector(10.0, 10.0, 1.0, 1.0)
+        val farSector = Sector(-60.0, -120.0, 1.0, 1.0)
+        for (idx in 0 until 200) {
+            b.invalidateSector(farSector)
+        }
+        val since = b.dirtySequence
+        a.invalidateSector(tileSector)
+        assertTrue(a.isDirty(tileSector, since, ElevationCoverage.QUALITY_FINAL))
+        for (idx in 0 until 63) {
+            b.invalidateSector(farSector)
+        }
+        // 覆盖 A 的记录未满, 瓦片范围的记录仍在
+        a.invalidateSector(farSector)
+        assertTrue(a.isDirty(tileSector, since, ElevationCoverage.QUALITY_FINAL))
+        assertFalse(a.isDirty(Sector(-30.0, 60.0, 1.0, 1.0), since, ElevationCoverage.QUALITY_FINAL))
+        // 记录满后瓦片范围的记录被覆盖, 按已变化处理
+        for (idx in 0 until AbstractElevationCoverage.MAX_DIRTY_SECTORS) {
+            a.invalidateSector(farSector)
+        }
+        assertTrue(a.isDirty(tileSector, since, ElevationCoverage.QUALITY_FINAL))
+        assertFalse(a.isDirty(tileSector, a.dirtySequence, ElevationCoverage.QUALITY_FINAL))
+    }
+
+    /**
+     * 200 个地形瓦片, 逐个到达 100 个高程瓦片, 每个到达后准备一帧. 比较每次到达都更新时间戳与按范围记录变化时重新计算的瓦片数
+     */
+    @Test
+    fun benchmarkStreamingRebuilds() {
+        val report = StringBuilder("Elevation streaming rebuilds")
+        for (variant in 0 until 2) {
+            val coverage = StreamingCoverage()
+            val streamingGlobe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
+            streamingGlobe.elevationModel.addCoverage(coverage)
+            val tessellator = BasicTessellator()
+            tessellator.parallelPreparation = false
+            val tiles = createTiles(tessellator, 200)
+            tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+            val prepared = tessellator.getTilesPrepared()
+            val random = Random(7)
+            val start = System.nanoTime()
+            for (arrival in 0 until 100) {
+                // 高程瓦片覆盖相邻的 2 x 2 个地形瓦片
+                val idx = random.nextInt(tiles.size / 20 - 1) * 20 + random.nextInt(19)
+                val sector = Sector(tiles[idx].sector).union(tiles[idx + 21].sector)
+                coverage.refine(sector)
+                if (variant == 0) {
+                    coverage.timestamp = streamingGlobe.elevationModel.getTimestamp() + 1
+                }
+                tessellator.prepareTiles(streamingGlobe, 1.0, tiles)
+            }
+            val nanos = System.nanoTime() - start
+            report.append(
+                String.format(
+                    ", %s: %d tiles in %.1f ms", if (variant == 0) "timestamp" else "dirty sectors",
+                    tessellator.getTilesPrepared() - prepared, nanos / 1e6
+                )
+            )
+        }
+        println(report)
+    }
+
+    /**
+     * 位于海岸线上方 30 公里, 沿海岸线向北倾斜 70 度观察的 1920 x 1080 视图, 左半边为海面
+     */
+    private fun createRenderContext(globe: Globe, altitude: Double = 30000.0, tilt: Double = 70.0): RenderContext {
+        val rc = RenderContext()
+        rc.globe = globe
+        rc.densityDpi = DisplayMetrics.DENSITY_XXHIGH
+        rc.fieldOfView = 45.0
+        rc.viewport.set(0, 0, 1920, 1080)
+        rc.camera.set(30.0, 0.0, altitude, WorldWind.ABSOLUTE, 0.0, tilt, 0.0)
+        globe.geographicToCartesian(rc.camera.latitude, rc.camera.longitude, rc.camera.altitude, rc.cameraPoint)
+        globe.geographicToCartesianTransform(rc.camera.latitude, rc.camera.longitude, rc.camera.altitude, rc.modelview)
+        rc.modelview.multiplyByRotation(0.0, 0.0, 1.0, -rc.camera.heading)
+        rc.modelview.multiplyByRotation(1.0, 0.0, 0.0, rc.camera.tilt)
+        rc.modelview.invertOrthonormal()
+        val far = globe.horizonDistance(rc.camera.altitude) + globe.horizonDistance(160000.0)
+        rc.projection.setToPerspectiveProjection(1920.0, 1080.0, rc.fieldOfView, rc.camera.altitude * 0.5, far)
+        rc.modelviewProjection.setToMultiply(rc.projection, rc.modelview)
+        rc.frustum.setToModelviewProjection(rc.projection, rc.modelview, rc.viewport)
+        return rc
+    }
+
+    /**
+     * 复用的子树不经过瓦片缓存的 subdivide, 但仍要访问缓存条目: 两帧之间放入的其他条目先于可见瓦片被回收.
+     * 复用瓦片到相机的距离按当前帧更新
+     */
+    @Test
+    fun reusedSubtreesStayCached() {
+        val tessellator = BasicTessellator()
+        tessellator.parallelPreparation = false
+        tessellator.tileCache = TerrainTileCache(1 shl 30)
+        tessellator.detailControl = 5.0 // 足够多的瓦片, 使部分子树完全位于视锥体内
+        val cache = tessellator.tileCache
+        val first = createRenderContext(globe, 30000.0, 0.0)
+        val firstTiles = tessellator.selectTiles(first)
+        tessellator.prepareTiles(globe, first.verticalExaggeration, firstTiles)
+
+        // 与上一帧的瓦片同样多的其他条目. 条目大小在命中时才包括准备好的顶点, 这里加上瓦片的字节数
+        var junkKey = -1L
+        val junkBytes = cache.usedCapacity + firstTiles.sumBy { it.getMemoryBytes() }
+        val junkCount = junkBytes / (4 * TerrainTileCache.TILE_OVERHEAD) + 1
+        for (idx in 0 until junkCount) {
+            cache.put(junkKey--, arrayOfNulls(4))
+        }
+
+        // 只移动相机, 投影不变时子树缓存仍然有效
+        val second = createRenderContext(globe, 30001.0, 0.0)
+        second.projection.set(first.projection)
+        second.modelviewProjection.setToMultiply(second.projection, second.modelview)
+        second.frustum.setToModelviewProjection(second.projection, second.modelview, second.viewport)
+        val tiles = ArrayList(tessellator.selectTiles(second))
+        assertTrue(tessellator.getNodesReused() > 0)
+        for (tile in tiles) {
+            val distance = tile.distanceToCamera
+            assertEquals(distance, tile.updateDistanceToCamera(second), 0.0)
+        }
+
+        // 回收到 lowWater, 回收的字节数少于其他条目的总字节数
+        cache.capacity = cache.usedCapacity + 1
+        cache.put(junkKey, arrayOfNulls(4))
+        assertTrue(cache.getEvictionCount() > 0)
+        for (tile in tiles) {
+            val levelNumber = tile.level.levelNumber
+            if (levelNumber > 0) {
+                val parentKey = Tile.packKey(levelNumber - 1, tile.row / 2, tile.column / 2)
+                assertTrue("evicted parent of $levelNumber/${tile.row}/${tile.column}", cache.containsKey(parentKey))
+            }
+        }
+    }
+
+    /**
+     * 瓦片网格的屏幕误差 (像素): 高度网格抽稀一半的插值误差加上椭球面弦高, 投影到瓦片到相机的距离上
+     */
+    private fun screenError(rc: RenderContext, tile: TerrainTile): Double {
+        val heights = tile.heights!!
+        val width = tile.level.tileWidth
+        var error = 0f
+        for (j in 0 until tile.level.tileHeight) {
+            for (i in 0 until width) {
+                val h = heights[j * width + i]
+                if (i % 2 == 1 && i < width - 1) {
+                    error = Math.max(error, Math.abs(h - (heights[j * width + i - 1] + heights[j * width + i + 1]) * 0.5f))
+                }
+                if (j % 2 == 1 && j < tile.level.tileHeight - 1) {
+                    error = Math.max(error, Math.abs(h - (heights[(j - 1) * width + i] + heights[(j + 1) * width + i]) * 0.5f))
+                }
+            }
+        }
+        tile.terrainError = error
+        return tile.getGeometricError(rc) / rc.pixelSizeAtDistance(tile.distanceToCamera)
+    }
+
+    /**
+     * 海岸线的合成地形上, 固定细分 (按纹素大小) 与自适应细分 (按几何误差) 的瓦片数, 顶点数与镶嵌耗时.
+     * 自适应细分的误差阈值取固定细分所选瓦片的最大屏幕误差, 两者的视觉精度相当.
+     * 首帧包括估计瓦片误差与准备顶点, 之后的帧只重新遍历 (误差已缓存, 不复用上一帧的结果)
+     */
+    @Test
+    fun benchmarkAdaptiveTessellation() {
+        val coastGlobe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84()).apply {
+            elevationModel.addCoverage(CoastCoverage())
+        }
+        val rounds = 5
+        val tileCounts = IntArray(2)
+        val flatTileCounts = IntArray(2)
+        val maxErrors = DoubleArray(2)
+        val nanos = LongArray(2)
+        val traversalNanos = LongArray(2)
+        for (round in 0 until rounds + 2) {
+            for (mode in 0 until 2) {
+                val tessellator = BasicTessellator()
+                tessellator.parallelPreparation = false
+                tessellator.adaptiveTessellation = mode == 1
+                tessellator.maxScreenError = maxErrors[0]
+                val rc = createRenderContext(coastGlobe)
+                val start = System.nanoTime()
+                val tiles = tessellator.selectTiles(rc)
+                tessellator.prepareTiles(coastGlobe, rc.verticalExaggeration, tiles)
+                if (round >= 2) { // the first rounds warm up the JIT
+                    nanos[mode] += System.nanoTime() - start
+                }
+                tessellator.incrementalTessellation = false
+                val traversalStart = System.nanoTime()
+                tessellator.selectTiles(rc)
+                if (round >= 2) {
+                    traversalNanos[mode] += System.nanoTime() - traversalStart
+                }
+                tileCounts[mode] = tiles.size
+                flatTileCounts[mode] = tiles.count { it.sector.maxLongitude <= 0 }
+                maxErrors[mode] = tiles.map { screenError(rc, it) }.max()!!
+            }
+        }
+        val levelSet = BasicTessellator().levelSet
+        val vertices = (levelSet.tileWidth + 2) * (levelSet.tileHeight + 2)
+        println(
+            String.format(
+                "BasicTessellator coast view: fixed %d tiles (%d flat), %d vertices, max error %.1f px, " +
+                    "first frame %.2f ms, traversal %.3f ms; adaptive %d tiles (%d flat), %d vertices, " +
+                    "max error %.1f px, first frame %.2f ms, traversal %.3f ms",
+                tileCounts[0], flatTileCounts[0], tileCounts[0] * vertices, maxErrors[0],
+                nanos[0] / 1e6 / rounds, traversalNanos[0] / 1e6 / rounds,
+                tileCounts[1], flatTileCounts[1], tileCounts[1] * vertices, maxErrors[1],
+                nanos[1] / 1e6 / rounds, traversalNanos[1] / 1e6 / rounds
+            )
+        )
+        assertTrue(maxErrors[1] <= maxErrors[0])
+        assertTrue(flatTileCounts[1] < flatTileCounts[0])
+        assertTrue(tileCounts[1] < tileCounts[0])
+    }
+
+    /**
+     * 200 个瓦片的浮点顶点与 16 位量化顶点: 每个瓦片的顶点缓冲区字节数, 填充缓冲区的耗时与解码后的最大误差
+     */
+    @Test
+    fun benchmarkQuantizedVertices() {
+        val tessellator = BasicTessellator()
+        tessellator.parallelPreparation = false
+        val tiles = createTiles(tessellator, 200)
+        tessellator.prepareTiles(globe, 1.0, tiles)
+        val pointCount = tiles[0].points!!.size
+        val floatBuffer = ByteBuffer.allocateDirect(pointCount * 4).order(ByteOrder.nativeOrder()).asFloatBuffer()
+        val shortBuffer = ByteBuffer.allocateDirect(pointCount * 2).order(ByteOrder.nativeOrder()).asShortBuffer()
+        val quantized = ShortArray(pointCount)
+        val offset = Vec3()
+        val scale = Vec3()
+        val rounds = 20
+        var floatNanos = 0L
+        var quantizedNanos = 0L
+        var maxError = 0.0
+        var maxStep = 0.0
+        for (round in 0 until rounds + 5) {
+            var start = System.nanoTime()
+            for (tile in tiles) {
+                floatBuffer.clear()
+                floatBuffer.put(tile.points).rewind()
+            }
+            if (round >= 5) floatNanos += System.nanoTime() - start // the first rounds warm up the JIT
+            start = System.nanoTime()
+            for (tile in tiles) {
+                shortBuffer.clear()
+                shortBuffer.put(TerrainTile.quantizePoints(tile.points!!, quantized, offset, scale)).rewind()
+            }
+            if (round >= 5) quantizedNanos += System.nanoTime() - start
+        }
+        for (tile in tiles) {
+            val points = tile.points!!
+            TerrainTile.quantizePoints(points, quantized, offset, scale)
+            maxStep = Math.max(maxStep, Math.max(scale.x, Math.max(scale.y, scale.z)))
+            for (idx in points.indices step 3) {
+                maxError = Math.max(maxError, Math.abs(offset.x + quantized[idx] * scale.x - points[idx]))
+                maxError = Math.max(maxError, Math.abs(offset.y + quantized[idx + 1] * scale.y - points[idx + 1]))
+                maxError = Math.max(maxError, Math.abs(offset.z + quantized[idx + 2] * scale.z - points[idx + 2]))
+            }
+        }
+        println(
+            String.format(
+                "BasicTessellator vertex buffers, %d tiles at level 5: float %d bytes/tile, %.3f ms; " +
+                    "quantized %d bytes/tile, %.3f ms; max error %.3f m (step %.3f m)",
+                tiles.size, pointCount * 4, floatNanos / 1e6 / rounds,
+                pointCount * 2, quantizedNanos / 1e6 / rounds, maxError, maxStep
+            )
+        )
+        assertTrue(maxError <= maxStep * 0.5 + 1.0e-3)
+    }
+
+    /**
+     * 200 个瓦片的一帧: 首次出现 (本帧必须完成) 与垂直夸张变化 (已有顶点) 两种情况下, 串行与并行准备的渲染线程耗时
+     */
+    @Test
+    fun benchmarkFramePreparation() {
+        val tileCount = 200
+        val rounds = 10
+        var serialFirst = 0L
+        var parallelFirst = 0L
+        var serialChange = 0L
+        var parallelChange = 0L
+        for (round in 0 until rounds + 3) {
+            val measured = round >= 3 // the first rounds warm up the JIT and the thread pool
+            val serial = BasicTessellator()
+            serial.parallelPreparation = false
+            val serialTiles = createTiles(serial, tileCount)
+            var start = System.nanoTime()
+            serial.prepareTiles(globe, 1.0, serialTiles)
+            if (measured) serialFirst += System.nanoTime() - start
+            start = System.nanoTime()
+            serial.prepareTiles(globe, 1.5, serialTiles)
+            if (measured) serialChange += System.nanoTime() - start
+
+            val parallel = BasicTessellator()
+            val parallelTiles = createTiles(parallel, tileCount)
+            start = System.nanoTime()
+            parallel.prepareTiles(globe, 1.0, parallelTiles)
+            if (measured) parallelFirst += System.nanoTime() - start
+            start = System.nanoTime()
+            parallel.prepareTiles(globe, 1.5, parallelTiles)
+            if (measured) parallelChange += System.nanoTime() - start
+            awaitCurrent(parallel, parallelTiles, 1.5)
+        }
+        println(
+            String.format(
+                "BasicTessellator %d tiles, %d processors: new tiles serial %.2f ms, parallel %.2f ms; " +
+                    "exaggeration change serial %.2f ms, parallel %.2f ms",
+                tileCount, Runtime.getRuntime().availableProcessors(),
+                serialFirst / 1e6 / rounds, parallelFirst / 1e6 / rounds,
+                serialChange / 1e6 / rounds, parallelChange / 1e6 / rounds
+            )
+        )
+        assertTrue(parallelChange < serialChange)
+    }
+}
@@ -0,0 +1,172 @@
+package com.atom.map.globe
+
+import com.atom.map.WorldWind
+import com.atom.map.geom.Sector
+import com.atom.map.geom.Vec3
+import org.junit.Assert.*
+import org.junit.Test
+
+class ProjectionWgs84Test {
+
+    private val globe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
+
+    /**
+     * 逐行逐列计算三角函数的网格转换, 与使用角度表之前的实现相同
+     */
+    private fun referenceGrid(
+        sector: Sector, numLat: Int, numLon: Int, height: FloatArray?, verticalExaggeration: Float,
+        origin: Vec3?, result: FloatArray, offset: Int, rowStride: Int
+    ) {
+        val minLat = Math.toRadians(sector.minLatitude)
+        val maxLat = Math.toRadians(sector.maxLatitude)
+        val minLon = Math.toRadians(sector.minLongitude)
+        val maxLon = Math.toRadians(sector.maxLongitude)
+        val deltaLat = (maxLat - minLat) / (if (numLat > 1) numLat - 1 else 1)
+        val deltaLon = (maxLon - minLon) / (if (numLon > 1) numLon - 1 else 1)
+        val eqr = globe.getEquatorialRadius()
+        val ec2 = globe.getEccentricitySquared()
+        val cosLon = DoubleArray(numLon)
+        val sinLon = DoubleArray(numLon)
+        var lon = minLon
+        for (lonIndex in 0 until numLon) {
+            if (lonIndex == numLon - 1) lon = maxLon
+            cosLon[lonIndex] = Math.cos(lon)
+            sinLon[lonIndex] = Math.sin(lon)
+            lon += deltaLon
+        }
+        val xOffset = if (origin != null) -origin.x else 0.0
+        val yOffset = if (origin != null) -origin.y else 0.0
+        val zOffset = if (origin != null) -origin.z else 0.0
+        var rowIndex = offset
+        var elevIndex = 0
+        var lat = minLat
+        for (latIndex in 0 until numLat) {
+            if (latIndex == numLat - 1) lat = maxLat
+            val cosLat = Math.cos(lat)
+            val sinLat = Math.sin(lat)
+            val rpm = eqr / Math.sqrt(1.0 - ec2 * sinLat * sinLat)
+            var colIndex = rowIndex
+            for (lonIndex in 0 until numLon) {
+                val hgt = (height?.get(elevIndex++) ?: 0f) * verticalExaggeration
+                result[colIndex++] = ((hgt + rpm) * cosLat * sinLon[lonIndex] + xOffset).toFloat()
+                result[colIndex++] = ((hgt + rpm * (1.0 - ec2)) * sinLat + yOffset).toFloat()
+                result[colIndex++] = ((hgt + rpm) * cosLat * cosLon[lonIndex] + zOffset).toFloat()
+            }
+            rowIndex += if (rowStride == 0) numLon * 3 else rowStride
+            lat += deltaLat
+        }
+    }
+
+    private fun heights(numLat: Int, numLon: Int) = FloatArray(numLat * numLon) { (Math.sin(it * 0.37) * 3000).toFloat() }
+
+    private fun tileSector(level: Int, row: Int, column: Int): Sector {
+        val delta = 45.0 / (1 shl level)
+        return Sector(-90 + row * delta, -180 + column * delta, delta, delta)
+    }
+
+    @Test
+    fun gridMatchesPerVertexTrigonometry() {
+        for (level in intArrayOf(0, 5, 12)) {
+            for (size in intArrayOf(3, 17, 32)) {
+                val sector = tileSector(level, (3 shl level) / 2, (5 shl level) / 2)
+                val heights = heights(size, size)
+                val origin = Vec3()
+                globe.geographicToCartesian(sector.centroidLatitude(), sector.centroidLongitude(), 0.0, origin)
+                val expected = FloatArray(size * size * 3)
+                val actual = FloatArray(size * size * 3)
+                referenceGrid(sector, size, size, heights, 1.5f, origin, expected, 0, 0)
+                globe.geographicToCartesianGrid(sector, size, size, heights, 1.5f, origin, actual, 0, 0)
+                for (idx in expected.indices) {
+                    assertEquals("level $level size $size index $idx", expected[idx], actual[idx], 1.0e-3f)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun gridAppliesVerticalExaggeration() {
+        val sector = tileSector(6, 100, 300)
+        val heights = FloatArray(4) { 1000f }
+        val flat = FloatArray(12)
+        val lifted = FloatArray(12)
+        globe.geographicToCartesianGrid(sector, 2, 2, heights, 1f, null, flat, 0, 0)
+        globe.geographicToCartesianGrid(sector, 2, 2, heights, 2f, null, lifted, 0, 0)
+        val a = Vec3(flat[0].toDouble(), flat[1].toDouble(), flat[2].toDouble())
+        val b = Vec3(lifted[0].toDouble(), lifted[1].toDouble(), lifted[2].toDouble())
+        assertEquals(1000.0, a.distanceTo(b), 1.0)
+    }
+
+    @Test
+    fun adjacentTilesShareEdges() {
+        val west = tileSector(9, 700, 1500)
+        val east = tileSector(9, 700, 1501)
+        val size = 17
+        val westPoints = FloatArray(size * size * 3)
+        val eastPoints = FloatArray(size * size * 3)
+        globe.geographicToCartesianGrid(west, size, size, null, 1f, null, westPoints, 0, 0)
+        globe.geographicToCartesianGrid(east, size, size, null, 1f, null, eastPoints, 0, 0)
+        for (row in 0 until size) {
+            for (idx in 0 until 3) {
+                assertEquals(westPoints[(row * size + size - 1) * 3 + idx], eastPoints[row * size * 3 + idx], 0f)
+            }
+        }
+    }
+
+    @Test
+    fun borderMatchesGridEdges() {
+        val sector = tileSector(7, 200, 400)
+        val size = 19
+        val origin = Vec3()
+        globe.geographicToCartesian(sector.centroidLatitude(), sector.centroidLongitude(), 0.0, origin)
+        val border = FloatArray(size * size * 3)
+        globe.geographicToCartesianBorder(sector, size, size, -100f, origin, border)
+        // 裙边的第 1 到 size - 2 行列与 size - 2 个点的网格重合
+        val grid = FloatArray((size - 2) * (size - 2) * 3)
+        val heights = FloatArray((size - 2) * (size - 2)) { -100f }
+        globe.geographicToCartesianGrid(sector, size - 2, size - 2, heights, 1f, origin, grid, 0, 0)
+        for (k in 0 until size - 2) {
+            for (idx in 0 until 3) {
+                // 南边与西边
+                assertEquals(grid[k * 3 + idx], border[(k + 1) * 3 + idx], 1.0e-3f)
+                assertEquals(grid[k * (size - 2) * 3 + idx], border[((k + 1) * size) * 3 + idx], 1.0e-3f)
+            }
+        }
+    }
+
+    /**
+     * 32x32 与 64x64 网格的转换耗时: 逐行逐列计算三角函数与使用角度表
+     */
+    @Test
+    fun benchmarkGrid() {
+        val report = StringBuilder("ProjectionWgs84 grid")
+        for (size in intArrayOf(32, 64)) {
+            val tiles = 256
+            val sectors = Array(tiles) { tileSector(8, 300 + it / 16, 1000 + it % 16) }
+            val heights = heights(size, size)
+            val origin = Vec3()
+            val result = FloatArray(size * size * 3)
+            val nanos = LongArray(2) { Long.MAX_VALUE }
+            for (round in 0 until 30) {
+                for (variant in 0 until 2) {
+                    val start = System.nanoTime()
+                    for (sector in sectors) {
+                        origin.set(1000.0, 2000.0, 3000.0)
+                        if (variant == 0) {
+                            referenceGrid(sector, size, size, heights, 1f, origin, result, 0, 0)
+                        } else {
+                            globe.geographicToCartesianGrid(sector, size, size, heights, 1f, origin, result, 0, 0)
+                        }
+                    }
+                    nanos[variant] = Math.min(nanos[variant], System.nanoTime() - start)
+                }
+            }
+            report.append(
+                String.format(
+                    ", %dx%d: %.2f us -> %.2f us per grid", size, size,
+                    nanos[0] / 1e3 / tiles, nanos[1] / 1e3 / tiles
+                )
+            )
+        }
+        println(report)
+    }
+}
@@ -0,0 +1,127 @@
+package com.atom.map.layer
+
+import com.atom.map.WorldWind
+import com.atom.map.drawable.DrawableQueue
+import com.atom.map.globe.Globe
+import com.atom.map.globe.ProjectionWgs84
+import com.atom.map.renderable.AbstractRenderable
+import com.atom.map.renderable.RenderContext
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class LayerListTest {
+
+    /**
+     * 只记录渲染次数的可渲染对象
+     */
+    private class CountingRenderable(val rendered: AtomicInteger) : AbstractRenderable() {
+        override fun doRender(rc: RenderContext) {
+            rendered.incrementAndGet()
+        }
+    }
+
+    private val renderers = ArrayList<ParallelLayerRenderer>()
+
+    @After
+    fun tearDown() {
+        renderers.forEach { it.shutdown() }
+    }
+
+    /**
+     * 渲染线程持续渲染图层时, 主线程增删图层与可渲染对象. 可渲染对象每次增删 batchSize 个,
+     * 每帧看到的数量都是 batchSize 的整数倍, 渲染线程中没有异常
+     */
+    private fun mutateWhileRendering(parallelRenderer: ParallelLayerRenderer?) {
+        val batchSize = 100
+        val rendered = AtomicInteger()
+        val layers = LayerList()
+        layers.parallelRenderer = parallelRenderer
+        val layer = RenderableLayer()
+        layers.addLayer(layer)
+
+        val errors: MutableList<Throwable> = Collections.synchronizedList(ArrayList<Throwable>())
+        val partialFrames = AtomicInteger()
+        val frames = AtomicInteger()
+        val running = AtomicBoolean(true)
+        val renderThread = Thread {
+            val rc = RenderContext()
+            rc.globe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
+            rc.drawableQueue = DrawableQueue()
+            rc.drawableTerrain = DrawableQueue()
+            try {
+                while (running.get()) {
+                    rendered.set(0)
+                    layers.render(rc)
+                    if (rendered.get() % batchSize != 0) {
+                        partialFrames.incrementAndGet()
+                    }
+                    rc.drawableQueue!!.clearDrawables()
+                    frames.incrementAndGet()
+                }
+            } catch (e: Throwable) {
+                errors.add(e)
+            }
+        }
+        renderThread.start()
+
+        val deadline = System.currentTimeMillis() + 300
+        val batches = ArrayDeque<List<CountingRenderable>>()
+        val random = Random(7)
+        while (System.currentTimeMillis() < deadline && errors.isEmpty()) {
+            when (random.nextInt(4)) {
+                0, 1 -> {
+                    val batch = List(batchSize) { CountingRenderable(rendered) }
+                    layer.addAllRenderables(batch)
+                    batches.add(batch)
+                }
+                2 -> batches.pollFirst()?.let { layer.removeAllRenderables(it) }
+                else -> {
+                    // 在渲染中的图层前后增删空图层
+                    val extra = RenderableLayer()
+                    layers.addLayer(0, extra)
+                    layers.removeLayer(extra)
+                }
+            }
+            if (batches.size > 20) {
+                layer.clearRenderables()
+                batches.clear()
+            }
+        }
+        running.set(false)
+        renderThread.join(5000)
+
+        assertEquals(emptyList<Throwable>(), errors)
+        assertEquals(0, partialFrames.get())
+        assertTrue(frames.get() > 0)
+    }
+
+    @Test
+    fun mutationsDuringSequentialRenderingApplyNextFrame() {
+        mutateWhileRendering(null)
+    }
+
+    @Test
+    fun mutationsDuringParallelRenderingApplyNextFrame() {
+        val renderer = ParallelLayerRenderer(2, 64).also { renderers.add(it) }
+        mutateWhileRendering(renderer)
+    }
+
+    @Test
+    fun iterationSeesSnapshot() {
+        val layers = LayerList()
+        val first = RenderableLayer("first")
+        layers.addLayer(first)
+        val snapshot = layers.getSnapshot()
+        layers.forEach {
+            layers.addLayer(RenderableLayer("added"))
+        }
+        assertEquals(2, layers.count())
+        assertEquals(listOf(first), snapshot)
+        assertNotSame(snapshot, layers.getSnapshot())
+        assertSame(layers.getSnapshot(), layers.getSnapshot())
+    }
+}
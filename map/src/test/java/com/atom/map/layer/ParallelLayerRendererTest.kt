@@ -0,0 +1,232 @@
+package com.atom.map.layer
+
+import com.atom.map.WorldWind
+import com.atom.map.core.shader.BasicProgram
+import com.atom.map.core.shader.BufferObject
+import com.atom.map.core.shader.GpuProgram
+import com.atom.map.core.shader.GpuTexture
+import com.atom.map.core.shader.PlacemarkBatchProgram
+import com.atom.map.drawable.Drawable
+import com.atom.map.drawable.DrawablePlacemarkBatch
+import com.atom.map.drawable.DrawableQueue
+import com.atom.map.drawable.DrawableScreenTexture
+import com.atom.map.drawable.DrawableShape
+import com.atom.map.geom.Position
+import com.atom.map.globe.Globe
+import com.atom.map.globe.ProjectionWgs84
+import com.atom.map.renderable.ImageOptions
+import com.atom.map.renderable.ImageSource
+import com.atom.map.renderable.Placemark
+import com.atom.map.renderable.RenderContext
+import com.atom.map.renderable.attribute.PlacemarkAttributes
+import com.atom.map.renderable.shape.Path
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class ParallelLayerRendererTest {
+
+    /**
+     * 不访问 GL 与 Android 资源的绘画环境, 程序, 纹理与缓冲对象放在普通的表中.
+     * 工作线程通过 WorkerRenderContext 在锁内访问这些表. 同一测试中的环境共用这些表, 与共用资源缓存一样
+     */
+    private class TestRenderContext(
+        val programs: HashMap<Any, GpuProgram>,
+        val textures: HashMap<ImageSource, GpuTexture>,
+        val buffers: HashMap<Any, BufferObject>
+    ) : RenderContext() {
+
+        override fun getProgram(key: Any): GpuProgram? {
+            // 没有着色器源码的程序, 只在绘制时才需要编译
+            return programs.getOrPut(key) {
+                if (key == PlacemarkBatchProgram.KEY) PlacemarkBatchProgram() else BasicProgram()
+            }
+        }
+
+        override fun putProgram(key: Any, program: GpuProgram): GpuProgram {
+            programs[key] = program
+            return program
+        }
+
+        override fun getTexture(imageSource: ImageSource): GpuTexture? = textures[imageSource]
+
+        override fun retrieveTexture(imageSource: ImageSource, imageOptions: ImageOptions?): GpuTexture? {
+            return textures.getOrPut(imageSource) { GpuTexture(32, 32, 0x1908 /*RGBA*/, 0x1401 /*UNSIGNED_BYTE*/) }
+        }
+
+        override fun getBufferObject(key: Any): BufferObject? = buffers[key]
+
+        override fun putBufferObject(key: Any, buffer: BufferObject): BufferObject {
+            buffers[key] = buffer
+            return buffer
+        }
+    }
+
+    private val globe = Globe(WorldWind.WGS84_ELLIPSOID, ProjectionWgs84())
+
+    private val renderers = ArrayList<ParallelLayerRenderer>()
+
+    private val programs = HashMap<Any, GpuProgram>()
+
+    private val textures = HashMap<ImageSource, GpuTexture>()
+
+    private val buffers = HashMap<Any, BufferObject>()
+
+    @After
+    fun tearDown() {
+        renderers.forEach { it.shutdown() }
+    }
+
+    private fun createLayers(placemarkCount: Int, pathCount: Int, enableBatching: Boolean = true): LayerList {
+        val random = Random(7)
+        val icon = ImageSource.fromUrl("http://localhost/icon.png")
+        val placemarks = RenderableLayer("placemarks")
+        for (idx in 0 until placemarkCount) {
+            val position = Position(25 + random.nextDouble() * 10, -5 + random.nextDouble() * 10, 100.0)
+            placemarks.addRenderable(Placemark(position, PlacemarkAttributes.withImage(icon)).also {
+                it.enableBatching = enableBatching
+            })
+        }
+        val paths = RenderableLayer("paths")
+        for (idx in 0 until pathCount) {
+            val lat = 25 + random.nextDouble() * 10
+            val lon = -5 + random.nextDouble() * 10
+            val positions = mutableListOf(
+                Position(lat, lon, 1000.0),
+                Position(lat + 0.1, lon + 0.1, 1000.0),
+                Position(lat + 0.2, lon, 1000.0)
+            )
+            paths.addRenderable(Path(positions).apply {
+                altitudeMode = WorldWind.ABSOLUTE
+                followTerrain = false
+            })
+        }
+        return LayerList(listOf(placemarks, RenderableLayer("empty"), paths))
+    }
+
+    private fun createRenderContext(layers: LayerList): TestRenderContext {
+        val rc = TestRenderContext(programs, textures, buffers)
+        rc.globe = globe
+        rc.layers = layers
+        rc.drawableQueue = DrawableQueue()
+        rc.drawableTerrain = DrawableQueue()
+        rc.fieldOfView = 45.0
+        rc.viewport.set(0, 0, 1920, 1080)
+        rc.camera.set(30.0, 0.0, 2.0e6, WorldWind.ABSOLUTE, 0.0, 0.0, 0.0)
+        globe.geographicToCartesian(rc.camera.latitude, rc.camera.longitude, rc.camera.altitude, rc.cameraPoint)
+        globe.geographicToCartesianTransform(rc.camera.latitude, rc.camera.longitude, rc.camera.altitude, rc.modelview)
+        rc.modelview.invertOrthonormal()
+        val far = globe.horizonDistance(rc.camera.altitude)
+        rc.projection.setToPerspectiveProjection(1920.0, 1080.0, rc.fieldOfView, rc.camera.altitude * 0.5, far)
+        rc.modelviewProjection.setToMultiply(rc.projection, rc.modelview)
+        rc.frustum.setToModelviewProjection(rc.projection, rc.modelview, rc.viewport)
+        rc.horizonDistance = far
+        return rc
+    }
+
+    private fun signature(drawable: Drawable): String {
+        return when (drawable) {
+            is DrawableScreenTexture -> "texture " + Arrays.toString(drawable.unitSquareTransform.m)
+            is DrawableShape -> "shape " + drawable.drawState.vertexOrigin
+            is DrawablePlacemarkBatch -> "batch " + drawable.quadCount + " " + drawable.vertices.hashCode()
+            else -> drawable.javaClass.simpleName
+        }
+    }
+
+    private fun signatures(queue: DrawableQueue): List<String> {
+        val result = ArrayList<String>()
+        for (idx in 0 until queue.count()) {
+            result.add(signature(queue.getDrawable(idx)!!))
+        }
+        return result
+    }
+
+    @Test
+    fun parallelOutputMatchesSequentialOrder() {
+        val layers = createLayers(5000, 500)
+        val renderer = ParallelLayerRenderer(4, 256).also { renderers.add(it) }
+        for (frame in 0 until 3) {
+            layers.parallelRenderer = null
+            val sequential = createRenderContext(layers)
+            layers.render(sequential)
+            layers.parallelRenderer = renderer
+            val parallel = createRenderContext(layers)
+            layers.render(parallel)
+            assertTrue(sequential.placemarkIcons.count() > 1000)
+            assertEquals(sequential.placemarkIcons.count(), parallel.placemarkIcons.count())
+            assertEquals(signatures(sequential.drawableQueue!!), signatures(parallel.drawableQueue!!))
+            sequential.sortDrawables()
+            parallel.sortDrawables()
+            assertEquals(signatures(sequential.drawableQueue!!), signatures(parallel.drawableQueue!!))
+            sequential.drawableQueue!!.clearDrawables()
+            parallel.drawableQueue!!.clearDrawables()
+        }
+    }
+
+    @Test
+    fun placemarkIconsDrawInOneBatchPerTexture() {
+        val batched = createRenderContext(createLayers(5000, 0))
+        batched.layers!!.render(batched)
+        batched.sortDrawables()
+        val unbatched = createRenderContext(createLayers(5000, 0, false))
+        unbatched.layers!!.render(unbatched)
+        unbatched.sortDrawables()
+
+        // 未合批时每个图标一个可绘制对象, 合批后只有一个批次
+        val iconTexture = textures[ImageSource.fromUrl("http://localhost/icon.png")]
+        val icons = (0 until unbatched.drawableQueue!!.count()).count {
+            (unbatched.drawableQueue!!.getDrawable(it) as? DrawableScreenTexture)?.texture === iconTexture
+        }
+        val batches = (0 until batched.drawableQueue!!.count()).map { batched.drawableQueue!!.getDrawable(it) }
+            .filterIsInstance<DrawablePlacemarkBatch>()
+        assertTrue(icons > 1000)
+        assertEquals(1, batches.size)
+        assertEquals(icons, batches[0].quadCount)
+        assertEquals(unbatched.drawableQueue!!.count() - icons + 1, batched.drawableQueue!!.count())
+        batched.drawableQueue!!.clearDrawables()
+        unbatched.drawableQueue!!.clearDrawables()
+    }
+
+    @Test
+    fun pickFramesRenderSequentially() {
+        val layers = createLayers(3000, 0)
+        val renderer = ParallelLayerRenderer(4, 256).also { renderers.add(it) }
+        layers.parallelRenderer = renderer
+        val rc = createRenderContext(layers)
+        rc.pickMode = true
+        layers.render(rc)
+        // 拾取编号在同一个环境中依次分配
+        assertEquals(3000, rc.pickedObjectId)
+    }
+
+    /**
+     * 5 万个地标与 5 千条路径在单线程与 fork-join 线程池中的渲染耗时. 只断言两种方式生成同样的可绘制对象, 加速比只输出
+     */
+    @Test
+    fun benchmarkParallelLayerRendering() {
+        val layers = createLayers(50000, 5000)
+        val renderer = ParallelLayerRenderer().also { renderers.add(it) }
+        var sequentialNanos = Long.MAX_VALUE
+        var parallelNanos = Long.MAX_VALUE
+        for (round in 0 until 6) {
+            layers.parallelRenderer = null
+            var rc = createRenderContext(layers)
+            var start = System.nanoTime()
+            layers.render(rc)
+            sequentialNanos = Math.min(sequentialNanos, System.nanoTime() - start)
+            val count = rc.drawableQueue!!.count()
+            rc.drawableQueue!!.clearDrawables()
+
+            layers.parallelRenderer = renderer
+            rc = createRenderContext(layers)
+            start = System.nanoTime()
+            layers.render(rc)
+            parallelNanos = Math.min(parallelNanos, System.nanoTime() - start)
+            assertEquals(count, rc.drawableQueue!!.count())
+            rc.drawableQueue!!.clearDrawables()
+        }
+        println(String.format("ParallelLayerRenderer %d threads: sequential %.1f ms, parallel %.1f ms, speedup %.2fx",
+            renderer.parallelism, sequentialNanos / 1e6, parallelNanos / 1e6, sequentialNanos / parallelNanos.toDouble()))
+    }
+}
@@ -0,0 +1,53 @@
+package com.atom.map.navigator
+
+import com.atom.map.geom.Camera
+import org.junit.Assert.*
+import org.junit.Test
+
+class MotionPredictorTest {
+
+    @Test
+    fun extrapolatesConstantPan() {
+        val navigator = Camera()
+        navigator.altitude = 1.0e6
+        val predictor = MotionPredictor()
+        for (frame in 0..10) {
+            navigator.latitude = 10.0 + frame * 0.016 // 1 度/秒
+            navigator.longitude = 179.9 + frame * 0.016
+            predictor.addSample(navigator, frame * 16L)
+        }
+        assertTrue(predictor.isMoving())
+        val camera = predictor.predict(navigator, 500, Camera())
+        assertEquals(navigator.latitude + 0.5, camera.latitude, 1e-3)
+        // 跨越180度经线
+        assertEquals(navigator.longitude + 0.5 - 360.0, camera.longitude, 1e-3)
+        assertEquals(navigator.altitude, camera.altitude, 1e-3)
+    }
+
+    @Test
+    fun extrapolatesZoomProportionally() {
+        val navigator = Camera()
+        val predictor = MotionPredictor()
+        predictor.smoothing = 1.0
+        navigator.altitude = 1000.0
+        predictor.addSample(navigator, 0)
+        navigator.altitude = 2000.0
+        predictor.addSample(navigator, 100)
+        val camera = predictor.predict(navigator, 100, Camera())
+        assertEquals(4000.0, camera.altitude, 1e-6)
+    }
+
+    @Test
+    fun stopsAfterPause() {
+        val navigator = Camera()
+        val predictor = MotionPredictor()
+        predictor.addSample(navigator, 0)
+        navigator.latitude = 1.0
+        predictor.addSample(navigator, 16)
+        assertTrue(predictor.isMoving())
+        navigator.latitude = 2.0
+        predictor.addSample(navigator, 1000)
+        assertFalse(predictor.isMoving())
+        assertEquals(navigator.latitude, predictor.predict(navigator, 500, Camera()).latitude, 0.0)
+    }
+}
@@ -0,0 +1,174 @@
+package com.atom.map.ogc
+
+import com.atom.map.geom.Sector
+import com.atom.map.geom.TileMatrixSet
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.nio.file.Files
+
+class ElevationTileStoreTest {
+
+    private lateinit var directory: File
+
+    /**
+     * 4 x 2 个 90 度的第 0 级瓦片, 每个瓦片 32 x 32 个像素
+     */
+    private val tileMatrixSet = TileMatrixSet.fromTilePyramid(Sector().setFullSphere(), 4, 2, 32, 32, 8)
+
+    private val storeSector = Sector(30.0, 100.0, 10.0, 10.0)
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("elevation").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    /**
+     * 随经纬度线性变化的高度, 双线性插值可以精确重建
+     */
+    private fun height(latitude: Double, longitude: Double) = (latitude - 30) * 100 + (longitude - 100) * 20
+
+    private fun raster(width: Int, height: Int, sector: Sector): ShortArray {
+        val result = ShortArray(width * height)
+        for (y in 0 until height) {
+            val lat = sector.maxLatitude - (y + 0.5) * sector.deltaLatitude() / height
+            for (x in 0 until width) {
+                val lon = sector.minLongitude + (x + 0.5) * sector.deltaLongitude() / width
+                result[x + y * width] = Math.round(height(lat, lon)).toShort()
+            }
+        }
+        return result
+    }
+
+    @Test
+    fun writtenTilesAreMapped() {
+        val tileMatrix = tileMatrixSet.matrix(5)!!
+        val data = ShortArray(32 * 32) { (it - 500).toShort() }
+        ElevationTileStore(directory, tileMatrixSet, storeSector).use { store ->
+            assertNull(store.readTile(tileMatrix, 20, 100))
+            assertTrue(store.writeTile(tileMatrix, 20, 100, ShortBuffer.wrap(data)))
+            // 库范围之外的瓦片不写入
+            assertFalse(store.writeTile(tileMatrix, 0, 0, ShortBuffer.wrap(data)))
+            val tile = store.readTile(tileMatrix, 20, 100)!!
+            assertTrue(tile.isDirect)
+            assertEquals(data.size, tile.remaining())
+            for (idx in data.indices) {
+                assertEquals(data[idx], tile[idx])
+            }
+        }
+        // 重新打开后从文件读取
+        ElevationTileStore(directory, tileMatrixSet, storeSector, true).use { store ->
+            assertTrue(store.containsTile(tileMatrix, 20, 100))
+            assertFalse(store.containsTile(tileMatrix, 20, 101))
+            assertEquals(data[100], store.readTile(tileMatrix, 20, 100)!![100])
+        }
+    }
+
+    @Test
+    fun importedRasterMatchesSource() {
+        val rasterSector = Sector(32.0, 102.0, 4.0, 4.0)
+        val width = 400
+        val height = 400
+        ElevationTileStore(directory, tileMatrixSet, storeSector).use { store ->
+            store.importRaster(ShortBuffer.wrap(raster(width, height, rasterSector)), width, height, rasterSector)
+            // 栅格像素 0.01 度, 最接近的是第 7 级 (90 / 128 / 32 度)
+            for (idx in 0..7) {
+                val tileMatrix = tileMatrixSet.matrix(idx)!!
+                val sector = tileMatrix.tileSector(0, 0)
+                val row = ((tileMatrix.sector.maxLatitude - 34.0) / sector.deltaLatitude()).toInt()
+                val column = ((104.0 - tileMatrix.sector.minLongitude) / sector.deltaLongitude()).toInt()
+                val tile = store.readTile(tileMatrix, row, column)!!
+                val tileSector = tileMatrix.tileSector(row, column)
+                val texelLat = tileSector.deltaLatitude() / 32
+                val texelLon = tileSector.deltaLongitude() / 32
+                for (j in 0 until 32) {
+                    val lat = tileSector.maxLatitude - (j + 0.5) * texelLat
+                    for (i in 0 until 32) {
+                        val lon = tileSector.minLongitude + (i + 0.5) * texelLon
+                        if (rasterSector.contains(lat, lon)) {
+                            assertEquals("level $idx", height(lat, lon), tile[i + j * 32].toDouble(), 4.0)
+                        }
+                    }
+                }
+            }
+            assertNull(store.readTile(tileMatrixSet.matrix(6)!!, 0, 0))
+        }
+    }
+
+    @Test
+    fun bil16AndGeoTiffImportsAgree() {
+        val rasterSector = Sector(31.0, 101.0, 2.0, 2.0)
+        val width = 160
+        val height = 120
+        val raster = raster(width, height, rasterSector)
+
+        val bil = File(directory, "raster.bil")
+        val bilBytes = ByteBuffer.allocate(raster.size * 2).order(ByteOrder.LITTLE_ENDIAN)
+        bilBytes.asShortBuffer().put(raster)
+        bil.writeBytes(bilBytes.array())
+
+        // 大端序, 单个条带, 未压缩的 16 位有符号整数
+        val tiff = File(directory, "raster.tif")
+        val entries = arrayOf(
+            intArrayOf(256, 4, width), intArrayOf(257, 4, height), intArrayOf(258, 3, 16), intArrayOf(259, 3, 1),
+            intArrayOf(262, 3, 1), intArrayOf(273, 4, 8 + 2 + 10 * 12 + 4), intArrayOf(277, 3, 1),
+            intArrayOf(278, 4, height), intArrayOf(279, 4, raster.size * 2), intArrayOf(339, 3, 2)
+        )
+        val tiffBytes = ByteBuffer.allocate(8 + 2 + entries.size * 12 + 4 + raster.size * 2).order(ByteOrder.BIG_ENDIAN)
+        tiffBytes.put('M'.toByte()).put('M'.toByte()).putShort(42).putInt(8).putShort(entries.size.toShort())
+        for (entry in entries) {
+            tiffBytes.putShort(entry[0].toShort()).putShort(entry[1].toShort()).putInt(1)
+            if (entry[1] == 3) tiffBytes.putShort(entry[2].toShort()).putShort(0) else tiffBytes.putInt(entry[2])
+        }
+        tiffBytes.putInt(0)
+        tiffBytes.asShortBuffer().put(raster)
+        tiff.writeBytes(tiffBytes.array())
+
+        val bilStore = ElevationTileStore(File(directory, "bil"), tileMatrixSet, storeSector)
+        val tiffStore = ElevationTileStore(File(directory, "tiff"), tileMatrixSet, storeSector)
+        val bandStore = ElevationTileStore(File(directory, "band"), tileMatrixSet, storeSector)
+        try {
+            bilStore.importBil16(bil, width, height, rasterSector)
+            tiffStore.importGeoTiff(tiff, rasterSector)
+            // 每次只映射三行, 与整个栅格一次读取的结果相同
+            bandStore.importBandBytes = width * 2 * 3
+            bandStore.importBil16(bil, width, height, rasterSector)
+            for (idx in 0..6) {
+                val matrix = tileMatrixSet.matrix(idx)!!
+                for (row in 0 until matrix.matrixHeight) {
+                    for (column in 0 until matrix.matrixWidth) {
+                        assertEquals(bilStore.readTile(matrix, row, column), bandStore.readTile(matrix, row, column))
+                    }
+                }
+            }
+            val tileMatrix = tileMatrixSet.matrix(6)!!
+            val sector = tileMatrix.tileSector(0, 0)
+            val row = ((tileMatrix.sector.maxLatitude - 32.0) / sector.deltaLatitude()).toInt()
+            val column = ((102.0 - tileMatrix.sector.minLongitude) / sector.deltaLongitude()).toInt()
+            val bilTile = bilStore.readTile(tileMatrix, row, column)!!
+            val tiffTile = tiffStore.readTile(tileMatrix, row, column)!!
+            var nonZero = 0
+            for (idx in 0 until 32 * 32) {
+                assertEquals(bilTile[idx], tiffTile[idx])
+                if (bilTile[idx].toInt() != 0) nonZero++
+            }
+            assertTrue(nonZero > 0)
+            // 临时文件已删除
+            assertTrue(File(directory, "tiff").list()!!.none { it.endsWith(".raw") })
+        } finally {
+            bilStore.close()
+            tiffStore.close()
+            bandStore.close()
+        }
+    }
+}
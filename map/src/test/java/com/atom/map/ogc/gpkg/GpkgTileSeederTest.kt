@@ -0,0 +1,216 @@
+package com.atom.map.ogc.gpkg
+
+import com.atom.map.WorldWind
+import com.atom.map.core.tile.ImageTile
+import com.atom.map.core.tile.Tile
+import com.atom.map.core.tile.TileFactory
+import com.atom.map.geom.Sector
+import com.atom.map.renderable.ImageSource
+import com.atom.map.util.Level
+import com.atom.map.util.LevelSet
+import com.atom.map.util.TaskService
+import com.atom.map.util.TileResponse
+import com.atom.map.util.TileTransport
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+
+class GpkgTileSeederTest {
+
+    /**
+     * 记录写入的瓦片, 代替 SQLite 上的 GpkgTileWriter
+     */
+    private class MemoryTileSink : GpkgTileSink {
+
+        val tiles = HashMap<Int, MutableSet<Long>>()
+
+        val matrices = ArrayList<Int>()
+
+        override fun writeTileMatrix(zoomLevel: Int, tileWidth: Int, tileHeight: Int) {
+            matrices.add(zoomLevel)
+        }
+
+        override fun writeContentBounds(sector: Sector) {}
+
+        @Synchronized
+        override fun readTileKeys(zoomLevel: Int): MutableSet<Long> {
+            return HashSet(tiles[zoomLevel] ?: emptySet<Long>())
+        }
+
+        @Synchronized
+        override fun writeTiles(tiles: List<GpkgTileUserData>) {
+            for (tile in tiles) {
+                val added = this.tiles.getOrPut(tile.zoomLevel) { HashSet() }
+                    .add(GpkgTileWriter.tileKey(tile.tileColumn, tile.tileRow))
+                assertTrue("tile written twice", added)
+            }
+        }
+
+        fun count() = tiles.values.sumBy { it.size }
+    }
+
+    /**
+     * 按 URL 返回固定内容, failing 中的 URL 返回 404
+     */
+    private class RecordingTransport : TileTransport {
+
+        val fetched: MutableList<String> = Collections.synchronizedList(ArrayList<String>())
+
+        val failing: MutableSet<String> = Collections.synchronizedSet(HashSet<String>())
+
+        override fun fetch(url: String, validator: String?): TileResponse {
+            fetched.add(url)
+            if (failing.contains(url)) {
+                return TileResponse(404, null, null, null)
+            }
+            return TileResponse(200, url.toByteArray(), "image/png", null)
+        }
+    }
+
+    private val tileFactory = object : TileFactory {
+        override fun createTile(sector: Sector, level: Level, row: Int, column: Int): Tile {
+            val tile = ImageTile(sector, level, row, column)
+            tile.imageSource = ImageSource.fromUrl("http://localhost/${level.levelNumber}/$row/$column.png")
+            return tile
+        }
+    }
+
+    // 第 0 级 90 度, 写入 GeoPackage 时级别号加 1
+    private val levelSet = LevelSet(Sector().setFullSphere(), 90.0, 6, 256, 256)
+
+    private val sector = Sector(10.0, 20.0, 30.0, 40.0)
+
+    private lateinit var savedTransport: TileTransport
+
+    private val transport = RecordingTransport()
+
+    @Before
+    fun setUp() {
+        savedTransport = WorldWind.tileTransport
+        WorldWind.tileTransport = transport
+    }
+
+    @After
+    fun tearDown() {
+        WorldWind.tileTransport = savedTransport
+    }
+
+    private fun expectedUrls(firstLevel: Int, lastLevel: Int): List<String> {
+        val result = ArrayList<String>()
+        for (levelNumber in firstLevel..lastLevel) {
+            val delta = levelSet.level(levelNumber)!!.tileDelta
+            for (row in Tile.computeRow(delta, sector.minLatitude)..Tile.computeLastRow(delta, sector.maxLatitude)) {
+                for (column in Tile.computeColumn(delta, sector.minLongitude)..Tile.computeLastColumn(delta, sector.maxLongitude)) {
+                    result.add("http://localhost/$levelNumber/$row/$column.png")
+                }
+            }
+        }
+        return result
+    }
+
+    @Test
+    fun cursorEnumeratesLevelsRowsAndColumnsInOrder() {
+        val seeder = GpkgTileSeeder(levelSet, tileFactory)
+        seeder.threadCount = 1
+        val sink = MemoryTileSink()
+        val progress = seeder.seed(sector, 0, 4, sink, null)
+
+        assertEquals(expectedUrls(0, 4), transport.fetched)
+        assertEquals(listOf(1, 2, 3, 4, 5), sink.matrices)
+        assertEquals(progress.totalCount, progress.writtenCount)
+        assertTrue(progress.isComplete())
+        assertFalse(seeder.isCancelled())
+    }
+
+    @Test
+    fun multipleWorkersCompleteWithoutCancelling() {
+        // 下载任务中未捕获的异常, 日志在 JVM 中不可用时错误处理本身也会抛出
+        val errors: MutableList<Throwable> = Collections.synchronizedList(ArrayList<Throwable>())
+        val savedHandler = Thread.getDefaultUncaughtExceptionHandler()
+        Thread.setDefaultUncaughtExceptionHandler { _, ex -> errors.add(ex) }
+        try {
+            seedWithWorkers()
+            // 任务线程在计数之后才结束, 等待它们把异常交给处理器
+            Thread.sleep(200)
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(savedHandler)
+        }
+        assertEquals(emptyList<Throwable>(), errors)
+    }
+
+    private fun seedWithWorkers() {
+        val seeder = GpkgTileSeeder(levelSet, tileFactory)
+        seeder.threadCount = 4
+        seeder.batchSize = 8
+        val sink = MemoryTileSink()
+        var lastWritten = 0L
+        val progress = seeder.seed(sector, 0, 5, sink, object : GpkgTileSeeder.Listener {
+            override fun onProgress(seeder: GpkgTileSeeder, progress: GpkgTileSeeder.Progress) {
+                assertTrue(progress.writtenCount >= lastWritten)
+                lastWritten = progress.writtenCount
+            }
+        })
+
+        assertFalse(seeder.isCancelled())
+        assertTrue(progress.isComplete())
+        assertEquals(0, progress.failedCount)
+        assertEquals(expectedUrls(0, 5).size.toLong(), progress.totalCount)
+        assertEquals(progress.totalCount, sink.count().toLong())
+        // 每个瓦片只下载一次
+        assertEquals(expectedUrls(0, 5).sorted(), transport.fetched.sorted())
+    }
+
+    @Test
+    fun seedsOnCallingThreadWhenBulkDownloadPoolIsFull() {
+        // 占满批量下载线程池, 所有下载任务都被拒绝
+        val release = CountDownLatch(1)
+        try {
+            while (true) {
+                WorldWind.taskService.execute(TaskService.BULK_DOWNLOAD, Runnable { release.await() })
+            }
+        } catch (ex: RejectedExecutionException) {
+        }
+        try {
+            val seeder = GpkgTileSeeder(levelSet, tileFactory)
+            seeder.threadCount = 4
+            seeder.batchSize = 8
+            val sink = MemoryTileSink()
+            val progress = seeder.seed(sector, 0, 4, sink, null)
+
+            assertTrue(progress.isComplete())
+            assertEquals(progress.totalCount, sink.count().toLong())
+            assertEquals(expectedUrls(0, 4), transport.fetched)
+        } finally {
+            release.countDown()
+        }
+    }
+
+    @Test
+    fun resumeSkipsTilesAlreadyWritten() {
+        val urls = expectedUrls(0, 4)
+        for (idx in urls.indices step 3) {
+            transport.failing.add(urls[idx])
+        }
+        val seeder = GpkgTileSeeder(levelSet, tileFactory)
+        val sink = MemoryTileSink()
+        val first = seeder.seed(sector, 0, 4, sink, null)
+        assertFalse(first.isComplete())
+        assertEquals(transport.failing.size.toLong(), first.failedCount)
+        assertEquals(first.totalCount - first.failedCount, first.writtenCount)
+
+        // 再次 seed 只下载上次失败的瓦片
+        transport.failing.clear()
+        transport.fetched.clear()
+        val second = seeder.seed(sector, 0, 4, sink, null)
+        assertTrue(second.isComplete())
+        assertFalse(seeder.isCancelled())
+        assertEquals(first.writtenCount, second.skippedCount)
+        assertEquals(first.failedCount, second.writtenCount)
+        assertEquals(urls.filterIndexed { idx, _ -> idx % 3 == 0 }.sorted(), transport.fetched.sorted())
+        assertEquals(urls.size, sink.count())
+    }
+}
@@ -0,0 +1,93 @@
+package com.atom.map.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ConcurrentMemoryCacheTest {
+
+    @Test
+    fun evictsLeastRecentlyUsed() {
+        val cache = ConcurrentMemoryCache<Int, String>(4, 2, 1)
+        cache.put(1, "a", 1)
+        cache.put(2, "b", 1)
+        cache.put(3, "c", 1)
+        cache.put(4, "d", 1)
+        cache.get(1)
+        cache.put(5, "e", 1)
+
+        assertTrue(cache.containsKey(1))
+        assertFalse(cache.containsKey(2))
+        assertFalse(cache.containsKey(3))
+        assertTrue(cache.usedCapacity <= cache.capacity)
+    }
+
+    @Test
+    fun accountsSizeAcrossSegments() {
+        val cache = ConcurrentMemoryCache<Int, String>(1000)
+        for (i in 0 until 5000) {
+            cache.put(i, "v$i", 7)
+            assertTrue(cache.usedCapacity <= cache.capacity)
+        }
+        assertEquals(cache.getEntryCount() * 7, cache.usedCapacity)
+        cache.clear()
+        assertEquals(0, cache.usedCapacity)
+        assertEquals(0, cache.getEntryCount())
+    }
+
+    /**
+     * 暴露分段锁, 模拟其他线程正在写入或回收
+     */
+    private class LockingCache : ConcurrentMemoryCache<Int, String>(100, 50, 4) {
+
+        fun segmentLockOf(key: Int) = segmentFor(key).lock
+
+        fun allLocks() = listOf(evictionLock) + segments.map { it.lock }
+    }
+
+    /**
+     * 在另一个线程中运行 block, 5 秒内没有完成时失败
+     */
+    private fun <T> completesInOtherThread(block: () -> T): T {
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            return executor.submit(Callable { block() }).get(5, TimeUnit.SECONDS)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun readsDoNotWaitForLockedSegments() {
+        val cache = LockingCache()
+        cache.put(1, "a", 1)
+        // 当前线程持有全部分段锁与回收锁, 其他线程的读取仍然完成
+        val locks = cache.allLocks()
+        locks.forEach { it.lock() }
+        try {
+            assertEquals("a", completesInOtherThread { cache.get(1) })
+            assertTrue(completesInOtherThread { cache.containsKey(1) })
+            assertNull(completesInOtherThread { cache.get(2) })
+        } finally {
+            locks.forEach { it.unlock() }
+        }
+    }
+
+    @Test
+    fun writesToOtherSegmentsDoNotWait() {
+        val cache = LockingCache()
+        val lockedKey = 1
+        val otherKey = (2..100).first { cache.segmentLockOf(it) !== cache.segmentLockOf(lockedKey) }
+        val lock = cache.segmentLockOf(lockedKey)
+        lock.lock()
+        try {
+            assertNull(completesInOtherThread { cache.put(otherKey, "b", 1) })
+            assertEquals("b", completesInOtherThread { cache.remove(otherKey) })
+        } finally {
+            lock.unlock()
+        }
+        assertEquals(0, cache.usedCapacity)
+    }
+}
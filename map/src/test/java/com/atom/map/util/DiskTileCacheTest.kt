@@ -0,0 +1,130 @@
+package com.atom.map.util
+
+import com.sun.net.httpserver.HttpServer
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
+import java.net.InetSocketAddress
+import java.net.URL
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+
+class DiskTileCacheTest {
+
+    private lateinit var server: HttpServer
+
+    private lateinit var directory: File
+
+    private val requestCount = AtomicInteger()
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("tiles").toFile()
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/tile") { exchange ->
+            requestCount.incrementAndGet()
+            val body = tileBytes(exchange.requestURI.query)
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun consultsDiskBeforeNetwork() {
+        val cache = DiskTileCache(directory, 1024 * 1024)
+        val url = tileUrl(1)
+        assertArrayEquals(tileBytes("1"), fetch(cache, url))
+        assertArrayEquals(tileBytes("1"), fetch(cache, url))
+        assertEquals(1, requestCount.get())
+        assertEquals(1, cache.getHitCount())
+        assertEquals(1, cache.getMissCount())
+    }
+
+    @Test
+    fun survivesRestart() {
+        val cache = DiskTileCache(directory, 1024 * 1024)
+        for (i in 0 until 10) {
+            fetch(cache, tileUrl(i))
+        }
+        cache.close()
+
+        val reopened = DiskTileCache(directory, 1024 * 1024)
+        for (i in 0 until 10) {
+            assertArrayEquals(tileBytes("$i"), fetch(reopened, tileUrl(i)))
+        }
+        assertEquals(10, requestCount.get())
+        assertEquals(10, reopened.getHitCount())
+    }
+
+    @Test
+    fun recoversFromTornWriteWithoutIndex() {
+        val cache = DiskTileCache(directory, 1024 * 1024)
+        for (i in 0 until 10) {
+            fetch(cache, tileUrl(i))
+        }
+        // 模拟进程崩溃: 不写索引, 并截断最后一条记录
+        val segment = directory.listFiles()!!.first { it.name.endsWith(".seg") }
+        RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 3) }
+        File(directory, "index").delete()
+
+        val reopened = DiskTileCache(directory, 1024 * 1024)
+        assertEquals(9, reopened.getEntryCount())
+        for (i in 0 until 10) {
+            assertArrayEquals(tileBytes("$i"), fetch(reopened, tileUrl(i)))
+        }
+        assertEquals(11, requestCount.get())
+    }
+
+    @Test
+    fun evictsToQuota() {
+        val cache = DiskTileCache(directory, 64 * 1024, 16 * 1024)
+        for (i in 0 until 200) {
+            fetch(cache, tileUrl(i))
+            assertTrue(cache.getUsedBytes() <= 64 * 1024 + 16 * 1024)
+        }
+        assertTrue(cache.getEvictionCount() > 0)
+        assertTrue(cache.containsKey(tileUrl(199)))
+        assertFalse(cache.containsKey(tileUrl(0)))
+    }
+
+    @Test
+    fun keepsValidatorAcrossRestart() {
+        val cache = DiskTileCache(directory, 1024 * 1024)
+        cache.put(tileUrl(1), tileBytes("1"), "etag:\"1\"")
+        cache.put(tileUrl(2), tileBytes("2"))
+        cache.close()
+
+        val reopened = DiskTileCache(directory, 1024 * 1024)
+        val tile = reopened.getTile(tileUrl(1))!!
+        assertArrayEquals(tileBytes("1"), tile.data)
+        assertEquals("etag:\"1\"", tile.validator)
+        assertTrue(tile.storedAt > 0)
+        assertNull(reopened.getTile(tileUrl(2))!!.validator)
+    }
+
+    private fun tileUrl(index: Int) = "http://127.0.0.1:${server.address.port}/tile?$index"
+
+    private fun tileBytes(query: String?): ByteArray {
+        val seed = query?.toIntOrNull() ?: 0
+        return ByteArray(1024) { (it * 31 + seed).toByte() }
+    }
+
+    private fun fetch(cache: DiskTileCache, url: String): ByteArray {
+        cache.get(url)?.let { return it }
+        val conn = URL(url).openConnection() as HttpURLConnection
+        val bytes = conn.inputStream.use { it.readBytes() }
+        cache.put(url, bytes)
+        return bytes
+    }
+}
@@ -0,0 +1,218 @@
+package com.atom.map.util
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.URL
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPOutputStream
+
+class HttpTileTransportTest {
+
+    private lateinit var server: ServerSocket
+
+    private lateinit var serverExecutor: ExecutorService
+
+    private val connectionCount = AtomicInteger()
+
+    private val concurrentCount = AtomicInteger()
+
+    private val maxConcurrentCount = AtomicInteger()
+
+    private val failuresRemaining = AtomicInteger()
+
+    @Before
+    fun setUp() {
+        server = ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"))
+        serverExecutor = Executors.newCachedThreadPool()
+        serverExecutor.execute {
+            while (!server.isClosed) {
+                val socket = try {
+                    server.accept()
+                } catch (ex: IOException) {
+                    break
+                }
+                connectionCount.incrementAndGet()
+                serverExecutor.execute { this.serve(socket) }
+            }
+        }
+    }
+
+    @After
+    fun tearDown() {
+        server.close()
+        serverExecutor.shutdownNow()
+    }
+
+    @Test
+    fun decodesGzipAndRevalidates() {
+        val transport = HttpTileTransport()
+        val first = transport.fetch(tileUrl(7), null)
+        assertTrue(first.isSuccess())
+        assertArrayEquals(tileBytes(7), first.data)
+        assertEquals(tileBytes(7).size.toLong(), transport.getBytesRead())
+
+        val second = transport.fetch(tileUrl(7), first.validator)
+        assertTrue(second.isNotModified())
+        assertNull(second.data)
+    }
+
+    @Test
+    fun retriesServerErrors() {
+        val transport = HttpTileTransport(maxRetries = 2)
+        transport.retryBaseDelayMillis = 1
+        failuresRemaining.set(2)
+        assertTrue(transport.fetch(tileUrl(1), null).isSuccess())
+        assertEquals(2, transport.getRetryCount())
+
+        failuresRemaining.set(3)
+        assertEquals(503, transport.fetch(tileUrl(1), null).statusCode)
+    }
+
+    @Test
+    fun limitsConnectionsPerHost() {
+        val transport = HttpTileTransport(maxConnectionsPerHost = 2)
+        fetchAll(16, 200) { transport.fetch(tileUrl(it), null).data!! }
+        assertTrue(maxConcurrentCount.get() <= 2)
+        assertTrue(connectionCount.get() <= 2 + 1)
+    }
+
+    @Test
+    fun benchmarkThroughput() {
+        val tiles = 2000
+        val threads = 8
+        // 预热
+        fetchAll(threads, 200) { fetchWithoutReuse(tileUrl(it)) }
+        val transport = HttpTileTransport(maxConnectionsPerHost = threads)
+        fetchAll(threads, 200) { transport.fetch(tileUrl(it), null).data!! }
+
+        connectionCount.set(0)
+        val baseline = fetchAll(threads, tiles) { fetchWithoutReuse(tileUrl(it)) }
+        val baselineConnections = connectionCount.getAndSet(0)
+        val shared = fetchAll(threads, tiles) { transport.fetch(tileUrl(it), null).data!! }
+        val sharedConnections = connectionCount.get()
+        println(
+            "HttpTileTransport throughput, $tiles tiles: connection per tile $baseline ms " +
+                    "($baselineConnections connections), shared transport $shared ms ($sharedConnections connections)"
+        )
+        assertTrue(sharedConnections < baselineConnections)
+    }
+
+    private fun fetchAll(threads: Int, tiles: Int, fetch: (Int) -> ByteArray): Long {
+        val executor = Executors.newFixedThreadPool(threads)
+        val next = AtomicInteger()
+        val failures = AtomicInteger()
+        val start = System.nanoTime()
+        for (t in 0 until threads) {
+            executor.execute {
+                while (true) {
+                    val index = next.getAndIncrement()
+                    if (index >= tiles) {
+                        break
+                    }
+                    if (!tileBytes(index).contentEquals(fetch(index))) {
+                        failures.incrementAndGet()
+                    }
+                }
+            }
+        }
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS))
+        assertEquals(0, failures.get())
+        return (System.nanoTime() - start) / 1000000
+    }
+
+    /**
+     * 每个瓦片建立一个新连接, 对应改动前请求器的行为
+     */
+    private fun fetchWithoutReuse(url: String): ByteArray {
+        val conn = URL(url).openConnection() as HttpURLConnection
+        conn.setRequestProperty("Connection", "close")
+        try {
+            return conn.inputStream.use { it.readBytes() }
+        } finally {
+            conn.disconnect()
+        }
+    }
+
+    /**
+     * 最简单的 HTTP/1.1 服务端, 支持 keep-alive, gzip, ETag 与模拟的 503 错误
+     */
+    private fun serve(socket: Socket) {
+        socket.use {
+            socket.tcpNoDelay = true
+            val input = BufferedInputStream(socket.getInputStream())
+            val output = socket.getOutputStream()
+            while (true) {
+                val requestLine = readLine(input) ?: return
+                val headers = hashMapOf<String, String>()
+                while (true) {
+                    val line = readLine(input) ?: return
+                    if (line.isEmpty()) {
+                        break
+                    }
+                    val colon = line.indexOf(':')
+                    headers[line.substring(0, colon).trim().toLowerCase()] = line.substring(colon + 1).trim()
+                }
+                val concurrent = concurrentCount.incrementAndGet()
+                maxConcurrentCount.accumulateAndGet(concurrent) { a, b -> Math.max(a, b) }
+                val index = requestLine.substringAfter('?').substringBefore(' ').toInt()
+                val etag = "\"$index\""
+                val close = "close".equals(headers["connection"], ignoreCase = true)
+                val response = ByteArrayOutputStream()
+                var body = ByteArray(0)
+                var status = "200 OK"
+                when {
+                    failuresRemaining.getAndDecrement() > 0 -> status = "503 Service Unavailable"
+                    etag == headers["if-none-match"] -> status = "304 Not Modified"
+                    headers["accept-encoding"]?.contains("gzip") == true -> {
+                        val compressed = ByteArrayOutputStream()
+                        GZIPOutputStream(compressed).use { it.write(tileBytes(index)) }
+                        body = compressed.toByteArray()
+                        response.write("Content-Encoding: gzip\r\n".toByteArray())
+                    }
+                    else -> body = tileBytes(index)
+                }
+                val header = "HTTP/1.1 $status\r\nETag: $etag\r\nContent-Length: ${body.size}\r\n" +
+                        (if (close) "Connection: close\r\n" else "") + String(response.toByteArray()) + "\r\n"
+                concurrentCount.decrementAndGet()
+                output.write(header.toByteArray() + body)
+                output.flush()
+                if (close) {
+                    return
+                }
+            }
+        }
+    }
+
+    private fun readLine(input: InputStream): String? {
+        val line = StringBuilder()
+        while (true) {
+            val c = input.read()
+            if (c == -1) {
+                return null
+            } else if (c == '\n'.toInt()) {
+                return line.toString().trimEnd('\r')
+            }
+            line.append(c.toChar())
+        }
+    }
+
+    private fun tileUrl(index: Int) = "http://127.0.0.1:${server.localPort}/tile?$index"
+
+    private fun tileBytes(index: Int): ByteArray {
+        return ByteArray(16 * 1024) { ((it % 64) * 31 + index).toByte() }
+    }
+}
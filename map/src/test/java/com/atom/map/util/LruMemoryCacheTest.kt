@@ -0,0 +1,98 @@
+package com.atom.map.util
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class LruMemoryCacheTest {
+
+    /**
+     * 按顺序记录 entryRemoved 回调
+     */
+    private class RecordingCache(capacity: Int, lowWater: Int) : LruMemoryCache<Int, String>(capacity, lowWater) {
+
+        val removed = ArrayList<String>()
+
+        override fun entryRemoved(key: Int, oldValue: String, newValue: String?, evicted: Boolean) {
+            removed.add("$key:$oldValue->$newValue:$evicted")
+        }
+    }
+
+    @Test
+    fun evictsLeastRecentlyUsedFirst() {
+        val cache = RecordingCache(4, 2)
+        cache.put(1, "a", 1)
+        cache.put(2, "b", 1)
+        cache.put(3, "c", 1)
+        cache.put(4, "d", 1)
+        assertEquals("a", cache.get(1))
+        // 超出容量时从最久未使用的条目开始回收到 lowWater
+        cache.put(5, "e", 1)
+
+        assertEquals(listOf("2:b->null:true", "3:c->null:true"), cache.removed)
+        assertTrue(cache.containsKey(1))
+        assertTrue(cache.containsKey(4))
+        assertTrue(cache.containsKey(5))
+        assertEquals(3, cache.getEntryCount())
+        assertEquals(3, cache.usedCapacity)
+    }
+
+    @Test
+    fun rePutReplacesValueAndSize() {
+        val cache = RecordingCache(100, 50)
+        assertNull(cache.put(1, "a", 10))
+        assertNull(cache.put(2, "b", 10))
+        assertEquals("a", cache.put(1, "a2", 30))
+        assertEquals(listOf("1:a->a2:false"), cache.removed)
+        assertEquals(40, cache.usedCapacity)
+        assertEquals(2, cache.getEntryCount())
+
+        // 同一个值再次放入时只更新大小, 不回调
+        val value = cache.get(1)!!
+        assertNull(cache.put(1, value, 5))
+        assertEquals(1, cache.removed.size)
+        assertEquals(15, cache.usedCapacity)
+
+        // 再次放入的条目成为最近使用的, 回收先移除 2
+        cache.put(3, "c", 90)
+        assertEquals("2:b->null:true", cache.removed[1])
+        assertFalse(cache.containsKey(2))
+    }
+
+    @Test
+    fun trimToAgeRemovesEntriesUsedBeforeTime() {
+        val cache = RecordingCache(100, 50)
+        cache.put(1, "a", 10)
+        cache.put(2, "b", 20)
+        Thread.sleep(5)
+        val time = System.currentTimeMillis()
+        cache.put(3, "c", 30)
+        // 访问过的条目不被移除
+        cache.get(2)
+
+        assertEquals(0, cache.trimToAge(0))
+        assertEquals(10, cache.trimToAge(time))
+        assertEquals(listOf("1:a->null:false"), cache.removed)
+        assertEquals(50, cache.usedCapacity)
+        assertEquals(50, cache.trimToAge(Long.MAX_VALUE))
+        assertEquals(0, cache.getEntryCount())
+        assertEquals(0, cache.usedCapacity)
+    }
+
+    @Test
+    fun removeAndClearNotifyEntryRemoved() {
+        val cache = RecordingCache(100, 50)
+        cache.put(1, "a", 10)
+        cache.put(2, "b", 20)
+        cache.put(3, "c", 30)
+
+        assertEquals("b", cache.remove(2))
+        assertNull(cache.remove(2))
+        assertEquals(40, cache.usedCapacity)
+        cache.clear()
+
+        assertEquals(listOf("2:b->null:false", "1:a->null:false", "3:c->null:false"), cache.removed)
+        assertEquals(0, cache.getEntryCount())
+        assertEquals(0, cache.usedCapacity)
+        assertNull(cache.get(1))
+    }
+}
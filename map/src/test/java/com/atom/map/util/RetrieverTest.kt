@@ -0,0 +1,106 @@
+package com.atom.map.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RetrieverTest {
+
+    private class TestRetriever : Retriever<String, Void, String>(4) {
+
+        val attempts = AtomicInteger()
+
+        val release = CountDownLatch(1)
+
+        override fun retrieveAsync(key: String, options: Void?, callback: Callback<String, Void, String>) {
+            attempts.incrementAndGet()
+            release.await(5, TimeUnit.SECONDS)
+            if (key.startsWith("missing")) {
+                callback.retrievalFailed(this, key, null)
+            } else {
+                callback.retrievalSucceeded(this, key, options, key.toUpperCase())
+            }
+        }
+    }
+
+    private class TestCallback : Retriever.Callback<String, Void, String> {
+
+        val done = CountDownLatch(1)
+
+        var value: String? = null
+
+        var failed = 0
+
+        var rejected = 0
+
+        override fun retrievalSucceeded(retriever: Retriever<String, Void, String>, key: String, options: Void?, value: String) {
+            this.value = value
+            done.countDown()
+        }
+
+        override fun retrievalFailed(retriever: Retriever<String, Void, String>, key: String, ex: Throwable?) {
+            failed++
+            done.countDown()
+        }
+
+        override fun retrievalRejected(retriever: Retriever<String, Void, String>, key: String, msg: String) {
+            rejected++
+        }
+    }
+
+    @Test
+    fun coalescesDuplicateRequests() {
+        val retriever = TestRetriever()
+        val callbacks = Array(3) { TestCallback() }
+        for (callback in callbacks) {
+            retriever.retrieve("tile", null, callback)
+            retriever.retrieve("tile", null, callback)
+        }
+        retriever.release.countDown()
+        for (callback in callbacks) {
+            assertTrue(callback.done.await(5, TimeUnit.SECONDS))
+            assertEquals("TILE", callback.value)
+            assertEquals(0, callback.rejected)
+        }
+        assertEquals(1, retriever.attempts.get())
+        assertEquals(5, retriever.getCoalescedCount())
+    }
+
+    @Test
+    fun backsOffFailedKeys() {
+        val retriever = TestRetriever()
+        retriever.failureBackoffMillis = 200
+        retriever.release.countDown()
+
+        val first = TestCallback()
+        retriever.retrieve("missing", null, first)
+        assertTrue(first.done.await(5, TimeUnit.SECONDS))
+        assertEquals(1, first.failed)
+        assertEquals(1, retriever.getFailedKeyCount())
+
+        // 退避期内的请求不再执行, 也不回调
+        val second = TestCallback()
+        retriever.retrieve("missing", null, second)
+        assertEquals(1, retriever.attempts.get())
+        assertEquals(1, retriever.getSuppressedCount())
+        assertEquals(0, second.rejected)
+
+        // 退避期结束后重新请求, 再次失败后退避时间加倍
+        Thread.sleep(250)
+        val third = TestCallback()
+        retriever.retrieve("missing", null, third)
+        assertTrue(third.done.await(5, TimeUnit.SECONDS))
+        assertEquals(2, retriever.attempts.get())
+        Thread.sleep(250)
+        retriever.retrieve("missing", null, TestCallback())
+        assertEquals(2, retriever.attempts.get())
+
+        retriever.clearFailures()
+        val fourth = TestCallback()
+        retriever.retrieve("missing", null, fourth)
+        assertTrue(fourth.done.await(5, TimeUnit.SECONDS))
+        assertEquals(3, retriever.attempts.get())
+    }
+}